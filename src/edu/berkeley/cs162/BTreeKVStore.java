@@ -0,0 +1,1000 @@
+package edu.berkeley.cs162;
+
+import static edu.berkeley.cs162.StaticConstants.STORE_IO_ERROR;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A KVStore kept in a B+tree inside a single memory-mapped file. Opening the
+ * store only maps the file and reads its header, however large it is, and
+ * a lookup binary-searches the mapped pages directly, comparing the UTF-8
+ * bytes of the key in place; only the value that is found is decoded.
+ * Keys are ordered by their UTF-8 bytes, which scan() exposes.
+ *
+ * The file is an array of PAGE_SIZE pages. Pages 0 and 1 hold two copies
+ * of the header (root page, page count, free list, key count and the
+ * applied position of KVStore.setAppliedPosition) stamped with
+ * a transaction number and a CRC32. The tree is copy-on-write: a put or del
+ * writes new copies of the pages on the path to the changed leaf and then
+ * the header into the older header slot, so the last committed tree is
+ * never modified in place and a crash at any point leaves a consistent
+ * store. Pages released by a commit are reused from the next one on.
+ *
+ * Values over INLINE_VALUE_BYTES are stored in a chain of overflow pages.
+ * Every cell holds the version of its key, and a deleted key leaves a
+ * tombstone cell with its version behind, so deleting never frees a leaf.
+ * Cells of files written before versions were kept have none and take the
+ * one found in their value. A crash may leak the pages freed by the last
+ * write or two.
+ *
+ * Deadlines of pairs with a time-to-live are stored with them and checked
+ * on every lookup, so expiry needs no scan at startup.
+ */
+public class BTreeKVStore extends KVStore {
+	static final int PAGE_SIZE = 4096;
+	private static final int CHUNK_BYTES = 1 << 26;
+	private static final int PAGES_PER_CHUNK = CHUNK_BYTES / PAGE_SIZE;
+	private static final int MAX_KEY_BYTES = 1024;
+
+	private static final int MAGIC = 0x42545245; // "BTRE"
+	private static final int FORMAT_VERSION = 3;
+	// Files of these formats have no versioned cells, or no applied
+	// position and a shorter header, and are still opened
+	private static final int UNVERSIONED_FORMAT = 1;
+	private static final int UNPOSITIONED_FORMAT = 2;
+	private static final int META_BYTES = 48;
+	private static final int UNPOSITIONED_META_BYTES = 40;
+
+	private static final byte LEAF = 1;
+	private static final byte INTERNAL = 2;
+	private static final byte FREE = 3;
+	private static final byte OVERFLOW = 4;
+
+	// Leaf:     type, u16 count, u16 offset[count], cells
+	//           cell: u16 key length, key, byte flags, long deadline, int value length,
+	//                 long version if FLAG_VERSIONED, value bytes or int first overflow page
+	// Internal: type, u16 count, int child0, u16 offset[count], cells
+	//           cell: u16 key length, key, int child holding keys >= key
+	// Free:     type, int next free page
+	// Overflow: type, int next page, int length, bytes
+	private static final int NODE_HEADER = 3;
+	private static final int INTERNAL_HEADER = 7;
+	private static final int OVERFLOW_HEADER = 9;
+	private static final byte FLAG_OVERFLOW = 1;
+	private static final byte FLAG_VERSIONED = 2;
+	private static final byte FLAG_TOMBSTONE = 4;
+	// Bytes of a leaf cell besides its key and inline value, its offset included
+	private static final int LEAF_CELL_OVERHEAD = 2 + 21 + 2;
+	// Longest value kept in the leaf. Any leaf cell then fits in half a page,
+	// so a leaf overfilled by one cell always splits into two that fit
+	private static final int INLINE_VALUE_BYTES = (PAGE_SIZE - NODE_HEADER) / 2 - MAX_KEY_BYTES - LEAF_CELL_OVERHEAD;
+
+	/**
+	 * A decoded leaf or internal cell, used only while rewriting pages.
+	 */
+	private static class cell {
+		byte[] key;
+		byte flags;
+		long deadline;
+		int valueLength;
+		long version;
+		byte[] inline;
+		int overflow;
+		int child;
+
+		int leafSize() {
+			return 2 + key.length + valueOffset(flags) + ((flags & FLAG_OVERFLOW) != 0 ? 4 : inline.length);
+		}
+
+		int internalSize() {
+			return 2 + key.length + 4;
+		}
+	}
+
+	/**
+	 * Outcome of rewriting a subtree: its new root page and, if it had to
+	 * split, the first key and page of its new right sibling.
+	 */
+	private static class rewrite {
+		int page;
+		byte[] splitKey;
+		int right;
+	}
+
+	private final File file;
+	private final boolean syncWrites;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private volatile MappedByteBuffer[] chunks;
+
+	// Committed state, and the transaction being built; guarded by the write lock
+	private long txn;
+	private int root;
+	private int pageCount;
+	private int freeHead;
+	private long keyCount;
+	private volatile long applied;
+	private final List<Integer> pendingFree = new ArrayList<Integer>();
+	// Set by close, under the write lock
+	private boolean closed;
+
+	/**
+	 * Opens the store kept in file, creating it if needed, without forcing
+	 * every write to the disk.
+	 * @param file	path of the B+tree file.
+	 * @throws KVException if the file cannot be opened or is not a B+tree file
+	 */
+	public BTreeKVStore(String file) throws KVException {
+		this(file, false);
+	}
+
+	/**
+	 * Opens the store kept in file, creating it if needed.
+	 * @param file	path of the B+tree file.
+	 * @param syncWrites	whether every write is forced to the disk before returning; without
+	 * 			it a write survives a crash of the process but not of the machine.
+	 * @throws KVException if the file cannot be opened or is not a B+tree file
+	 */
+	public BTreeKVStore(String file, boolean syncWrites) throws KVException {
+		this.file = new File(file);
+		this.syncWrites = syncWrites;
+		try {
+			raf = new RandomAccessFile(this.file, "rw");
+			channel = raf.getChannel();
+			open();
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+	}
+
+	private void open() throws IOException {
+		long size = channel.size();
+		int count = (int) Math.max(1, (size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+		MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * CHUNK_BYTES, CHUNK_BYTES);
+		}
+		chunks = mapped;
+
+		if (size == 0) {
+			root = 0;
+			pageCount = 2;
+			freeHead = 0;
+			keyCount = 0;
+			commit();
+			return;
+		}
+		if (!loadMeta(0) & !loadMeta(1)) {
+			throw new IOException(file + " is not a B+tree store");
+		}
+	}
+
+	/**
+	 * Adopts the header in slot if it is valid and newer than the one adopted so far.
+	 */
+	private boolean loadMeta(int slot) {
+		MappedByteBuffer chunk = chunks[0];
+		int base = slot * PAGE_SIZE;
+		int format = chunk.getInt(base + 4);
+		if (chunk.getInt(base) != MAGIC
+				|| (format != FORMAT_VERSION && format != UNPOSITIONED_FORMAT && format != UNVERSIONED_FORMAT)) {
+			return false;
+		}
+		int metaBytes = format == FORMAT_VERSION ? META_BYTES : UNPOSITIONED_META_BYTES;
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < metaBytes - 4; i++) {
+			crc.update(chunk.get(base + i));
+		}
+		if (chunk.getInt(base + metaBytes - 4) != (int) crc.getValue()) {
+			return false;
+		}
+		long metaTxn = chunk.getLong(base + 8);
+		if (metaTxn >= txn) {
+			txn = metaTxn;
+			root = chunk.getInt(base + 16);
+			pageCount = chunk.getInt(base + 20);
+			freeHead = chunk.getInt(base + 24);
+			keyCount = chunk.getLong(base + 28);
+			applied = format == FORMAT_VERSION ? chunk.getLong(base + 36) : 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Makes the current tree durable by writing the header into the older
+	 * slot, then frees the pages the previous tree no longer shares.
+	 */
+	private void commit() throws IOException {
+		if (syncWrites) {
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+		}
+		txn++;
+		MappedByteBuffer chunk = chunks[0];
+		int base = (int) (txn & 1) * PAGE_SIZE;
+		chunk.putInt(base, MAGIC);
+		chunk.putInt(base + 4, FORMAT_VERSION);
+		chunk.putLong(base + 8, txn);
+		chunk.putInt(base + 16, root);
+		chunk.putInt(base + 20, pageCount);
+		chunk.putInt(base + 24, freeHead);
+		chunk.putLong(base + 28, keyCount);
+		chunk.putLong(base + 36, applied);
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < META_BYTES - 4; i++) {
+			crc.update(chunk.get(base + i));
+		}
+		chunk.putInt(base + META_BYTES - 4, (int) crc.getValue());
+		if (syncWrites) {
+			chunk.force();
+		}
+
+		for (int page : pendingFree) {
+			putByte(page, 0, FREE);
+			putInt(page, 1, freeHead);
+			freeHead = page;
+		}
+		pendingFree.clear();
+	}
+
+	// Page access
+
+	private MappedByteBuffer chunk(int page) {
+		return chunks[page / PAGES_PER_CHUNK];
+	}
+
+	private static int base(int page, int offset) {
+		return (page % PAGES_PER_CHUNK) * PAGE_SIZE + offset;
+	}
+
+	private byte getByte(int page, int offset) {
+		return chunk(page).get(base(page, offset));
+	}
+
+	private int getShort(int page, int offset) {
+		return chunk(page).getShort(base(page, offset)) & 0xFFFF;
+	}
+
+	private int getInt(int page, int offset) {
+		return chunk(page).getInt(base(page, offset));
+	}
+
+	private long getLong(int page, int offset) {
+		return chunk(page).getLong(base(page, offset));
+	}
+
+	private void getBytes(int page, int offset, byte[] dest, int destOffset, int length) {
+		MappedByteBuffer chunk = chunk(page);
+		int base = base(page, offset);
+		for (int i = 0; i < length; i++) {
+			dest[destOffset + i] = chunk.get(base + i);
+		}
+	}
+
+	private void putByte(int page, int offset, byte b) {
+		chunk(page).put(base(page, offset), b);
+	}
+
+	private void putShort(int page, int offset, int s) {
+		chunk(page).putShort(base(page, offset), (short) s);
+	}
+
+	private void putInt(int page, int offset, int i) {
+		chunk(page).putInt(base(page, offset), i);
+	}
+
+	private void putLong(int page, int offset, long l) {
+		chunk(page).putLong(base(page, offset), l);
+	}
+
+	private void putBytes(int page, int offset, byte[] src) {
+		MappedByteBuffer chunk = chunk(page);
+		int base = base(page, offset);
+		for (int i = 0; i < src.length; i++) {
+			chunk.put(base + i, src[i]);
+		}
+	}
+
+	/**
+	 * Compares key with the key stored at offset of page, as unsigned bytes.
+	 */
+	private int compareKey(byte[] key, int page, int offset) {
+		int length = getShort(page, offset);
+		MappedByteBuffer chunk = chunk(page);
+		int base = base(page, offset + 2);
+		int n = Math.min(key.length, length);
+		for (int i = 0; i < n; i++) {
+			int cmp = (key[i] & 0xFF) - (chunk.get(base + i) & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return key.length - length;
+	}
+
+	private static int compareBytes(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * @return the index of the child of an internal page that may hold key
+	 *         (0 for child0, i + 1 for the child of key i)
+	 */
+	private int childIndex(int page, byte[] key) {
+		int low = 0;
+		int high = getShort(page, 1) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (compareKey(key, page, getShort(page, INTERNAL_HEADER + 2 * mid)) >= 0) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private int childAt(int page, int index) {
+		if (index == 0) {
+			return getInt(page, 3);
+		}
+		int offset = getShort(page, INTERNAL_HEADER + 2 * (index - 1));
+		return getInt(page, offset + 2 + getShort(page, offset));
+	}
+
+	/**
+	 * @return the index of key in a leaf, or -(insertion point) - 1
+	 */
+	private int leafSearch(int page, byte[] key) {
+		int low = 0;
+		int high = getShort(page, 1) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareKey(key, page, getShort(page, NODE_HEADER + 2 * mid));
+			if (cmp > 0) {
+				low = mid + 1;
+			} else if (cmp < 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	// Read path, under the read lock
+
+	@Override
+	protected stored readStored(String key) throws KVException {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		lock.readLock().lock();
+		try {
+			long at = locate(k);
+			if (at < 0) {
+				return null;
+			}
+			int page = (int) (at >>> 32);
+			int offset = (int) at;
+			long version = versionAt(page, offset);
+			long deadline = getLong(page, offset + 1);
+			if ((getByte(page, offset) & FLAG_TOMBSTONE) != 0 || deadline != 0 && deadline <= System.currentTimeMillis()) {
+				return new stored(null, version);
+			}
+			return new stored(valueAt(page, offset), version);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the leaf page of the cell of key in the high half and the
+	 *         offset of its flags byte in the low half, or -1 if there is none
+	 */
+	private long locate(byte[] key) {
+		int page = root;
+		if (page == 0) {
+			return -1;
+		}
+		while (getByte(page, 0) == INTERNAL) {
+			page = childAt(page, childIndex(page, key));
+		}
+		int index = leafSearch(page, key);
+		if (index < 0) {
+			return -1;
+		}
+		int offset = getShort(page, NODE_HEADER + 2 * index);
+		return (long) page << 32 | offset + 2 + getShort(page, offset);
+	}
+
+	/**
+	 * @return the offset of the value, or overflow page, of a leaf cell from its flags byte
+	 */
+	private static int valueOffset(byte flags) {
+		return (flags & FLAG_VERSIONED) != 0 ? 21 : 13;
+	}
+
+	/**
+	 * @param offset	offset of the flags byte of a leaf cell
+	 */
+	private long versionAt(int page, int offset) {
+		if ((getByte(page, offset) & FLAG_VERSIONED) != 0) {
+			return getLong(page, offset + 13);
+		}
+		return ValueCompressor.versionOf(valueAt(page, offset));
+	}
+
+	/**
+	 * @param offset	offset of the flags byte of a leaf cell
+	 */
+	private Bytes valueAt(int page, int offset) {
+		byte flags = getByte(page, offset);
+		int length = getInt(page, offset + 9);
+		byte[] value = new byte[length];
+		if ((flags & FLAG_OVERFLOW) == 0) {
+			getBytes(page, offset + valueOffset(flags), value, 0, length);
+		} else {
+			int overflow = getInt(page, offset + valueOffset(flags));
+			int done = 0;
+			while (done < length) {
+				int n = getInt(overflow, 5);
+				getBytes(overflow, OVERFLOW_HEADER, value, done, n);
+				done += n;
+				overflow = getInt(overflow, 1);
+			}
+		}
+		return Bytes.wrap(value);
+	}
+
+	/**
+	 * Reads pairs in key order, skipping expired and deleted ones.
+	 * @param fromKey	first key to return if present, or null to start from the smallest key
+	 * @param limit	maximum number of pairs to return
+	 * @return up to limit pairs whose key is fromKey or follows it
+	 */
+	public SortedMap<String, String> scan(String fromKey, int limit) {
+		return scan(fromKey, limit, true);
+	}
+
+	/**
+	 * @param withValues	whether to read the values, or map every key to null
+	 */
+	private SortedMap<String, String> scan(String fromKey, int limit, boolean withValues) {
+		byte[] from = fromKey == null ? new byte[0] : fromKey.getBytes(StandardCharsets.UTF_8);
+		SortedMap<String, String> result = new TreeMap<String, String>(new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return compareBytes(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+			}
+		});
+		lock.readLock().lock();
+		try {
+			if (root != 0) {
+				scan(root, from, limit, withValues, System.currentTimeMillis(), result);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	private void scan(int page, byte[] from, int limit, boolean withValues, long now, SortedMap<String, String> result) {
+		if (getByte(page, 0) == INTERNAL) {
+			int count = getShort(page, 1);
+			for (int i = childIndex(page, from); i <= count && result.size() < limit; i++) {
+				scan(childAt(page, i), from, limit, withValues, now, result);
+			}
+			return;
+		}
+		int count = getShort(page, 1);
+		int index = leafSearch(page, from);
+		for (int i = index < 0 ? -index - 1 : index; i < count && result.size() < limit; i++) {
+			int offset = getShort(page, NODE_HEADER + 2 * i);
+			int keyLength = getShort(page, offset);
+			byte[] key = new byte[keyLength];
+			getBytes(page, offset + 2, key, 0, keyLength);
+			int flagsOffset = offset + 2 + keyLength;
+			long deadline = getLong(page, flagsOffset + 1);
+			if ((getByte(page, flagsOffset) & FLAG_TOMBSTONE) == 0 && (deadline == 0 || deadline > now)) {
+				result.put(new String(key, StandardCharsets.UTF_8), withValues ? ValueCompressor.decode(valueAt(page, flagsOffset)).toString() : null);
+			}
+		}
+	}
+
+	@Override
+	protected Collection<String> storedKeys() {
+		List<String> keys = new ArrayList<String>();
+		String from = null;
+		while (true) {
+			SortedMap<String, String> batch = scan(from, 1024, false);
+			for (String key : batch.keySet()) {
+				if (!key.equals(from)) {
+					keys.add(key);
+				}
+			}
+			if (batch.size() < 1024) {
+				return keys;
+			}
+			from = batch.lastKey();
+		}
+	}
+
+	/**
+	 * Follows the UTF-8 order of the tree, which only differs from String
+	 * order for keys holding characters beyond U+FFFF.
+	 */
+	@Override
+	protected List<String> keysInRange(String startKey, String endKey, int limit) {
+		List<String> keys = new ArrayList<String>();
+		for (String key : scan(startKey, limit, false).keySet()) {
+			if (endKey != null && key.compareTo(endKey) >= 0) {
+				break;
+			}
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the number of keys stored, expired ones included until they are
+	 *         removed and deleted ones not
+	 */
+	public long size() {
+		lock.readLock().lock();
+		try {
+			return keyCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Write path, called holding the lock of the key; takes the write lock
+
+	@Override
+	protected void writeValue(String key, Bytes value, long deadline, long version) throws KVException {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		if (k.length > MAX_KEY_BYTES) {
+			throw new KVException("Key too large for the B+tree store");
+		}
+		byte[] v = value.array();
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			cell c = new cell();
+			c.key = k;
+			c.flags = FLAG_VERSIONED;
+			c.deadline = deadline;
+			c.valueLength = v.length;
+			long at = locate(k);
+			if (version == IMPLIED_VERSION) {
+				version = (at < 0 ? 0 : versionAt((int) (at >>> 32), (int) at)) + 1;
+			}
+			c.version = version;
+			if (v.length > INLINE_VALUE_BYTES) {
+				c.flags |= FLAG_OVERFLOW;
+				c.overflow = writeOverflow(v);
+			} else {
+				c.inline = v;
+			}
+			if (!isLive(at)) {
+				keyCount++;
+			}
+			put(c);
+		} catch (IOException e) {
+			// The committed tree still uses the pages queued for release; the
+			// ones written for this put leak
+			pendingFree.clear();
+			throw ioError(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the cell of key with a tombstone.
+	 */
+	@Override
+	protected void removeValue(String key, long version) throws KVException {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			long at = locate(k);
+			if (version == IMPLIED_VERSION) {
+				if (!isLive(at)) {
+					return;
+				}
+				version = versionAt((int) (at >>> 32), (int) at);
+			} else if (at < 0 && version == 0) {
+				return;
+			}
+			cell c = new cell();
+			c.key = k;
+			c.flags = FLAG_VERSIONED | FLAG_TOMBSTONE;
+			c.version = version;
+			c.inline = new byte[0];
+			if (isLive(at)) {
+				keyCount--;
+			}
+			put(c);
+		} catch (IOException e) {
+			pendingFree.clear();
+			throw ioError(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param at	where locate() found a cell, or -1
+	 * @return whether that cell holds a value, expired or not
+	 */
+	private boolean isLive(long at) {
+		return at >= 0 && (getByte((int) (at >>> 32), (int) at) & FLAG_TOMBSTONE) == 0;
+	}
+
+	/**
+	 * Fails once the store is closed: its pages stay mapped, so a late
+	 * write, such as an expiry, would still reach a file that may have
+	 * been opened again. Called holding the write lock.
+	 */
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	/**
+	 * Inserts c, or replaces the cell of its key with it, and commits.
+	 */
+	private void put(cell c) throws IOException {
+		rewrite r = root == 0 ? newLeafRoot(c) : insert(root, c);
+		root = r.splitKey == null ? r.page : newRoot(r);
+		commit();
+	}
+
+	@Override
+	protected long readAppliedPosition() {
+		return applied;
+	}
+
+	@Override
+	protected void writeAppliedPosition(long position) throws KVException {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			applied = position;
+			commit();
+		} catch (IOException e) {
+			throw ioError(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	protected void clearValues() throws KVException {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			// Every page but the headers becomes unreachable at once
+			root = 0;
+			pageCount = 2;
+			freeHead = 0;
+			keyCount = 0;
+			applied = 0;
+			pendingFree.clear();
+			commit();
+		} catch (IOException e) {
+			throw ioError(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private rewrite newLeafRoot(cell c) throws IOException {
+		List<cell> cells = new ArrayList<cell>();
+		cells.add(c);
+		return writeLeaves(cells);
+	}
+
+	private int newRoot(rewrite r) throws IOException {
+		List<cell> keys = new ArrayList<cell>();
+		cell c = new cell();
+		c.key = r.splitKey;
+		c.child = r.right;
+		keys.add(c);
+		return writeInternals(r.page, keys).page;
+	}
+
+	/**
+	 * Copies the subtree at page with c inserted or replacing the cell of its key.
+	 */
+	private rewrite insert(int page, cell c) throws IOException {
+		release(page);
+		if (getByte(page, 0) == LEAF) {
+			List<cell> cells = readLeaf(page);
+			int index = leafSearch(page, c.key);
+			if (index >= 0) {
+				releaseOverflow(cells.get(index));
+				cells.set(index, c);
+			} else {
+				cells.add(-index - 1, c);
+			}
+			return writeLeaves(cells);
+		}
+
+		int child0 = getInt(page, 3);
+		List<cell> keys = readInternal(page);
+		int index = childIndex(page, c.key);
+		rewrite r = insert(childAt(page, index), c);
+		if (index == 0) {
+			child0 = r.page;
+		} else {
+			keys.get(index - 1).child = r.page;
+		}
+		if (r.splitKey != null) {
+			cell split = new cell();
+			split.key = r.splitKey;
+			split.child = r.right;
+			keys.add(index, split);
+		}
+		return writeInternals(child0, keys);
+	}
+
+	private List<cell> readLeaf(int page) {
+		int count = getShort(page, 1);
+		List<cell> cells = new ArrayList<cell>(count + 1);
+		for (int i = 0; i < count; i++) {
+			int offset = getShort(page, NODE_HEADER + 2 * i);
+			cell c = new cell();
+			c.key = new byte[getShort(page, offset)];
+			getBytes(page, offset + 2, c.key, 0, c.key.length);
+			offset += 2 + c.key.length;
+			c.flags = getByte(page, offset);
+			c.deadline = getLong(page, offset + 1);
+			c.valueLength = getInt(page, offset + 9);
+			if ((c.flags & FLAG_VERSIONED) != 0) {
+				c.version = getLong(page, offset + 13);
+			}
+			if ((c.flags & FLAG_OVERFLOW) != 0) {
+				c.overflow = getInt(page, offset + valueOffset(c.flags));
+			} else {
+				c.inline = new byte[c.valueLength];
+				getBytes(page, offset + valueOffset(c.flags), c.inline, 0, c.valueLength);
+			}
+			cells.add(c);
+		}
+		return cells;
+	}
+
+	private List<cell> readInternal(int page) {
+		int count = getShort(page, 1);
+		List<cell> keys = new ArrayList<cell>(count + 1);
+		for (int i = 0; i < count; i++) {
+			int offset = getShort(page, INTERNAL_HEADER + 2 * i);
+			cell c = new cell();
+			c.key = new byte[getShort(page, offset)];
+			getBytes(page, offset + 2, c.key, 0, c.key.length);
+			c.child = getInt(page, offset + 2 + c.key.length);
+			keys.add(c);
+		}
+		return keys;
+	}
+
+	/**
+	 * Writes cells to one new leaf, or to two if they do not fit in one page.
+	 */
+	private rewrite writeLeaves(List<cell> cells) throws IOException {
+		rewrite r = new rewrite();
+		int total = 0;
+		for (cell c : cells) {
+			total += c.leafSize() + 2;
+		}
+		if (NODE_HEADER + total <= PAGE_SIZE) {
+			r.page = writeLeaf(cells);
+			return r;
+		}
+		int split = balancedSplit(cells, total, true);
+		if (split < 0) {
+			throw new IOException("Leaf cells do not fit in two pages");
+		}
+		r.page = writeLeaf(cells.subList(0, split));
+		r.right = writeLeaf(cells.subList(split, cells.size()));
+		r.splitKey = cells.get(split).key;
+		return r;
+	}
+
+	private int writeLeaf(List<cell> cells) throws IOException {
+		int page = allocate();
+		putByte(page, 0, LEAF);
+		putShort(page, 1, cells.size());
+		int offset = PAGE_SIZE;
+		for (int i = 0; i < cells.size(); i++) {
+			cell c = cells.get(i);
+			offset -= c.leafSize();
+			putShort(page, NODE_HEADER + 2 * i, offset);
+			putShort(page, offset, c.key.length);
+			putBytes(page, offset + 2, c.key);
+			int at = offset + 2 + c.key.length;
+			putByte(page, at, c.flags);
+			putLong(page, at + 1, c.deadline);
+			putInt(page, at + 9, c.valueLength);
+			if ((c.flags & FLAG_VERSIONED) != 0) {
+				putLong(page, at + 13, c.version);
+			}
+			if ((c.flags & FLAG_OVERFLOW) != 0) {
+				putInt(page, at + valueOffset(c.flags), c.overflow);
+			} else {
+				putBytes(page, at + valueOffset(c.flags), c.inline);
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Writes an internal node, split in two around its middle key if it does
+	 * not fit in one page; the middle key then moves up to the parent.
+	 */
+	private rewrite writeInternals(int child0, List<cell> keys) throws IOException {
+		rewrite r = new rewrite();
+		int total = 0;
+		for (cell c : keys) {
+			total += c.internalSize() + 2;
+		}
+		if (INTERNAL_HEADER + total <= PAGE_SIZE) {
+			r.page = writeInternal(child0, keys);
+			return r;
+		}
+		int middle = balancedSplit(keys, total, false);
+		if (middle < 0) {
+			throw new IOException("Internal cells do not fit in two pages");
+		}
+		cell up = keys.get(middle);
+		r.page = writeInternal(child0, keys.subList(0, middle));
+		r.right = writeInternal(up.child, keys.subList(middle + 1, keys.size()));
+		r.splitKey = up.key;
+		return r;
+	}
+
+	private int writeInternal(int child0, List<cell> keys) throws IOException {
+		int page = allocate();
+		putByte(page, 0, INTERNAL);
+		putShort(page, 1, keys.size());
+		putInt(page, 3, child0);
+		int offset = PAGE_SIZE;
+		for (int i = 0; i < keys.size(); i++) {
+			cell c = keys.get(i);
+			offset -= c.internalSize();
+			putShort(page, INTERNAL_HEADER + 2 * i, offset);
+			putShort(page, offset, c.key.length);
+			putBytes(page, offset + 2, c.key);
+			putInt(page, offset + 2 + c.key.length, c.child);
+		}
+		return page;
+	}
+
+	/**
+	 * Chooses where to split cells that overflow a page so that both halves
+	 * fit and are as even as possible in bytes.
+	 * @param leaf	whether the cells are leaf cells; for internal cells the
+	 * 			cell at the returned index moves up and belongs to neither half
+	 * @return the index, or -1 if no split leaves both halves within a page
+	 */
+	private static int balancedSplit(List<cell> cells, int total, boolean leaf) {
+		int header = leaf ? NODE_HEADER : INTERNAL_HEADER;
+		int best = -1;
+		int bestDiff = Integer.MAX_VALUE;
+		int left = 0;
+		for (int i = 1; i < cells.size(); i++) {
+			cell previous = cells.get(i - 1);
+			left += (leaf ? previous.leafSize() : previous.internalSize()) + 2;
+			cell at = cells.get(i);
+			int right = total - left - (leaf ? 0 : at.internalSize() + 2);
+			if (header + left <= PAGE_SIZE && header + right <= PAGE_SIZE && Math.abs(left - right) < bestDiff) {
+				best = i;
+				bestDiff = Math.abs(left - right);
+			}
+		}
+		return best;
+	}
+
+	private int writeOverflow(byte[] value) throws IOException {
+		int capacity = PAGE_SIZE - OVERFLOW_HEADER;
+		int next = 0;
+		// Written back to front so that every page can point at the next one
+		for (int start = ((value.length - 1) / capacity) * capacity; start >= 0; start -= capacity) {
+			int length = Math.min(capacity, value.length - start);
+			int page = allocate();
+			putByte(page, 0, OVERFLOW);
+			putInt(page, 1, next);
+			putInt(page, 5, length);
+			byte[] part = new byte[length];
+			System.arraycopy(value, start, part, 0, length);
+			putBytes(page, OVERFLOW_HEADER, part);
+			next = page;
+		}
+		return next;
+	}
+
+	private void releaseOverflow(cell c) {
+		if ((c.flags & FLAG_OVERFLOW) == 0) {
+			return;
+		}
+		for (int page = c.overflow; page != 0; page = getInt(page, 1)) {
+			release(page);
+		}
+	}
+
+	/**
+	 * Queues a page of the committed tree for reuse once the next commit no longer needs it.
+	 */
+	private void release(int page) {
+		pendingFree.add(page);
+	}
+
+	private int allocate() throws IOException {
+		if (freeHead != 0) {
+			int page = freeHead;
+			if (getByte(page, 0) == FREE) {
+				freeHead = getInt(page, 1);
+				return page;
+			}
+			// Rewritten by a transaction lost in a crash; leak the rest of the list
+			System.err.println("BTreeKVStore: dropping damaged free list of " + file);
+			freeHead = 0;
+		}
+		if (pageCount >= chunks.length * PAGES_PER_CHUNK) {
+			MappedByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+			grown[chunks.length] = channel.map(FileChannel.MapMode.READ_WRITE, (long) chunks.length * CHUNK_BYTES, CHUNK_BYTES);
+			chunks = grown;
+		}
+		return pageCount++;
+	}
+
+	/**
+	 * Forces the file to disk and closes it. The store cannot be used afterwards.
+	 */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			closed = true;
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static KVException ioError(IOException e) {
+		return new KVException(STORE_IO_ERROR + ": " + e.getMessage());
+	}
+}
@@ -0,0 +1,95 @@
+package edu.berkeley.cs162;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Bloom filter over String keys, as kept by every SSTable so that a lookup
+ * can skip files that certainly do not hold the key. The k probes are
+ * derived from one 64-bit hash by double hashing.
+ */
+class BloomFilter {
+	private final long[] bits;
+	private final long numBits;
+	private final int numHashes;
+
+	private BloomFilter(long[] bits, int numHashes) {
+		this.bits = bits;
+		this.numBits = (long) bits.length * 64;
+		this.numHashes = numHashes;
+	}
+
+	/**
+	 * Builds a filter holding the given key hashes.
+	 * @param hashes	values of hash(key), as many as count
+	 * @param bitsPerKey	10 gives a false positive rate of about 1%
+	 */
+	static BloomFilter of(long[] hashes, int count, int bitsPerKey) {
+		long numBits = Math.max(64, (long) count * bitsPerKey);
+		int numHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+		BloomFilter filter = new BloomFilter(new long[(int) ((numBits + 63) / 64)], numHashes);
+		for (int i = 0; i < count; i++) {
+			filter.add(hashes[i]);
+		}
+		return filter;
+	}
+
+	/**
+	 * 64-bit FNV-1a over the chars of key, with a final avalanche so both
+	 * halves are usable.
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private void add(long hash) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return false if key was certainly not added
+	 */
+	boolean mightContain(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(numHashes);
+		out.writeInt(bits.length);
+		for (long word : bits) {
+			out.writeLong(word);
+		}
+	}
+
+	static BloomFilter readFrom(DataInput in) throws IOException {
+		int numHashes = in.readInt();
+		long[] bits = new long[in.readInt()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = in.readLong();
+		}
+		return new BloomFilter(bits, numHashes);
+	}
+}
@@ -0,0 +1,172 @@
+package edu.berkeley.cs162;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Immutable byte string, the form in which KVStore engines hold values:
+ * the UTF-8 encoding of a String, possibly compressed by ValueCompressor.
+ * A Bytes made from a String holds only the String and encodes it each
+ * time its bytes are asked for, without keeping the encoding, so an
+ * engine that keeps values on the heap as they are hands the same String
+ * back without encoding or decoding it and never holds a value twice.
+ * The hash code is cached like String's.
+ */
+public final class Bytes implements Comparable<Bytes> {
+	public static final Bytes EMPTY = new Bytes(new byte[0]);
+
+	// Exactly one of these is set
+	private final byte[] bytes;
+	private final String string;
+	private int hash;
+
+	private Bytes(byte[] bytes) {
+		this.bytes = bytes;
+		this.string = null;
+	}
+
+	private Bytes(String string) {
+		this.bytes = null;
+		this.string = string;
+	}
+
+	/**
+	 * @return the UTF-8 encoding of s, or null if s is null
+	 */
+	public static Bytes of(String s) {
+		return s == null ? null : new Bytes(s);
+	}
+
+	public static Bytes copyOf(byte[] bytes) {
+		return new Bytes(bytes.clone());
+	}
+
+	public static Bytes copyOf(byte[] bytes, int offset, int length) {
+		return new Bytes(Arrays.copyOfRange(bytes, offset, offset + length));
+	}
+
+	/**
+	 * Takes bytes without copying them; the caller must not modify them afterwards.
+	 */
+	static Bytes wrap(byte[] bytes) {
+		return new Bytes(bytes);
+	}
+
+	public int length() {
+		return bytes != null ? bytes.length : utf8Length(string);
+	}
+
+	public boolean isEmpty() {
+		return bytes != null ? bytes.length == 0 : string.isEmpty();
+	}
+
+	public byte byteAt(int index) {
+		if (index == 0 && bytes == null) {
+			return firstByte(string);
+		}
+		return array()[index];
+	}
+
+	public byte[] toByteArray() {
+		return array().clone();
+	}
+
+	/**
+	 * @return the bytes themselves, which the caller must not modify, or
+	 *         for a Bytes made from a String a new encoding of it
+	 */
+	byte[] array() {
+		return bytes != null ? bytes : string.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the bytes decoded as UTF-8
+	 */
+	@Override
+	public String toString() {
+		return string != null ? string : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0 && !isEmpty()) {
+			h = Arrays.hashCode(array());
+			hash = h;
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Bytes)) {
+			return false;
+		}
+		Bytes other = (Bytes) o;
+		if (string != null && string.equals(other.string)) {
+			return true;
+		}
+		return hashCode() == other.hashCode() && Arrays.equals(array(), other.array());
+	}
+
+	/**
+	 * Compares as unsigned bytes, which for UTF-8 is code point order.
+	 */
+	@Override
+	public int compareTo(Bytes other) {
+		byte[] a = array();
+		byte[] b = other.array();
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * @return the first byte of the UTF-8 encoding of s, which is not empty
+	 */
+	private static byte firstByte(String s) {
+		int c = s.codePointAt(0);
+		if (c < 0x80) {
+			return (byte) c;
+		} else if (c < 0x800) {
+			return (byte) (0xC0 | c >> 6);
+		} else if (c >= 0x10000) {
+			return (byte) (0xF0 | c >> 18);
+		} else if (Character.isSurrogate((char) c)) {
+			return '?';
+		}
+		return (byte) (0xE0 | c >> 12);
+	}
+
+	/**
+	 * @return the length of the UTF-8 encoding of s, unpaired surrogates
+	 *         taking the one byte of the '?' they are encoded as
+	 */
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+}
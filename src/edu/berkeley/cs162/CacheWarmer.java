@@ -0,0 +1,192 @@
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a KVServer's cache warm across restarts. The keys of the hottest
+ * cached entries (never their values) are written periodically to a small
+ * binary file; after a restart they are read back and fetched through
+ * KVServer.get in the background, so that the cache fills from the store
+ * before clients ask for them.
+ *
+ * The file holds a magic number, a version byte, the number of keys and
+ * then every key as written by DataOutput.writeUTF. It is replaced
+ * atomically, so a crash while saving leaves the previous file intact.
+ */
+public class CacheWarmer {
+	private static final int MAGIC = 0x4B56484B; // "KVHK"
+	private static final byte VERSION = 1;
+
+	private KVServer kvServer;
+	private String path;
+	private Thread saver;
+
+	/**
+	 * @param kvServer	the server whose cache is saved and warmed.
+	 * @param path	location of the hot key file.
+	 */
+	public CacheWarmer(KVServer kvServer, String path) {
+		this.kvServer = kvServer;
+		this.path = path;
+	}
+
+	/**
+	 * Writes the keys the cache currently holds, hottest first, up to the
+	 * cache's capacity.
+	 * @throws IOException if the file cannot be written
+	 */
+	public void saveHotKeys() throws IOException {
+		KVCache cache = kvServer.getCache();
+		List<String> keys = cache.hotKeys(cache.getStats().getCapacity());
+
+		File target = new File(path);
+		File temp = new File(path + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(keys.size());
+			for (String key : keys) {
+				out.writeUTF(key);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the keys of the last saved file, or an empty list if there is
+	 *         none or it cannot be read
+	 */
+	public List<String> loadHotKeys() {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				System.err.println("CacheWarmer: ignoring unrecognized hot key file " + path);
+				return Collections.emptyList();
+			}
+			int count = in.readInt();
+			List<String> keys = new ArrayList<String>(Math.max(0, Math.min(count, 1 << 16)));
+			for (int i = 0; i < count; i++) {
+				keys.add(in.readUTF());
+			}
+			return keys;
+		} catch (FileNotFoundException e) {
+			return Collections.emptyList();
+		} catch (IOException e) {
+			System.err.println("CacheWarmer: cannot read hot key file " + path + ": " + e);
+			return Collections.emptyList();
+		} finally {
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Loads the saved keys into the cache in the background, using
+	 * parallelism threads that each call KVServer.get for the next key not
+	 * yet taken. Keys no longer in the store are skipped.
+	 * @param parallelism	number of concurrent store lookups.
+	 * @return the number of keys loaded, available once prefetching is done
+	 */
+	public Future<Integer> prefetch(final int parallelism) {
+		FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+			@Override
+			public Integer call() throws InterruptedException {
+				final List<String> keys = loadHotKeys();
+				final AtomicInteger next = new AtomicInteger();
+				final AtomicInteger loaded = new AtomicInteger();
+				Thread[] workers = new Thread[Math.max(1, parallelism)];
+				for (int i = 0; i < workers.length; i++) {
+					workers[i] = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							int i;
+							while ((i = next.getAndIncrement()) < keys.size()) {
+								try {
+									kvServer.get(keys.get(i));
+									loaded.incrementAndGet();
+								} catch (KVException e) {
+									// Deleted since the file was saved
+								}
+							}
+						}
+					}, "CacheWarmer-" + i);
+					workers[i].setDaemon(true);
+					workers[i].start();
+				}
+				for (Thread worker : workers) {
+					worker.join();
+				}
+				return loaded.get();
+			}
+		});
+		Thread coordinator = new Thread(task, "CacheWarmer");
+		coordinator.setDaemon(true);
+		coordinator.start();
+		return task;
+	}
+
+	/**
+	 * Saves the hot keys every periodMillis on a daemon thread until stop()
+	 * is called.
+	 */
+	public synchronized void startPeriodicSave(final long periodMillis) {
+		if (saver != null) {
+			return;
+		}
+		saver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(periodMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						saveHotKeys();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "CacheWarmer-saver");
+		saver.setDaemon(true);
+		saver.start();
+	}
+
+	/**
+	 * Stops the periodic save, if started.
+	 */
+	public synchronized void stop() {
+		if (saver != null) {
+			saver.interrupt();
+			saver = null;
+		}
+	}
+}
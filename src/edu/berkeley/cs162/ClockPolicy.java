@@ -0,0 +1,77 @@
+package edu.berkeley.cs162;
+
+/**
+ * Second-chance CLOCK. A hand sweeps the slots; a referenced slot under the
+ * hand loses its bit and is skipped, the first unreferenced one is evicted.
+ * Newly inserted entries start unreferenced.
+ */
+class ClockPolicy implements EvictionPolicy {
+    private final boolean[] occupied;
+    private final boolean[] referenced;
+    private int hand;
+    private long referenceClears;
+
+    ClockPolicy(int capacity) {
+        occupied = new boolean[capacity];
+        referenced = new boolean[capacity];
+    }
+
+    @Override
+    public void onInsert(int slot, int hash) {
+        occupied[slot] = true;
+        referenced[slot] = false;
+    }
+
+    @Override
+    public void onAccess(int slot) {
+        referenced[slot] = true;
+    }
+
+    @Override
+    public void onMiss(int hash) {
+    }
+
+    @Override
+    public void onRemove(int slot) {
+        occupied[slot] = false;
+        referenced[slot] = false;
+    }
+
+    /**
+     * Two full turns of the hand are always enough since the first one
+     * clears every bit.
+     */
+    @Override
+    public int victim(int keepSlot) {
+        int capacity = occupied.length;
+        for (int step = 0; step < 2 * capacity; step++) {
+            int slot = hand;
+            hand = (hand + 1) % capacity;
+            if (!occupied[slot] || slot == keepSlot) {
+                continue;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                referenceClears++;
+                continue;
+            }
+            return slot;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return referenced[slot];
+    }
+
+    @Override
+    public boolean recordsAccessRacily() {
+        return true;
+    }
+
+    @Override
+    public long getReferenceClears() {
+        return referenceClears;
+    }
+}
@@ -0,0 +1,466 @@
+package edu.berkeley.cs162;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An in-memory KVStore for very many small pairs. Instead of a map with a
+ * node, a key String and a value object per pair, every pair is packed
+ * into a single byte array
+ * <pre>
+ *   u16 key length, key (UTF-8), LEB128 varint version * 2 + 1 if removed,
+ *   value (as KVStore hands it over; none if removed)
+ * </pre>
+ * held in open-addressed tables of parallel arrays: the hash codes in an
+ * int[] and the packed pairs in a byte[][]. A pair thus costs one array
+ * header plus about 11 bytes of table on top of its data.
+ *
+ * Keys are spread over STRIPES tables, each with its own StampedLock.
+ * Lookups are optimistic reads that only fall back to the read lock if a
+ * writer changed the stripe meanwhile. Tables use linear probing with
+ * backward-shift deletion, so they need no deletion markers, and double in
+ * size once three quarters full. A removed key still keeps a pair holding
+ * its version, which KVStore needs to carry on from.
+ *
+ * There is no ordered index, which would cost objects per key again:
+ * scans take one pass over all pairs per page, and keys are ordered by
+ * their UTF-8 bytes, which only differs from String order for characters
+ * beyond U+FFFF.
+ */
+public class CompactKVStore extends KVStore {
+	private static final int STRIPES = 256;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int MAX_KEY_BYTES = 0xFFFF;
+
+	/**
+	 * The arrays of one stripe, replaced together when the stripe grows.
+	 */
+	private static final class table {
+		final int[] hashes;
+		final byte[][] pairs;
+
+		table(int capacity) {
+			hashes = new int[capacity];
+			pairs = new byte[capacity][];
+		}
+	}
+
+	private static final class stripe {
+		final StampedLock lock = new StampedLock();
+		table current = new table(INITIAL_CAPACITY);
+		// Pairs in the table, and how many of them are of removed keys
+		int size;
+		int removed;
+	}
+
+	private static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			int n = Math.min(a.length, b.length);
+			for (int i = 0; i < n; i++) {
+				int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			return a.length - b.length;
+		}
+	};
+
+	private final stripe[] stripes = new stripe[STRIPES];
+
+	public CompactKVStore() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new stripe();
+		}
+	}
+
+	/**
+	 * @return a non-zero hash of key; the top bits pick the stripe, the low bits the slot
+	 */
+	private static int hash(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		h ^= h >>> 16;
+		return h == 0 ? 1 : h;
+	}
+
+	private stripe stripeFor(int hash) {
+		return stripes[hash >>> 24];
+	}
+
+	private static int keyLength(byte[] pair) {
+		return ((pair[0] & 0xFF) << 8) | (pair[1] & 0xFF);
+	}
+
+	private static boolean keyEquals(byte[] pair, byte[] key) {
+		if (keyLength(pair) != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (pair[2 + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return version * 2, plus 1 if the key was removed
+	 */
+	private static long header(byte[] pair) {
+		long header = 0;
+		for (int at = 2 + keyLength(pair), shift = 0; ; at++, shift += 7) {
+			header |= (long) (pair[at] & 0x7F) << shift;
+			if (pair[at] >= 0) {
+				return header;
+			}
+		}
+	}
+
+	private static int valueOffset(byte[] pair) {
+		int at = 2 + keyLength(pair);
+		while (pair[at++] < 0) {
+		}
+		return at;
+	}
+
+	private static boolean isRemoved(byte[] pair) {
+		return (header(pair) & 1) != 0;
+	}
+
+	private static byte[] pack(byte[] key, long header, Bytes value) {
+		int headerLength = 1;
+		for (long h = header >>> 7; h != 0; h >>>= 7) {
+			headerLength++;
+		}
+		byte[] valueBytes = value == null ? null : value.array();
+		int valueLength = valueBytes == null ? 0 : valueBytes.length;
+		byte[] pair = new byte[2 + key.length + headerLength + valueLength];
+		pair[0] = (byte) (key.length >>> 8);
+		pair[1] = (byte) key.length;
+		System.arraycopy(key, 0, pair, 2, key.length);
+		int at = 2 + key.length;
+		long h = header;
+		while ((h & ~0x7FL) != 0) {
+			pair[at++] = (byte) ((h & 0x7F) | 0x80);
+			h >>>= 7;
+		}
+		pair[at++] = (byte) h;
+		if (valueBytes != null) {
+			System.arraycopy(valueBytes, 0, pair, at, valueLength);
+		}
+		return pair;
+	}
+
+	/**
+	 * @return the slot of key in t, or -1; bounded so that a torn optimistic read cannot loop
+	 */
+	private static int find(table t, int hash, byte[] key) {
+		int mask = t.hashes.length - 1;
+		for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+			int h = t.hashes[i];
+			if (h == 0) {
+				return -1;
+			}
+			byte[] pair = t.pairs[i];
+			if (h == hash && pair != null && keyEquals(pair, key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Storage primitives
+
+	@Override
+	protected stored readStored(String key) throws KVException {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(key);
+		stripe s = stripeFor(hash);
+		long stamp = s.lock.tryOptimisticRead();
+		byte[] pair = lookup(s.current, hash, k);
+		if (!s.lock.validate(stamp)) {
+			stamp = s.lock.readLock();
+			try {
+				pair = lookup(s.current, hash, k);
+			} finally {
+				s.lock.unlockRead(stamp);
+			}
+		}
+		if (pair == null) {
+			return null;
+		}
+		long header = header(pair);
+		if ((header & 1) != 0) {
+			return new stored(null, header >>> 1);
+		}
+		int offset = valueOffset(pair);
+		return new stored(Bytes.copyOf(pair, offset, pair.length - offset), header >>> 1);
+	}
+
+	private static byte[] lookup(table t, int hash, byte[] key) {
+		int slot = find(t, hash, key);
+		return slot < 0 ? null : t.pairs[slot];
+	}
+
+	@Override
+	protected void writeValue(String key, Bytes value, long deadline, long version) throws KVException {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		if (k.length > MAX_KEY_BYTES) {
+			throw new KVException("Key too large for the compact store");
+		}
+		int hash = hash(key);
+		stripe s = stripeFor(hash);
+		long stamp = s.lock.writeLock();
+		try {
+			table t = s.current;
+			int slot = find(t, hash, k);
+			if (version == IMPLIED_VERSION) {
+				version = (slot < 0 ? 0 : header(t.pairs[slot]) >>> 1) + 1;
+			}
+			byte[] pair = pack(k, version << 1, value);
+			if (slot >= 0) {
+				if (isRemoved(t.pairs[slot])) {
+					s.removed--;
+				}
+				t.pairs[slot] = pair;
+				return;
+			}
+			add(s, hash, pair);
+		} finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Inserts the pair of a key not in the stripe, growing its table if needed.
+	 */
+	private static void add(stripe s, int hash, byte[] pair) {
+		table t = s.current;
+		if ((s.size + 1) * 4 > t.hashes.length * 3) {
+			t = grow(s);
+		}
+		insert(t, hash, pair);
+		s.size++;
+	}
+
+	private static void insert(table t, int hash, byte[] pair) {
+		int mask = t.hashes.length - 1;
+		int i = hash & mask;
+		while (t.hashes[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		// The pair first, so that a reader seeing the hash also sees it
+		t.pairs[i] = pair;
+		t.hashes[i] = hash;
+	}
+
+	private static table grow(stripe s) {
+		table old = s.current;
+		table t = new table(old.hashes.length * 2);
+		for (int i = 0; i < old.hashes.length; i++) {
+			if (old.hashes[i] != 0) {
+				insert(t, old.hashes[i], old.pairs[i]);
+			}
+		}
+		s.current = t;
+		return t;
+	}
+
+	@Override
+	protected void removeValue(String key, long version) throws KVException {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(key);
+		stripe s = stripeFor(hash);
+		long stamp = s.lock.writeLock();
+		try {
+			table t = s.current;
+			int slot = find(t, hash, k);
+			boolean removed = slot >= 0 && isRemoved(t.pairs[slot]);
+			if (version == IMPLIED_VERSION) {
+				if (slot < 0 || removed) {
+					return;
+				}
+				version = header(t.pairs[slot]) >>> 1;
+			}
+			if (version == 0) {
+				if (slot >= 0) {
+					if (removed) {
+						s.removed--;
+					}
+					delete(s, slot);
+				}
+				return;
+			}
+			byte[] pair = pack(k, (version << 1) | 1, null);
+			if (slot >= 0) {
+				t.pairs[slot] = pair;
+			} else {
+				add(s, hash, pair);
+			}
+			if (!removed) {
+				s.removed++;
+			}
+		} finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Empties slot of the stripe's table. Called holding the stripe's write lock.
+	 */
+	private static void delete(stripe s, int slot) {
+		table t = s.current;
+		// Shift back the following pairs of the run that may no longer be
+		// reachable from their home slot once this one is empty
+		int mask = t.hashes.length - 1;
+		int hole = slot;
+		for (int i = (hole + 1) & mask; t.hashes[i] != 0; i = (i + 1) & mask) {
+			int home = t.hashes[i] & mask;
+			boolean reachable = hole <= i ? (home > hole && home <= i) : (home > hole || home <= i);
+			if (!reachable) {
+				t.pairs[hole] = t.pairs[i];
+				t.hashes[hole] = t.hashes[i];
+				hole = i;
+			}
+		}
+		t.hashes[hole] = 0;
+		t.pairs[hole] = null;
+		s.size--;
+	}
+
+	@Override
+	protected void clearValues() throws KVException {
+		for (stripe s : stripes) {
+			long stamp = s.lock.writeLock();
+			try {
+				s.current = new table(INITIAL_CAPACITY);
+				s.size = 0;
+				s.removed = 0;
+			} finally {
+				s.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @return a view of the keys that copies one stripe's keys at a time while iterating
+	 */
+	@Override
+	protected Collection<String> storedKeys() {
+		return new AbstractCollection<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					private int next = 0;
+					private Iterator<String> keys = Collections.<String>emptyIterator();
+
+					@Override
+					public boolean hasNext() {
+						while (!keys.hasNext() && next < STRIPES) {
+							keys = keysOf(stripes[next++]).iterator();
+						}
+						return keys.hasNext();
+					}
+
+					@Override
+					public String next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						return keys.next();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return (int) Math.min(Integer.MAX_VALUE, CompactKVStore.this.size());
+			}
+		};
+	}
+
+	private static List<String> keysOf(stripe s) {
+		long stamp = s.lock.readLock();
+		try {
+			table t = s.current;
+			List<String> keys = new ArrayList<String>(s.size - s.removed);
+			for (int i = 0; i < t.hashes.length; i++) {
+				if (t.hashes[i] != 0 && !isRemoved(t.pairs[i])) {
+					keys.add(new String(t.pairs[i], 2, keyLength(t.pairs[i]), StandardCharsets.UTF_8));
+				}
+			}
+			return keys;
+		} finally {
+			s.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * One pass over every stripe, keeping the limit smallest keys in range.
+	 */
+	@Override
+	protected List<String> keysInRange(String startKey, String endKey, int limit) {
+		byte[] start = startKey == null ? null : startKey.getBytes(StandardCharsets.UTF_8);
+		byte[] end = endKey == null ? null : endKey.getBytes(StandardCharsets.UTF_8);
+		// Largest of the keys kept so far on top
+		PriorityQueue<byte[]> smallest = new PriorityQueue<byte[]>(Math.min(limit, 1024) + 1, Collections.reverseOrder(UNSIGNED));
+		for (stripe s : stripes) {
+			long stamp = s.lock.readLock();
+			try {
+				table t = s.current;
+				for (int i = 0; i < t.hashes.length; i++) {
+					if (t.hashes[i] == 0 || isRemoved(t.pairs[i])) {
+						continue;
+					}
+					byte[] pair = t.pairs[i];
+					byte[] key = new byte[keyLength(pair)];
+					System.arraycopy(pair, 2, key, 0, key.length);
+					if ((start != null && UNSIGNED.compare(key, start) < 0) || (end != null && UNSIGNED.compare(key, end) >= 0)) {
+						continue;
+					}
+					if (smallest.size() < limit) {
+						smallest.add(key);
+					} else if (UNSIGNED.compare(key, smallest.peek()) < 0) {
+						smallest.poll();
+						smallest.add(key);
+					}
+				}
+			} finally {
+				s.lock.unlockRead(stamp);
+			}
+		}
+		List<byte[]> sorted = new ArrayList<byte[]>(smallest);
+		Collections.sort(sorted, UNSIGNED);
+		List<String> keys = new ArrayList<String>(sorted.size());
+		for (byte[] key : sorted) {
+			keys.add(new String(key, StandardCharsets.UTF_8));
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the number of pairs stored, expired ones included until they are removed
+	 */
+	public long size() {
+		long size = 0;
+		for (stripe s : stripes) {
+			long stamp = s.lock.readLock();
+			try {
+				size += s.size - s.removed;
+			} finally {
+				s.lock.unlockRead(stamp);
+			}
+		}
+		return size;
+	}
+}
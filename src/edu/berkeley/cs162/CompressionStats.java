@@ -0,0 +1,71 @@
+package edu.berkeley.cs162;
+
+/**
+ * Counters of the value compression of a KVStore since it was created.
+ * Values shorter than the threshold are not counted.
+ */
+public class CompressionStats {
+	private final int threshold;
+	private final long compressedValues;
+	private final long incompressibleValues;
+	private final long bytesIn;
+	private final long bytesOut;
+
+	CompressionStats(int threshold, long compressedValues, long incompressibleValues, long bytesIn, long bytesOut) {
+		this.threshold = threshold;
+		this.compressedValues = compressedValues;
+		this.incompressibleValues = incompressibleValues;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+	}
+
+	/**
+	 * @return length in bytes from which values are compressed, or 0 if compression is off
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return values stored compressed
+	 */
+	public long getCompressedValues() {
+		return compressedValues;
+	}
+
+	/**
+	 * @return values long enough to compress that were stored as they are
+	 *         because compression saved too little
+	 */
+	public long getIncompressibleValues() {
+		return incompressibleValues;
+	}
+
+	/**
+	 * @return UTF-8 bytes of the values stored compressed
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return compressed bytes those values were stored as
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return bytesOut / bytesIn, or 1 before the first value is compressed
+	 */
+	public double getCompressionRatio() {
+		return bytesIn == 0 ? 1 : (double) bytesOut / bytesIn;
+	}
+
+	@Override
+	public String toString() {
+		return "threshold=" + threshold + " compressed=" + compressedValues
+				+ " incompressible=" + incompressibleValues + " bytesIn=" + bytesIn
+				+ " bytesOut=" + bytesOut + String.format(" ratio=%.3f", getCompressionRatio());
+	}
+}
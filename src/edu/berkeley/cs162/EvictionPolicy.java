@@ -0,0 +1,94 @@
+package edu.berkeley.cs162;
+
+/**
+ * Replacement policy of one KVCache set. A policy never sees keys or values:
+ * it tracks the set's slots (0 .. capacity - 1) and is told when a slot is
+ * filled, hit or emptied, and picks the slot to evict when the set is full.
+ * 
+ * All methods are called with the set's write lock held, except onAccess
+ * when recordsAccessRacily() is true, which readers may then call with no
+ * lock at all.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * The policies a KVCache can be built with.
+     */
+    public enum Kind {
+        /** Second-chance CLOCK, the original KVCache behavior. */
+        CLOCK,
+        /** Exact least-recently-used. */
+        LRU,
+        /** Segmented LRU: a probation segment in front of a protected one. */
+        SLRU,
+        /** W-TinyLFU: an LRU window in front of an SLRU main region guarded by a frequency sketch. */
+        TINYLFU;
+
+        /**
+         * @param capacity number of slots in the set
+         * @return a fresh policy instance for one set
+         */
+        public EvictionPolicy create(int capacity) {
+            switch (this) {
+            case LRU:
+                return new LruPolicy(capacity);
+            case SLRU:
+                return new SlruPolicy(capacity);
+            case TINYLFU:
+                return new TinyLfuPolicy(capacity);
+            default:
+                return new ClockPolicy(capacity);
+            }
+        }
+    }
+
+    /**
+     * A new entry was stored in slot.
+     * @param hash hashCode() of the entry's key
+     */
+    public void onInsert(int slot, int hash);
+
+    /**
+     * The entry in slot was read or overwritten.
+     */
+    public void onAccess(int slot);
+
+    /**
+     * A lookup for a key with this hash missed.
+     */
+    public void onMiss(int hash);
+
+    /**
+     * The entry in slot was deleted or evicted.
+     */
+    public void onRemove(int slot);
+
+    /**
+     * Chooses the entry to evict. The policy may reorganize itself but must
+     * not forget the returned slot; the set calls onRemove for it.
+     * @param keepSlot slot that must not be chosen, or -1
+     * @return the slot to evict, or -1 if no slot other than keepSlot is occupied
+     */
+    public int victim(int keepSlot);
+
+    /**
+     * @return whether slot would currently be spared by the policy, as shown
+     *         by the isReferenced attribute of KVCache.toXML()
+     */
+    public boolean isReferenced(int slot);
+
+    /**
+     * @return true if onAccess may be called concurrently without the set's
+     *         write lock; otherwise lock-free hits are buffered by the set and
+     *         replayed under the lock
+     */
+    public boolean recordsAccessRacily();
+
+    /**
+     * @return how many times victim() spared an entry by clearing its
+     *         reference bit; 0 for policies without reference bits
+     */
+    public default long getReferenceClears() {
+        return 0;
+    }
+}
@@ -32,12 +32,17 @@ package edu.berkeley.cs162;
 
 import java.io.StringWriter;
 import java.io.Writer;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 import javax.xml.parsers.*;
@@ -50,61 +55,503 @@ import org.w3c.dom.*;
 /**
  * A set-associate cache which has a fixed maximum number of sets (numSets).
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
- * If a set is full and another entry is added, an entry is dropped based on the eviction policy.
+ * If a set is full and another entry is added, an entry is dropped based on the eviction policy,
+ * second-chance CLOCK unless another {@link EvictionPolicy.Kind} is chosen.
+ * Optionally the whole cache is also bounded by a byte budget (maxBytes); entries are
+ * weighed by the size of their key and value, and once the budget is exceeded entries
+ * are evicted from the inserting set first and then from the other sets.
+ * The number of sets can be changed at runtime with {@link #resize(int)}.
  */
 public class KVCache implements KeyValueInterface {	
+	private static final int MIGRATE_PER_OP = 1;
+	
+	/** Returned by pendingWrite() for a delete not flushed yet; compared by identity. */
+	static final String DELETED = new String("DELETED");
+	
 	private int numSets = 100;
 	private int maxElemsPerSet = 10;
+	private long maxBytes = 0;
+	private EvictionPolicy.Kind policy = EvictionPolicy.Kind.CLOCK;
+	
+	private volatile setTable _table;
+	private timedWriteLock[] _stripes;
 	
-	private List<cacheSet> _sets;	
+	private AtomicLong _usedBytes = new AtomicLong();
+	// Dirty entries evicted before they were written back, DELETED for deletes
+	private ConcurrentHashMap<String, String> _evicted = new ConcurrentHashMap<String, String>();
+	private volatile Runnable _onDirtyEviction;
+	private AtomicInteger _evictCursor = new AtomicInteger();
+	private KVCacheStats _retiredStats = new KVCacheStats(0, 0, 0, 0, 0, 0, 0, 0, 0);
 
 	
 	/**
-	 * Creates a new LRU cache.
-	 * @param cacheSize	the maximum number of entries that will be kept in this cache.
+	 * Creates a new CLOCK (second-chance) cache.
+	 * @param numSets	the number of sets in this cache.
+	 * @param maxElemsPerSet	the maximum number of entries that will be kept in each set.
 	 */
 	public KVCache(int numSets, int maxElemsPerSet) {
+		this(numSets, maxElemsPerSet, 0);
+	}
+	
+	/**
+	 * Creates a new CLOCK (second-chance) cache bounded by a total byte budget.
+	 * @param numSets	the number of sets in this cache.
+	 * @param maxElemsPerSet	the maximum number of entries that will be kept in each set.
+	 * @param maxBytes	the maximum total weight of all entries, or 0 to bound by entry count only.
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, long maxBytes) {
+		this(numSets, maxElemsPerSet, maxBytes, EvictionPolicy.Kind.CLOCK);
+	}
+	
+	/**
+	 * Creates a new cache using the given eviction policy in every set.
+	 * @param numSets	the number of sets in this cache.
+	 * @param maxElemsPerSet	the maximum number of entries that will be kept in each set.
+	 * @param maxBytes	the maximum total weight of all entries, or 0 to bound by entry count only.
+	 * @param policy	the eviction policy of each set.
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, long maxBytes, EvictionPolicy.Kind policy) {
 		this.numSets = numSets;
 		this.maxElemsPerSet = maxElemsPerSet;     
-		// TODO: Implement Me!
-		_sets = new LinkedList<cacheSet>();
-		for(int i = 0; i < numSets; i++) {
-			_sets.add(new cacheSet(i, maxElemsPerSet));
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		_table = new setTable(newSets(numSets), null);
+		// The key locks stay fixed when the cache is resized
+		_stripes = new timedWriteLock[numSets];
+		for (int i = 0; i < numSets; i++) {
+			_stripes[i] = new timedWriteLock(new ReentrantReadWriteLock());
 		}
 	}
+	
+	private cacheSet[] newSets(int count) {
+		cacheSet[] sets = new cacheSet[count];
+		for (int i = 0; i < count; i++) {
+			sets[i] = newSet(i, maxElemsPerSet, _usedBytes, policy);
+			sets[i]._owner = this;
+		}
+		return sets;
+	}
+	
+	/**
+	 * Creates one set of this cache. Called from the constructor, before any
+	 * field of a subclass is initialized, and when the cache is resized, after
+	 * getNumSets() has been updated.
+	 */
+	cacheSet newSet(int id, int capacity, AtomicLong usedBytes, EvictionPolicy.Kind policy) {
+		return new cacheSet(id, capacity, usedBytes, policy);
+	}
 
 	/**
 	 * Retrieves an entry from the cache.
-	 * Assumes the corresponding set has already been locked for writing.
+	 * Assumes the key has already been locked through getWriteLock if the
+	 * caller needs this lookup to be atomic with a following put or del.
 	 * @param key the key whose associated value is to be returned.
 	 * @return the value associated to this key, or null if no value with this key exists in the cache.
 	 */
 	public String get(String key) {
-		int id = getSetId(key);
-		String ret =  _sets.get(id).get(key);
-		
-		return ret;
+		migrateSome();
+		cacheSet set = lockSetFor(key);
+		try {
+			return set.get(key);
+		} finally {
+			set.getWriteLock().unlock();
+		}
+	}
+	
+	/**
+	 * Retrieves an entry from the cache without taking any lock.
+	 * Safe to call concurrently with other readers and with writers holding
+	 * the write lock; the lookup is an optimistic read that falls back to a
+	 * shared read only if a writer modified the set meanwhile.
+	 * @param key the key whose associated value is to be returned.
+	 * @return the value associated to this key, or null if no value with this key exists in the cache.
+	 */
+	public String getShared(String key) {
+		while (true) {
+			String value = setFor(_table, key).getShared(key);
+			if (value != cacheSet.MOVED) {
+				return value;
+			}
+		}
 	}
 
 	/**
 	 * Adds an entry to this cache.
 	 * If an entry with the specified key already exists in the cache, it is replaced by the new entry.
 	 * If the cache is full, an entry is removed from the cache based on the eviction policy
-	 * Assumes the corresponding set has already been locked for writing.
+	 * Assumes the key has already been locked through getWriteLock.
 	 * @param key	the key with which the specified value is to be associated.
 	 * @param value	a value to be associated with the specified key.
 	 * @return true is something has been overwritten 
 	 */
 	public boolean put(String key, String value) {
-		int id = getSetId(key);
-		_sets.get(id).put(key, value);
-		
-		return false;
+		return put(key, value, 0);
+	}
+	
+	/**
+	 * Adds an entry to this cache that expires after ttl milliseconds.
+	 * An expired entry is dropped the next time it is looked up.
+	 * Assumes the key has already been locked through getWriteLock.
+	 * @param key	the key with which the specified value is to be associated.
+	 * @param value	a value to be associated with the specified key.
+	 * @param ttl	time-to-live in milliseconds, or 0 for an entry that never expires.
+	 * @return true is something has been overwritten 
+	 */
+	public boolean put(String key, String value, long ttl) {
+		long deadline = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+		// Supersedes a write not flushed yet
+		_evicted.remove(key);
+		return write(key, value, deadline, false);
+	}
+	
+	/**
+	 * Adds an entry that expires at deadline, such as a value read back
+	 * from the store with the deadline the store keeps for it.
+	 * Assumes the key has already been locked through getWriteLock.
+	 * @param deadline	epoch millis at which the entry expires, or 0 for an entry that never expires.
+	 * @return true is something has been overwritten
+	 */
+	public boolean putUntil(String key, String value, long deadline) {
+		_evicted.remove(key);
+		return write(key, value, deadline, false);
+	}
+	
+	/**
+	 * Write-back: adds an entry that the store does not have yet, to be
+	 * written to it later through pendingWrite and markClean. If it cannot
+	 * stay in the cache, or is evicted before then, it is kept aside until
+	 * written, and the listener set by setDirtyEvictionListener is told.
+	 * Assumes the key has already been locked through getWriteLock.
+	 * @param key	the key with which the specified value is to be associated.
+	 * @param value	the value, or null to record that key was deleted.
+	 * @return true is something has been overwritten
+	 */
+	public boolean putDirty(String key, String value) {
+		_evicted.remove(key);
+		return write(key, value == null ? DELETED : value, 0, true);
+	}
+	
+	private boolean write(String key, String value, long deadline, boolean dirty) {
+		migrateSome();
+		cacheSet set = lockSetFor(key);
+		boolean overwritten;
+		try {
+			if (maxBytes > 0 && set.weightOf(key, value) > maxBytes) {
+				// Could never fit; just make sure a stale value is not left behind
+				set.delete(key);
+				if (dirty) {
+					dirtyEvicted(key, value);
+				}
+				return false;
+			}
+			overwritten = set.put(key, value, deadline, dirty);
+			// Drain the set just written first, sparing the new entry
+			while (maxBytes > 0 && _usedBytes.get() > maxBytes && set.evictOne(key)) {
+			}
+		} finally {
+			set.getWriteLock().unlock();
+		}
+		if (maxBytes > 0 && _usedBytes.get() > maxBytes) {
+			enforceByteBudget(set);
+		}
+		return overwritten;
+	}
+	
+	/**
+	 * Evicts entries from sets other than home until the cache is back under
+	 * maxBytes. Sets are visited round-robin and only if their lock is free,
+	 * so writers over budget do not queue up behind each other.
+	 */
+	private void enforceByteBudget(cacheSet home) {
+		boolean progress = true;
+		while (_usedBytes.get() > maxBytes && progress) {
+			progress = false;
+			cacheSet[] sets = liveSets();
+			for (int i = 0; i < sets.length && _usedBytes.get() > maxBytes; i++) {
+				cacheSet set = sets[Math.abs(_evictCursor.getAndIncrement() % sets.length)];
+				if (set == home) {
+					continue;
+				}
+				WriteLock lock = set.getWriteLock();
+				if (lock.tryLock()) {
+					try {
+						// A retired set's weight was already released
+						progress |= !set._retired && set.evictOne(null);
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return	the total weight of the entries currently cached, in bytes.
+	 */
+	public long getUsedBytes() {
+		return _usedBytes.get();
+	}
+	
+	/**
+	 * @return	the byte budget of this cache, or 0 if it is bounded by entry count only.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * @return	the number of sets in this cache, or the number it is being resized to.
+	 */
+	public int getNumSets() {
+		return numSets;
+	}
+	
+	/**
+	 * Changes the number of sets while the cache keeps serving. The new sets
+	 * start empty and every later get, put or del moves the entries of a few
+	 * old sets over, so no single call pays for rehashing the whole cache;
+	 * until its old set is moved a key is still served from there. Entries
+	 * keep their value and deadline but start over in the eviction order,
+	 * and entries beyond the capacity of their new set are evicted.
+	 * 
+	 * While a set is being moved its entries are counted twice against the
+	 * byte budget, which may cause some extra evictions.
+	 * 
+	 * A resize still in progress is completed first. Off-heap caches re-split
+	 * their byte budget between the new sets, and hold both the old and the
+	 * new slabs until the resize is complete.
+	 * @param newNumSets	the number of sets to have from now on.
+	 */
+	public synchronized void resize(int newNumSets) {
+		if (newNumSets < 1) {
+			throw new IllegalArgumentException("A cache needs at least one set");
+		}
+		finishResize();
+		if (newNumSets == _table.sets.length) {
+			return;
+		}
+		numSets = newNumSets;
+		_table = new setTable(newSets(newNumSets), _table.sets);
+	}
+	
+	/**
+	 * Moves every entry still in an old set, completing a resize now rather
+	 * than over the following operations. Does nothing if no resize is in progress.
+	 */
+	public void finishResize() {
+		setTable table;
+		while ((table = _table).previous != null) {
+			if (!migrateSome(table, table.previous.length)) {
+				// The remaining sets are being moved by other threads
+				Thread.yield();
+			}
+		}
+	}
+	
+	/**
+	 * @return	whether a resize is in progress.
+	 */
+	public boolean isResizing() {
+		return _table.previous != null;
+	}
+	
+	private void migrateSome() {
+		setTable table = _table;
+		if (table.previous != null) {
+			migrateSome(table, MIGRATE_PER_OP);
+		}
+	}
+	
+	/**
+	 * Moves the entries of up to count old sets not yet claimed by another thread.
+	 * @return false if there was no old set left to claim
+	 */
+	private boolean migrateSome(setTable table, int count) {
+		boolean claimed = false;
+		for (int n = 0; n < count; n++) {
+			int i = table.cursor.getAndIncrement();
+			if (i >= table.previous.length) {
+				break;
+			}
+			claimed = true;
+			migrate(table, table.previous[i]);
+			if (table.migrated.incrementAndGet() == table.previous.length) {
+				_table = new setTable(table.sets, null);
+			}
+		}
+		return claimed;
+	}
+	
+	/**
+	 * Copies every live entry of old to its new set and retires old. The old
+	 * set stays locked throughout, so operations on its keys wait and then
+	 * find them in the new sets; old sets are always locked before new ones.
+	 */
+	private void migrate(setTable table, cacheSet old) {
+		WriteLock oldLock = old.getWriteLock();
+		oldLock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			for (int slot = 0; slot < old._capacity; slot++) {
+				if (!old._occupied[slot] || old.isExpired(slot, now)) {
+					continue;
+				}
+				String key = old.keyAt(slot);
+				cacheSet set = table.sets[getSetId(key, table.sets.length)];
+				WriteLock lock = set.getWriteLock();
+				lock.lock();
+				try {
+					set.put(key, old._deleted[slot] ? DELETED : old.valueAt(slot), old._deadlines[slot], old._dirty[slot]);
+				} finally {
+					lock.unlock();
+				}
+			}
+			KVCacheStats stats = old.getStats();
+			old.retire();
+			synchronized (_stripes) {
+				_retiredStats = _retiredStats.plus(new KVCacheStats(stats.getHits(), stats.getMisses(),
+						stats.getInserts(), stats.getEvictions(), stats.getReferenceClears(),
+						stats.getLockWaits(), stats.getLockWaitNanos(), 0, 0));
+			}
+		} finally {
+			oldLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return	the set currently holding key: its old set while a resize has not moved it yet.
+	 */
+	private cacheSet setFor(setTable table, String key) {
+		if (table.previous != null) {
+			cacheSet old = table.previous[getSetId(key, table.previous.length)];
+			if (!old._retired) {
+				return old;
+			}
+		}
+		return table.sets[getSetId(key, table.sets.length)];
+	}
+	
+	/**
+	 * Locks and returns the set holding key, retrying if it was retired by
+	 * a resize while we waited for its lock.
+	 */
+	private cacheSet lockSetFor(String key) {
+		while (true) {
+			cacheSet set = setFor(_table, key);
+			WriteLock lock = set.getWriteLock();
+			lock.lock();
+			if (!set._retired) {
+				return set;
+			}
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return	the old sets not yet moved, if resizing, followed by the new
+	 * 			sets; entries only move down this list, so one pass over it
+	 * 			sees every entry present throughout the pass.
+	 */
+	private cacheSet[] liveSets() {
+		setTable table = _table;
+		if (table.previous == null) {
+			return table.sets;
+		}
+		cacheSet[] sets = new cacheSet[table.previous.length + table.sets.length];
+		int n = 0;
+		for (cacheSet old : table.previous) {
+			if (!old._retired) {
+				sets[n++] = old;
+			}
+		}
+		System.arraycopy(table.sets, 0, sets, n, table.sets.length);
+		return Arrays.copyOf(sets, n + table.sets.length);
+	}
+	
+	/**
+	 * @return	the counters of all sets added together, including sets retired
+	 * 			by a resize, and the waits on the key locks of getWriteLock.
+	 */
+	public KVCacheStats getStats() {
+		KVCacheStats total;
+		synchronized (_stripes) {
+			total = _retiredStats;
+		}
+		for (cacheSet set : liveSets()) {
+			total = total.plus(set.getStats());
+		}
+		for (timedWriteLock stripe : _stripes) {
+			total = total.plus(new KVCacheStats(0, 0, 0, 0, 0, stripe._waits.sum(), stripe._waitNanos.sum(), 0, 0));
+		}
+		return total;
+	}
+	
+	/**
+	 * @param setId	a set number, 0 to getNumSets() - 1.
+	 * @return	the counters of that set; a set created by a resize starts from zero.
+	 */
+	public KVCacheStats getSetStats(int setId) {
+		return _table.sets[setId].getStats();
+	}
+	
+	/**
+	 * Distribution of entries over the sets, to spot sets that the
+	 * hashCode() % numSets mapping overloads. During a resize old sets not
+	 * yet moved are counted too.
+	 * @return	an array whose element n is the number of sets currently holding n entries.
+	 */
+	public int[] getOccupancyHistogram() {
+		int[] histogram = new int[Math.max(1, maxElemsPerSet) + 1];
+		for (cacheSet set : liveSets()) {
+			histogram[Math.min(set._size, histogram.length - 1)]++;
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Lists cached keys, those the eviction policy would currently spare
+	 * (see toXML's isReferenced) first. Expired entries are left out. Each
+	 * set is locked briefly in turn, so the list is not an atomic snapshot.
+	 * @param limit	the maximum number of keys to return.
+	 * @return	at most limit keys.
+	 */
+	public List<String> hotKeys(int limit) {
+		List<String> hot = new ArrayList<String>();
+		List<String> cold = new ArrayList<String>();
+		for (cacheSet set : liveSets()) {
+			WriteLock lock = set.getWriteLock();
+			lock.lock();
+			try {
+				if (set._retired) {
+					continue;
+				}
+				long now = System.currentTimeMillis();
+				for (int slot = 0; slot < set._capacity; slot++) {
+					if (set._occupied[slot] && !set._deleted[slot] && !set.isExpired(slot, now)) {
+						(set._policy.isReferenced(slot) ? hot : cold).add(set.keyAt(slot));
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (hot.size() >= limit) {
+				break;
+			}
+		}
+		hot.addAll(cold.subList(0, Math.min(cold.size(), Math.max(0, limit - hot.size()))));
+		return hot.size() > limit ? new ArrayList<String>(hot.subList(0, limit)) : hot;
+	}
+	
+	/**
+	 * Weight of an entry: key and value are held as UTF-16 strings.
+	 */
+	static int weigh(String key, String value) {
+		return 2 * (key.length() + value.length());
 	}
 
 	/**
 	 * Removes an entry from this cache.
-	 * Assumes the corresponding set has already been locked for writing.
+	 * Assumes the key has already been locked through getWriteLock.
 	 * @param key	the key with which the specified value is to be associated.
 	 */
 	public void del (String key) {
@@ -112,65 +559,170 @@ public class KVCache implements KeyValueInterface {
 		AutoGrader.agCacheGetStarted(key);
 		AutoGrader.agCacheDelDelay();
 		
-		// TODO: Implement Me!
-		int id = getSetId(key);
-		_sets.get(id).delete(key);
+		migrateSome();
+		cacheSet set = lockSetFor(key);
+		try {
+			set.delete(key);
+		} finally {
+			set.getWriteLock().unlock();
+		}
+		_evicted.remove(key);
 		
 		// Must be called before returning
 		AutoGrader.agCacheDelFinished(key);
 	}
 	
 	/**
+	 * Write-back: the write to key not yet written to the store.
+	 * Assumes the key has already been locked through getWriteLock.
+	 * @return the value, DELETED if key was deleted, or null if there is none
+	 */
+	String pendingWrite(String key) {
+		migrateSome();
+		cacheSet set = lockSetFor(key);
+		try {
+			String value = set.pendingWrite(key);
+			if (value != null) {
+				return value;
+			}
+		} finally {
+			set.getWriteLock().unlock();
+		}
+		return _evicted.get(key);
+	}
+	
+	/**
+	 * Write-back: records that the write returned by pendingWrite reached the store.
+	 * Assumes the key has already been locked through getWriteLock.
+	 */
+	void markClean(String key) {
+		migrateSome();
+		cacheSet set = lockSetFor(key);
+		try {
+			set.markClean(key);
+		} finally {
+			set.getWriteLock().unlock();
+		}
+		_evicted.remove(key);
+	}
+	
+	/**
+	 * Write-back: lists the keys with a write not yet written to the store.
+	 * Each set is locked briefly in turn, so the list is not an atomic
+	 * snapshot, but a write pending when the call starts is listed: dirty
+	 * entries only move down liveSets() and from there to the entries kept
+	 * aside, which are read last. A resize started meanwhile moves entries
+	 * to sets the pass did not list, so the pass is then repeated.
+	 */
+	List<String> dirtyKeys() {
+		List<String> keys = new ArrayList<String>();
+		cacheSet[] target;
+		do {
+			keys.clear();
+			target = _table.sets;
+			for (cacheSet set : liveSets()) {
+				WriteLock lock = set.getWriteLock();
+				lock.lock();
+				try {
+					if (!set._retired) {
+						set.collectDirtyKeys(keys);
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+			keys.addAll(_evicted.keySet());
+		} while (_table.sets != target);
+		return keys;
+	}
+	
+	/**
+	 * @param listener	run, with a set locked, whenever a dirty entry leaves the cache
+	 */
+	void setDirtyEvictionListener(Runnable listener) {
+		_onDirtyEviction = listener;
+	}
+	
+	private void dirtyEvicted(String key, String value) {
+		_evicted.put(key, value);
+		Runnable listener = _onDirtyEviction;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+	
+	/**
+	 * Keys are locked through a fixed array of lock stripes, one per set at
+	 * construction time, which are independent from the sets themselves so
+	 * that a key's lock does not change when the cache is resized.
 	 * @param key
-	 * @return	the write lock of the set that contains key.
+	 * @return	the write lock that guards key.
 	 */
 	public WriteLock getWriteLock(String key) {
-	    // TODO: Implement Me!
-		int id = getSetId(key);
-		return _sets.get(id).getWriteLock();
+		return _stripes[getSetId(key, _stripes.length)];
+	}
+	
+	/**
+	 * Locks of several keys must be taken in the order of this list, or two
+	 * requests taking them in different orders may deadlock.
+	 * @param keys
+	 * @return	the distinct write locks that guard keys, in stripe order.
+	 */
+	public List<WriteLock> getWriteLocks(Collection<String> keys) {
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		for (String key : keys) {
+			ids.add(getSetId(key, _stripes.length));
+		}
+		List<WriteLock> locks = new ArrayList<WriteLock>(ids.size());
+		for (int id : ids) {
+			locks.add(_stripes[id]);
+		}
+		return locks;
 	}
 	
 	/**
 	 * 
 	 * @param key
-	 * @return	set of the key
+	 * @return	set of the key among count sets
 	 */
-	private int getSetId(String key) {
-		return Math.abs(key.hashCode()) % numSets;
+	private static int getSetId(String key, int count) {
+		return Math.abs(key.hashCode() % count);
 	}
 	
+	/**
+	 * Completes any resize in progress first, so that every entry appears in exactly one Set.
+	 */
     public String toXML() {
-        // TODO: Implement Me!
-    	
     	try {
+    		finishResize();
 			DocumentBuilder builder =  DocumentBuilderFactory.newInstance().newDocumentBuilder();
 			Document doc = builder.newDocument();
 			
 			Element kvCacheNode = doc.createElement("KVCache");
 			doc.appendChild(kvCacheNode);
 			
-			for (cacheSet set : _sets) {				
+			for (cacheSet set : _table.sets) {				
 				Element setNode = doc.createElement("Set");
 				setNode.setAttribute("Id", String.valueOf(set._id));
 				kvCacheNode.appendChild(setNode);
 				
 				Element cacheEntryNode, keyNode, valueNode;
-				for (int i = 0; i < set._size; i++) {
-					cacheEntry entry = set._queue.get(i);
+				for (int slot = 0; slot < set._capacity; slot++) {
+					if (!set._occupied[slot] || set._deleted[slot]) {
+						continue;
+					}
 					cacheEntryNode = doc.createElement("CacheEntry");
-					cacheEntryNode.setAttribute("isReferenced", String.valueOf(entry._isReferenced));
+					cacheEntryNode.setAttribute("isReferenced", String.valueOf(set._policy.isReferenced(slot)));
 					
 					keyNode = doc.createElement("Key");
-					keyNode.setTextContent(entry._key);
+					keyNode.setTextContent(set.keyAt(slot));
 					valueNode = doc.createElement("Value");
-					valueNode.setTextContent(entry._value);
+					valueNode.setTextContent(set.valueAt(slot));
 					
 					setNode.appendChild(cacheEntryNode);
 					cacheEntryNode.appendChild(keyNode);
 					cacheEntryNode.appendChild(valueNode);
-					
 				}
-				
 			}
 			
 			Transformer transformer = TransformerFactory.newInstance().newTransformer();
@@ -178,152 +730,634 @@ public class KVCache implements KeyValueInterface {
 			Writer sw = new StringWriter();
 			Result streamResult = new StreamResult(sw);
 			transformer.transform(domSource, streamResult);
-			return streamResult.toString();
+			return sw.toString();
 			
 		} catch (ParserConfigurationException | TransformerFactoryConfigurationError | TransformerException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
     	
         return null;
     }
     
-    //+chen
-    static class cacheEntry {    	
-    	boolean _isReferenced;
-    	 String _key;
-    	 String _value;
-    	
-    	public cacheEntry(boolean isReferenced, String key, String value) {
-    		_key = key;
-    		_value = value;
-    		_isReferenced = isReferenced;
-    	}   	    	
-    }
-    
+    /**
+     * One set of the cache, laid out as a fixed array of slots whose
+     * replacement order is kept by an EvictionPolicy. Keys are located
+     * through a small open-addressed index (linear probing, backward-shift
+     * deletion) that maps a key to its slot, so get/put/delete/eviction are
+     * O(1) and allocate nothing after construction. An index entry holds
+     * slot + 1; 0 marks an empty bucket.
+     * 
+     * Every operation but getShared() runs with the set's write lock held,
+     * taken by KVCache. Writers additionally bump _stamp around
+     * every structural change, so getShared() readers can run without any
+     * exclusive lock and detect a concurrent modification. Hits seen by such
+     * readers are handed to the policy directly if it tolerates racy updates
+     * (CLOCK reference bits), otherwise they go through a small lossy ring
+     * that is replayed the next time the write lock is held.
+     * 
+     * A resize moves the entries of a set to new sets and then retires it;
+     * operations that reach a retired set must look the key up again.
+     * 
+     * Hits and misses can be counted by concurrent readers and use striped
+     * LongAdders; the other counters only change under the write lock.
+     * 
+     * Keys and values are kept as Strings in _keys/_values; subclasses may
+     * store them elsewhere by overriding the entry storage methods at the
+     * bottom of this class.
+     * 
+     * In write-back mode an entry may be dirty, i.e. not in the store yet.
+     * A dirty delete is kept as a tombstone, an entry with an empty value
+     * that lookups treat as missing. Evicting a dirty entry hands it to
+     * the owning KVCache.
+     */
     static class cacheSet {
+    	private static final int READ_BUFFER_SIZE = 16;
+    	
+    	/** Returned by getShared() when the set was retired; compared by identity. */
+    	static final String MOVED = new String("MOVED");
+    	
     	int _id;
+    	int _capacity;
     	int _size;
-    	List<cacheEntry> _queue;
-    	HashMap<String, cacheEntry> _quickCheck;
+    	
+    	String[] _keys;
+    	String[] _values;
+    	boolean[] _occupied;
+    	long[] _deadlines;
+    	boolean[] _dirty;
+    	boolean[] _deleted;
+    	int[] _hashes;
+    	int[] _weights;
+    	EvictionPolicy _policy;
+    	
+    	long _bytes;
+    	AtomicLong _usedBytes;
+    	
+    	int[] _free;
+    	int _freeCount;
+    	
+    	int[] _index;
+    	int _mask;
+    	
+    	int[] _readBuffer;
+    	int _readCount;
+    	
     	ReentrantReadWriteLock _lock;
-    //	Lock readLock;
-    //	Lock writeLock;
-    	    	
-    	//	
-    	public void print() {
-    		System.out.println("Print cache........ ");
-    		int cnt = 0;
-    	    		for (cacheEntry e :  _queue) {
-    	    			System.out.println(" key: " + e._key + " " + "value : " + e._value);
-    	    			cnt++;
-    	    		}
-    	    		System.out.println("total member: " + cnt);
-    	}
-    	//
-    	
-    	public cacheSet(int id, int size) {
+    	timedWriteLock _writeLock;
+    	StampedLock _stamp;
+    	
+    	LongAdder _hits = new LongAdder();
+    	LongAdder _misses = new LongAdder();
+    	long _inserts;
+    	long _evictions;
+    	
+    	volatile boolean _retired;
+    	
+    	KVCache _owner;
+    	
+    	public cacheSet(int id, int capacity, AtomicLong usedBytes, EvictionPolicy.Kind policy) {
     		_id = id;
-    		_size = size;
-    		_queue = new LinkedList<cacheEntry>();
-    		_quickCheck = new HashMap<String, cacheEntry>();
+    		_usedBytes = usedBytes;
+    		_capacity = Math.max(1, capacity);
+    		_keys = new String[_capacity];
+    		_values = new String[_capacity];
+    		_occupied = new boolean[_capacity];
+    		_deadlines = new long[_capacity];
+    		_dirty = new boolean[_capacity];
+    		_deleted = new boolean[_capacity];
+    		_hashes = new int[_capacity];
+    		_weights = new int[_capacity];
+    		_policy = policy.create(_capacity);
+    		
+    		_free = new int[_capacity];
+    		for (int slot = 0; slot < _capacity; slot++) {
+    			_free[slot] = _capacity - 1 - slot;
+    		}
+    		_freeCount = _capacity;
+    		
+    		int buckets = Integer.highestOneBit(_capacity * 2 - 1) << 1;
+    		_index = new int[buckets];
+    		_mask = buckets - 1;
+    		
+    		_readBuffer = new int[READ_BUFFER_SIZE];
+    		
     		_lock = new ReentrantReadWriteLock();
- //   		readLock = _lock.readLock();
- //   		writeLock = _lock.writeLock();
+    		_writeLock = new timedWriteLock(_lock);
+    		_stamp = new StampedLock();
     	}
     	
-    	public  void put(String key, String value) {  
- // 		writeLock.lock();
-    		if (_quickCheck.containsKey(key)) {
-    			cacheEntry cur = _quickCheck.get(key);
-    			cur._isReferenced = true;
-    			cur._value = value;
-   // 			writeLock.unlock();
-    			return;
-    		}
-    		
-    	//	System.out.println("q size: " + _queue.size() + " key : " + key + " id : " + _id);
-    		if (_queue.size() == _size) {//Current set is already full!!
-    	//		System.out.println("@key: " + key + " EVICTION");
-    			eviction();
+    	public boolean put(String key, String value, long deadline) {
+    		return put(key, value, deadline, false);
+    	}
+    	
+    	/**
+    	 * @param value	the value, or DELETED for a tombstone
+    	 * @param deadline	epoch millis at which the entry expires, or 0
+    	 * @param dirty	whether the entry is not in the store yet
+    	 * @return true if an existing entry was overwritten
+    	 */
+    	public boolean put(String key, String value, long deadline, boolean dirty) {
+    		int hash = key.hashCode();
+    		boolean deleted = value == DELETED;
+    		String stored = deleted ? "" : value;
+    		long stamp = _stamp.writeLock();
+    		try {
+    			drainReadBuffer();
+    			int weight = weightOf(key, stored);
+    			int bucket = find(key, hash);
+    			if (bucket >= 0) {
+    				int slot = _index[bucket] - 1;
+    				if (!makeRoom(slot, weight)) {
+    					// Evictions may have shifted the index, so look the bucket up again
+    					removeBucket(findSlotBucket(slot));
+    					clearSlot(slot);
+    					if (dirty) {
+    						_owner.dirtyEvicted(key, value);
+    					}
+    					return false;
+    				}
+    				releaseEntry(slot);
+    				writeEntry(slot, key, stored, weight);
+    				_deadlines[slot] = deadline;
+    				_dirty[slot] = dirty;
+    				_deleted[slot] = deleted;
+    				_policy.onAccess(slot);
+    				setWeight(slot, weight);
+    				return true;
+    			}
+    			
+    			if (_size == _capacity) {//Current set is already full!!
+    				evict(-1);
+    			}
+    			if (!makeRoom(-1, weight)) {
+    				if (dirty) {
+    					_owner.dirtyEvicted(key, value);
+    				}
+    				return false;
+    			}
+    			int slot = _free[--_freeCount];
+    			writeEntry(slot, key, stored, weight);
+    			_deadlines[slot] = deadline;
+    			_dirty[slot] = dirty;
+    			_deleted[slot] = deleted;
+    			_occupied[slot] = true;
+    			_hashes[slot] = hash;
+    			setWeight(slot, weight);
+    			_size++;
+    			_inserts++;
+    			_policy.onInsert(slot, hash);
+    			
+    			int b = spread(hash) & _mask;
+    			while (_index[b] != 0) {
+    				b = (b + 1) & _mask;
+    			}
+    			_index[b] = slot + 1;
+    			return false;
+    		} finally {
+    			_stamp.unlockWrite(stamp);
     		}
-    		//System.out.println("hello " + key);
-    		cacheEntry newCE = new cacheEntry(false, key, value);
-    		_quickCheck.put(key, newCE);
-    		_queue.add(newCE);
-    		//System.out.println("there " + key);
-    		    		
-    		//System.out.println("PUT PUT PUT DONE");
-    //		for (cacheEntry e :  _queue) {
-    //			System.out.print(" key: " + e._key + " " + " value : " + e._value);
-    //		}
-    //		System.out.println();
-    //		writeLock.unlock();
     	}
     	
     	public String delete(String key) {
-    		
- //   		writeLock.lock();
-    		if (!_quickCheck.containsKey(key)) {
-//    			writeLock.unlock();
-    			return null;
+    		long stamp = _stamp.writeLock();
+    		try {
+    			drainReadBuffer();
+    			int bucket = find(key, key.hashCode());
+    			if (bucket < 0) {
+    				return null;
+    			}
+    			int slot = _index[bucket] - 1;
+    			removeBucket(bucket);
+    			clearSlot(slot);
+    			return key;
+    		} finally {
+    			_stamp.unlockWrite(stamp);
     		}
-    		cacheEntry toDelete = _quickCheck.remove(key);
-    		_queue.remove(toDelete);
-    		
-  //  		for (cacheEntry e :  _queue) {
-   // 			System.out.print("## key: " + e._key + " ");
-   // 		}
-   // 		System.out.println();
-    //		writeLock.unlock();
-    		return toDelete._key;
     	}
     	
     	public String get(String key) {
+    		drainReadBuffer();
+    		int hash = key.hashCode();
+    		int bucket = find(key, hash);
+    		if (bucket < 0) {
+    			_misses.increment();
+    			_policy.onMiss(hash);
+    			return null;
+    		}
+    		int slot = _index[bucket] - 1;
+    		if (_deleted[slot]) {
+    			_misses.increment();
+    			return null;
+    		}
+    		if (isExpired(slot)) {
+    			long stamp = _stamp.writeLock();
+    			try {
+    				removeBucket(bucket);
+    				clearSlot(slot);
+    			} finally {
+    				_stamp.unlockWrite(stamp);
+    			}
+    			_misses.increment();
+    			_policy.onMiss(hash);
+    			return null;
+    		}
+    		_hits.increment();
+    		_policy.onAccess(slot);
+    		return valueAt(slot);
+    	}
+    	
+    	private boolean isExpired(int slot) {
+    		return isExpired(slot, System.currentTimeMillis());
+    	}
+    	
+    	boolean isExpired(int slot, long now) {
+    		long deadline = _deadlines[slot];
+    		return deadline != 0 && deadline <= now;
+    	}
+    	
+    	/**
+    	 * Gives up the set after its entries were copied elsewhere, releasing
+    	 * their weight from the byte budget.
+    	 */
+    	void retire() {
+    		long stamp = _stamp.writeLock();
+    		try {
+    			_retired = true;
+    			_usedBytes.addAndGet(-_bytes);
+    			_bytes = 0;
+    		} finally {
+    			_stamp.unlockWrite(stamp);
+    		}
+    	}
+    	
+    	/**
+    	 * @return the value, null, or MOVED if the set was retired
+    	 */
+    	public String getShared(String key) {
+    		int hash = key.hashCode();
+    		long stamp = _stamp.tryOptimisticRead();
+    		if (stamp != 0L) {
+    			boolean retired = _retired;
+    			int slot = retired ? -1 : findSlotRacy(key, hash);
+    			if (slot >= 0 && (_deleted[slot] || isExpired(slot))) {
+    				// Left for the locked get() to drop
+    				slot = -1;
+    			}
+    			String value = slot < 0 ? null : valueAtRacy(slot);
+    			if (_stamp.validate(stamp)) {
+    				if (retired) {
+    					return MOVED;
+    				}
+    				if (slot >= 0) {
+    					recordSharedHit(slot);
+    				} else {
+    					_misses.increment();
+    				}
+    				return value;
+    			}
+    		}
     		
-   // 		readLock.lock();
-    		if (!_quickCheck.containsKey(key)) {
-  //  			readLock.unlock();
+    		stamp = _stamp.readLock();
+    		try {
+    			if (_retired) {
+    				return MOVED;
+    			}
+    			int bucket = find(key, hash);
+    			int slot = bucket < 0 ? -1 : _index[bucket] - 1;
+    			if (slot < 0 || _deleted[slot] || isExpired(slot)) {
+    				_misses.increment();
+    				return null;
+    			}
+    			recordSharedHit(slot);
+    			return valueAt(slot);
+    		} finally {
+    			_stamp.unlockRead(stamp);
+    		}
+    	}
+    	
+    	private void recordSharedHit(int slot) {
+    		_hits.increment();
+    		if (_policy.recordsAccessRacily()) {
+    			_policy.onAccess(slot);
+    		} else {
+    			_readBuffer[_readCount++ & (READ_BUFFER_SIZE - 1)] = slot + 1;
+    		}
+    	}
+    	
+    	/**
+    	 * Replays hits recorded by lock-free readers. Entries may have been
+    	 * lost or point at a slot that was reused since; both only make the
+    	 * policy's view slightly less precise.
+    	 */
+    	private void drainReadBuffer() {
+    		for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+    			int entry = _readBuffer[i];
+    			if (entry != 0) {
+    				_readBuffer[i] = 0;
+    				int slot = entry - 1;
+    				if (slot < _capacity && _occupied[slot]) {
+    					_policy.onAccess(slot);
+    				}
+    			}
+    		}
+    	}
+    	
+    	/**
+    	 * Probe for key while a writer may be changing the set under us. The
+    	 * result is only meaningful if the caller's stamp still validates, so
+    	 * this just has to terminate and stay in bounds on a torn view.
+    	 * @return the slot holding key, or -1
+    	 */
+    	private int findSlotRacy(String key, int hash) {
+    		int b = spread(hash) & _mask;
+    		for (int probes = 0; probes <= _mask; probes++) {
+    			int entry = _index[b];
+    			if (entry <= 0 || entry > _capacity) {
+    				return -1;
+    			}
+    			int slot = entry - 1;
+    			if (_hashes[slot] == hash && keyMatches(slot, key)) {
+    				return slot;
+    			}
+    			b = (b + 1) & _mask;
+    		}
+    		return -1;
+    	}
+    	
+    	/**
+    	 * Evicts one entry, used when the cache is over its byte budget.
+    	 * @param keep	key that must not be chosen, or null
+    	 * @return true if an entry was evicted
+    	 */
+    	public boolean evictOne(String keep) {
+    		long stamp = _stamp.writeLock();
+    		try {
+    			drainReadBuffer();
+    			int keepSlot = -1;
+    			if (keep != null) {
+    				int bucket = find(keep, keep.hashCode());
+    				keepSlot = bucket < 0 ? -1 : _index[bucket] - 1;
+    			}
+    			return evict(keepSlot);
+    		} finally {
+    			_stamp.unlockWrite(stamp);
+    		}
+    	}
+    	
+    	/**
+    	 * @return the value of key if it is dirty, DELETED for a tombstone, or null
+    	 */
+    	String pendingWrite(String key) {
+    		int bucket = find(key, key.hashCode());
+    		if (bucket < 0) {
+    			return null;
+    		}
+    		int slot = _index[bucket] - 1;
+    		if (!_dirty[slot]) {
     			return null;
     		}
-    		_quickCheck.get(key)._isReferenced = true;
-   // 		readLock.unlock();
-    		return _quickCheck.get(key)._value;
-    	}
-    	
-    	private void eviction() {
- //   		writeLock.lock();
-    		cacheEntry toDelete = null;
-    		System.out.println("IN EVACTION");
-    		int cnt = 0;
-    		for (cacheEntry cur : _queue) {
-    	//		System.out.println("Iteration : " + cnt);
-    	//		cnt++;
-    			if (!cur._isReferenced) {
-    	//			System.out.println("@eviction: to evict: " + cur._key + " " + cur._value);
-    				toDelete = cur;
-    				break;
+    		return _deleted[slot] ? DELETED : valueAt(slot);
+    	}
+    	
+    	/**
+    	 * Clears the dirty flag of key, dropping it if it is a tombstone.
+    	 */
+    	void markClean(String key) {
+    		long stamp = _stamp.writeLock();
+    		try {
+    			int bucket = find(key, key.hashCode());
+    			if (bucket < 0) {
+    				return;
     			}
+    			int slot = _index[bucket] - 1;
+    			if (_deleted[slot]) {
+    				removeBucket(bucket);
+    				clearSlot(slot);
+    			} else {
+    				_dirty[slot] = false;
+    			}
+    		} finally {
+    			_stamp.unlockWrite(stamp);
     		}
-    		if (toDelete == null) {
-    //			for (int i = 0; i < _queue.size(); i++) {
-    //				System.out.print("iiii : " + _queue.get(i)._key + "@" + _queue.get(i)._value + "       ");
-    //			}
-    //			System.out.println();
-    			
-    			toDelete = _queue.get(0);
-    //			System.out.println("GET 000000: " + toDelete._key);
-    		//	toDelete = _queue;///////////////////
-    		} 
-    //		System.out.println("!!!!!!!!!!!! todelete: "  +  toDelete._key);
-    		delete(toDelete._key);
-   // 		writeLock.unlock();
+    	}
+    	
+    	void collectDirtyKeys(List<String> keys) {
+    		for (int slot = 0; slot < _capacity; slot++) {
+    			if (_occupied[slot] && _dirty[slot]) {
+    				keys.add(keyAt(slot));
+    			}
+    		}
+    	}
+    	
+    	boolean evict(int keepSlot) {
+    		int slot = _policy.victim(keepSlot);
+    		if (slot < 0) {
+    			return false;
+    		}
+    		if (_dirty[slot]) {
+    			_owner.dirtyEvicted(keyAt(slot), _deleted[slot] ? DELETED : valueAt(slot));
+    		}
+    		removeBucket(findSlotBucket(slot));
+    		clearSlot(slot);
+    		_evictions++;
+    		return true;
+    	}
+    	
+    	/**
+    	 * Evicts until hasRoom() agrees to take an entry of this weight.
+    	 * @param keepSlot	slot being overwritten, or -1 for a new entry
+    	 * @return false if the entry cannot fit even in an otherwise empty set
+    	 */
+    	private boolean makeRoom(int keepSlot, int weight) {
+    		while (!hasRoom(keepSlot, weight)) {
+    			if (!evict(keepSlot)) {
+    				return false;
+    			}
+    		}
+    		return true;
+    	}
+    	
+    	private void clearSlot(int slot) {
+    		_policy.onRemove(slot);
+    		releaseEntry(slot);
+    		_occupied[slot] = false;
+    		_deadlines[slot] = 0;
+    		_dirty[slot] = false;
+    		_deleted[slot] = false;
+    		setWeight(slot, 0);
+    		_free[_freeCount++] = slot;
+    		_size--;
+    	}
+    	
+    	private void setWeight(int slot, int weight) {
+    		int delta = weight - _weights[slot];
+    		_weights[slot] = weight;
+    		_bytes += delta;
+    		_usedBytes.addAndGet(delta);
+    	}
+    	
+    	/**
+    	 * @return the index bucket pointing at key's slot, or -1 if absent
+    	 */
+    	private int find(String key, int hash) {
+    		int b = spread(hash) & _mask;
+    		int entry;
+    		while ((entry = _index[b]) != 0) {
+    			int slot = entry - 1;
+    			if (_hashes[slot] == hash && keyMatches(slot, key)) {
+    				return b;
+    			}
+    			b = (b + 1) & _mask;
+    		}
+    		return -1;
+    	}
+    	
+    	/**
+    	 * @return the index bucket pointing at slot
+    	 */
+    	private int findSlotBucket(int slot) {
+    		int b = spread(_hashes[slot]) & _mask;
+    		while (_index[b] != slot + 1) {
+    			b = (b + 1) & _mask;
+    		}
+    		return b;
+    	}
+    	
+    	/**
+    	 * Empties bucket and shifts later members of its probe run back so
+    	 * that lookups never need tombstones.
+    	 */
+    	private void removeBucket(int bucket) {
+    		int hole = bucket;
+    		int b = bucket;
+    		_index[hole] = 0;
+    		while (true) {
+    			b = (b + 1) & _mask;
+    			int entry = _index[b];
+    			if (entry == 0) {
+    				return;
+    			}
+    			int home = spread(_hashes[entry - 1]) & _mask;
+    			boolean stays = (hole <= b) ? (hole < home && home <= b) : (hole < home || home <= b);
+    			if (!stays) {
+    				_index[hole] = entry;
+    				_index[b] = 0;
+    				hole = b;
+    			}
+    		}
+    	}
+    	
+    	/**
+    	 * Keys of one set share hashCode() % numSets, so the low bits are
+    	 * mixed before being used as a bucket number.
+    	 */
+    	private static int spread(int hash) {
+    		int h = hash * 0x9E3779B9;
+    		return h ^ (h >>> 16);
+    	}
+    	
+    	// Entry storage. All but keyMatches and valueAtRacy are called with
+    	// the set's write lock (and _stamp's write lock when mutating) held.
+    	
+    	/**
+    	 * @return the weight an entry is charged against the byte budget
+    	 */
+    	int weightOf(String key, String value) {
+    		return weigh(key, value);
+    	}
+    	
+    	/**
+    	 * @param keepSlot	slot being overwritten, whose current storage may be reused, or -1
+    	 * @return whether an entry of this weight can be stored without evicting anything
+    	 */
+    	boolean hasRoom(int keepSlot, int weight) {
+    		return true;
+    	}
+    	
+    	void writeEntry(int slot, String key, String value, int weight) {
+    		_keys[slot] = key;
+    		_values[slot] = value;
+    	}
+    	
+    	void releaseEntry(int slot) {
+    		_keys[slot] = null;
+    		_values[slot] = null;
+    	}
+    	
+    	/**
+    	 * May run without any lock; must stay in bounds on a torn view.
+    	 */
+    	boolean keyMatches(int slot, String key) {
+    		return key.equals(_keys[slot]);
+    	}
+    	
+    	String keyAt(int slot) {
+    		return _keys[slot];
+    	}
+    	
+    	String valueAt(int slot) {
+    		return _values[slot];
+    	}
+    	
+    	/**
+    	 * Like valueAt, but without any lock; the result is discarded unless
+    	 * the caller's stamp validates afterwards.
+    	 */
+    	String valueAtRacy(int slot) {
+    		return _values[slot];
     	}
     
     	WriteLock getWriteLock() {
-    		return _lock.writeLock();
+    		return _writeLock;
+    	}
+    	
+    	KVCacheStats getStats() {
+    		return new KVCacheStats(_hits.sum(), _misses.sum(), _inserts, _evictions,
+    				_policy.getReferenceClears(), _writeLock._waits.sum(), _writeLock._waitNanos.sum(),
+    				_size, _capacity);
+    	}
+    	
+    }
+    
+    /**
+     * The sets of the cache, and while a resize is in progress the sets it
+     * replaces together with the progress of moving them.
+     */
+    private static class setTable {
+    	final cacheSet[] sets;
+    	final cacheSet[] previous;
+    	final AtomicInteger cursor = new AtomicInteger();
+    	final AtomicInteger migrated = new AtomicInteger();
+    	
+    	setTable(cacheSet[] sets, cacheSet[] previous) {
+    		this.sets = sets;
+    		this.previous = previous;
+    	}
+    }
+    
+    /**
+     * Write lock of a set or key stripe that accounts for the time callers of lock() spend
+     * blocked. An uncontended lock() costs one extra tryLock.
+     */
+    static class timedWriteLock extends WriteLock {
+    	private static final long serialVersionUID = 1L;
+    	
+    	final LongAdder _waits = new LongAdder();
+    	final LongAdder _waitNanos = new LongAdder();
+    	
+    	timedWriteLock(ReentrantReadWriteLock lock) {
+    		super(lock);
     	}
     	
+    	@Override
+    	public void lock() {
+    		if (tryLock()) {
+    			return;
+    		}
+    		long start = System.nanoTime();
+    		super.lock();
+    		_waits.increment();
+    		_waitNanos.add(System.nanoTime() - start);
+    	}
     }
-    //-chen
 }
@@ -0,0 +1,123 @@
+package edu.berkeley.cs162;
+
+/**
+ * Snapshot of the counters of one KVCache set, or of the whole cache when
+ * aggregated. Counters are read without stopping writers, so a snapshot
+ * taken under load is only approximately consistent across fields.
+ */
+public class KVCacheStats {
+	private final long hits;
+	private final long misses;
+	private final long inserts;
+	private final long evictions;
+	private final long referenceClears;
+	private final long lockWaits;
+	private final long lockWaitNanos;
+	private final int size;
+	private final int capacity;
+
+	KVCacheStats(long hits, long misses, long inserts, long evictions, long referenceClears,
+			long lockWaits, long lockWaitNanos, int size, int capacity) {
+		this.hits = hits;
+		this.misses = misses;
+		this.inserts = inserts;
+		this.evictions = evictions;
+		this.referenceClears = referenceClears;
+		this.lockWaits = lockWaits;
+		this.lockWaitNanos = lockWaitNanos;
+		this.size = size;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the sum of this snapshot and other, field by field
+	 */
+	KVCacheStats plus(KVCacheStats other) {
+		return new KVCacheStats(hits + other.hits, misses + other.misses,
+				inserts + other.inserts, evictions + other.evictions,
+				referenceClears + other.referenceClears, lockWaits + other.lockWaits,
+				lockWaitNanos + other.lockWaitNanos, size + other.size, capacity + other.capacity);
+	}
+
+	/**
+	 * @return lookups (get and getShared) that found a live entry
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return lookups that found no entry or an expired one
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return hits / (hits + misses), or 0 before the first lookup
+	 */
+	public double getHitRatio() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * @return entries added for a key that was not cached; overwrites are not counted
+	 */
+	public long getInserts() {
+		return inserts;
+	}
+
+	/**
+	 * @return entries dropped by the eviction policy, for lack of slots or of bytes
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return entries spared by the CLOCK hand and had their reference bit
+	 *         cleared; always 0 for the other policies
+	 */
+	public long getReferenceClears() {
+		return referenceClears;
+	}
+
+	/**
+	 * @return times a thread found a lock held and had to wait: for one set,
+	 *         its own lock; in the cache-wide total, also the key locks
+	 *         handed out by KVCache.getWriteLock()
+	 */
+	public long getLockWaits() {
+		return lockWaits;
+	}
+
+	/**
+	 * @return total time spent waiting counted by getLockWaits(), in nanoseconds
+	 */
+	public long getLockWaitNanos() {
+		return lockWaitNanos;
+	}
+
+	/**
+	 * @return entries currently cached
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return maximum number of entries
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + hits + " misses=" + misses + " inserts=" + inserts
+				+ " evictions=" + evictions + " referenceClears=" + referenceClears
+				+ " lockWaits=" + lockWaits + " lockWaitNanos=" + lockWaitNanos
+				+ " size=" + size + "/" + capacity;
+	}
+}
@@ -33,6 +33,10 @@ package edu.berkeley.cs162;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 /**
@@ -90,12 +94,15 @@ public class KVClient implements KeyValueInterface {
 	}
 	
 	public boolean put(String key, String value) throws KVException {
-	    // TODO: Implement Me!
-	    //return true;
+		return put(key, value, 0);
+	}
+	
+	public boolean put(String key, String value, long ttl) throws KVException {
 		KVMessage toSend = new KVMessage("putreq");
 		Socket sock = connectHost();
 		toSend.setKey(key);
 		toSend.setValue(value);
+		toSend.setTtl(ttl);
 		toSend.sendMessage(sock);
 		
 		try {
@@ -156,5 +163,136 @@ public class KVClient implements KeyValueInterface {
 		} catch (IOException e) {
 			throw new KVException(new KVMessage("resp", "Unknown Error: delete failed " + e.getMessage()));		
 		}
-	}	
+	}
+	
+	/**
+	 * @return the value of key with the version to pass to putIfVersion or delIfVersion
+	 */
+	public KVVersionedValue getVersioned(String key) throws KVException {
+		KVMessage request = new KVMessage("vgetreq");
+		Socket sock = connectHost();
+		request.setKey(key);
+		request.sendMessage(sock);
+		
+		try {
+			KVMessage response = new KVMessage(sock.getInputStream());
+			if (!response.getMsgType().equals("resp") || response.getMessage() != null || response.getValue() == null) {
+				throw new KVException(response);
+			}
+			return new KVVersionedValue(response.getValue(), response.getVersion());
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: get failed " + e.getMessage()));
+		}
+	}
+	
+	public boolean putIfVersion(String key, String value, long version) throws KVException {
+		return putIfVersion(key, value, 0, version);
+	}
+	
+	/**
+	 * Puts the pair only if key is still at version, as read by getVersioned;
+	 * a version of 0 puts it only if key does not exist.
+	 * @return false if key is at another version, and nothing was written
+	 */
+	public boolean putIfVersion(String key, String value, long ttl, long version) throws KVException {
+		KVMessage request = new KVMessage("putreq");
+		Socket sock = connectHost();
+		request.setKey(key);
+		request.setValue(value);
+		request.setTtl(ttl);
+		request.setVersion(version);
+		request.sendMessage(sock);
+		return conditionalResult(sock, "put");
+	}
+	
+	/**
+	 * Deletes key only if it is still at version, as read by getVersioned.
+	 * @return false if key is at another version, and nothing was deleted
+	 */
+	public boolean delIfVersion(String key, long version) throws KVException {
+		KVMessage request = new KVMessage("delreq");
+		Socket sock = connectHost();
+		request.setKey(key);
+		request.setVersion(version);
+		request.sendMessage(sock);
+		return conditionalResult(sock, "delete");
+	}
+	
+	private boolean conditionalResult(Socket sock, String operation) throws KVException {
+		try {
+			KVMessage response = new KVMessage(sock.getInputStream());
+			if (response.getMsgType().equals("resp") && StaticConstants.VERSION_MISMATCH_ERROR.equals(response.getMessage())) {
+				return false;
+			}
+			if (!response.getMsgType().equals("resp") || !"Success".equals(response.getMessage())) {
+				throw new KVException(response);
+			}
+			return true;
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: " + operation + " failed " + e.getMessage()));
+		}
+	}
+	
+	/**
+	 * Gets all keys over a single connection.
+	 * @return the value of each key found, in the order of keys
+	 */
+	@Override
+	public Map<String, String> mget(Collection<String> keys) throws KVException {
+		KVMessage request = new KVMessage("mgetreq");
+		request.setKeys(new ArrayList<String>(keys));
+		Socket sock = connectHost();
+		request.sendMessage(sock);
+		
+		try {
+			KVMessage response = new KVMessage(sock.getInputStream());
+			if (!response.getMsgType().equals("resp") || !"Success".equals(response.getMessage())) {
+				throw new KVException(response);
+			}
+			return response.getPairs() == null ? new LinkedHashMap<String, String>() : response.getPairs();
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: mget failed " + e.getMessage()));
+		}
+	}
+	
+	/**
+	 * Puts all pairs over a single connection; either all of them are written or none.
+	 */
+	@Override
+	public void mput(Map<String, String> pairs, long ttl) throws KVException {
+		KVMessage request = new KVMessage("mputreq");
+		request.setPairs(new LinkedHashMap<String, String>(pairs));
+		request.setTtl(ttl);
+		Socket sock = connectHost();
+		request.sendMessage(sock);
+		
+		try {
+			KVMessage response = new KVMessage(sock.getInputStream());
+			if (!response.getMsgType().equals("resp") || !"Success".equals(response.getMessage())) {
+				throw new KVException(response);
+			}
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: mput failed " + e.getMessage()));
+		}
+	}
+	
+	/**
+	 * Deletes all keys over a single connection; keys that do not exist are ignored.
+	 */
+	@Override
+	public void mdel(Collection<String> keys) throws KVException {
+		KVMessage request = new KVMessage("mdelreq");
+		request.setKeys(new ArrayList<String>(keys));
+		Socket sock = connectHost();
+		request.sendMessage(sock);
+		
+		try {
+			KVMessage response = new KVMessage(sock.getInputStream());
+			if (!response.getMsgType().equals("resp") || !"Success".equals(response.getMessage())) {
+				throw new KVException(response);
+			}
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: mdel failed " + e.getMessage()));
+		}
+	}
 }
@@ -35,12 +35,17 @@ import java.io.BufferedOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 
@@ -66,11 +71,24 @@ import org.xml.sax.SAXException;
  * for communication between clients and servers. 
  */
 public class KVMessage implements Serializable{
+	// TPC logs hold serialized messages; fields added later read as their defaults
+	private static final long serialVersionUID = -3646232603679307877L;
+	
 	private String msgType = null;
 	private String key = null;
 	private String value = null;
 	private String status = null;
 	private String message = null;
+	private long ttl = 0;
+	// Keys of an mgetreq or mdelreq
+	private List<String> keys = null;
+	// Pairs of an mputreq, or those found for an mgetreq in its resp
+	private Map<String, String> pairs = null;
+	// Expected version of a conditional putreq or delreq, or the version in the resp to a vgetreq
+	private long version = ANY_VERSION;
+	// Set by a slave on the commit it logs: the version each key was left at, and when
+	private Map<String, Long> appliedVersions = null;
+	private long appliedAt = 0;
 	
 	//+chen
 	   private static final int MAX_KEY_SIZE = 256;
@@ -114,6 +132,91 @@ public class KVMessage implements Serializable{
 	public String getMsgType() {
 		return msgType;
 	}
+	
+	/**
+	 * @return time-to-live of a putreq in milliseconds, 0 if the pair never expires
+	 */
+	public final long getTtl() {
+		return ttl;
+	}
+
+	public final void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+	
+	/**
+	 * @return keys of an mgetreq or mdelreq
+	 */
+	public final List<String> getKeys() {
+		return keys;
+	}
+	
+	public final void setKeys(List<String> keys) {
+		this.keys = keys;
+	}
+	
+	/**
+	 * @return pairs of an mputreq or of the resp to an mgetreq, in message order
+	 */
+	public final Map<String, String> getPairs() {
+		return pairs;
+	}
+	
+	public final void setPairs(Map<String, String> pairs) {
+		this.pairs = pairs;
+	}
+	
+	/**
+	 * @return expected version of a putreq or delreq, or the version in a resp; ANY_VERSION if none
+	 */
+	public final long getVersion() {
+		return version;
+	}
+	
+	public final void setVersion(long version) {
+		this.version = version;
+	}
+	
+	/**
+	 * @return for a commit in a slave's TPC log, the version every key of the
+	 *         request it commits was left at (for a delete, the version it
+	 *         deleted); null if not recorded. Never sent over the network.
+	 */
+	public final Map<String, Long> getAppliedVersions() {
+		return appliedVersions;
+	}
+	
+	/**
+	 * @return for a commit in a slave's TPC log, when it was applied in epoch millis
+	 */
+	public final long getAppliedAt() {
+		return appliedAt;
+	}
+	
+	public final void setApplied(Map<String, Long> versions, long at) {
+		this.appliedVersions = versions;
+		this.appliedAt = at;
+	}
+	
+	/**
+	 * Messages logged before a field was added lack it; version must then
+	 * read as ANY_VERSION rather than as 0, which would make them conditional.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		msgType = (String) fields.get("msgType", null);
+		key = (String) fields.get("key", null);
+		value = (String) fields.get("value", null);
+		status = (String) fields.get("status", null);
+		message = (String) fields.get("message", null);
+		ttl = fields.get("ttl", 0L);
+		keys = (List<String>) fields.get("keys", null);
+		pairs = (Map<String, String>) fields.get("pairs", null);
+		version = fields.get("version", ANY_VERSION);
+		appliedVersions = (Map<String, Long>) fields.get("appliedVersions", null);
+		appliedAt = fields.get("appliedAt", 0L);
+	}
 
 	/* Solution from http://weblogs.java.net/blog/kohsuke/archive/2005/07/socket_xml_pitf.html */
 	private class NoCloseInputStream extends FilterInputStream {
@@ -139,6 +242,11 @@ public class KVMessage implements Serializable{
 		s.add("ack");
 		
 		s.add("register");
+		
+		s.add(MGET_REQ);
+		s.add(MPUT_REQ);
+		s.add(MDEL_REQ);
+		s.add(VGET_REQ);
 	}
 	
 	static {
@@ -221,20 +329,42 @@ public class KVMessage implements Serializable{
 				checkNodeList(valueNL);
 				this.value = valueNL.item(0).getTextContent();
 				checkValue(this.value);
+				
+				this.ttl = parseTtl(doc.getElementsByTagName("TTL"));
+				this.version = parseVersion(doc.getElementsByTagName("Version"));
 								
 				break;
 			case GET_REQ:
+			case VGET_REQ:
 			case DEL_REQ:
 				checkNodeList(keyNL);
 				this.key = keyNL.item(0).getTextContent();
 				checkKey(this.key);
+				if (msgType.equals(DEL_REQ)) {
+					this.version = parseVersion(doc.getElementsByTagName("Version"));
+				}
 				break;	
 				
+			case MGET_REQ:
+			case MDEL_REQ:
+				this.keys = parseKeys(keyNL);
+				break;
+				
+			case MPUT_REQ:
+				this.pairs = parsePairs(doc.getElementsByTagName("Pair"));
+				checkBatch(this.pairs.size());
+				this.ttl = parseTtl(doc.getElementsByTagName("TTL"));
+				break;
+				
 			case RESP:
 			case ABORT_VOTE:
 				if (msgNL.getLength() != 0) {
 					checkNodeList(msgNL);
 					this.message = msgNL.item(0).getTextContent();
+					NodeList pairNL = doc.getElementsByTagName("Pair");
+					if (pairNL.getLength() != 0) { //resp of a successful mgetreq
+						this.pairs = parsePairs(pairNL);
+					}
 				} else { //this is resp of "successful getreq"
 					checkNodeList(keyNL);
 					checkNodeList(valueNL);
@@ -242,6 +372,7 @@ public class KVMessage implements Serializable{
 					this.value = valueNL.item(0).getTextContent();
 					checkKey(this.key);
 					checkValue(this.value);
+					this.version = parseVersion(doc.getElementsByTagName("Version"));
 				}
 				break;
 				
@@ -313,20 +444,42 @@ public class KVMessage implements Serializable{
 				checkNodeList(valueNL);
 				this.value = valueNL.item(0).getTextContent();
 				checkValue(this.value);
+				
+				this.ttl = parseTtl(doc.getElementsByTagName("TTL"));
+				this.version = parseVersion(doc.getElementsByTagName("Version"));
 								
 				break;
 			case GET_REQ:
+			case VGET_REQ:
 			case DEL_REQ:
 				checkNodeList(keyNL);
 				this.key = keyNL.item(0).getTextContent();
 				checkKey(this.key);
+				if (msgType.equals(DEL_REQ)) {
+					this.version = parseVersion(doc.getElementsByTagName("Version"));
+				}
 				break;	
 				
+			case MGET_REQ:
+			case MDEL_REQ:
+				this.keys = parseKeys(keyNL);
+				break;
+				
+			case MPUT_REQ:
+				this.pairs = parsePairs(doc.getElementsByTagName("Pair"));
+				checkBatch(this.pairs.size());
+				this.ttl = parseTtl(doc.getElementsByTagName("TTL"));
+				break;
+				
 			case RESP:
 			case ABORT_VOTE:
 				if (msgNL.getLength() != 0) {
 					checkNodeList(msgNL);
 					this.message = msgNL.item(0).getTextContent();
+					NodeList pairNL = doc.getElementsByTagName("Pair");
+					if (pairNL.getLength() != 0) { //resp of a successful mgetreq
+						this.pairs = parsePairs(pairNL);
+					}
 				} else { //this is resp of "successful getreq"
 					checkNodeList(keyNL);
 					checkNodeList(valueNL);
@@ -334,6 +487,7 @@ public class KVMessage implements Serializable{
 					this.value = valueNL.item(0).getTextContent();
 					checkKey(this.key);
 					checkValue(this.value);
+					this.version = parseVersion(doc.getElementsByTagName("Version"));
 				}
 				break;
 			case REGISTER: 
@@ -356,6 +510,81 @@ public class KVMessage implements Serializable{
 		}
 	}
 	
+	/**
+	 * @return the value of the optional TTL element, 0 if there is none
+	 */
+	private long parseTtl(NodeList ttlNL) throws KVException {
+		if (ttlNL.getLength() == 0) {
+			return 0;
+		}
+		checkNodeList(ttlNL);
+		try {
+			long ttl = Long.parseLong(ttlNL.item(0).getTextContent().trim());
+			if (ttl < 0) {
+				throw new KVException(MSG_FORMAT_ERROR);
+			}
+			return ttl;
+		} catch (NumberFormatException e) {
+			throw new KVException(MSG_FORMAT_ERROR);
+		}
+	}
+	
+	/**
+	 * @return the value of the optional Version element, ANY_VERSION if there is none
+	 */
+	private long parseVersion(NodeList versionNL) throws KVException {
+		if (versionNL.getLength() == 0) {
+			return ANY_VERSION;
+		}
+		checkNodeList(versionNL);
+		try {
+			long version = Long.parseLong(versionNL.item(0).getTextContent().trim());
+			if (version < 0) {
+				throw new KVException(MSG_FORMAT_ERROR);
+			}
+			return version;
+		} catch (NumberFormatException e) {
+			throw new KVException(MSG_FORMAT_ERROR);
+		}
+	}
+	
+	private List<String> parseKeys(NodeList keyNL) throws KVException {
+		checkBatch(keyNL.getLength());
+		List<String> keys = new ArrayList<String>(keyNL.getLength());
+		for (int i = 0; i < keyNL.getLength(); i++) {
+			String key = keyNL.item(i).getTextContent();
+			checkKey(key);
+			keys.add(key);
+		}
+		return keys;
+	}
+	
+	/**
+	 * @return the Key and Value of every Pair element, in document order
+	 */
+	private Map<String, String> parsePairs(NodeList pairNL) throws KVException {
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		for (int i = 0; i < pairNL.getLength(); i++) {
+			Element pairE = (Element) pairNL.item(i);
+			NodeList keyNL = pairE.getElementsByTagName("Key");
+			NodeList valueNL = pairE.getElementsByTagName("Value");
+			checkNodeList(keyNL);
+			checkNodeList(valueNL);
+			String key = keyNL.item(0).getTextContent();
+			String value = valueNL.item(0).getTextContent();
+			checkKey(key);
+			checkValue(value);
+			pairs.put(key, value);
+		}
+		return pairs;
+	}
+	
+	private void checkBatch(int size) throws KVException {
+		if (size == 0 || size > MAX_BATCH_SIZE) {
+			throw new KVException(BATCH_INVALID_ERROR);
+		}
+	}
+	
 	private void checkNodeList(NodeList nl) throws KVException {
 		if (nl == null || nl.getLength() != 1){
 			throw new KVException(MSG_FORMAT_ERROR);
@@ -413,6 +642,15 @@ public class KVMessage implements Serializable{
 				} catch (KVException e) {
 					throw new KVException(REQ_FORMAT_ERROR);
 				}
+				
+				if (ttl > 0) {
+					Element ttlE = doc.createElement("TTL");
+					ttlE.appendChild(doc.createTextNode(String.valueOf(ttl)));
+					rootE.appendChild(ttlE);
+				} else if (ttl < 0) {
+					throw new KVException(REQ_FORMAT_ERROR);
+				}
+				appendVersion(doc, rootE);
 						
 				if (message != null) {
 					throw new KVException(REQ_FORMAT_ERROR);
@@ -420,6 +658,7 @@ public class KVMessage implements Serializable{
 				
 				break;
 			case GET_REQ:
+			case VGET_REQ:
 			case DEL_REQ:
 				try {
 					checkKey(key);
@@ -429,11 +668,54 @@ public class KVMessage implements Serializable{
 				} catch (KVException e) {
 					throw new KVException(REQ_FORMAT_ERROR);
 				}
+				if (msgType.equals(DEL_REQ)) {
+					appendVersion(doc, rootE);
+				}
 
 				if (value != null || message != null) {
 					throw new KVException(REQ_FORMAT_ERROR);
 				}
 				
+				break;
+			case MGET_REQ:
+			case MDEL_REQ:
+				try {
+					checkBatch(keys == null ? 0 : keys.size());
+					for (String k : keys) {
+						checkKey(k);
+						keyE = doc.createElement("Key");
+						keyE.appendChild(doc.createTextNode(k));
+						rootE.appendChild(keyE);
+					}
+				} catch (KVException e) {
+					throw new KVException(REQ_FORMAT_ERROR);
+				}
+				
+				if (key != null || value != null || message != null || pairs != null) {
+					throw new KVException(REQ_FORMAT_ERROR);
+				}
+				
+				break;
+			case MPUT_REQ:
+				try {
+					checkBatch(pairs == null ? 0 : pairs.size());
+					appendPairs(doc, rootE);
+				} catch (KVException e) {
+					throw new KVException(REQ_FORMAT_ERROR);
+				}
+				
+				if (ttl > 0) {
+					Element ttlE = doc.createElement("TTL");
+					ttlE.appendChild(doc.createTextNode(String.valueOf(ttl)));
+					rootE.appendChild(ttlE);
+				} else if (ttl < 0) {
+					throw new KVException(REQ_FORMAT_ERROR);
+				}
+				
+				if (key != null || value != null || message != null || keys != null) {
+					throw new KVException(REQ_FORMAT_ERROR);
+				}
+				
 				break;
 			case RESP:
 			case ABORT_VOTE:
@@ -443,7 +725,10 @@ public class KVMessage implements Serializable{
 					rootE.appendChild(messageE);				
 					if (key != null || value != null) {
 						throw new KVException(MSG_FORMAT_ERROR);
-					}					
+					}
+					if (pairs != null) {
+						appendPairs(doc, rootE);
+					}
 				} else {
 					try {
 						checkKey(key);
@@ -458,6 +743,7 @@ public class KVMessage implements Serializable{
 					} catch (KVException e){
 						throw new KVException(MSG_FORMAT_ERROR);
 					}
+					appendVersion(doc, rootE);
 		
 					if (message != null) {
 						throw new KVException(MSG_FORMAT_ERROR);
@@ -501,6 +787,29 @@ public class KVMessage implements Serializable{
 		return xml;
 	}
 	
+	private void appendVersion(Document doc, Element rootE) {
+		if (version >= 0) {
+			Element versionE = doc.createElement("Version");
+			versionE.appendChild(doc.createTextNode(String.valueOf(version)));
+			rootE.appendChild(versionE);
+		}
+	}
+	
+	private void appendPairs(Document doc, Element rootE) throws KVException {
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			checkKey(pair.getKey());
+			checkValue(pair.getValue());
+			Element pairE = doc.createElement("Pair");
+			Element keyE = doc.createElement("Key");
+			keyE.appendChild(doc.createTextNode(pair.getKey()));
+			Element valueE = doc.createElement("Value");
+			valueE.appendChild(doc.createTextNode(pair.getValue()));
+			pairE.appendChild(keyE);
+			pairE.appendChild(valueE);
+			rootE.appendChild(pairE);
+		}
+	}
+	
 	public void sendMessage(Socket sock) throws KVException {
 		OutputStream out = null;
 		try {
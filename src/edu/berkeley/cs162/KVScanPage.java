@@ -0,0 +1,38 @@
+package edu.berkeley.cs162;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One page of the result of KVStore.scan or prefixScan: pairs in key order
+ * and, if the range holds more, the cursor to pass as the start of the next
+ * page. Pages are read without stopping writers, so pairs changed while a
+ * scan is paged through may show either their old or new value.
+ */
+public class KVScanPage {
+	private final Map<String, String> pairs;
+	private final String cursor;
+
+	KVScanPage(Map<String, String> pairs, String cursor) {
+		this.pairs = Collections.unmodifiableMap(pairs);
+		this.cursor = cursor;
+	}
+
+	/**
+	 * @return the pairs of this page, iterating in key order
+	 */
+	public Map<String, String> getPairs() {
+		return pairs;
+	}
+
+	/**
+	 * @return the first key of the next page, or null if this is the last page
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	public boolean hasMore() {
+		return cursor != null;
+	}
+}
@@ -30,6 +30,20 @@
  */
 package edu.berkeley.cs162;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 /**
@@ -64,18 +78,74 @@ public class KVServer implements KeyValueInterface {
 	private KVStore dataStore = null;
 	private KVCache dataCache = null;
 	
+	// Serializes store and cache accesses per key; always taken before the key's cache lock
+	private KeyLockManager keyLocks = new KeyLockManager(KeyLockManager.DEFAULT_STRIPES);
+	
+	// Store loads in progress for gets that missed the cache, by key
+	private ConcurrentHashMap<String, FutureTask<String>> loads = new ConcurrentHashMap<String, FutureTask<String>>();
+	
+	// Write-back mode: puts without a TTL and deletes go to the cache only,
+	// and the flusher writes them to the store in the background
+	private volatile boolean writeBack;
+	private volatile boolean mayHavePendingWrites;
+	private volatile Thread flusher;
+	// Held shared by puts and dels from reading writeBack until their change
+	// is in the cache, so that disableWriteBack can wait for those that saw
+	// write-back mode before it drains the pending writes
+	private final ReentrantReadWriteLock writeModeLock = new ReentrantReadWriteLock();
+	
+	// Keys recently found missing in dataStore, to answer repeated probes without a store lookup
+	private NegativeCache absentKeys = new NegativeCache(NEGATIVE_CACHE_SIZE);
+	private volatile int absentKeysGeneration;
+	
 	private static final int MAX_KEY_SIZE = 256;
 	private static final int MAX_VAL_SIZE = 256 * 1024;
+	private static final int NEGATIVE_CACHE_SIZE = 4096;
+	private static final int MAX_SCAN_LIMIT = 1000;
 	
 	/**
 	 * @param numSets number of sets in the data Cache.
 	 */
 	public KVServer(int numSets, int maxElemsPerSet) {
-		dataStore = new KVStore();
-		dataCache = new KVCache(numSets, maxElemsPerSet);	
+		this(numSets, maxElemsPerSet, 0);
+	}
+	
+	/**
+	 * @param numSets number of sets in the data Cache.
+	 * @param maxElemsPerSet maximum number of entries in each set of the data Cache.
+	 * @param cacheBytes byte budget of the data Cache, or 0 to bound it by entry count only.
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, long cacheBytes) {
+		this(new KVCache(numSets, maxElemsPerSet, cacheBytes));
+	}
+	
+	/**
+	 * Serves the store engine chosen by KVStore.fromConfiguration().
+	 * @param dataCache the data Cache to use, e.g. an OffHeapKVCache or one with a non-default eviction policy.
+	 */
+	public KVServer(KVCache dataCache) {
+		this(configuredStore(), dataCache);
+	}
+	
+	/**
+	 * @param dataStore the store to serve, e.g. a LogStructuredKVStore
+	 * @param dataCache the cache in front of it
+	 */
+	public KVServer(KVStore dataStore, KVCache dataCache) {
+		this.dataStore = dataStore;
+		this.dataCache = dataCache;	
+		this.absentKeysGeneration = dataStore.getGeneration();
 		AutoGrader.registerKVServer(dataStore, dataCache);
 	}
 	
+	private static KVStore configuredStore() {
+		try {
+			return KVStore.fromConfiguration();
+		} catch (KVException e) {
+			throw new IllegalStateException(e.getMsg().getMessage());
+		}
+	}
+	
 	public KVStore getStore() {
 		return dataStore;
 	}
@@ -85,81 +155,608 @@ public class KVServer implements KeyValueInterface {
 	}
 	
 	public boolean put(String key, String value) throws KVException {
+		return put(key, value, 0);
+	}
+	
+	public boolean put(String key, String value, long ttl) throws KVException {
 		validateKey(key);
 		validateValue(value);
+		validateTtl(ttl);
 		
-		WriteLock writeLock = dataCache.getWriteLock(key);
+		Lock keyLock = keyLocks.lockFor(key);
+		keyLock.lock();
+		writeModeLock.readLock().lock();
 		try {
-			writeLock.lock();
-		synchronized(dataStore) {
-				try {
-					dataStore.put(key,  value);
-					dataCache.put(key, value);
-				} catch (KVException e) {
-					throw new KVException(new KVMessage("resp", "put data into store and cache failed!"));
+			absentKeys.remove(key);
+			// Entries with a TTL are written through, so that they expire from the store too
+			boolean deferred = writeBack && ttl == 0;
+			if (!deferred) {
+				dataStore.put(key,  value, ttl);
+			}
+			WriteLock cacheLock = dataCache.getWriteLock(key);
+			cacheLock.lock();
+			try {
+				if (deferred) {
+					dataCache.putDirty(key, value);
+				} else {
+					dataCache.put(key, value, ttl);
 				}
+			} finally {
+				cacheLock.unlock();
 			}
+		} catch (KVException e) {
+			throw new KVException(new KVMessage("resp", "put data into store and cache failed!"));
 		} finally {
 			// Must be called before returning
 			AutoGrader.agKVServerPutFinished(key, value);
-			if (writeLock.isHeldByCurrentThread()) {
-				writeLock.unlock();
-			}
-		}		
+			writeModeLock.readLock().unlock();
+			keyLock.unlock();
+		}
 		return false;
 	}
 	
+	/**
+	 * Puts value only if key is still at version expected, for compare-and-set.
+	 * Versions are kept by the store alone, so this writes through even in
+	 * write-back mode, after flushing any pending write of key.
+	 * @param expected	version of key, as returned by getVersioned, or 0 if key must not exist
+	 * @return the new version of key
+	 * @throws KVException VERSION_MISMATCH_ERROR if key is at another version
+	 */
+	public long putIfVersion(String key, String value, long ttl, long expected) throws KVException {
+		validateKey(key);
+		validateValue(value);
+		validateTtl(ttl);
+		validateVersion(expected);
+		
+		Lock keyLock = keyLocks.lockFor(key);
+		keyLock.lock();
+		try {
+			flushPendingWrite(key);
+			long version = dataStore.putIfVersion(key, value, ttl, expected);
+			absentKeys.remove(key);
+			WriteLock cacheLock = dataCache.getWriteLock(key);
+			cacheLock.lock();
+			try {
+				dataCache.put(key, value, ttl);
+			} finally {
+				cacheLock.unlock();
+			}
+			return version;
+		} finally {
+			keyLock.unlock();
+		}
+	}
+	
+	/**
+	 * Deletes key only if it is still at version expected; see putIfVersion.
+	 * @throws KVException VERSION_MISMATCH_ERROR if key is at another version
+	 */
+	public void delIfVersion(String key, long expected) throws KVException {
+		validateKey(key);
+		validateVersion(expected);
+		
+		Lock keyLock = keyLocks.lockFor(key);
+		keyLock.lock();
+		try {
+			flushPendingWrite(key);
+			dataStore.delIfVersion(key, expected);
+			WriteLock cacheLock = dataCache.getWriteLock(key);
+			cacheLock.lock();
+			try {
+				dataCache.del(key);
+			} finally {
+				cacheLock.unlock();
+			}
+			absentKeys.add(key);
+		} finally {
+			keyLock.unlock();
+		}
+	}
+	
+	/**
+	 * Reads key with its version from the store, bypassing the cache, which
+	 * only holds values.
+	 * @throws KVException if key does not exist
+	 */
+	public KVVersionedValue getVersioned(String key) throws KVException {
+		validateKey(key);
+		Lock keyLock = keyLocks.lockFor(key);
+		keyLock.lock();
+		try {
+			flushPendingWrite(key);
+			return dataStore.getVersioned(key);
+		} finally {
+			keyLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the version key is at, 0 if it does not exist
+	 */
+	public long getVersion(String key) throws KVException {
+		validateKey(key);
+		Lock keyLock = keyLocks.lockFor(key);
+		keyLock.lock();
+		try {
+			flushPendingWrite(key);
+			return dataStore.getVersion(key);
+		} finally {
+			keyLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the position of the TPC log the store has applied, see KVStore.getAppliedPosition
+	 */
+	public long getAppliedPosition() throws KVException {
+		return dataStore.getAppliedPosition();
+	}
+	
+	/**
+	 * Records in the store that a TPC log is applied up to position, first
+	 * writing any pending write-back changes so the store holds them all.
+	 */
+	public void setAppliedPosition(long position) throws KVException {
+		if (mayHavePendingWrites) {
+			flush();
+		}
+		dataStore.setAppliedPosition(position);
+	}
+	
+	/**
+	 * Puts a pair replayed from a TPC log at its original version and
+	 * deadline, writing through; see KVStore.replayPut.
+	 */
+	public void replayPut(String key, String value, long deadline, long version) throws KVException {
+		Lock keyLock = keyLocks.lockFor(key);
+		keyLock.lock();
+		try {
+			flushPendingWrite(key);
+			dataStore.replayPut(key, value, deadline, version);
+			forget(key);
+		} finally {
+			keyLock.unlock();
+		}
+	}
+	
+	/**
+	 * Deletes a key as replayed from a TPC log, writing through; see KVStore.replayDel.
+	 */
+	public void replayDel(String key, long version) throws KVException {
+		Lock keyLock = keyLocks.lockFor(key);
+		keyLock.lock();
+		try {
+			flushPendingWrite(key);
+			dataStore.replayDel(key, version);
+			forget(key);
+		} finally {
+			keyLock.unlock();
+		}
+	}
+	
+	/**
+	 * Drops what the caches know of key, for it to be read from the store
+	 * again. Assumes the key's lock is held.
+	 */
+	private void forget(String key) {
+		absentKeys.remove(key);
+		WriteLock cacheLock = dataCache.getWriteLock(key);
+		cacheLock.lock();
+		try {
+			dataCache.del(key);
+		} finally {
+			cacheLock.unlock();
+		}
+	}
+	
+	/**
+	 * A load of key from the store, which knows its own task so as to
+	 * remove only that from loads.
+	 */
+	private class keyLoad implements Callable<String> {
+		final String key;
+		final FutureTask<String> task = new FutureTask<String>(this);
+		
+		keyLoad(String key) {
+			this.key = key;
+		}
+		
+		@Override
+		public String call() throws KVException {
+			return load(key, task);
+		}
+	}
+	
 	public String get (String key) throws KVException {
-		WriteLock lock = dataCache.getWriteLock(key);
-		String value = null;
+		validateKey(key);
+		// Cache hits are served without excluding other readers of the set
+		String value = dataCache.getShared(key);
+		if (value != null) {
+			return value;
+		}
+		
+		// Concurrent misses on key share the load of the first one
+		keyLoad load = new keyLoad(key);
+		FutureTask<String> inFlight = loads.putIfAbsent(key, load.task);
+		if (inFlight == null) {
+			inFlight = load.task;
+			load.task.run();
+		}
 		try {
-			validateKey(key);
-			lock.lock();
-			value = dataCache.get(key);
+			return inFlight.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof KVException) {
+				throw (KVException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KVException(new KVMessage("resp", "Interrupted while waiting for the data!"));
+		}
+	}
+	
+	/**
+	 * Reads key from the store into the cache, unless it got there meanwhile,
+	 * for all the gets waiting on its entry in loads. The entry is removed
+	 * while the key is still locked, so that gets arriving after a later
+	 * put or del start a load of their own, and only if it is still task,
+	 * so that a newer load of key keeps its entry.
+	 */
+	private String load(String key, FutureTask<String> task) throws KVException {
+		Lock keyLock = keyLocks.lockFor(key);
+		keyLock.lock();
+		try {
+			String value = dataCache.get(key);
 			if (value == null) {
-				synchronized(dataStore) {
-					try {
-						System.out.println("bbbbbbbbb");
-						value = dataStore.get(key);
-						System.out.println("afafafafa");
-					} catch (KVException e) {
-						System.out.println("@ KVServer : The key to get does not exist!, throw out exp");
-						throw new KVException(new KVMessage("resp", "The data requested does not exist!"));
-					}
-					dataCache.put(key, value);
+				String pending = mayHavePendingWrites ? pendingWrite(key) : null;
+				if (pending == KVCache.DELETED) {
+					throw new KVException(new KVMessage("resp", "The data requested does not exist!"));
+				} else if (pending != null) {
+					return pending;
+				}
+				if (isKnownAbsent(key)) {
+					throw new KVException(new KVMessage("resp", "The data requested does not exist!"));
+				}
+				KVVersionedValue stored;
+				try {
+					stored = dataStore.getVersioned(key);
+				} catch (KVException e) {
+					absentKeys.add(key);
+					throw new KVException(new KVMessage("resp", "The data requested does not exist!"));
+				}
+				value = stored.getValue();
+				WriteLock cacheLock = dataCache.getWriteLock(key);
+				cacheLock.lock();
+				try {
+					// Keeps the TTL, so the cache does not outlive the store's copy
+					dataCache.putUntil(key, value, stored.getDeadline());
+				} finally {
+					cacheLock.unlock();
 				}
 			}
+			return value;
 		} finally {
-			if (lock.isHeldByCurrentThread()) {
-				lock.unlock();
-			}
+			loads.remove(key, task);
+			keyLock.unlock();
 		}
-		return value;
 	}
 	
 	public void del (String key) throws KVException {
 		// Must be called before anything else
-		WriteLock lock = dataCache.getWriteLock(key);
-		lock.lock();
+		Lock keyLock = keyLocks.lockFor(key == null ? "" : key);
+		keyLock.lock();
+		writeModeLock.readLock().lock();
 		
-		synchronized(dataStore) {			
-			try {
-				validateKey(key);
+		try {
+			validateKey(key);
+			boolean deferred = writeBack;
+			if (!deferred) {
 				dataStore.del(key);
-				dataCache.del(key);
-			} catch (KVException e) {
-				throw new KVException(new KVMessage("resp", "Del failed!"));
+			}
+			WriteLock cacheLock = dataCache.getWriteLock(key);
+			cacheLock.lock();
+			try {
+				if (deferred) {
+					dataCache.putDirty(key, null);
+				} else {
+					dataCache.del(key);
+				}
 			} finally {
-				// Must be called before returning
-				AutoGrader.agKVServerDelFinished(key);				
-				if (lock.isHeldByCurrentThread()) {
-					lock.unlock();
+				cacheLock.unlock();
+			}
+			absentKeys.add(key);
+		} catch (KVException e) {
+			throw new KVException(new KVMessage("resp", "Del failed!"));
+		} finally {
+			// Must be called before returning
+			AutoGrader.agKVServerDelFinished(key);
+			writeModeLock.readLock().unlock();
+			keyLock.unlock();
+		}
+	}
+	
+	/**
+	 * Gets several keys in one request. Keys missing from the store are left
+	 * out of the result rather than failing the whole request.
+	 * @return the value of each key found, in the order of keys
+	 */
+	@Override
+	public Map<String, String> mget(Collection<String> keys) throws KVException {
+		validateBatch(keys.size());
+		for (String key : keys) {
+			validateKey(key);
+		}
+		Map<String, String> found = new LinkedHashMap<String, String>();
+		for (String key : keys) {
+			try {
+				found.put(key, get(key));
+			} catch (KVException e) {
+				// Missing
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Puts several pairs, holding the locks of all their keys so that other
+	 * writes of those keys, batched or not, come entirely before or after
+	 * it. Only writers are excluded: gets are served from the cache without
+	 * the key locks, so a get or mget running meanwhile may see some of the
+	 * pairs written and not others.
+	 */
+	@Override
+	public void mput(Map<String, String> pairs, long ttl) throws KVException {
+		validateBatch(pairs.size());
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			validateKey(pair.getKey());
+			validateValue(pair.getValue());
+		}
+		validateTtl(ttl);
+		
+		List<ReentrantLock> locked = keyLocks.lockAll(pairs.keySet());
+		try {
+			for (Map.Entry<String, String> pair : pairs.entrySet()) {
+				put(pair.getKey(), pair.getValue(), ttl);
+			}
+		} finally {
+			keyLocks.unlockAll(locked);
+		}
+	}
+	
+	/**
+	 * Deletes several keys, holding the locks of all of them like mput, with
+	 * the same isolation from writers only. Keys that do not exist are
+	 * ignored, as by del.
+	 */
+	@Override
+	public void mdel(Collection<String> keys) throws KVException {
+		validateBatch(keys.size());
+		for (String key : keys) {
+			validateKey(key);
+		}
+		
+		List<ReentrantLock> locked = keyLocks.lockAll(keys);
+		try {
+			for (String key : keys) {
+				del(key);
+			}
+		} finally {
+			keyLocks.unlockAll(locked);
+		}
+	}
+	
+	/**
+	 * Returns a page of the pairs with startKey <= key < endKey, read from
+	 * the store one pair at a time, so that other requests carry on while a
+	 * scan pages through the store (see KVStore.scan).
+	 * @param startKey	first key, null for the smallest, or the cursor of the previous page
+	 * @param endKey	key after the range, or null for no end
+	 * @param limit	pairs per page, at most MAX_SCAN_LIMIT
+	 */
+	public KVScanPage scan(String startKey, String endKey, int limit) throws KVException {
+		validateLimit(limit);
+		Map<String, String> pending = pendingWrites(startKey, endKey);
+		return withPendingWrites(dataStore.scan(startKey, endKey, limit), pending, limit);
+	}
+	
+	/**
+	 * Returns a page of the pairs whose key starts with prefix, like scan.
+	 * @param cursor	the cursor of the previous page, or null for the first page
+	 */
+	public KVScanPage prefixScan(String prefix, String cursor, int limit) throws KVException {
+		if (prefix == null) {
+			throw new KVException(new KVMessage("resp", "Prefix is null!"));
+		}
+		validateLimit(limit);
+		Map<String, String> pending = pendingWrites(cursor != null ? cursor : prefix, KVStore.prefixEnd(prefix));
+		return withPendingWrites(dataStore.prefixScan(prefix, cursor, limit), pending, limit);
+	}
+	
+	/**
+	 * Collects the writes in a key range not flushed yet. Scans do so before
+	 * reading the store, so that a write flushed in between is still seen.
+	 * @return the values by key, KVCache.DELETED for deletes, or null if
+	 * 			write-back mode is off
+	 */
+	private Map<String, String> pendingWrites(String startKey, String endKey) {
+		if (!mayHavePendingWrites) {
+			return null;
+		}
+		Map<String, String> writes = new TreeMap<String, String>();
+		for (String key : dataCache.dirtyKeys()) {
+			if ((startKey != null && key.compareTo(startKey) < 0) || (endKey != null && key.compareTo(endKey) >= 0)) {
+				continue;
+			}
+			String value = pendingWrite(key);
+			if (value != null) {
+				writes.put(key, value);
+			}
+		}
+		return writes;
+	}
+	
+	/**
+	 * Applies pending writes to a page read from the store: keys written
+	 * are added or updated and deleted ones are dropped, up to the page's
+	 * cursor. Should that make the page too long, its last pairs move to
+	 * the next page.
+	 */
+	private KVScanPage withPendingWrites(KVScanPage page, Map<String, String> pending, int limit) {
+		if (pending == null || pending.isEmpty()) {
+			return page;
+		}
+		TreeMap<String, String> pairs = new TreeMap<String, String>(page.getPairs());
+		String cursor = page.getCursor();
+		for (Map.Entry<String, String> write : pending.entrySet()) {
+			if (cursor != null && write.getKey().compareTo(cursor) >= 0) {
+				break;
+			}
+			if (write.getValue() == KVCache.DELETED) {
+				pairs.remove(write.getKey());
+			} else {
+				pairs.put(write.getKey(), write.getValue());
+			}
+		}
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			if (result.size() == limit) {
+				cursor = pair.getKey();
+				break;
+			}
+			result.put(pair.getKey(), pair.getValue());
+		}
+		return new KVScanPage(result, cursor);
+	}
+	
+	/**
+	 * Switches to write-back mode: puts without a TTL and deletes only update
+	 * the cache, and a background thread writes the keys changed since its
+	 * last round to the store every flushIntervalMillis, each key once
+	 * however often it was written. It also runs as soon as a change not yet
+	 * written is evicted from the cache. Until then such changes are kept
+	 * aside, so gets and scans see them in any case.
+	 * Call flush() before dumping the store.
+	 */
+	public synchronized void enableWriteBack(long flushIntervalMillis) {
+		if (flushIntervalMillis <= 0) {
+			throw new IllegalArgumentException("The flush interval must be positive");
+		}
+		if (flusher != null) {
+			return;
+		}
+		final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (flusher == Thread.currentThread()) {
+					LockSupport.parkNanos(intervalNanos);
+					try {
+						flush();
+					} catch (KVException e) {
+						System.err.println("KVServer: write-back failed, will retry: " + e.getMsg().getMessage());
+					}
 				}
 			}
-		}	
+		}, "KVServer write-back");
+		thread.setDaemon(true);
+		mayHavePendingWrites = true;
+		writeBack = true;
+		flusher = thread;
+		dataCache.setDirtyEvictionListener(new Runnable() {
+			@Override
+			public void run() {
+				LockSupport.unpark(thread);
+			}
+		});
+		thread.start();
+	}
+	
+	/**
+	 * Goes back to writing through to the store, once every change made in
+	 * write-back mode has been written.
+	 * @throws KVException if the store fails; write-back mode is then left
+	 * 			but some changes are still pending, and disabling again retries
+	 */
+	public synchronized void disableWriteBack() throws KVException {
+		writeBack = false;
+		Thread thread = flusher;
+		flusher = null;
+		if (thread != null) {
+			dataCache.setDirtyEvictionListener(null);
+			LockSupport.unpark(thread);
+		}
+		// Wait for the puts and dels that saw write-back mode to leave their
+		// change in the cache; later ones write through. The lock is not held
+		// while flushing, which takes key locks those writers may hold.
+		writeModeLock.writeLock().lock();
+		writeModeLock.writeLock().unlock();
+		flush();
+		mayHavePendingWrites = false;
+	}
+	
+	/**
+	 * Writes the changes made in write-back mode so far to the store.
+	 * @throws KVException if the store fails; the changes not written stay pending
+	 */
+	public void flush() throws KVException {
+		for (String key : dataCache.dirtyKeys()) {
+			Lock keyLock = keyLocks.lockFor(key);
+			keyLock.lock();
+			try {
+				flushPendingWrite(key);
+			} finally {
+				keyLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Writes the pending write of key, if any, to the store.
+	 * Assumes the key's lock is held.
+	 */
+	private void flushPendingWrite(String key) throws KVException {
+		String pending = mayHavePendingWrites ? pendingWrite(key) : null;
+		if (pending == null) {
+			return;
+		} else if (pending == KVCache.DELETED) {
+			dataStore.del(key);
+		} else {
+			dataStore.put(key, pending);
+		}
+		WriteLock cacheLock = dataCache.getWriteLock(key);
+		cacheLock.lock();
+		try {
+			dataCache.markClean(key);
+		} finally {
+			cacheLock.unlock();
+		}
 	}
 	
+	private String pendingWrite(String key) {
+		WriteLock cacheLock = dataCache.getWriteLock(key);
+		cacheLock.lock();
+		try {
+			return dataCache.pendingWrite(key);
+		} finally {
+			cacheLock.unlock();
+		}
+	}
 
+	/**
+	 * Checks the negative cache, first dropping it if the store's content was
+	 * replaced behind our back (e.g. by restoreFromFile).
+	 */
+	private boolean isKnownAbsent(String key) {
+		int generation = dataStore.getGeneration();
+		if (generation != absentKeysGeneration) {
+			absentKeys.clear();
+			absentKeysGeneration = generation;
+			return false;
+		}
+		return absentKeys.contains(key);
+	}
+	
 	private void validateKey(String key) throws KVException {
 		if (key == null || key.length() == 0) {
 			throw new KVException(new KVMessage("resp", "Key is empty!"));
@@ -168,6 +765,24 @@ public class KVServer implements KeyValueInterface {
 		} 		
 	}
 	
+	private void validateVersion(long version) throws KVException {
+		if (version < 0) {
+			throw new KVException(new KVMessage("resp", "Version can not be negative!"));
+		}
+	}
+	
+	private void validateBatch(int size) throws KVException {
+		if (size == 0 || size > StaticConstants.MAX_BATCH_SIZE) {
+			throw new KVException(new KVMessage("resp", "Batch size out of range!"));
+		}
+	}
+	
+	private void validateLimit(int limit) throws KVException {
+		if (limit <= 0 || limit > MAX_SCAN_LIMIT) {
+			throw new KVException(new KVMessage("resp", "Scan limit out of range!"));
+		}
+	}
+	
 	private void validateValue(String value) throws KVException {
 		if (value == null || value.length() == 0) {
 			throw new KVException(new KVMessage("resp","Value is empty!"));
@@ -176,4 +791,10 @@ public class KVServer implements KeyValueInterface {
 		}
 	}
 	
+	private void validateTtl(long ttl) throws KVException {
+		if (ttl < 0) {
+			throw new KVException(new KVMessage("resp", "TTL is negative!"));
+		}
+	}
+	
 }
@@ -0,0 +1,264 @@
+package edu.berkeley.cs162;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a KVStore, the fast alternative to its XML dump.
+ * Pairs are packed into blocks of about BLOCK_BYTES, each covered by a
+ * CRC32, and the file ends with an index of the blocks so that they can be
+ * checked and decoded in parallel on a fork-join pool.
+ *
+ * <pre>
+ *   header: int magic, int version
+ *   record: int key length, key, int value length, value, long deadline (0 if none), long version
+ *   index:  per block: long offset, int length, int records, int crc
+ *   footer: long index offset, int blocks, int magic
+ * </pre>
+ * Keys are UTF-8; values are the Bytes the store holds, possibly compressed.
+ * Version 2 snapshots, whose records end at the deadline, are still read;
+ * their values carry the version of their key in a ValueCompressor header.
+ */
+class KVSnapshot {
+	static final int BLOCK_BYTES = 64 * 1024;
+	private static final int MAGIC = 0x4B56534E; // "KVSN"
+	private static final int VERSION = 3;
+	private static final int UNVERSIONED = 2;
+	private static final int HEADER_BYTES = 8;
+	private static final int INDEX_ENTRY_BYTES = 20;
+	private static final int FOOTER_BYTES = 16;
+	private static final int BLOCKS_PER_TASK = 4;
+
+	/**
+	 * A pair read back from a snapshot.
+	 */
+	static class pair {
+		final String key;
+		final Bytes value;
+		final long deadline;
+		final long version;
+
+		pair(String key, Bytes value, long deadline, long version) {
+			this.key = key;
+			this.value = value;
+			this.deadline = deadline;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Writes a snapshot to a new file.
+	 */
+	static class writer {
+		private final FileChannel channel;
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_BYTES * 2);
+		private final DataOutputStream block = new DataOutputStream(blockBytes);
+		private final List<long[]> index = new ArrayList<long[]>();
+		private long offset = HEADER_BYTES;
+		private int records;
+
+		writer(Path file) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BLOCK_BYTES));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		void add(String key, Bytes value, long deadline, long version) throws IOException {
+			writeString(block, key);
+			byte[] bytes = value.array();
+			block.writeInt(bytes.length);
+			block.write(bytes);
+			block.writeLong(deadline);
+			block.writeLong(version);
+			records++;
+			if (blockBytes.size() >= BLOCK_BYTES) {
+				flushBlock();
+			}
+		}
+
+		private void flushBlock() throws IOException {
+			if (records == 0) {
+				return;
+			}
+			byte[] bytes = blockBytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length);
+			out.write(bytes);
+			index.add(new long[] {offset, bytes.length, records, (int) crc.getValue()});
+			offset += bytes.length;
+			blockBytes.reset();
+			records = 0;
+		}
+
+		/**
+		 * Writes the index and footer, forces the file to disk and closes it.
+		 */
+		void finish() throws IOException {
+			flushBlock();
+			for (long[] entry : index) {
+				out.writeLong(entry[0]);
+				out.writeInt((int) entry[1]);
+				out.writeInt((int) entry[2]);
+				out.writeInt((int) entry[3]);
+			}
+			out.writeLong(offset);
+			out.writeInt(index.size());
+			out.writeInt(MAGIC);
+			out.flush();
+			channel.force(true);
+			out.close();
+		}
+
+		void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reads and checks every block of a snapshot, decoding blocks in parallel.
+	 * @return the pairs of each block, in file order
+	 * @throws IOException if the file cannot be read or any block is damaged
+	 */
+	static pair[][] read(Path file, ForkJoinPool pool) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_BYTES + FOOTER_BYTES) {
+				throw new IOException("Truncated snapshot " + file);
+			}
+			ByteBuffer header = read(channel, 0, HEADER_BYTES);
+			ByteBuffer footer = read(channel, size - FOOTER_BYTES, FOOTER_BYTES);
+			long indexOffset = footer.getLong(0);
+			int blocks = footer.getInt(8);
+			int version = header.getInt(4);
+			if (header.getInt(0) != MAGIC || (version != VERSION && version != UNVERSIONED) || footer.getInt(12) != MAGIC
+					|| blocks < 0 || indexOffset + (long) blocks * INDEX_ENTRY_BYTES != size - FOOTER_BYTES) {
+				throw new IOException("Not a snapshot: " + file);
+			}
+			ByteBuffer index = read(channel, indexOffset, blocks * INDEX_ENTRY_BYTES);
+
+			pair[][] result = new pair[blocks][];
+			try {
+				pool.invoke(new decoder(channel, index, version == VERSION, result, 0, blocks));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Decodes a range of blocks, splitting it among the pool's workers.
+	 */
+	@SuppressWarnings("serial")
+	private static class decoder extends RecursiveAction {
+		private final FileChannel channel;
+		private final ByteBuffer index;
+		private final boolean versioned;
+		private final pair[][] result;
+		private final int from;
+		private final int to;
+
+		decoder(FileChannel channel, ByteBuffer index, boolean versioned, pair[][] result, int from, int to) {
+			this.channel = channel;
+			this.index = index;
+			this.versioned = versioned;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BLOCKS_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new decoder(channel, index, versioned, result, from, middle),
+						new decoder(channel, index, versioned, result, middle, to));
+				return;
+			}
+			try {
+				for (int i = from; i < to; i++) {
+					result[i] = decodeBlock(i);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private pair[] decodeBlock(int block) throws IOException {
+			int at = block * INDEX_ENTRY_BYTES;
+			long offset = index.getLong(at);
+			int length = index.getInt(at + 8);
+			int records = index.getInt(at + 12);
+			int expectedCrc = index.getInt(at + 16);
+			if (length < 0 || records < 0) {
+				throw new IOException("Corrupt index entry for block " + block);
+			}
+			ByteBuffer buf = read(channel, offset, length);
+			CRC32 crc = new CRC32();
+			crc.update(buf.array(), 0, length);
+			if ((int) crc.getValue() != expectedCrc) {
+				throw new IOException("Corrupt snapshot block " + block);
+			}
+			pair[] pairs = new pair[records];
+			try {
+				for (int i = 0; i < records; i++) {
+					String key = readString(buf);
+					int valueLength = buf.getInt();
+					Bytes value = Bytes.copyOf(buf.array(), buf.position(), valueLength);
+					buf.position(buf.position() + valueLength);
+					long deadline = buf.getLong();
+					long version = versioned ? buf.getLong() : ValueCompressor.versionOf(value);
+					pairs[i] = new pair(key, value, deadline, version);
+				}
+			} catch (RuntimeException e) {
+				throw new IOException("Corrupt snapshot block " + block + ": " + e);
+			}
+			return pairs;
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new IOException("Unexpected end of snapshot");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = buf.getInt();
+		String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
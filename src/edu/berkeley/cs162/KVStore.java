@@ -31,83 +31,773 @@
  */
 package edu.berkeley.cs162;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Dictionary;
-import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import javax.xml.parsers.*;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Result;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.*;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 
 /**
  * This is a dummy KeyValue Store. Ideally this would go to disk, 
  * or some other backing store. For this project, we simulate the disk like 
  * system using a manual delay.
- *
+ * 
+ * Keys put with a time-to-live carry a deadline. An expired key is dropped
+ * when it is next looked up, and a timing wheel also drops it in the
+ * background about when its deadline passes, so keys nobody reads again do
+ * not linger without the store ever being scanned.
+ * 
+ * Pairs are held by a set of storage primitives (readStored, writeValue, ...)
+ * that default to an in-memory ConcurrentHashMap; subclasses such as
+ * LogStructuredKVStore override them to keep the pairs elsewhere. Below
+ * put and get, values travel as UTF-8 Bytes, so engines, dumps and
+ * snapshots never convert them again.
+ * 
+ * Dumps and snapshots are point-in-time and do not hold up writers: while
+ * one runs, the first change to each key records the key's value as it
+ * was when the dump started (its preimage), and the dump writes that
+ * instead of the current value.
+ * 
+ * scan and prefixScan page through keys in order, reading one pair at a
+ * time without taking any lock.
+ * 
+ * Values of at least a configurable length can be stored deflated (see
+ * ValueCompressor); this is invisible to callers, dumps and engines.
+ * 
+ * Every put stores the value with the next version of its key, which
+ * putIfVersion and delIfVersion check to give compare-and-set. Engines keep
+ * the version with the pair, so a put without an expected version leaves
+ * it to the engine to count on and reads nothing first. A removed or
+ * expired key keeps its version as a tombstone, and its next put carries
+ * on from there, so a version is never reused for a key; the price is a
+ * small tombstone per key ever removed, until the store is cleared or
+ * restored. A key that is not live reads as version 0.
+ * 
+ * Writers lock only the stripe of their key (see KeyLockManager), so puts
+ * and deletes of different keys reach the engine concurrently. They also
+ * share storeLock, which dumps take alone to install or drop their
+ * preimages and restores take alone to replace the whole content.
  */
 public class KVStore implements KeyValueInterface {
-	private Dictionary<String, String> store 	= null;
+	private static final long EXPIRY_TICK_MILLIS = 100;
+	private static final int XML_BUFFER_BYTES = 64 * 1024;
+	
+	private final Map<String, stored> store = new ConcurrentHashMap<String, stored>();
+	// Ordered index of the live keys of store, for scans
+	private final NavigableSet<String> orderedKeys = new ConcurrentSkipListSet<String>();
+	private Map<String, Long> deadlines = new ConcurrentHashMap<String, Long>();
+	private TimingWheel<String> expiryWheel = null;
+	private volatile int generation = 0;
+	private volatile long appliedPosition = 0;
+	private final ValueCompressor compressor = new ValueCompressor(0);
+	private final KeyLockManager keyLocks = new KeyLockManager(KeyLockManager.DEFAULT_STRIPES);
+	private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+	
+	/**
+	 * The value an engine holds for a key with the version of the key; a
+	 * removed key keeps its version in a tombstone with a null value.
+	 */
+	protected static final class stored {
+		final Bytes value;
+		final long version;
+		
+		stored(Bytes value, long version) {
+			this.value = value;
+			this.version = version;
+		}
+		
+		boolean isTombstone() {
+			return value == null;
+		}
+	}
+	
+	/**
+	 * Version for writeValue and removeValue to work out themselves: one
+	 * more than the current version of the key for writeValue, the current
+	 * one for removeValue, counting from 0 for a key never stored.
+	 */
+	protected static final long IMPLIED_VERSION = -1;
+	
+	/**
+	 * A pair as it was when the running dump started.
+	 */
+	private static class preimage {
+		final Bytes value;
+		final long deadline;
+		final long version;
+		
+		preimage(Bytes value, long deadline, long version) {
+			this.value = value;
+			this.deadline = deadline;
+			this.version = version;
+		}
+	}
+	
+	// Preimage of a key that did not exist when the dump started
+	private static final preimage ABSENT = new preimage(null, 0, 0);
+	// Marks a key the running dump has already written
+	private static final preimage EMITTED = new preimage(null, 0, 0);
+	
+	// Preimages of the keys changed since the running dump started, or null
+	// if none is running; only set holding storeLock exclusively
+	private volatile ConcurrentHashMap<String, preimage> preimages = null;
+	private final Object dumpLock = new Object();
+	
+	/**
+	 * Receives the pairs of a dump.
+	 */
+	private interface pairVisitor<E extends Exception> {
+		void visit(String key, Bytes value, long deadline, long version) throws E;
+	}
 	
 	public KVStore() {
-		resetStore();
+	}
+	
+	/**
+	 * Creates the store engine named by the kvstore.engine system property:
+	 * "memory" (the default) for this class, "compact" for a CompactKVStore,
+	 * "log" for a LogStructuredKVStore, "lsm" for an LsmKVStore or "btree" for
+	 * a BTreeKVStore. The disk-backed engines keep their files in the
+	 * directory named by kvstore.dir.
+	 * Values are compressed from the length given by kvstore.compressThreshold,
+	 * if set.
+	 * @throws KVException if the configuration is invalid or the engine cannot be opened
+	 */
+	public static KVStore fromConfiguration() throws KVException {
+		KVStore store = openConfiguredEngine();
+		String threshold = System.getProperty("kvstore.compressThreshold");
+		if (threshold != null) {
+			try {
+				store.setCompressionThreshold(Integer.parseInt(threshold));
+			} catch (NumberFormatException e) {
+				throw new KVException("Invalid kvstore.compressThreshold: " + threshold);
+			}
+		}
+		return store;
+	}
+	
+	private static KVStore openConfiguredEngine() throws KVException {
+		String engine = System.getProperty("kvstore.engine", "memory");
+		if (engine.equals("memory")) {
+			return new KVStore();
+		} else if (engine.equals("compact")) {
+			return new CompactKVStore();
+		}
+		String dir = System.getProperty("kvstore.dir");
+		if (dir == null) {
+			throw new KVException("kvstore.dir must be set for the " + engine + " engine");
+		}
+		if (engine.equals("log")) {
+			return new LogStructuredKVStore(dir);
+		} else if (engine.equals("lsm")) {
+			return new LsmKVStore(dir);
+		} else if (engine.equals("btree")) {
+			new File(dir).mkdirs();
+			return new BTreeKVStore(new File(dir, "store.btree").getPath());
+		}
+		throw new KVException("Unknown kvstore.engine: " + engine);
 	}
 
-	private void resetStore() {
-		store = new Hashtable<String, String>();
+	/**
+	 * Removes every pair, keeping preimages for a running dump, and resets
+	 * the applied position. Called holding storeLock exclusively.
+	 */
+	private void resetStore() throws KVException {
+		if (preimages != null) {
+			try {
+				for (String key : storedKeys()) {
+					recordPreimage(key);
+				}
+			} catch (UncheckedIOException e) {
+				throw keysError(e);
+			}
+		}
+		clearValues();
+		appliedPosition = 0;
+		deadlines.clear();
+		generation++;
+	}
+	
+	/**
+	 * Sets the length in UTF-8 bytes from which values put from now on are stored
+	 * compressed. Values already stored are left as they are.
+	 * @param threshold	minimum length, or 0 to stop compressing
+	 */
+	public void setCompressionThreshold(int threshold) {
+		compressor.setThreshold(Math.max(0, threshold));
+	}
+	
+	/**
+	 * @return how much value compression has saved so far
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressor.getStats();
+	}
+	
+	/**
+	 * @return a number that changes whenever the whole content of the store is replaced
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * @return the position last given to setAppliedPosition, or 0; engines
+	 *         that outlive the process keep it across restarts
+	 */
+	public long getAppliedPosition() throws KVException {
+		return readAppliedPosition();
+	}
+	
+	/**
+	 * Records that the writes of a log, such as a TPC log, are applied up
+	 * to position, so that replaying the log after a restart can start
+	 * there. Engines keep it after the writes made before the call. It is
+	 * reset to 0 whenever the whole content of the store is replaced.
+	 */
+	public void setAppliedPosition(long position) throws KVException {
+		storeLock.readLock().lock();
+		try {
+			writeAppliedPosition(position);
+		} finally {
+			storeLock.readLock().unlock();
+		}
 	}
 	
 	public boolean put(String key, String value) throws KVException {
+		return put(key, value, 0);
+	}
+	
+	public boolean put(String key, String value, long ttl) throws KVException {
+		write(key, value, ttl, StaticConstants.ANY_VERSION);
+		return false;
+	}
+	
+	/**
+	 * Puts the pair only if key is at version expected.
+	 * @param expected	version of key, as returned by getVersioned, or 0 if key must not exist
+	 * @return the new version of key
+	 * @throws KVException VERSION_MISMATCH_ERROR if key is at another version
+	 */
+	public long putIfVersion(String key, String value, long ttl, long expected) throws KVException {
+		return write(key, value, ttl, expected);
+	}
+	
+	/**
+	 * @return the new version of key, or IMPLIED_VERSION if expected is ANY_VERSION
+	 */
+	private long write(String key, String value, long ttl, long expected) throws KVException {
 		AutoGrader.agStorePutStarted(key, value);
 		
 		try {
 			putDelay();
-			store.put(key, value);
-			return false;
+			Bytes encoded = compressor.encode(Bytes.of(value));
+			ReentrantLock keyLock = lockKey(key);
+			try {
+				long version = IMPLIED_VERSION;
+				if (expected != StaticConstants.ANY_VERSION) {
+					version = checkVersion(key, expected) + 1;
+				}
+				long deadline = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+				recordPreimage(key);
+				writeValue(key, encoded, deadline, version);
+				if (deadline > 0) {
+					deadlines.put(key, deadline);
+					getExpiryWheel().schedule(key, deadline);
+				} else {
+					deadlines.remove(key);
+				}
+				return version;
+			} finally {
+				unlockKey(keyLock);
+			}
 		} finally {
 			AutoGrader.agStorePutFinished(key, value);
 		}
 	}
 	
 	public String get(String key) throws KVException {
+		return getVersioned(key).getValue();
+	}
+	
+	/**
+	 * @return the value of key with the version it is at and its deadline
+	 * @throws KVException if key does not exist
+	 */
+	public KVVersionedValue getVersioned(String key) throws KVException {
 		AutoGrader.agStoreGetStarted(key);
 		
 		try {
 			getDelay();
-			System.out.println("@ KVStore : get");
-			String retVal = this.store.get(key);
-			if (retVal == null) {
+			stored pair = readStored(key);
+			if (pair != null && !pair.isTombstone() && isExpired(key)) {
+				expire(key, deadlines.get(key));
+				pair = null;
+			}
+			if (pair == null || pair.isTombstone()) {
 			    KVMessage msg = new KVMessage("resp", "key \"" + key + "\" does not exist in store");
 			    throw new KVException(msg);
 			}
-			return retVal;
+			Long deadline = deadlines.get(key);
+			return new KVVersionedValue(ValueCompressor.decode(pair.value).toString(), pair.version, deadline == null ? 0 : deadline);
 		} finally {
 			AutoGrader.agStoreGetFinished(key);
 		}
 	}
 	
+	/**
+	 * @return the version key is at, 0 if it does not exist
+	 */
+	public long getVersion(String key) throws KVException {
+		stored pair = readStored(key);
+		if (pair == null || pair.isTombstone() || isExpired(key)) {
+			return 0;
+		}
+		return pair.version;
+	}
+	
+	/**
+	 * Checks that key is at version expected, 0 if it is not live.
+	 * @return the version key is stored at, which for a removed or expired
+	 *         key is that of its tombstone
+	 */
+	private long checkVersion(String key, long expected) throws KVException {
+		stored pair = readStored(key);
+		boolean live = pair != null && !pair.isTombstone() && !isExpired(key);
+		if ((live ? pair.version : 0) != expected) {
+			throw new KVException(new KVMessage("resp", StaticConstants.VERSION_MISMATCH_ERROR));
+		}
+		return pair == null ? 0 : pair.version;
+	}
+	
 	public void del(String key) throws KVException {
+		remove(key, StaticConstants.ANY_VERSION);
+	}
+	
+	/**
+	 * Deletes key only if it is at version expected; deleting a key that does
+	 * not exist with an expected version of 0 does nothing.
+	 * @throws KVException VERSION_MISMATCH_ERROR if key is at another version
+	 */
+	public void delIfVersion(String key, long expected) throws KVException {
+		remove(key, expected);
+	}
+	
+	private void remove(String key, long expected) throws KVException {
 		AutoGrader.agStoreDelStarted(key);
 
 		try {
 			delDelay();
-			if(key != null)
-				this.store.remove(key);//?????????What if this key does not exist???, It will be handled @kvServer
+			if(key != null) {
+				ReentrantLock keyLock = lockKey(key);
+				try {
+					long version = IMPLIED_VERSION;
+					if (expected != StaticConstants.ANY_VERSION) {
+						checkVersion(key, expected);
+						if (expected == 0) {
+							// Not live, nothing to remove
+							return;
+						}
+						version = expected;
+					}
+					recordPreimage(key);
+					removeValue(key, version);//?????????What if this key does not exist???, It will be handled @kvServer
+					deadlines.remove(key);
+				} finally {
+					unlockKey(keyLock);
+				}
+			}
 		} finally {
 			AutoGrader.agStoreDelFinished(key);
 		}
 	}
 	
+	/**
+	 * Puts a pair replayed from a log at the version it was first put at,
+	 * unless key has reached that version since; replaying it again then
+	 * changes nothing. A pair whose deadline has passed is replayed as a
+	 * delete at its version.
+	 * @param deadline	epoch millis at which the pair expires, or 0
+	 * @return whether the pair was written
+	 */
+	public boolean replayPut(String key, String value, long deadline, long version) throws KVException {
+		Bytes encoded = compressor.encode(Bytes.of(value));
+		ReentrantLock keyLock = lockKey(key);
+		try {
+			stored pair = readStored(key);
+			if (pair != null && pair.version >= version) {
+				return false;
+			}
+			recordPreimage(key);
+			if (deadline != 0 && deadline <= System.currentTimeMillis()) {
+				removeValue(key, version);
+				deadlines.remove(key);
+				return false;
+			}
+			writeValue(key, encoded, deadline, version);
+			if (deadline > 0) {
+				deadlines.put(key, deadline);
+				getExpiryWheel().schedule(key, deadline);
+			} else {
+				deadlines.remove(key);
+			}
+			return true;
+		} finally {
+			unlockKey(keyLock);
+		}
+	}
+	
+	/**
+	 * Deletes key as replayed from a log, unless that delete or a later
+	 * write has already been applied.
+	 * @param version	version key was at when first deleted
+	 * @return whether key was deleted
+	 */
+	public boolean replayDel(String key, long version) throws KVException {
+		ReentrantLock keyLock = lockKey(key);
+		try {
+			stored pair = readStored(key);
+			long current = pair == null ? 0 : pair.version;
+			if (current > version || current == version && (pair == null || pair.isTombstone())) {
+				return false;
+			}
+			recordPreimage(key);
+			removeValue(key, version);
+			deadlines.remove(key);
+			return true;
+		} finally {
+			unlockKey(keyLock);
+		}
+	}
+	
+	/**
+	 * Reads the live pairs with startKey <= key < endKey in key order, one at
+	 * a time and without holding up writers.
+	 * @param startKey	first key of the range, or null to start from the smallest key;
+	 * 			the cursor of the previous page to continue a scan
+	 * @param endKey	key after the range, or null for no end
+	 * @param limit	maximum number of pairs to return
+	 */
+	public KVScanPage scan(String startKey, String endKey, int limit) throws KVException {
+		if (limit <= 0) {
+			throw new KVException("Scan limit must be positive");
+		}
+		// One more key than asked for tells whether the range goes on
+		List<String> keys = keysInRange(startKey, endKey, limit + 1);
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		for (String key : keys.subList(0, Math.min(limit, keys.size()))) {
+			// Pairs removed since the keys were read leave the page short
+			Bytes value = readValue(key);
+			if (value != null && !isExpired(key)) {
+				pairs.put(key, ValueCompressor.decode(value).toString());
+			}
+		}
+		return new KVScanPage(pairs, keys.size() > limit ? keys.get(limit) : null);
+	}
+	
+	/**
+	 * Reads the live pairs whose key starts with prefix, like scan.
+	 * @param cursor	the cursor of the previous page, or null for the first page
+	 */
+	public KVScanPage prefixScan(String prefix, String cursor, int limit) throws KVException {
+		return scan(cursor != null ? cursor : prefix, prefixEnd(prefix), limit);
+	}
+	
+	/**
+	 * @return the smallest key greater than all keys starting with prefix, or null if there is none
+	 */
+	static String prefixEnd(String prefix) {
+		int end = prefix.length();
+		while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+			end--;
+		}
+		if (end == 0) {
+			return null;
+		}
+		return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+	}
+	
+	private boolean isExpired(String key) {
+		Long deadline = deadlines.get(key);
+		return deadline != null && deadline <= System.currentTimeMillis();
+	}
+	
+	/**
+	 * Drops key if it still has the given deadline, i.e. it has not been
+	 * rewritten or deleted since the deadline was set.
+	 */
+	private void expire(String key, Long deadline) {
+		ReentrantLock keyLock = lockKey(key);
+		try {
+			if (deadline != null && deadline.equals(deadlines.get(key))) {
+				recordPreimage(key);
+				removeValue(key, IMPLIED_VERSION);
+				deadlines.remove(key);
+			}
+		} catch (KVException e) {
+			// Left for the next lookup or wheel turn
+			System.err.println("KVStore::expire: " + e.getMsg().getMessage());
+		} finally {
+			unlockKey(keyLock);
+		}
+	}
+	
+	/**
+	 * Takes storeLock shared, then the stripe of key.
+	 * @return the stripe lock, to be given to unlockKey
+	 */
+	private ReentrantLock lockKey(String key) {
+		storeLock.readLock().lock();
+		ReentrantLock keyLock = keyLocks.lockFor(key);
+		keyLock.lock();
+		return keyLock;
+	}
+	
+	private void unlockKey(ReentrantLock keyLock) {
+		keyLock.unlock();
+		storeLock.readLock().unlock();
+	}
+	
+	/**
+	 * Called holding the lock of key before key is changed: if a dump is
+	 * running and has not yet seen key, keeps its current value for it.
+	 */
+	private void recordPreimage(String key) throws KVException {
+		ConcurrentHashMap<String, preimage> running = preimages;
+		if (running != null && !running.containsKey(key)) {
+			stored pair = readStored(key);
+			Long deadline = deadlines.get(key);
+			running.putIfAbsent(key, pair == null || pair.isTombstone() ? ABSENT
+					: new preimage(pair.value, deadline == null ? 0 : deadline, pair.version));
+		}
+	}
+	
+	/**
+	 * Hands every pair that was live when the call started to visitor, as
+	 * it was then, while writes carry on. Values are passed in their stored
+	 * form, possibly compressed. Dumps run one at a time.
+	 */
+	private <E extends Exception> void dump(pairVisitor<E> visitor) throws E, KVException {
+		synchronized (dumpLock) {
+			ConcurrentHashMap<String, preimage> running = new ConcurrentHashMap<String, preimage>();
+			long start;
+			storeLock.writeLock().lock();
+			try {
+				preimages = running;
+				start = System.currentTimeMillis();
+			} finally {
+				storeLock.writeLock().unlock();
+			}
+			try {
+				for (String key : storedKeys()) {
+					stored pair = readStored(key);
+					Long deadline = deadlines.get(key);
+					// Unchanged since the start unless a writer recorded a preimage first
+					preimage before = running.putIfAbsent(key, EMITTED);
+					if (before == null) {
+						if (pair != null && !pair.isTombstone()) {
+							emit(visitor, key, pair.value, deadline == null ? 0 : deadline, pair.version, start);
+						}
+					} else if (before != EMITTED && before != ABSENT) {
+						emit(visitor, key, before.value, before.deadline, before.version, start);
+						running.put(key, EMITTED);
+					}
+				}
+			} catch (UncheckedIOException e) {
+				throw keysError(e);
+			} finally {
+				storeLock.writeLock().lock();
+				preimages = null;
+				storeLock.writeLock().unlock();
+			}
+			// Keys removed before the loop reached them
+			for (Map.Entry<String, preimage> entry : running.entrySet()) {
+				preimage before = entry.getValue();
+				if (before != EMITTED && before != ABSENT) {
+					emit(visitor, entry.getKey(), before.value, before.deadline, before.version, start);
+				}
+			}
+		}
+	}
+	
+	private static <E extends Exception> void emit(pairVisitor<E> visitor, String key, Bytes value, long deadline, long version, long now) throws E {
+		if (deadline == 0 || deadline > now) {
+			visitor.visit(key, value, deadline, version);
+		}
+	}
+	
+	/**
+	 * For engines that reload their pairs: registers the deadline a stored
+	 * pair was written with, so that it expires as if it had just been put.
+	 * @param deadline epoch millis at which the pair expires
+	 */
+	protected synchronized void restoreDeadline(String key, long deadline) {
+		deadlines.put(key, deadline);
+		getExpiryWheel().schedule(key, deadline);
+	}
+	
+	// Storage primitives. readValue, storedKeys and keysInRange may run
+	// concurrently with any other call. writeValue and removeValue are only
+	// called holding the lock of their key, so they run concurrently for keys
+	// of different stripes and engines must allow for that; clearValues runs
+	// alone.
+	
+	/**
+	 * @return the value stored for key, in the form writeValue was given it,
+	 *         with its version; a tombstone if key was removed or has
+	 *         expired, or null if key was never stored
+	 */
+	protected stored readStored(String key) throws KVException {
+		return store.get(key);
+	}
+	
+	/**
+	 * @return the live value of key, or null
+	 */
+	private Bytes readValue(String key) throws KVException {
+		stored pair = readStored(key);
+		return pair == null ? null : pair.value;
+	}
+	
+	/**
+	 * Stores a pair, replacing any previous value or tombstone of key.
+	 * @param deadline epoch millis at which the pair expires, or 0; engines
+	 *        that outlive the process should keep it and hand it back
+	 *        through restoreDeadline when they reload
+	 * @param version	version to store key at, or IMPLIED_VERSION
+	 */
+	protected void writeValue(String key, Bytes value, long deadline, long version) throws KVException {
+		if (version == IMPLIED_VERSION) {
+			stored previous = store.get(key);
+			version = previous == null ? 1 : previous.version + 1;
+		}
+		store.put(key, new stored(value, version));
+		orderedKeys.add(key);
+	}
+	
+	/**
+	 * Replaces the value of key by a tombstone. A key that is not live is
+	 * left as it is if version is IMPLIED_VERSION; a tombstone at version 0
+	 * need not be kept.
+	 * @param version	version of the tombstone, or IMPLIED_VERSION
+	 */
+	protected void removeValue(String key, long version) throws KVException {
+		stored previous = store.get(key);
+		if (version == IMPLIED_VERSION) {
+			if (previous == null || previous.isTombstone()) {
+				return;
+			}
+			version = previous.version;
+		}
+		orderedKeys.remove(key);
+		if (version == 0) {
+			store.remove(key);
+		} else {
+			store.put(key, new stored(null, version));
+		}
+	}
+	
+	/**
+	 * @return the live keys, in any order; may be a live view as long as
+	 *         iterating it is safe while pairs change, in which case
+	 *         iterating may throw UncheckedIOException
+	 */
+	protected Collection<String> storedKeys() throws KVException {
+		return orderedKeys;
+	}
+	
+	/**
+	 * Removes every pair and tombstone, and resets the applied position to
+	 * 0 if the engine stores it.
+	 */
+	protected void clearValues() throws KVException {
+		store.clear();
+		orderedKeys.clear();
+	}
+	
+	/**
+	 * @return at most limit live keys with startKey <= key < endKey, in
+	 *         ascending order; a bound may be null for none. Keys of pairs
+	 *         that have just expired or been removed may be included, scan
+	 *         skips them. Engines overriding the other primitives must
+	 *         override this one.
+	 */
+	protected List<String> keysInRange(String startKey, String endKey, int limit) throws KVException {
+		NavigableSet<String> range = orderedKeys;
+		if (startKey != null && endKey != null) {
+			range = startKey.compareTo(endKey) < 0 ? range.subSet(startKey, true, endKey, false) : Collections.<String>emptyNavigableSet();
+		} else if (startKey != null) {
+			range = range.tailSet(startKey, true);
+		} else if (endKey != null) {
+			range = range.headSet(endKey, false);
+		}
+		List<String> keys = new ArrayList<String>();
+		for (String key : range) {
+			if (keys.size() == limit) {
+				break;
+			}
+			keys.add(key);
+		}
+		return keys;
+	}
+	
+	/**
+	 * @return the applied position stored by writeAppliedPosition, or 0
+	 */
+	protected long readAppliedPosition() throws KVException {
+		return appliedPosition;
+	}
+	
+	/**
+	 * Stores the applied position, durably after the pairs written before
+	 * if the engine outlives the process. May run concurrently with
+	 * writeValue and removeValue.
+	 */
+	protected void writeAppliedPosition(long position) throws KVException {
+		appliedPosition = position;
+	}
+	
+	private static KVException keysError(UncheckedIOException e) {
+		return new KVException(StaticConstants.STORE_IO_ERROR + ": " + e.getCause().getMessage());
+	}
+	
+	private synchronized TimingWheel<String> getExpiryWheel() {
+		if (expiryWheel == null) {
+			expiryWheel = new TimingWheel<String>(EXPIRY_TICK_MILLIS, new TimingWheel.Expirer<String>() {
+				@Override
+				public void expire(String key, long deadline) {
+					KVStore.this.expire(key, deadline);
+				}
+			});
+		}
+		return expiryWheel;
+	}
+	
 	private void getDelay() {
 		AutoGrader.agStoreDelay();
 	}
@@ -120,85 +810,234 @@ public class KVStore implements KeyValueInterface {
 		AutoGrader.agStoreDelay();
 	}
 	
+    /**
+     * @return every live pair as XML, sorted by key
+     */
     public String toXML() throws KVException {
-        // TODO: implement me
-        //return null;
+    	final TreeMap<String, String> pairs = new TreeMap<String, String>();
+    	dump(new pairVisitor<RuntimeException>() {
+    		@Override
+    		public void visit(String key, Bytes value, long deadline, long version) {
+    			pairs.put(key, ValueCompressor.decode(value).toString());
+    		}
+    	});
     	try {
-			DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			Document doc = db.newDocument();
-			doc.setXmlStandalone(true);
-			Element root = doc.createElement("KVStore");
-			doc.appendChild(root);
-			
-			ArrayList<String> keys = Collections.list(store.keys());
-			
-			Collections.sort(keys);
-			
-			Element KVPairNode,  keyNode, valueNode;
-			for (String key : keys) {
-				KVPairNode = doc.createElement("KVPair");
-				keyNode = doc.createElement("Key");
-				valueNode = doc.createElement("Value");
-				
-				keyNode.setTextContent(key);
-				valueNode.setTextContent(store.get(key));
-				
-				root.appendChild(KVPairNode);
-				KVPairNode.appendChild(keyNode);
-				KVPairNode.appendChild(valueNode);
-				
-			}
-			TransformerFactory transformerFactory = TransformerFactory.newInstance();
-	    		Transformer transformer = transformerFactory.newTransformer();
-	    	    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-	    		StringWriter writer = new StringWriter();
-	    		transformer.transform(new DOMSource(doc), new StreamResult(writer));
-	    		return writer.getBuffer().toString();
-	
-    	} catch (Exception e) {
-    		//System.err.println("KVStore::dumpToString: Exception building DOM: " + e);
-    		throw new KVException(new KVMessage("resp", "KVStore::dumpToString: Exception building DOM: " + e));
+    		StringWriter out = new StringWriter();
+    		XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+    		writeXMLStart(writer);
+    		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+    			writeXMLPair(writer, pair.getKey(), pair.getValue());
+    		}
+    		writeXMLEnd(writer);
+    		writer.close();
+    		return out.toString();
+    	} catch (XMLStreamException e) {
+    		throw new KVException(new KVMessage("resp", "KVStore::dumpToString: Exception writing XML: " + e));
     	}
-    	//return "";
-    }        
+    }
 
+    /**
+     * Writes the pairs live when the call starts to fileName as XML, in the
+     * format of toXML but in no particular order. Pairs are streamed one at a
+     * time and writers are not held up. The file is replaced atomically once
+     * complete.
+     */
     public void dumpToFile(String fileName) throws KVException {
-        // TODO: implement me
+    	Path target = new File(fileName).getAbsoluteFile().toPath();
+    	Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
     	try {
-			BufferedWriter bw = new BufferedWriter(new FileWriter(new File(fileName)));
-			bw.write(this.toXML());
-			bw.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+    		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+    				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    				OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), XML_BUFFER_BYTES)) {
+    			final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+    			writeXMLStart(writer);
+    			dump(new pairVisitor<XMLStreamException>() {
+    				@Override
+    				public void visit(String key, Bytes value, long deadline, long version) throws XMLStreamException {
+    					writeXMLPair(writer, key, ValueCompressor.decode(value).toString());
+    				}
+    			});
+    			writeXMLEnd(writer);
+    			writer.close();
+    			out.flush();
+    			channel.force(true);
+    		}
+    		Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    	} catch (IOException | XMLStreamException e) {
+    		System.err.println("KVStore::dumpToFile: " + e);
+    		try {
+    			Files.deleteIfExists(tmp);
+    		} catch (IOException ignored) {
+    		}
+    	}
+    }
+
+    private static void writeXMLStart(XMLStreamWriter writer) throws XMLStreamException {
+    	writer.writeStartDocument("UTF-8", "1.0");
+    	writer.writeCharacters("\n");
+    	writer.writeStartElement("KVStore");
+    	writer.writeCharacters("\n");
+    }
+
+    private static void writeXMLPair(XMLStreamWriter writer, String key, String value) throws XMLStreamException {
+    	writer.writeStartElement("KVPair");
+    	writer.writeCharacters("\n");
+    	writer.writeStartElement("Key");
+    	writer.writeCharacters(key);
+    	writer.writeEndElement();
+    	writer.writeCharacters("\n");
+    	writer.writeStartElement("Value");
+    	writer.writeCharacters(value);
+    	writer.writeEndElement();
+    	writer.writeCharacters("\n");
+    	writer.writeEndElement();
+    	writer.writeCharacters("\n");
     }
 
-    public void restoreFromFile(String fileName) throws KVException{
-        // TODO: implement me
+    private static void writeXMLEnd(XMLStreamWriter writer) throws XMLStreamException {
+    	writer.writeEndElement();
+    	writer.writeCharacters("\n");
+    	writer.writeEndDocument();
+    }
+
+    /**
+     * Replaces the content of the store with the pairs in fileName, as
+     * written by dumpToFile. The file is streamed twice: once to check that
+     * it parses, so a damaged file leaves the store untouched, and once to
+     * load it. XML carries no versions, so every key restored is at version 1.
+     */
+    public void restoreFromFile(String fileName) throws KVException {
     	try {
-    		DocumentBuilder db =  DocumentBuilderFactory.newInstance().newDocumentBuilder();
-    		Document doc = db.parse(new File(fileName));
-    		
-    		NodeList nl = doc.getElementsByTagName("KVPair");
-    		int n = nl.getLength();
-    		String key, value;
-    		resetStore();
-    		
-    		for (int i = 0; i < n; i++) {
-    			Node cur = nl.item(i);
-    			if (cur.getNodeType() == Node.ELEMENT_NODE) {
-    				Element curE = (Element) cur;
-    				Node keyN = curE.getElementsByTagName("Key").item(0);
-    				key = keyN.getTextContent();
-    				Node valueN = curE.getElementsByTagName("Value").item(0);
-    				value = valueN.getTextContent();
-    				store.put(key,  value);
-    			}		
+    		readXML(fileName, false);
+    		storeLock.writeLock().lock();
+    		try {
+    			resetStore();
+    			readXML(fileName, true);
+    		} finally {
+    			storeLock.writeLock().unlock();
     		}
-    	} catch (IOException |  ParserConfigurationException | SAXException e) {
-    		//throw new KVException(new KVMessage("resp", "restore from file failed!"));
+    	} catch (IOException | XMLStreamException e) {
     		System.err.println("KVStore::restoreFromFile: " + e);
     	}
     }
+
+    private void readXML(String fileName, boolean load) throws IOException, XMLStreamException, KVException {
+    	XMLInputFactory factory = XMLInputFactory.newInstance();
+    	factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    	factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    	try (FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+    			InputStream in = new BufferedInputStream(Channels.newInputStream(channel), XML_BUFFER_BYTES)) {
+    		XMLStreamReader reader = factory.createXMLStreamReader(in);
+    		try {
+    			String key = null;
+    			String value = null;
+    			while (reader.hasNext()) {
+    				int event = reader.next();
+    				if (event == XMLStreamConstants.START_ELEMENT) {
+    					String name = reader.getLocalName();
+    					if (name.equals("KVPair")) {
+    						key = null;
+    						value = null;
+    					} else if (name.equals("Key")) {
+    						key = reader.getElementText();
+    					} else if (name.equals("Value")) {
+    						value = reader.getElementText();
+    					}
+    				} else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("KVPair")) {
+    					if (key == null || value == null) {
+    						throw new XMLStreamException("KVPair without Key or Value", reader.getLocation());
+    					}
+    					if (load) {
+    						writeValue(key, compressor.encode(Bytes.of(value)), 0, 1);
+    					}
+    				}
+    			}
+    		} finally {
+    			reader.close();
+    		}
+    	}
+    }
+
+    /**
+     * Writes the pairs live when the call starts, with their deadlines and
+     * versions, to a binary snapshot (see KVSnapshot) without holding up
+     * writers. Values are written as stored, so compressed ones stay
+     * compressed. The file is replaced atomically once complete.
+     * @throws KVException if the snapshot cannot be written
+     */
+    public void dumpToSnapshot(String fileName) throws KVException {
+    	Path target = new File(fileName).getAbsoluteFile().toPath();
+    	Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+    	try {
+    		final KVSnapshot.writer writer = new KVSnapshot.writer(tmp);
+    		try {
+    			dump(new pairVisitor<IOException>() {
+    				@Override
+    				public void visit(String key, Bytes value, long deadline, long version) throws IOException {
+    					writer.add(key, value, deadline, version);
+    				}
+    			});
+    			writer.finish();
+    		} catch (IOException | KVException e) {
+    			writer.abort();
+    			Files.deleteIfExists(tmp);
+    			throw e;
+    		}
+    		Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    	} catch (IOException e) {
+    		throw new KVException("KVStore::dumpToSnapshot: " + e);
+    	}
+    }
+
+    /**
+     * Replaces the content of the store with a snapshot written by
+     * dumpToSnapshot. Blocks are checked and decoded in parallel on the
+     * common fork-join pool before the store is touched, so a damaged
+     * snapshot leaves it unchanged. Pairs whose deadline has passed are
+     * skipped; the others keep their deadline and version.
+     * @throws KVException if the snapshot cannot be read or is damaged
+     */
+    public void restoreFromSnapshot(String fileName) throws KVException {
+    	KVSnapshot.pair[][] blocks;
+    	try {
+    		blocks = KVSnapshot.read(new File(fileName).toPath(), ForkJoinPool.commonPool());
+    	} catch (IOException e) {
+    		throw new KVException("KVStore::restoreFromSnapshot: " + e);
+    	}
+    	long now = System.currentTimeMillis();
+    	storeLock.writeLock().lock();
+    	try {
+    		resetStore();
+    		for (KVSnapshot.pair[] block : blocks) {
+    			for (KVSnapshot.pair pair : block) {
+    				if (pair.deadline == 0) {
+    					writeValue(pair.key, pair.value, 0, pair.version);
+    				} else if (pair.deadline > now) {
+    					writeValue(pair.key, pair.value, pair.deadline, pair.version);
+    					restoreDeadline(pair.key, pair.deadline);
+    				}
+    			}
+    		}
+    	} finally {
+    		storeLock.writeLock().unlock();
+    	}
+    }
+
+    /**
+     * Runs dumpToSnapshot on a background thread.
+     * @return completes once the snapshot is written, or with the KVException that stopped it
+     */
+    public Future<Void> dumpToSnapshotAsync(final String fileName) {
+    	FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+    		@Override
+    		public Void call() throws KVException {
+    			dumpToSnapshot(fileName);
+    			return null;
+    		}
+    	});
+    	Thread thread = new Thread(task, "KVStore snapshot");
+    	thread.setDaemon(true);
+    	thread.start();
+    	return task;
+    }
 }
@@ -0,0 +1,39 @@
+package edu.berkeley.cs162;
+
+/**
+ * A value together with the version its key was at when it was read, to
+ * pass back to a conditional put or del, and when the key expires.
+ */
+public class KVVersionedValue {
+	private final String value;
+	private final long version;
+	private final long deadline;
+
+	public KVVersionedValue(String value, long version) {
+		this(value, version, 0);
+	}
+
+	public KVVersionedValue(String value, long version, long deadline) {
+		this.value = value;
+		this.version = version;
+		this.deadline = deadline;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the version of the key, at least 1
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return epoch millis at which the key expires, or 0 if it does not
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+}
@@ -0,0 +1,69 @@
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks that serialize the operations on one key while operations
+ * on keys of different stripes run concurrently. Two keys share a stripe
+ * only by hash collision, so with enough stripes a slow store operation on
+ * one key rarely holds up another.
+ */
+class KeyLockManager {
+	static final int DEFAULT_STRIPES = 1024;
+
+	private final ReentrantLock[] stripes;
+	private final int mask;
+
+	/**
+	 * @param stripes	number of locks, rounded up to a power of two
+	 */
+	KeyLockManager(int stripes) {
+		int size = Integer.highestOneBit(Math.max(1, stripes) * 2 - 1);
+		this.stripes = new ReentrantLock[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new ReentrantLock();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * @return the index of the stripe guarding key; locks of several keys
+	 *         must be taken in increasing stripe order
+	 */
+	int stripeOf(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	ReentrantLock lockFor(String key) {
+		return stripes[stripeOf(key)];
+	}
+
+	/**
+	 * Locks the stripes of all keys, in increasing stripe order so that
+	 * concurrent callers cannot deadlock.
+	 * @return the locks taken, to be given to unlockAll
+	 */
+	List<ReentrantLock> lockAll(Collection<String> keys) {
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		for (String key : keys) {
+			ids.add(stripeOf(key));
+		}
+		List<ReentrantLock> locked = new ArrayList<ReentrantLock>(ids.size());
+		for (int id : ids) {
+			stripes[id].lock();
+			locked.add(stripes[id]);
+		}
+		return locked;
+	}
+
+	void unlockAll(List<ReentrantLock> locked) {
+		for (int i = locked.size() - 1; i >= 0; i--) {
+			locked.get(i).unlock();
+		}
+	}
+}
@@ -31,6 +31,9 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This is the simple interface that all of the KeyValue servers,
@@ -47,6 +50,16 @@ public interface KeyValueInterface {
 	 */
 	public boolean put(String key, String value) throws KVException;
 	
+	/**
+	 * Insert Key, Value pair into the storage unit, to be dropped once ttl milliseconds have passed 
+	 * @param key is the object used to index into the store
+	 * @param value is the object corresponding to a unique key
+	 * @param ttl is the time-to-live of the pair in milliseconds, or 0 for a pair that never expires
+	 * @return whether a value was overwritten when inserting the new data tuple
+	 * @throws KVException is thrown when there is an error when inserting the entry into the store 
+	 */
+	public boolean put(String key, String value, long ttl) throws KVException;
+	
 	/**
 	 * Retrieve the object corresponding to the provided key 
 	 * @param key is the object used to index into the store
@@ -61,4 +74,48 @@ public interface KeyValueInterface {
 	 * @throws KVException if there is an error when looking up the object store
 	 */	
 	public void del(String key) throws KVException;	
+	
+	/**
+	 * Retrieve the objects corresponding to several keys; by default one key at a time
+	 * @param keys are the objects used to index into the store
+	 * @return the value of each key found, in the order of keys; keys that cannot be read are left out
+	 * @throws KVException if there is an error when looking up the object store
+	 */
+	public default Map<String, String> mget(Collection<String> keys) throws KVException {
+		Map<String, String> found = new LinkedHashMap<String, String>();
+		for (String key : keys) {
+			try {
+				found.put(key, get(key));
+			} catch (KVException e) {
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Insert several Key, Value pairs; by default one pair at a time
+	 * @param pairs are the keys and the values to associate with them
+	 * @param ttl is the time-to-live of the pairs in milliseconds, or 0 for pairs that never expire
+	 * @throws KVException is thrown when there is an error when inserting the entries into the store
+	 */
+	public default void mput(Map<String, String> pairs, long ttl) throws KVException {
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			put(pair.getKey(), pair.getValue(), ttl);
+		}
+	}
+	
+	public default void mput(Map<String, String> pairs) throws KVException {
+		mput(pairs, 0);
+	}
+	
+	/**
+	 * Delete the objects corresponding to several keys; by default one key at a time
+	 * @param keys are the objects used to index into the store
+	 * @throws KVException if there is an error when looking up the object store
+	 */
+	public default void mdel(Collection<String> keys) throws KVException {
+		for (String key : keys) {
+			del(key);
+		}
+	}
 }
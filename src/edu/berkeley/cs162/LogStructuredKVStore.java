@@ -0,0 +1,701 @@
+package edu.berkeley.cs162;
+
+import static edu.berkeley.cs162.StaticConstants.STORE_IO_ERROR;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A KVStore kept on disk as a log of put and delete records, split into
+ * segment files of about segmentBytes each. Only the last segment is
+ * appended to. An in-memory ordered index maps every live key to the
+ * segment, offset and length of its latest record, so a get is one
+ * positional read and the values never need to fit in the heap; only the
+ * keys do.
+ *
+ * A deleted key keeps the location of its delete record, which holds the
+ * version KVStore carries on from, in a second map.
+ *
+ * Records that were overwritten stay in their segment as dead bytes. Once
+ * at least half of the bytes of the older segments are dead, a background
+ * thread merges them: live records and the delete records of deleted keys
+ * are appended again at the end of the log and the old segments are
+ * deleted, oldest first, so a crash in the middle never brings a deleted
+ * key back.
+ *
+ * Every record is framed as
+ * <pre>
+ *   int length, int crc32 of the body,
+ *   body: byte type, long deadline, int key length, long version, key, value
+ * </pre>
+ * with the key in UTF-8 and the value as the bytes KVStore hands over.
+ * Records written before versions were kept have no version field; their
+ * version is read from the value (see ValueCompressor) or, for a delete,
+ * is that of the record it deletes. The applied position (see
+ * KVStore.setAppliedPosition) is kept as a record with no key and the
+ * position in its deadline field; the latest one counts.
+ * When the store is opened, the segments are replayed in order to rebuild
+ * the index; a torn record at the end of the last segment, left by a crash
+ * during an append, is cut off.
+ */
+public class LogStructuredKVStore extends KVStore {
+	private static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+	private static final long MERGE_CHECK_MILLIS = 1000;
+	private static final int HEADER_BYTES = 8;
+	private static final int BODY_PREFIX_BYTES = 13;
+	private static final int VERSION_BYTES = 8;
+	private static final byte PUT = 1;
+	private static final byte DEL = 2;
+	// Added to the type of records that have a version field
+	private static final byte VERSIONED = 2;
+	private static final byte APPLIED = 4;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * One segment file. Its channels are reopened if a thread interrupted
+	 * while using one closed it.
+	 */
+	private static class segment {
+		final int id;
+		final File file;
+		volatile FileChannel writeChannel;
+		volatile FileChannel readChannel;
+		long size;
+		final AtomicLong deadBytes = new AtomicLong();
+		volatile boolean deleted;
+
+		segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.writeChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			this.readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.size = writeChannel.size();
+		}
+
+		void readFully(ByteBuffer buf, long position) throws IOException {
+			while (buf.hasRemaining()) {
+				FileChannel channel = readChannel;
+				try {
+					int n = channel.read(buf, position);
+					if (n < 0) {
+						throw new IOException("Unexpected end of " + file);
+					}
+					position += n;
+				} catch (ClosedChannelException e) {
+					if (deleted) {
+						throw e;
+					}
+					// Closed by an interrupted reader, which gives up while the others go on
+					reopen(channel);
+					if (e instanceof ClosedByInterruptException) {
+						throw e;
+					}
+				}
+			}
+		}
+
+		private synchronized void reopen(FileChannel closed) throws IOException {
+			if (readChannel == closed && !deleted) {
+				readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			}
+		}
+
+		/**
+		 * Writes all of buf at position. An interrupt does not abandon the
+		 * write half done, which would leave a torn record before later ones:
+		 * the write channel it closed is reopened and the write starts over,
+		 * and the interrupt is kept for the caller.
+		 */
+		void writeFully(ByteBuffer buf, long position) throws IOException {
+			int start = buf.position();
+			boolean interrupted = Thread.interrupted();
+			try {
+				while (true) {
+					FileChannel channel = writeChannel;
+					try {
+						buf.position(start);
+						long at = position;
+						while (buf.hasRemaining()) {
+							at += channel.write(buf, at);
+						}
+						return;
+					} catch (ClosedByInterruptException e) {
+						interrupted = true;
+						Thread.interrupted();
+						reopenWrite(channel);
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Forces the segment to disk, surviving an interrupt like writeFully.
+		 */
+		void force() throws IOException {
+			boolean interrupted = Thread.interrupted();
+			try {
+				while (true) {
+					FileChannel channel = writeChannel;
+					try {
+						channel.force(false);
+						return;
+					} catch (ClosedByInterruptException e) {
+						interrupted = true;
+						Thread.interrupted();
+						reopenWrite(channel);
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private synchronized void reopenWrite(FileChannel closed) throws IOException {
+			if (deleted) {
+				throw new ClosedChannelException();
+			}
+			if (writeChannel == closed) {
+				writeChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			}
+		}
+
+		synchronized void delete() {
+			deleted = true;
+			closeQuietly(writeChannel);
+			closeQuietly(readChannel);
+			file.delete();
+		}
+	}
+
+	/**
+	 * Where the latest record of a key is, and the version it gives the key.
+	 */
+	private static class location {
+		final segment segment;
+		final long offset;
+		final int length;
+		final long version;
+
+		location(segment segment, long offset, int length, long version) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.version = version;
+		}
+	}
+
+	private final File dir;
+	private final long segmentBytes;
+	private final boolean syncWrites;
+
+	private final ConcurrentNavigableMap<String, location> index = new ConcurrentSkipListMap<String, location>();
+	// Delete records of the keys deleted and not written again
+	private final ConcurrentHashMap<String, location> removed = new ConcurrentHashMap<String, location>();
+	// Guarded by this store's monitor, which writes and merges take to append
+	private final TreeMap<Integer, segment> segments = new TreeMap<Integer, segment>();
+	private segment active;
+	// The latest applied position record, or null if none was written
+	private location applied;
+	private volatile long appliedPosition;
+
+	private Thread merger;
+	private volatile boolean closed;
+
+	/**
+	 * Opens the log in dir, creating it if needed, with 64 MB segments and
+	 * no fsync after each write.
+	 * @param dir	directory holding the segment files.
+	 * @throws KVException if the log cannot be opened
+	 */
+	public LogStructuredKVStore(String dir) throws KVException {
+		this(dir, DEFAULT_SEGMENT_BYTES, false);
+	}
+
+	/**
+	 * Opens the log in dir, creating it if needed.
+	 * @param dir	directory holding the segment files.
+	 * @param segmentBytes	size at which the active segment is closed and a new one started.
+	 * @param syncWrites	whether every write is forced to the disk before returning; without
+	 * 			it a write survives a crash of the process but not of the machine.
+	 * @throws KVException if the log cannot be opened
+	 */
+	public LogStructuredKVStore(String dir, long segmentBytes, boolean syncWrites) throws KVException {
+		this.dir = new File(dir);
+		this.segmentBytes = segmentBytes;
+		this.syncWrites = syncWrites;
+		try {
+			open();
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+		merger = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runMerger();
+			}
+		}, "LogStructuredKVStore-merger");
+		merger.setDaemon(true);
+		merger.start();
+	}
+
+	private synchronized void open() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+					segments.put(id, new segment(id, file));
+				} catch (NumberFormatException e) {
+					// Not one of ours
+				}
+			}
+		}
+		Map<String, Long> deadlines = new HashMap<String, Long>();
+		for (segment seg : segments.values()) {
+			replay(seg, seg == segments.lastEntry().getValue(), deadlines);
+		}
+		if (segments.isEmpty()) {
+			active = newSegment(0);
+		} else {
+			active = segments.lastEntry().getValue();
+		}
+
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+			if (entry.getValue() <= now) {
+				// Expired while we were down; the put record stands in for a delete
+				removed.put(entry.getKey(), index.remove(entry.getKey()));
+			} else {
+				restoreDeadline(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Applies the records of seg to the index.
+	 * @param last	whether seg is the newest segment, whose tail may be torn
+	 * @param deadlines	the deadlines of the live keys that have one, kept up to date
+	 */
+	private void replay(segment seg, boolean last, Map<String, Long> deadlines) throws IOException {
+		long offset = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		while (offset + HEADER_BYTES <= seg.size) {
+			header.clear();
+			seg.readFully(header, offset);
+			int bodyLength = header.getInt(0);
+			if (bodyLength < BODY_PREFIX_BYTES || offset + HEADER_BYTES + bodyLength > seg.size) {
+				break;
+			}
+			ByteBuffer body = ByteBuffer.allocate(bodyLength);
+			seg.readFully(body, offset + HEADER_BYTES);
+			if (header.getInt(4) != crc(body.array(), 0, bodyLength)) {
+				break;
+			}
+			int length = HEADER_BYTES + bodyLength;
+			byte type = body.get(0);
+			if (type == APPLIED + VERSIONED) {
+				if (applied != null) {
+					applied.segment.deadBytes.addAndGet(applied.length);
+				}
+				applied = new location(seg, offset, length, 0);
+				appliedPosition = body.getLong(1);
+				offset += length;
+				continue;
+			}
+			int keyOffset = keyOffset(type);
+			String key = new String(body.array(), keyOffset, body.getInt(9), StandardCharsets.UTF_8);
+			location previous = index.remove(key);
+			if (previous == null) {
+				previous = removed.remove(key);
+			}
+			long version;
+			if (type > VERSIONED) {
+				version = body.getLong(BODY_PREFIX_BYTES);
+			} else if (type == PUT) {
+				int valueOffset = keyOffset + body.getInt(9);
+				version = ValueCompressor.versionOf(Bytes.copyOf(body.array(), valueOffset, bodyLength - valueOffset));
+			} else {
+				version = previous == null ? 0 : previous.version;
+			}
+			location loc = new location(seg, offset, length, version);
+			if (type == PUT || type == PUT + VERSIONED) {
+				index.put(key, loc);
+				long deadline = body.getLong(1);
+				if (deadline != 0) {
+					deadlines.put(key, deadline);
+				} else {
+					deadlines.remove(key);
+				}
+			} else {
+				if (version != 0) {
+					removed.put(key, loc);
+				} else {
+					seg.deadBytes.addAndGet(length);
+				}
+				deadlines.remove(key);
+			}
+			if (previous != null) {
+				previous.segment.deadBytes.addAndGet(previous.length);
+			}
+			offset += length;
+		}
+		if (offset < seg.size) {
+			if (!last) {
+				throw new IOException("Corrupt record at offset " + offset + " of " + seg.file);
+			}
+			System.err.println("LogStructuredKVStore: dropping torn tail of " + seg.file + " at offset " + offset);
+			seg.writeChannel.truncate(offset);
+			seg.size = offset;
+		}
+	}
+
+	private segment newSegment(int id) throws IOException {
+		File file = new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+		segment seg = new segment(id, file);
+		segments.put(id, seg);
+		return seg;
+	}
+
+	/**
+	 * @return the offset in the body of the key of a record of type
+	 */
+	private static int keyOffset(byte type) {
+		return type > VERSIONED ? BODY_PREFIX_BYTES + VERSION_BYTES : BODY_PREFIX_BYTES;
+	}
+
+	@Override
+	protected stored readStored(String key) throws KVException {
+		while (true) {
+			location loc = index.get(key);
+			if (loc == null) {
+				// Deletes put the key here before taking it out of the index
+				loc = removed.get(key);
+				return loc == null ? null : new stored(null, loc.version);
+			}
+			try {
+				ByteBuffer record = read(loc);
+				int keyLength = record.getInt(HEADER_BYTES + 9);
+				int valueOffset = HEADER_BYTES + keyOffset(record.get(HEADER_BYTES)) + keyLength;
+				return new stored(Bytes.copyOf(record.array(), valueOffset, loc.length - valueOffset), loc.version);
+			} catch (ClosedChannelException e) {
+				if (closed || e instanceof ClosedByInterruptException) {
+					throw ioError(e);
+				}
+				// The segment was merged away meanwhile; look the key up again
+			} catch (IOException e) {
+				throw ioError(e);
+			}
+		}
+	}
+
+	@Override
+	protected synchronized void writeValue(String key, Bytes value, long deadline, long version) throws KVException {
+		try {
+			location deleted = removed.get(key);
+			if (version == IMPLIED_VERSION) {
+				location current = index.get(key);
+				version = (current != null ? current.version : deleted != null ? deleted.version : 0) + 1;
+			}
+			location previous = index.put(key, append(PUT, key, value, deadline, version));
+			if (previous != null) {
+				previous.segment.deadBytes.addAndGet(previous.length);
+			}
+			if (deleted != null) {
+				removed.remove(key);
+				deleted.segment.deadBytes.addAndGet(deleted.length);
+			}
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+	}
+
+	@Override
+	protected synchronized void removeValue(String key, long version) throws KVException {
+		location current = index.get(key);
+		location deleted = removed.get(key);
+		if (version == IMPLIED_VERSION) {
+			if (current == null) {
+				return;
+			}
+			version = current.version;
+		} else if (current == null && (deleted == null ? version == 0 : deleted.version == version)) {
+			return;
+		}
+		try {
+			location tombstone = append(DEL, key, Bytes.EMPTY, 0, version);
+			// Readers look in removed once the key leaves the index
+			if (version != 0) {
+				removed.put(key, tombstone);
+			} else {
+				removed.remove(key);
+				tombstone.segment.deadBytes.addAndGet(tombstone.length);
+			}
+			if (current != null) {
+				index.remove(key);
+				current.segment.deadBytes.addAndGet(current.length);
+			}
+			if (deleted != null) {
+				deleted.segment.deadBytes.addAndGet(deleted.length);
+			}
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+	}
+
+	@Override
+	protected long readAppliedPosition() {
+		return appliedPosition;
+	}
+
+	@Override
+	protected synchronized void writeAppliedPosition(long position) throws KVException {
+		try {
+			location previous = applied;
+			applied = append(APPLIED, "", Bytes.EMPTY, position, 0);
+			appliedPosition = position;
+			if (previous != null) {
+				previous.segment.deadBytes.addAndGet(previous.length);
+			}
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+	}
+
+	@Override
+	protected Collection<String> storedKeys() {
+		return new ArrayList<String>(index.keySet());
+	}
+
+	@Override
+	protected List<String> keysInRange(String startKey, String endKey, int limit) {
+		NavigableMap<String, location> range = index;
+		if (startKey != null && endKey != null) {
+			if (startKey.compareTo(endKey) >= 0) {
+				return new ArrayList<String>();
+			}
+			range = index.subMap(startKey, true, endKey, false);
+		} else if (startKey != null) {
+			range = index.tailMap(startKey, true);
+		} else if (endKey != null) {
+			range = index.headMap(endKey, false);
+		}
+		List<String> keys = new ArrayList<String>();
+		for (String key : range.keySet()) {
+			if (keys.size() == limit) {
+				break;
+			}
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	@Override
+	protected synchronized void clearValues() throws KVException {
+		try {
+			index.clear();
+			removed.clear();
+			applied = null;
+			appliedPosition = 0;
+			for (segment seg : new ArrayList<segment>(segments.values())) {
+				seg.delete();
+			}
+			int next = active.id + 1;
+			segments.clear();
+			active = newSegment(next);
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+	}
+
+	/**
+	 * Appends a record to the active segment, starting a new one first if
+	 * it would grow past segmentBytes. Called holding the monitor.
+	 * @param type	PUT, DEL or APPLIED; the record is written with a version field
+	 */
+	private location append(byte type, String key, Bytes value, long deadline, long version) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] valueBytes = value.array();
+		int bodyLength = BODY_PREFIX_BYTES + VERSION_BYTES + keyBytes.length + valueBytes.length;
+		ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyLength);
+		record.putInt(bodyLength).putInt(0);
+		record.put((byte) (type + VERSIONED)).putLong(deadline).putInt(keyBytes.length).putLong(version).put(keyBytes).put(valueBytes);
+		record.putInt(4, crc(record.array(), HEADER_BYTES, bodyLength));
+		record.flip();
+
+		if (active.size > 0 && active.size + record.remaining() > segmentBytes) {
+			active.force();
+			active = newSegment(active.id + 1);
+		}
+		long offset = active.size;
+		int length = record.remaining();
+		active.writeFully(record, offset);
+		if (syncWrites) {
+			active.force();
+		}
+		active.size = offset + length;
+		return new location(active, offset, length, version);
+	}
+
+	private ByteBuffer read(location loc) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(loc.length);
+		loc.segment.readFully(record, loc.offset);
+		return record;
+	}
+
+	private static int crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private void runMerger() {
+		while (!closed) {
+			try {
+				Thread.sleep(MERGE_CHECK_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				if (needsMerge()) {
+					merge();
+				}
+			} catch (KVException e) {
+				System.err.println("LogStructuredKVStore: merge failed: " + e.getMsg().getMessage());
+			}
+		}
+	}
+
+	private synchronized boolean needsMerge() {
+		long size = 0;
+		long dead = 0;
+		for (segment seg : segments.headMap(active.id).values()) {
+			size += seg.size;
+			dead += seg.deadBytes.get();
+		}
+		return size > 0 && dead * 2 >= size;
+	}
+
+	/**
+	 * Rewrites the live records of every segment but the active one at the
+	 * end of the log and deletes those segments. The delete records of
+	 * deleted keys are rewritten too so their versions survive, as is the
+	 * applied position; older records they hide go away with the segments.
+	 * Runs on the merger thread but may also be called directly.
+	 * @throws KVException if a record cannot be copied; the log is left as it was
+	 */
+	public void merge() throws KVException {
+		List<segment> merged;
+		Set<segment> old = Collections.newSetFromMap(new IdentityHashMap<segment, Boolean>());
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			merged = new ArrayList<segment>(segments.headMap(active.id).values());
+			old.addAll(merged);
+		}
+		if (old.isEmpty()) {
+			return;
+		}
+		try {
+			for (Map.Entry<String, location> entry : index.entrySet()) {
+				location loc = entry.getValue();
+				if (!old.contains(loc.segment)) {
+					continue;
+				}
+				ByteBuffer record = read(loc);
+				synchronized (this) {
+					// Skip keys rewritten or deleted since we read them
+					if (index.get(entry.getKey()) != loc) {
+						continue;
+					}
+					byte[] bytes = record.array();
+					int keyLength = record.getInt(HEADER_BYTES + 9);
+					int valueOffset = HEADER_BYTES + keyOffset(record.get(HEADER_BYTES)) + keyLength;
+					Bytes value = Bytes.copyOf(bytes, valueOffset, loc.length - valueOffset);
+					index.put(entry.getKey(), append(PUT, entry.getKey(), value, record.getLong(HEADER_BYTES + 1), loc.version));
+				}
+			}
+			synchronized (this) {
+				for (Map.Entry<String, location> entry : removed.entrySet()) {
+					location loc = entry.getValue();
+					if (old.contains(loc.segment)) {
+						entry.setValue(append(DEL, entry.getKey(), Bytes.EMPTY, 0, loc.version));
+					}
+				}
+				if (applied != null && old.contains(applied.segment)) {
+					applied = append(APPLIED, "", Bytes.EMPTY, appliedPosition, 0);
+				}
+				active.force();
+				for (segment seg : merged) {
+					segments.remove(seg.id);
+					seg.delete();
+				}
+			}
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+	}
+
+	/**
+	 * Stops the merger and closes every segment. The store cannot be used afterwards.
+	 */
+	public void close() {
+		closed = true;
+		merger.interrupt();
+		synchronized (this) {
+			for (segment seg : segments.values()) {
+				try {
+					seg.force();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				closeQuietly(seg.writeChannel);
+				closeQuietly(seg.readChannel);
+			}
+		}
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static KVException ioError(IOException e) {
+		return new KVException(STORE_IO_ERROR + ": " + e.getMessage());
+	}
+}
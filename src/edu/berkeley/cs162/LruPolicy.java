@@ -0,0 +1,46 @@
+package edu.berkeley.cs162;
+
+/**
+ * Exact least-recently-used replacement.
+ */
+class LruPolicy implements EvictionPolicy {
+    private final SlotDeque order;
+
+    LruPolicy(int capacity) {
+        order = new SlotDeque(capacity);
+    }
+
+    @Override
+    public void onInsert(int slot, int hash) {
+        order.addFirst(slot);
+    }
+
+    @Override
+    public void onAccess(int slot) {
+        order.moveToFront(slot);
+    }
+
+    @Override
+    public void onMiss(int hash) {
+    }
+
+    @Override
+    public void onRemove(int slot) {
+        order.remove(slot);
+    }
+
+    @Override
+    public int victim(int keepSlot) {
+        return order.last(keepSlot);
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return false;
+    }
+
+    @Override
+    public boolean recordsAccessRacily() {
+        return false;
+    }
+}
@@ -0,0 +1,1240 @@
+package edu.berkeley.cs162;
+
+import static edu.berkeley.cs162.StaticConstants.STORE_IO_ERROR;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * A KVStore organized as a log-structured merge tree, for write-heavy loads.
+ *
+ * Writes go to a write-ahead log and to an in-memory memtable, a concurrent
+ * skip list. Once the memtable reaches memtableBytes it is frozen and a
+ * background thread writes it out as a level 0 SSTable; a write only waits
+ * if the previous memtable is still being written. Level 0 tables may
+ * overlap, the tables of every deeper level cover disjoint key ranges.
+ * When level 0 holds L0_COMPACTION_TRIGGER tables, or level n grows past
+ * LEVEL1_BYTES * LEVEL_MULTIPLIER^(n-1), the same thread merges the
+ * offending tables into the overlapping tables of the next level (leveled
+ * compaction). Expired pairs become tombstones, and tombstones keep the
+ * version of the deleted key; only those of keys that never had a version
+ * are dropped, once they reach the deepest populated level.
+ *
+ * A write that does not check the version of its key does not look it up
+ * either: it is stored as relative to whatever entry it hides (see
+ * SSTable.entry), and lookups and compactions add the versions up.
+ *
+ * A lookup checks the memtables and then at most one table per level, each
+ * guarded by its Bloom filter, going on past relative entries. The current
+ * tables of every level are an immutable version swapped atomically, so
+ * lookups take no lock; a lookup that hits a table deleted by a compaction
+ * simply starts over.
+ *
+ * The MANIFEST file lists the tables of every level, the last memtable
+ * flushed and the applied position (see KVStore.setAppliedPosition) as of
+ * that memtable, and is replaced atomically after each flush and
+ * compaction. Later positions are records of the write-ahead logs. On
+ * opening, tables not in the manifest are leftovers of an interrupted
+ * compaction and are deleted, and the write-ahead logs of memtables that
+ * were not flushed are replayed into a new level 0 table.
+ *
+ * Deadlines of pairs with a time-to-live are stored with them, so a pair
+ * that expired while the store was closed is not returned after a restart.
+ */
+public class LsmKVStore extends KVStore {
+	private static final long DEFAULT_MEMTABLE_BYTES = 4L << 20;
+	private static final int L0_COMPACTION_TRIGGER = 4;
+	private static final long LEVEL1_BYTES = 10L << 20;
+	private static final int LEVEL_MULTIPLIER = 10;
+	private static final long TARGET_FILE_BYTES = 2L << 20;
+	private static final int MAX_LEVELS = 7;
+	private static final long WORKER_POLL_MILLIS = 1000;
+	private static final int KEYS_PER_PAGE = 1024;
+
+	private static final String MANIFEST = "MANIFEST";
+	private static final String FLUSHED = "flushed";
+	private static final String APPLIED = "applied";
+	private static final String TABLE_SUFFIX = ".sst";
+	private static final String WAL_SUFFIX = ".wal";
+	private static final int WAL_HEADER_BYTES = 8;
+	private static final int WAL_BODY_PREFIX_BYTES = 13;
+	private static final int VERSION_BYTES = 8;
+	// Kind of the log records that hold an applied position in their
+	// deadline field, beside the kinds of SSTable
+	private static final byte APPLIED_KIND = 8;
+
+	/**
+	 * Pairs written since the last flush, and the log that makes them durable.
+	 * The log is reopened if a thread interrupted while writing it closed it.
+	 */
+	private static class memtable {
+		final ConcurrentSkipListMap<String, SSTable.entry> entries = new ConcurrentSkipListMap<String, SSTable.entry>();
+		final long id;
+		final File walFile;
+		volatile FileChannel wal;
+		long walSize;
+		long bytes;
+		// The applied position once the pairs of this memtable are written
+		volatile long applied;
+
+		memtable(long id, File walFile, long applied) throws IOException {
+			this.id = id;
+			this.walFile = walFile;
+			this.applied = applied;
+			this.wal = FileChannel.open(walFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		}
+
+		/**
+		 * Appends all of record to the log. An interrupt does not abandon the
+		 * write half done, which would hide the records after it from replay:
+		 * the log it closed is reopened and the record written again, and the
+		 * interrupt is kept for the caller.
+		 */
+		void append(ByteBuffer record) throws IOException {
+			boolean interrupted = Thread.interrupted();
+			try {
+				while (true) {
+					FileChannel channel = wal;
+					try {
+						record.rewind();
+						long at = walSize;
+						while (record.hasRemaining()) {
+							at += channel.write(record, at);
+						}
+						walSize = at;
+						return;
+					} catch (ClosedByInterruptException e) {
+						interrupted = true;
+						Thread.interrupted();
+						reopen(channel);
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Forces the log to disk, surviving an interrupt like append.
+		 */
+		void force() throws IOException {
+			boolean interrupted = Thread.interrupted();
+			try {
+				while (true) {
+					FileChannel channel = wal;
+					try {
+						channel.force(false);
+						return;
+					} catch (ClosedByInterruptException e) {
+						interrupted = true;
+						Thread.interrupted();
+						reopen(channel);
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private synchronized void reopen(FileChannel closed) throws IOException {
+			if (wal == closed) {
+				wal = FileChannel.open(walFile.toPath(), StandardOpenOption.WRITE);
+			}
+		}
+
+		void deleteWal() {
+			try {
+				wal.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			walFile.delete();
+		}
+	}
+
+	/**
+	 * The tables of every level, the id of the last memtable they hold and
+	 * the applied position as of that memtable. Level 0 is newest first,
+	 * the other levels are sorted by key. Never modified once published.
+	 */
+	private static class version {
+		final List<List<SSTable>> levels;
+		final long flushed;
+		final long applied;
+
+		version(List<List<SSTable>> levels, long flushed, long applied) {
+			this.levels = levels;
+			this.flushed = flushed;
+			this.applied = applied;
+		}
+
+		static version empty(long flushed) {
+			List<List<SSTable>> levels = new ArrayList<List<SSTable>>();
+			for (int i = 0; i < MAX_LEVELS; i++) {
+				levels.add(Collections.<SSTable>emptyList());
+			}
+			return new version(levels, flushed, 0);
+		}
+
+		/**
+		 * @return whether the tables already hold the pairs of m
+		 */
+		boolean holds(memtable m) {
+			return m.id <= flushed;
+		}
+
+		/**
+		 * @return a copy that also holds the memtable with id, applied up to applied
+		 */
+		version flushed(long id, long applied) {
+			return new version(levels, Math.max(flushed, id), applied);
+		}
+
+		/**
+		 * @return a copy with removed taken out of every level and added put into level
+		 */
+		version replace(Collection<SSTable> removed, int level, List<SSTable> added) {
+			List<List<SSTable>> copy = new ArrayList<List<SSTable>>();
+			for (int i = 0; i < MAX_LEVELS; i++) {
+				List<SSTable> tables = new ArrayList<SSTable>();
+				for (SSTable table : levels.get(i)) {
+					if (!containsTable(removed, table)) {
+						tables.add(table);
+					}
+				}
+				if (i == level) {
+					if (level == 0) {
+						tables.addAll(0, added);
+					} else {
+						tables.addAll(added);
+						Collections.sort(tables, BY_FIRST_KEY);
+					}
+				}
+				copy.add(Collections.unmodifiableList(tables));
+			}
+			return new version(copy, flushed, applied);
+		}
+
+		/**
+		 * @return the table of level (1 or deeper) whose range holds key, or null
+		 */
+		SSTable tableFor(int level, String key) {
+			List<SSTable> tables = levels.get(level);
+			int low = 0;
+			int high = tables.size() - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (tables.get(mid).lastKey.compareTo(key) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return low < tables.size() && tables.get(low).covers(key) ? tables.get(low) : null;
+		}
+
+		long bytes(int level) {
+			long bytes = 0;
+			for (SSTable table : levels.get(level)) {
+				bytes += table.size;
+			}
+			return bytes;
+		}
+
+		List<SSTable> all() {
+			List<SSTable> all = new ArrayList<SSTable>();
+			for (List<SSTable> tables : levels) {
+				all.addAll(tables);
+			}
+			return all;
+		}
+	}
+
+	private static final Comparator<SSTable> BY_FIRST_KEY = new Comparator<SSTable>() {
+		@Override
+		public int compare(SSTable a, SSTable b) {
+			return a.firstKey.compareTo(b.firstKey);
+		}
+	};
+
+	private final File dir;
+	private final long memtableBytes;
+	private final boolean syncWrites;
+
+	private volatile memtable mem;
+	private volatile memtable flushing;
+	private volatile version current;
+
+	// Guards the memtables, the current version and the fields below. Never
+	// held by KVStore, so writers of different keys meet only here and
+	// waiting for a flush keeps the key locks of the waiting writer.
+	private final Object lock = new Object();
+	private long nextFileId;
+	private int epoch;
+	private final String[] compactPointers = new String[MAX_LEVELS];
+
+	private Thread worker;
+	private volatile boolean closed;
+
+	/**
+	 * Opens the store in dir, creating it if needed, with 4 MB memtables and
+	 * no fsync after each write.
+	 * @param dir	directory holding the tables, logs and manifest.
+	 * @throws KVException if the store cannot be opened
+	 */
+	public LsmKVStore(String dir) throws KVException {
+		this(dir, DEFAULT_MEMTABLE_BYTES, false);
+	}
+
+	/**
+	 * Opens the store in dir, creating it if needed.
+	 * @param dir	directory holding the tables, logs and manifest.
+	 * @param memtableBytes	approximate memory size at which a memtable is flushed to level 0.
+	 * @param syncWrites	whether every write is forced to the disk before returning; without
+	 * 			it a write survives a crash of the process but not of the machine.
+	 * @throws KVException if the store cannot be opened
+	 */
+	public LsmKVStore(String dir, long memtableBytes, boolean syncWrites) throws KVException {
+		this.dir = new File(dir);
+		this.memtableBytes = memtableBytes;
+		this.syncWrites = syncWrites;
+		try {
+			open();
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWorker();
+			}
+		}, "LsmKVStore-compactor");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Loads the tables and replays the logs. Runs in the constructor, before
+	 * the worker thread is started, so it needs no lock.
+	 */
+	private void open() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		Map<Long, Integer> manifest = new HashMap<Long, Integer>();
+		long[] marks = readManifest(manifest);
+		long flushed = marks[0];
+		List<List<SSTable>> levels = new ArrayList<List<SSTable>>();
+		for (int i = 0; i < MAX_LEVELS; i++) {
+			levels.add(new ArrayList<SSTable>());
+		}
+		List<File> wals = new ArrayList<File>();
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			long id = fileId(file);
+			if (id < 0) {
+				continue;
+			}
+			nextFileId = Math.max(nextFileId, id + 1);
+			if (file.getName().endsWith(WAL_SUFFIX)) {
+				if (id > flushed) {
+					wals.add(file);
+				} else {
+					// Flushed, but we crashed before deleting it
+					file.delete();
+				}
+			} else if (manifest.containsKey(id)) {
+				levels.get(manifest.get(id)).add(SSTable.open(id, file));
+			} else {
+				file.delete();
+			}
+		}
+		Collections.sort(levels.get(0), new Comparator<SSTable>() {
+			@Override
+			public int compare(SSTable a, SSTable b) {
+				return Long.compare(b.id, a.id);
+			}
+		});
+		for (int i = 1; i < MAX_LEVELS; i++) {
+			Collections.sort(levels.get(i), BY_FIRST_KEY);
+		}
+		current = new version(levels, flushed, marks[1]);
+
+		Collections.sort(wals);
+		TreeMap<String, SSTable.entry> recovered = new TreeMap<String, SSTable.entry>();
+		long applied = marks[1];
+		for (File file : wals) {
+			applied = replayWal(file, recovered, applied);
+		}
+		if (!wals.isEmpty()) {
+			// Replaying the logs twice would add up relative versions twice
+			current = current.flushed(fileId(wals.get(wals.size() - 1)), applied);
+			if (!recovered.isEmpty()) {
+				SSTable table = writeTable(nextFileId++, recovered.values().iterator());
+				current = current.replace(Collections.<SSTable>emptyList(), 0, Collections.singletonList(table));
+			}
+			writeManifest();
+		}
+		for (File file : wals) {
+			file.delete();
+		}
+		mem = newMemtable(applied);
+	}
+
+	// Write path
+
+	@Override
+	protected void writeValue(String key, Bytes value, long deadline, long version) throws KVException {
+		if (version == IMPLIED_VERSION) {
+			apply(new SSTable.entry(key, value, deadline, 1, true));
+		} else {
+			apply(new SSTable.entry(key, value, deadline, version, false));
+		}
+	}
+
+	@Override
+	protected void removeValue(String key, long version) throws KVException {
+		if (version == IMPLIED_VERSION) {
+			apply(new SSTable.entry(key, null, 0, 0, true));
+		} else {
+			apply(new SSTable.entry(key, null, 0, version, false));
+		}
+	}
+
+	/**
+	 * Adds e to the memtable, folded over the entry it replaces there. The
+	 * entries of the frozen memtable are left alone, as after a crash its
+	 * log may be replayed under the current one.
+	 */
+	private void apply(SSTable.entry e) throws KVException {
+		synchronized (lock) {
+			try {
+				makeRoomForWrite();
+				SSTable.entry replaced = mem.entries.get(e.key);
+				if (replaced != null) {
+					e = e.over(replaced);
+				}
+				appendToWal(mem, SSTable.kind(e), e.key, e.deadline, e.version, e.isTombstone() ? Bytes.EMPTY : e.value);
+				SSTable.entry previous = mem.entries.put(e.key, e);
+				mem.bytes += e.weight() - (previous == null ? 0 : previous.weight());
+			} catch (IOException x) {
+				throw ioError(x);
+			}
+		}
+	}
+
+	/**
+	 * Freezes a full memtable for the worker to flush, first waiting for the
+	 * previous one to be flushed if needed. Called holding lock.
+	 */
+	private void makeRoomForWrite() throws IOException {
+		while (mem.bytes >= memtableBytes) {
+			if (flushing != null) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for a flush");
+				}
+				continue;
+			}
+			flushing = mem;
+			mem = newMemtable(flushing.applied);
+			lock.notifyAll();
+		}
+	}
+
+	private memtable newMemtable(long applied) throws IOException {
+		long id = nextFileId++;
+		return new memtable(id, new File(dir, fileName(id, WAL_SUFFIX)), applied);
+	}
+
+	/**
+	 * Appends a record framed like those of LogStructuredKVStore, with body
+	 * byte kind, long deadline, int key length, long version, key, value,
+	 * kind being that of SSTable or APPLIED_KIND. Logs written before
+	 * versions were kept have no version field.
+	 */
+	private void appendToWal(memtable m, byte kind, String key, long deadline, long version, Bytes value) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] valueBytes = value.array();
+		int bodyLength = WAL_BODY_PREFIX_BYTES + VERSION_BYTES + keyBytes.length + valueBytes.length;
+		ByteBuffer record = ByteBuffer.allocate(WAL_HEADER_BYTES + bodyLength);
+		record.putInt(bodyLength).putInt(0);
+		record.put(kind).putLong(deadline).putInt(keyBytes.length).putLong(version).put(keyBytes).put(valueBytes);
+		record.putInt(4, crc(record.array(), WAL_HEADER_BYTES, bodyLength));
+		record.flip();
+		m.append(record);
+		if (syncWrites) {
+			m.force();
+		}
+	}
+
+	/**
+	 * Applies the records of a write-ahead log to entries, which hold those
+	 * of older logs, stopping at the first torn or corrupt record.
+	 * @param applied	the applied position before this log
+	 * @return the applied position after it
+	 */
+	private long replayWal(File file, Map<String, SSTable.entry> entries, long applied) throws IOException {
+		byte[] log = Files.readAllBytes(file.toPath());
+		ByteBuffer buf = ByteBuffer.wrap(log);
+		// Each record already folds the earlier ones of its log
+		Map<String, SSTable.entry> replayed = new HashMap<String, SSTable.entry>();
+		int offset = 0;
+		while (offset + WAL_HEADER_BYTES <= log.length) {
+			int bodyLength = buf.getInt(offset);
+			int body = offset + WAL_HEADER_BYTES;
+			if (bodyLength < WAL_BODY_PREFIX_BYTES || body + bodyLength > log.length
+					|| buf.getInt(offset + 4) != crc(log, body, bodyLength)) {
+				break;
+			}
+			byte kind = log[body];
+			long deadline = buf.getLong(body + 1);
+			if (kind == APPLIED_KIND) {
+				applied = deadline;
+				offset = body + bodyLength;
+				continue;
+			}
+			int keyLength = buf.getInt(body + 9);
+			int keyOffset = body + WAL_BODY_PREFIX_BYTES;
+			long version = 0;
+			if (SSTable.hasVersion(kind)) {
+				version = buf.getLong(keyOffset);
+				keyOffset += VERSION_BYTES;
+			}
+			String key = new String(log, keyOffset, keyLength, StandardCharsets.UTF_8);
+			int valueOffset = keyOffset + keyLength;
+			Bytes value = Bytes.copyOf(log, valueOffset, body + bodyLength - valueOffset);
+			replayed.put(key, SSTable.entry(key, kind, deadline, version, value));
+			offset = body + bodyLength;
+		}
+		if (offset < log.length) {
+			System.err.println("LsmKVStore: ignoring torn tail of " + file + " at offset " + offset);
+		}
+		for (SSTable.entry e : replayed.values()) {
+			SSTable.entry older = entries.get(e.key);
+			entries.put(e.key, older == null ? e : e.over(older));
+		}
+		return applied;
+	}
+
+	// Read path, lock-free
+
+	@Override
+	protected stored readStored(String key) throws KVException {
+		while (true) {
+			try {
+				SSTable.entry e = find(key);
+				if (e == null) {
+					return null;
+				}
+				e = e.live(System.currentTimeMillis());
+				return new stored(e.value, e.version);
+			} catch (ClosedChannelException x) {
+				if (closed || x instanceof ClosedByInterruptException) {
+					throw ioError(x);
+				}
+				// A compaction deleted a table we were reading; start over
+			} catch (IOException x) {
+				throw ioError(x);
+			}
+		}
+	}
+
+	/**
+	 * @return the newest entry of key folded over the older ones it is
+	 *         relative to, possibly a tombstone, or null
+	 */
+	private SSTable.entry find(String key) throws IOException {
+		memtable m = mem;
+		memtable frozen = flushing;
+		version v = current;
+		// Either memtable may have been frozen or flushed since we looked; read each once, newest first
+		memtable[] memtables = frozen != null && frozen.id > m.id ? new memtable[] {frozen, m} : new memtable[] {m, frozen};
+		SSTable.entry e = null;
+		for (int i = 0; i < memtables.length; i++) {
+			memtable t = memtables[i];
+			if (t == null || v.holds(t) || (i > 0 && t == memtables[0])) {
+				continue;
+			}
+			if ((e = fold(e, t.entries.get(key))) != null && !e.relative) {
+				return e;
+			}
+		}
+		for (SSTable table : v.levels.get(0)) {
+			if ((e = fold(e, table.get(key))) != null && !e.relative) {
+				return e;
+			}
+		}
+		for (int level = 1; level < MAX_LEVELS; level++) {
+			SSTable table = v.tableFor(level, key);
+			if (table != null && (e = fold(e, table.get(key))) != null && !e.relative) {
+				return e;
+			}
+		}
+		return e == null ? null : e.resolved();
+	}
+
+	/**
+	 * @return newer folded over older, either of which may be null
+	 */
+	private static SSTable.entry fold(SSTable.entry newer, SSTable.entry older) {
+		if (newer == null) {
+			return older;
+		}
+		return older == null ? newer : newer.over(older);
+	}
+
+	/**
+	 * @return a view of the live keys that merges the memtables and tables a
+	 *         page of keys at a time, resuming after the last key returned, so
+	 *         that neither values nor more than a page of keys are held
+	 */
+	@Override
+	protected Collection<String> storedKeys() {
+		return new AbstractCollection<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					private Iterator<String> page = Collections.<String>emptyIterator();
+					private String last;
+					private boolean done;
+
+					@Override
+					public boolean hasNext() {
+						while (!page.hasNext() && !done) {
+							List<String> keys;
+							try {
+								// The smallest key after last
+								keys = keysInRange(last == null ? null : last + '\u0000', null, KEYS_PER_PAGE);
+							} catch (KVException e) {
+								throw new UncheckedIOException(new IOException(e.getMsg().getMessage()));
+							}
+							done = keys.size() < KEYS_PER_PAGE;
+							if (!keys.isEmpty()) {
+								last = keys.get(keys.size() - 1);
+							}
+							page = keys.iterator();
+						}
+						return page.hasNext();
+					}
+
+					@Override
+					public String next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						return page.next();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				int size = 0;
+				for (Iterator<String> it = iterator(); it.hasNext(); it.next()) {
+					size++;
+				}
+				return size;
+			}
+		};
+	}
+
+	@Override
+	protected List<String> keysInRange(String startKey, String endKey, int limit) throws KVException {
+		if (startKey != null && endKey != null && startKey.compareTo(endKey) >= 0) {
+			return new ArrayList<String>();
+		}
+		while (true) {
+			version v;
+			memtable m;
+			memtable frozen;
+			synchronized (lock) {
+				v = current;
+				m = mem;
+				frozen = flushing;
+			}
+			try {
+				return keysInRange(v, m, frozen, startKey, endKey, limit);
+			} catch (UncheckedIOException x) {
+				if (!(x.getCause() instanceof ClosedChannelException) || x.getCause() instanceof ClosedByInterruptException || closed) {
+					throw ioError(x.getCause());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the memtables and the tables of v from startKey on, reading
+	 * only as far as needed to find limit live keys.
+	 */
+	private List<String> keysInRange(version v, memtable m, memtable frozen, String startKey, String endKey, int limit) {
+		// Newest first, as ranks break ties between equal keys
+		List<Iterator<SSTable.entry>> inputs = new ArrayList<Iterator<SSTable.entry>>();
+		inputs.add(tail(m.entries, startKey));
+		if (frozen != null) {
+			inputs.add(tail(frozen.entries, startKey));
+		}
+		for (SSTable table : v.levels.get(0)) {
+			inputs.add(table.iterator(startKey));
+		}
+		for (int level = 1; level < MAX_LEVELS; level++) {
+			inputs.add(levelIterator(v.levels.get(level), startKey));
+		}
+		PriorityQueue<cursor> queue = new PriorityQueue<cursor>(inputs.size(), BY_HEAD);
+		for (int i = 0; i < inputs.size(); i++) {
+			if (inputs.get(i).hasNext()) {
+				queue.add(new cursor(inputs.get(i), i));
+			}
+		}
+
+		List<String> keys = new ArrayList<String>();
+		String lastKey = null;
+		long now = System.currentTimeMillis();
+		while (!queue.isEmpty() && keys.size() < limit) {
+			cursor c = queue.poll();
+			SSTable.entry e = c.head;
+			if (endKey != null && e.key.compareTo(endKey) >= 0) {
+				break;
+			}
+			if (c.it.hasNext()) {
+				c.head = c.it.next();
+				queue.add(c);
+			}
+			if (e.key.equals(lastKey)) {
+				continue;
+			}
+			lastKey = e.key;
+			if (!e.isTombstone() && !e.isExpired(now)) {
+				keys.add(e.key);
+			}
+		}
+		return keys;
+	}
+
+	private static Iterator<SSTable.entry> tail(ConcurrentSkipListMap<String, SSTable.entry> entries, String fromKey) {
+		return (fromKey == null ? entries : entries.tailMap(fromKey, true)).values().iterator();
+	}
+
+	/**
+	 * Iterates over the entries of the sorted, disjoint tables of a level
+	 * from fromKey on, opening each table only once the previous one is done.
+	 */
+	private static Iterator<SSTable.entry> levelIterator(final List<SSTable> tables, final String fromKey) {
+		int low = 0;
+		if (fromKey != null) {
+			int high = tables.size() - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (tables.get(mid).lastKey.compareTo(fromKey) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+		}
+		final int first = low;
+		return new Iterator<SSTable.entry>() {
+			private int next = first;
+			private Iterator<SSTable.entry> it = Collections.<SSTable.entry>emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!it.hasNext() && next < tables.size()) {
+					it = tables.get(next++).iterator(fromKey);
+				}
+				return it.hasNext();
+			}
+
+			@Override
+			public SSTable.entry next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return it.next();
+			}
+		};
+	}
+
+	@Override
+	protected long readAppliedPosition() {
+		return mem.applied;
+	}
+
+	@Override
+	protected void writeAppliedPosition(long position) throws KVException {
+		synchronized (lock) {
+			try {
+				makeRoomForWrite();
+				appendToWal(mem, APPLIED_KIND, "", position, 0, Bytes.EMPTY);
+				mem.applied = position;
+			} catch (IOException e) {
+				throw ioError(e);
+			}
+		}
+	}
+
+	@Override
+	protected void clearValues() throws KVException {
+		synchronized (lock) {
+			try {
+				epoch++;
+				for (SSTable table : current.all()) {
+					table.delete();
+				}
+				current = version.empty(current.flushed);
+				if (flushing != null) {
+					flushing.deleteWal();
+					flushing = null;
+				}
+				mem.deleteWal();
+				mem = newMemtable(0);
+				writeManifest();
+				lock.notifyAll();
+			} catch (IOException e) {
+				throw ioError(e);
+			}
+		}
+	}
+
+	// Background flushes and compactions, all on the worker thread
+
+	private void runWorker() {
+		while (!closed) {
+			try {
+				if (!flushOrCompact()) {
+					synchronized (lock) {
+						if (flushing == null && !closed) {
+							lock.wait(WORKER_POLL_MILLIS);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException | UncheckedIOException e) {
+				if (closed) {
+					return;
+				}
+				System.err.println("LsmKVStore: background work failed, retrying: " + e);
+				try {
+					Thread.sleep(WORKER_POLL_MILLIS);
+				} catch (InterruptedException x) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return whether there was anything to do
+	 */
+	private boolean flushOrCompact() throws IOException {
+		memtable frozen = flushing;
+		if (frozen != null) {
+			flush(frozen);
+			return true;
+		}
+		return compact();
+	}
+
+	private void flush(memtable frozen) throws IOException {
+		int startEpoch;
+		long id;
+		synchronized (lock) {
+			startEpoch = epoch;
+			id = nextFileId++;
+		}
+		SSTable table = writeTable(id, frozen.entries.values().iterator());
+		synchronized (lock) {
+			if (epoch != startEpoch) {
+				// The store was cleared meanwhile
+				if (table != null) {
+					table.delete();
+				}
+				return;
+			}
+			current = current.flushed(frozen.id, frozen.applied);
+			if (table != null) {
+				current = current.replace(Collections.<SSTable>emptyList(), 0, Collections.singletonList(table));
+			}
+			writeManifest();
+			// Only now that lookups find its pairs in the new table
+			flushing = null;
+			frozen.deleteWal();
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Runs one compaction if some level needs it.
+	 * @return false if no level needed one
+	 */
+	private boolean compact() throws IOException {
+		version v;
+		int startEpoch;
+		int outputLevel;
+		List<SSTable> inputs = new ArrayList<SSTable>();
+		synchronized (lock) {
+			v = current;
+			startEpoch = epoch;
+			List<SSTable> level0 = v.levels.get(0);
+			if (level0.size() >= L0_COMPACTION_TRIGGER) {
+				inputs.addAll(level0);
+				outputLevel = 1;
+			} else {
+				outputLevel = -1;
+				long limit = LEVEL1_BYTES;
+				for (int level = 1; level < MAX_LEVELS - 1; level++, limit *= LEVEL_MULTIPLIER) {
+					if (v.bytes(level) > limit) {
+						inputs.add(pickTable(v.levels.get(level), level));
+						outputLevel = level + 1;
+						break;
+					}
+				}
+				if (outputLevel < 0) {
+					return false;
+				}
+			}
+		}
+
+		String from = null;
+		String to = null;
+		for (SSTable table : inputs) {
+			from = from == null || table.firstKey.compareTo(from) < 0 ? table.firstKey : from;
+			to = to == null || table.lastKey.compareTo(to) > 0 ? table.lastKey : to;
+		}
+		for (SSTable table : v.levels.get(outputLevel)) {
+			if (table.overlaps(from, to)) {
+				inputs.add(table);
+			}
+		}
+		boolean bottom = true;
+		for (int level = outputLevel + 1; level < MAX_LEVELS; level++) {
+			bottom &= v.levels.get(level).isEmpty();
+		}
+
+		List<SSTable> outputs = merge(inputs, bottom);
+		synchronized (lock) {
+			if (epoch != startEpoch) {
+				for (SSTable table : outputs) {
+					table.delete();
+				}
+				return true;
+			}
+			// Flushes may have added level 0 tables meanwhile; they are kept
+			current = current.replace(inputs, outputLevel, outputs);
+			writeManifest();
+		}
+		for (SSTable table : inputs) {
+			table.delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Picks the table of level after the one compacted last time, so that
+	 * compactions cycle through the key space.
+	 */
+	private SSTable pickTable(List<SSTable> tables, int level) {
+		SSTable picked = tables.get(0);
+		if (compactPointers[level] != null) {
+			for (SSTable table : tables) {
+				if (table.firstKey.compareTo(compactPointers[level]) > 0) {
+					picked = table;
+					break;
+				}
+			}
+		}
+		compactPointers[level] = picked.lastKey;
+		return picked;
+	}
+
+	/**
+	 * One input of a merge, positioned on its smallest unconsumed entry.
+	 * Inputs earlier in the list hold newer data and win ties.
+	 */
+	private static class cursor {
+		final Iterator<SSTable.entry> it;
+		final int rank;
+		SSTable.entry head;
+
+		cursor(Iterator<SSTable.entry> it, int rank) {
+			this.it = it;
+			this.rank = rank;
+			this.head = it.next();
+		}
+	}
+
+	private static final Comparator<cursor> BY_HEAD = new Comparator<cursor>() {
+		@Override
+		public int compare(cursor a, cursor b) {
+			int cmp = a.head.key.compareTo(b.head.key);
+			return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+		}
+	};
+
+	/**
+	 * Merges inputs, ordered newest first, into tables of about
+	 * TARGET_FILE_BYTES, folding relative entries over the older ones of
+	 * their key. Expired pairs are kept as tombstones; unless something
+	 * older can lie below, relative entries are resolved and tombstones of
+	 * version 0 dropped.
+	 */
+	private List<SSTable> merge(List<SSTable> inputs, boolean bottom) throws IOException {
+		PriorityQueue<cursor> queue = new PriorityQueue<cursor>(Math.max(1, inputs.size()), BY_HEAD);
+		for (int i = 0; i < inputs.size(); i++) {
+			Iterator<SSTable.entry> it = inputs.get(i).iterator();
+			if (it.hasNext()) {
+				queue.add(new cursor(it, i));
+			}
+		}
+
+		List<SSTable> outputs = new ArrayList<SSTable>();
+		SSTable.writer writer = null;
+		SSTable.entry pending = null;
+		long now = System.currentTimeMillis();
+		try {
+			while (true) {
+				SSTable.entry e = null;
+				if (!queue.isEmpty()) {
+					cursor c = queue.poll();
+					e = c.head;
+					if (c.it.hasNext()) {
+						c.head = c.it.next();
+						queue.add(c);
+					}
+					if (pending != null && e.key.equals(pending.key)) {
+						// Shadowed by a newer entry, unless that one is relative to it
+						pending = pending.over(e);
+						continue;
+					}
+				}
+				if (pending != null) {
+					SSTable.entry out = pending.live(now);
+					if (bottom) {
+						out = out.resolved();
+					}
+					if (!bottom || !out.isTombstone() || out.version != 0) {
+						if (writer == null) {
+							long id = allocateFileId();
+							writer = new SSTable.writer(id, new File(dir, fileName(id, TABLE_SUFFIX)));
+						}
+						writer.add(out);
+						if (writer.size() >= TARGET_FILE_BYTES) {
+							outputs.add(writer.finish());
+							writer = null;
+						}
+					}
+				}
+				if (e == null) {
+					break;
+				}
+				pending = e;
+			}
+			if (writer != null) {
+				outputs.add(writer.finish());
+				writer = null;
+			}
+			return outputs;
+		} catch (IOException | RuntimeException x) {
+			if (writer != null) {
+				writer.abort();
+			}
+			for (SSTable table : outputs) {
+				table.delete();
+			}
+			throw x;
+		}
+	}
+
+	/**
+	 * Writes the entries, in key order, to a new table.
+	 * @return the table, or null if there were no entries
+	 */
+	private SSTable writeTable(long id, Iterator<SSTable.entry> entries) throws IOException {
+		if (!entries.hasNext()) {
+			return null;
+		}
+		SSTable.writer writer = new SSTable.writer(id, new File(dir, fileName(id, TABLE_SUFFIX)));
+		try {
+			while (entries.hasNext()) {
+				writer.add(entries.next());
+			}
+			return writer.finish();
+		} catch (IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+	}
+
+	private long allocateFileId() {
+		synchronized (lock) {
+			return nextFileId++;
+		}
+	}
+
+	// Manifest
+
+	/**
+	 * Replaces the manifest with the tables of the current version, the
+	 * last memtable they hold and its applied position. Called holding lock.
+	 */
+	private void writeManifest() throws IOException {
+		File temp = new File(dir, MANIFEST + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			for (int level = 0; level < MAX_LEVELS; level++) {
+				for (SSTable table : current.levels.get(level)) {
+					writer.write(level + " " + table.id + "\n");
+				}
+			}
+			writer.write(FLUSHED + " " + current.flushed + "\n");
+			writer.write(APPLIED + " " + current.applied + "\n");
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads the manifest, putting the level of every table id it lists into levels.
+	 * @return the id of the last memtable flushed, or -1 if not known, and
+	 *         the applied position as of that memtable, or 0
+	 */
+	private long[] readManifest(Map<Long, Integer> levels) throws IOException {
+		long[] marks = { -1, 0 };
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new FileReader(new File(dir, MANIFEST)));
+		} catch (FileNotFoundException e) {
+			return marks;
+		}
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.trim().split(" ");
+				if (fields.length == 2 && fields[0].equals(FLUSHED)) {
+					marks[0] = Long.parseLong(fields[1]);
+				} else if (fields.length == 2 && fields[0].equals(APPLIED)) {
+					marks[1] = Long.parseLong(fields[1]);
+				} else if (fields.length == 2) {
+					levels.put(Long.parseLong(fields[1]), Integer.parseInt(fields[0]));
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Corrupt manifest in " + dir);
+		} finally {
+			reader.close();
+		}
+		return marks;
+	}
+
+	private static String fileName(long id, String suffix) {
+		return String.format("%016d%s", id, suffix);
+	}
+
+	/**
+	 * @return the id of a table or log file, or -1 for any other file
+	 */
+	private static long fileId(File file) {
+		String name = file.getName();
+		String suffix = name.endsWith(TABLE_SUFFIX) ? TABLE_SUFFIX : name.endsWith(WAL_SUFFIX) ? WAL_SUFFIX : null;
+		if (suffix == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static boolean containsTable(Collection<SSTable> tables, SSTable table) {
+		for (SSTable t : tables) {
+			if (t == table) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Stops the background thread and closes every file; pairs still in the
+	 * memtables are kept by their logs. The store cannot be used afterwards.
+	 */
+	public void close() {
+		closed = true;
+		worker.interrupt();
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (lock) {
+			for (memtable m : new memtable[] {mem, flushing}) {
+				if (m != null) {
+					try {
+						m.force();
+						m.wal.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			for (SSTable table : current.all()) {
+				try {
+					table.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static KVException ioError(IOException e) {
+		return new KVException(STORE_IO_ERROR + ": " + e.getMessage());
+	}
+}
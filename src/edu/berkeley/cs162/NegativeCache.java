@@ -0,0 +1,54 @@
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded set of keys known to be absent from a store. It is direct-mapped:
+ * every key has exactly one slot, and adding a key simply replaces whatever
+ * key held that slot. Forgetting a key only costs a store lookup later, so
+ * collisions are harmless, while a key is never reported absent unless it
+ * was added and not removed since.
+ * 
+ * Operations on one key must be serialized by the caller (KVServer holds the
+ * key's lock); operations on different keys may run concurrently.
+ */
+class NegativeCache {
+	private final AtomicReferenceArray<String> slots;
+	private final int mask;
+	
+	/**
+	 * @param capacity	number of slots, rounded up to a power of two
+	 */
+	NegativeCache(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity) * 2 - 1);
+		slots = new AtomicReferenceArray<String>(size);
+		mask = size - 1;
+	}
+	
+	boolean contains(String key) {
+		return key.equals(slots.get(indexOf(key)));
+	}
+	
+	void add(String key) {
+		slots.set(indexOf(key), key);
+	}
+	
+	void remove(String key) {
+		int i = indexOf(key);
+		String current = slots.get(i);
+		if (key.equals(current)) {
+			slots.compareAndSet(i, current, null);
+		}
+	}
+	
+	void clear() {
+		for (int i = 0; i <= mask; i++) {
+			slots.set(i, null);
+		}
+	}
+	
+	private int indexOf(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
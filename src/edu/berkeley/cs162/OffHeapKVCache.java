@@ -0,0 +1,296 @@
+package edu.berkeley.cs162;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A KVCache that keeps keys and values off the Java heap. Each set owns one
+ * direct ByteBuffer slab of maxBytes / numSets bytes to which entries are
+ * appended as the UTF-8 bytes of the key followed by those of the value; the
+ * set itself only keeps the offset and lengths of every slot, so a large
+ * cache adds next to nothing to the old generation. Strings are materialized
+ * only when a value is returned.
+ *
+ * Space left behind by deleted or overwritten entries is reclaimed by
+ * compacting the slab when an entry no longer fits at its end. An entry
+ * larger than one slab is never cached, so slabs should be sized above
+ * KVServer's maximum value size.
+ */
+public class OffHeapKVCache extends KVCache {
+	private static final int COPY_CHUNK = 8192;
+
+	/**
+	 * Creates a new off-heap CLOCK cache.
+	 * @param numSets	the number of sets in this cache.
+	 * @param maxElemsPerSet	the maximum number of entries that will be kept in each set.
+	 * @param maxBytes	the total size of the slabs, split evenly between sets.
+	 */
+	public OffHeapKVCache(int numSets, int maxElemsPerSet, long maxBytes) {
+		this(numSets, maxElemsPerSet, maxBytes, EvictionPolicy.Kind.CLOCK);
+	}
+
+	/**
+	 * Creates a new off-heap cache using the given eviction policy in every set.
+	 * @param numSets	the number of sets in this cache.
+	 * @param maxElemsPerSet	the maximum number of entries that will be kept in each set.
+	 * @param maxBytes	the total size of the slabs, split evenly between sets.
+	 * @param policy	the eviction policy of each set.
+	 */
+	public OffHeapKVCache(int numSets, int maxElemsPerSet, long maxBytes, EvictionPolicy.Kind policy) {
+		super(numSets, maxElemsPerSet, maxBytes, policy);
+	}
+
+	@Override
+	cacheSet newSet(int id, int capacity, AtomicLong usedBytes, EvictionPolicy.Kind policy) {
+		if (getMaxBytes() <= 0) {
+			throw new IllegalArgumentException("An off-heap cache needs a byte budget");
+		}
+		long slabSize = (getMaxBytes() + getNumSets() - 1) / getNumSets();
+		return new offHeapSet(id, capacity, usedBytes, policy, (int) Math.min(slabSize, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * A cache set whose entries live in a direct ByteBuffer.
+	 */
+	static class offHeapSet extends cacheSet {
+		ByteBuffer _slab;
+		int _slabSize;
+		int _top;
+		int _liveBytes;
+
+		int[] _offsets;
+		int[] _keyLengths;
+		int[] _valueLengths;
+
+		byte[] _copyBuffer;
+
+		public offHeapSet(int id, int capacity, AtomicLong usedBytes, EvictionPolicy.Kind policy, int slabSize) {
+			super(id, capacity, usedBytes, policy);
+			// The on-heap arrays of the parent are never used
+			_keys = null;
+			_values = null;
+			_slab = ByteBuffer.allocateDirect(slabSize);
+			_slabSize = slabSize;
+			_offsets = new int[_capacity];
+			_keyLengths = new int[_capacity];
+			_valueLengths = new int[_capacity];
+			_copyBuffer = new byte[COPY_CHUNK];
+		}
+
+		@Override
+		int weightOf(String key, String value) {
+			return utf8Length(key) + utf8Length(value);
+		}
+
+		@Override
+		boolean hasRoom(int keepSlot, int weight) {
+			int reusable = keepSlot < 0 ? 0 : _keyLengths[keepSlot] + _valueLengths[keepSlot];
+			return (long) _liveBytes - reusable + weight <= _slabSize;
+		}
+
+		@Override
+		void writeEntry(int slot, String key, String value, int weight) {
+			if (_top + weight > _slabSize) {
+				compact();
+			}
+			int offset = _top;
+			int valueOffset = encode(key, _slab, offset);
+			int end = encode(value, _slab, valueOffset);
+			_offsets[slot] = offset;
+			_keyLengths[slot] = valueOffset - offset;
+			_valueLengths[slot] = end - valueOffset;
+			_top = end;
+			_liveBytes += end - offset;
+		}
+
+		@Override
+		void releaseEntry(int slot) {
+			_liveBytes -= _keyLengths[slot] + _valueLengths[slot];
+			_keyLengths[slot] = 0;
+			_valueLengths[slot] = 0;
+		}
+
+		@Override
+		boolean keyMatches(int slot, String key) {
+			int offset = _offsets[slot];
+			int length = _keyLengths[slot];
+			if (offset < 0 || length < 0 || (long) offset + length > _slabSize) {
+				return false;
+			}
+			return matches(key, _slab, offset, length);
+		}
+
+		@Override
+		String keyAt(int slot) {
+			return decode(_offsets[slot], _keyLengths[slot]);
+		}
+
+		@Override
+		String valueAt(int slot) {
+			return decode(_offsets[slot] + _keyLengths[slot], _valueLengths[slot]);
+		}
+
+		@Override
+		String valueAtRacy(int slot) {
+			long offset = (long) _offsets[slot] + _keyLengths[slot];
+			int length = _valueLengths[slot];
+			if (offset < 0 || length < 0 || offset + length > _slabSize) {
+				return null;
+			}
+			return decode((int) offset, length);
+		}
+
+		private String decode(int offset, int length) {
+			byte[] bytes = new byte[length];
+			ByteBuffer view = _slab.duplicate();
+			view.position(offset);
+			view.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Slides every live entry towards the start of the slab, in offset
+		 * order, so that all free space ends up after _top.
+		 */
+		private void compact() {
+			long[] order = new long[_size];
+			int n = 0;
+			for (int slot = 0; slot < _capacity; slot++) {
+				if (_occupied[slot] && _keyLengths[slot] + _valueLengths[slot] > 0) {
+					order[n++] = ((long) _offsets[slot] << 32) | slot;
+				}
+			}
+			Arrays.sort(order, 0, n);
+
+			int dest = 0;
+			for (int i = 0; i < n; i++) {
+				int slot = (int) order[i];
+				int length = _keyLengths[slot] + _valueLengths[slot];
+				if (_offsets[slot] != dest) {
+					move(_offsets[slot], dest, length);
+					_offsets[slot] = dest;
+				}
+				dest += length;
+			}
+			_top = dest;
+		}
+
+		/**
+		 * Copies length bytes from src down to dest &lt; src. Going forward one
+		 * chunk at a time never overwrites bytes that are still to be read.
+		 */
+		private void move(int src, int dest, int length) {
+			ByteBuffer from = _slab.duplicate();
+			ByteBuffer to = _slab.duplicate();
+			while (length > 0) {
+				int n = Math.min(length, _copyBuffer.length);
+				from.position(src);
+				from.get(_copyBuffer, 0, n);
+				to.position(dest);
+				to.put(_copyBuffer, 0, n);
+				src += n;
+				dest += n;
+				length -= n;
+			}
+		}
+	}
+
+	// UTF-8 helpers working directly on the slab, so that storing or looking
+	// up a key never needs an intermediate byte[]. Unpaired surrogates are
+	// written as '?', like String.getBytes does.
+
+	static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @return the offset just past the encoded string
+	 */
+	static int encode(String s, ByteBuffer buf, int offset) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buf.put(offset++, (byte) c);
+			} else if (c < 0x800) {
+				buf.put(offset++, (byte) (0xC0 | (c >> 6)));
+				buf.put(offset++, (byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf.put(offset++, (byte) (0xF0 | (cp >> 18)));
+				buf.put(offset++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buf.put(offset++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buf.put(offset++, (byte) (0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				buf.put(offset++, (byte) '?');
+			} else {
+				buf.put(offset++, (byte) (0xE0 | (c >> 12)));
+				buf.put(offset++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+				buf.put(offset++, (byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * @return whether the length bytes at offset are exactly the encoding of s
+	 */
+	static boolean matches(String s, ByteBuffer buf, int offset, int length) {
+		int end = offset + length;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			int cp;
+			if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				cp = Character.toCodePoint(c, s.charAt(++i));
+			} else if (Character.isSurrogate(c)) {
+				cp = '?';
+			} else {
+				cp = c;
+			}
+			if (cp < 0x80) {
+				if (offset + 1 > end || buf.get(offset++) != (byte) cp) {
+					return false;
+				}
+			} else if (cp < 0x800) {
+				if (offset + 2 > end
+						|| buf.get(offset++) != (byte) (0xC0 | (cp >> 6))
+						|| buf.get(offset++) != (byte) (0x80 | (cp & 0x3F))) {
+					return false;
+				}
+			} else if (cp < 0x10000) {
+				if (offset + 3 > end
+						|| buf.get(offset++) != (byte) (0xE0 | (cp >> 12))
+						|| buf.get(offset++) != (byte) (0x80 | ((cp >> 6) & 0x3F))
+						|| buf.get(offset++) != (byte) (0x80 | (cp & 0x3F))) {
+					return false;
+				}
+			} else {
+				if (offset + 4 > end
+						|| buf.get(offset++) != (byte) (0xF0 | (cp >> 18))
+						|| buf.get(offset++) != (byte) (0x80 | ((cp >> 12) & 0x3F))
+						|| buf.get(offset++) != (byte) (0x80 | ((cp >> 6) & 0x3F))
+						|| buf.get(offset++) != (byte) (0x80 | (cp & 0x3F))) {
+					return false;
+				}
+			}
+		}
+		return offset == end;
+	}
+}
@@ -0,0 +1,480 @@
+package edu.berkeley.cs162;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable sorted file of an LsmKVStore. Entries are packed in key order
+ * into blocks of about BLOCK_BYTES; the file ends with an index giving the
+ * first key, offset, length and CRC32 of every block, a BloomFilter of all
+ * keys and a fixed-size footer. Opening a table loads the index and filter,
+ * so a lookup reads at most one block.
+ *
+ * <pre>
+ *   entry:  int key length, key, byte kind, long deadline, long version, int value length, value
+ *   index:  int blocks, then per block: int key length, first key, long offset, int length, int crc
+ *   footer: long index offset, int entries, int magic
+ * </pre>
+ * Keys are UTF-8 and values the bytes KVStore hands over; a deleted key is
+ * stored as a tombstone that keeps its version. The kind says whether the
+ * entry is a tombstone and whether its version is relative (see entry).
+ * Tables written before versions were kept have no version field; their
+ * values carry it (see ValueCompressor) and their tombstones count as
+ * relative.
+ */
+class SSTable {
+	static final int BLOCK_BYTES = 4096;
+	private static final int BLOOM_BITS_PER_KEY = 10;
+	private static final int FOOTER_BYTES = 16;
+	private static final int MAGIC = 0x5354424C; // "STBL"
+	// Bits of the kind byte
+	private static final byte TOMBSTONE = 1;
+	private static final byte VERSIONED = 2;
+	private static final byte RELATIVE = 4;
+
+	/**
+	 * A key with its value, or a tombstone if value is null. A relative
+	 * entry was written without looking at the key's version, which is then
+	 * version plus that of the entry it hides, or plus 0 if there is none.
+	 */
+	static class entry {
+		final String key;
+		final Bytes value;
+		final long deadline;
+		final long version;
+		final boolean relative;
+
+		entry(String key, Bytes value, long deadline, long version, boolean relative) {
+			this.key = key;
+			this.value = value;
+			this.deadline = deadline;
+			this.version = version;
+			this.relative = relative;
+		}
+
+		boolean isTombstone() {
+			return value == null;
+		}
+
+		/**
+		 * @return this entry as it stands over older, an entry of the same key
+		 */
+		entry over(entry older) {
+			if (!relative) {
+				return this;
+			}
+			return new entry(key, value, deadline, older.version + version, older.relative);
+		}
+
+		/**
+		 * @return this entry with nothing under it
+		 */
+		entry resolved() {
+			return relative ? new entry(key, value, deadline, version, false) : this;
+		}
+
+		/**
+		 * @return this entry, or a tombstone keeping its version if it has expired
+		 */
+		entry live(long now) {
+			return isExpired(now) ? new entry(key, null, 0, version, relative) : this;
+		}
+
+		boolean isExpired(long now) {
+			return deadline != 0 && deadline <= now;
+		}
+
+		/**
+		 * @return a rough count of the bytes this entry takes in memory
+		 */
+		int weight() {
+			return 64 + 2 * key.length() + (value == null ? 0 : value.length());
+		}
+	}
+
+	final long id;
+	final File file;
+	final long size;
+	final int entries;
+	final String firstKey;
+	final String lastKey;
+
+	private final String[] blockKeys;
+	private final long[] blockOffsets;
+	private final int[] blockLengths;
+	private final int[] blockCrcs;
+	private final BloomFilter bloom;
+	private volatile FileChannel channel;
+	private volatile boolean deleted;
+
+	private SSTable(long id, File file) throws IOException {
+		this.id = id;
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.size = channel.size();
+		if (size < FOOTER_BYTES) {
+			channel.close();
+			throw new IOException("Truncated table " + file);
+		}
+
+		ByteBuffer footer = read(size - FOOTER_BYTES, FOOTER_BYTES);
+		long indexOffset = footer.getLong(0);
+		this.entries = footer.getInt(8);
+		if (footer.getInt(12) != MAGIC || indexOffset < 0 || indexOffset > size - FOOTER_BYTES) {
+			channel.close();
+			throw new IOException("Not a table: " + file);
+		}
+		ByteBuffer meta = read(indexOffset, (int) (size - FOOTER_BYTES - indexOffset));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+		int blocks = in.readInt();
+		blockKeys = new String[blocks];
+		blockOffsets = new long[blocks];
+		blockLengths = new int[blocks];
+		blockCrcs = new int[blocks];
+		for (int i = 0; i < blocks; i++) {
+			blockKeys[i] = readString(in);
+			blockOffsets[i] = in.readLong();
+			blockLengths[i] = in.readInt();
+			blockCrcs[i] = in.readInt();
+		}
+		bloom = BloomFilter.readFrom(in);
+		firstKey = blocks == 0 ? null : blockKeys[0];
+		lastKey = blocks == 0 ? null : readString(in);
+	}
+
+	/**
+	 * Opens an existing table file.
+	 */
+	static SSTable open(long id, File file) throws IOException {
+		return new SSTable(id, file);
+	}
+
+	/**
+	 * @return whether key falls between the first and last key of this table
+	 */
+	boolean covers(String key) {
+		return firstKey != null && firstKey.compareTo(key) <= 0 && key.compareTo(lastKey) <= 0;
+	}
+
+	/**
+	 * @return whether this table holds keys between from and to, inclusive
+	 */
+	boolean overlaps(String from, String to) {
+		return firstKey != null && firstKey.compareTo(to) <= 0 && from.compareTo(lastKey) <= 0;
+	}
+
+	/**
+	 * @return the entry of key, possibly a tombstone, or null if this table does not mention key
+	 */
+	entry get(String key) throws IOException {
+		if (!covers(key) || !bloom.mightContain(key)) {
+			return null;
+		}
+		int block = Arrays.binarySearch(blockKeys, key);
+		if (block < 0) {
+			block = -block - 2;
+		}
+		DataInputStream in = readBlock(block);
+		while (in.available() > 0) {
+			entry e = readEntry(in);
+			int cmp = e.key.compareTo(key);
+			if (cmp == 0) {
+				return e;
+			}
+			if (cmp > 0) {
+				break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Iterates over all entries in key order, reading one block at a time.
+	 * I/O errors surface as UncheckedIOException.
+	 */
+	Iterator<entry> iterator() {
+		return iterator(null);
+	}
+
+	/**
+	 * Iterates, like iterator(), over the entries whose key is fromKey or
+	 * follows it, starting with the only block that may hold fromKey.
+	 * @param fromKey	first key, or null for all entries
+	 */
+	Iterator<entry> iterator(final String fromKey) {
+		int first = 0;
+		if (fromKey != null) {
+			first = Arrays.binarySearch(blockKeys, fromKey);
+			first = first < 0 ? Math.max(0, -first - 2) : first;
+		}
+		final int firstBlock = first;
+		return new Iterator<entry>() {
+			private int block = firstBlock;
+			private DataInputStream in;
+			private entry next;
+
+			@Override
+			public boolean hasNext() {
+				try {
+					while (next == null) {
+						while ((in == null || in.available() == 0) && block < blockKeys.length) {
+							in = readBlock(block++);
+						}
+						if (in == null || in.available() == 0) {
+							return false;
+						}
+						entry e = readEntry(in);
+						if (fromKey == null || e.key.compareTo(fromKey) >= 0) {
+							next = e;
+						}
+					}
+					return true;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			@Override
+			public entry next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				entry e = next;
+				next = null;
+				return e;
+			}
+		};
+	}
+
+	/**
+	 * Closes and removes the file. Readers still using the table then get a
+	 * ClosedChannelException and retry with the store's current tables.
+	 */
+	synchronized void delete() {
+		deleted = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		file.delete();
+	}
+
+	synchronized void close() throws IOException {
+		deleted = true;
+		channel.close();
+	}
+
+	private DataInputStream readBlock(int block) throws IOException {
+		ByteBuffer buf = read(blockOffsets[block], blockLengths[block]);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, buf.capacity());
+		if ((int) crc.getValue() != blockCrcs[block]) {
+			throw new IOException("Corrupt block " + block + " in " + file);
+		}
+		return new DataInputStream(new ByteArrayInputStream(buf.array()));
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			FileChannel current = channel;
+			try {
+				if (current.read(buf, position + buf.position()) < 0) {
+					throw new IOException("Unexpected end of " + file);
+				}
+			} catch (ClosedChannelException e) {
+				if (deleted) {
+					throw e;
+				}
+				// Closed by an interrupted reader, which gives up while the others go on
+				reopen(current);
+				if (e instanceof ClosedByInterruptException) {
+					throw e;
+				}
+			}
+		}
+		return buf;
+	}
+
+	private synchronized void reopen(FileChannel closed) throws IOException {
+		if (channel == closed && !deleted) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+	}
+
+	private static entry readEntry(DataInputStream in) throws IOException {
+		String key = readString(in);
+		byte kind = in.readByte();
+		long deadline = in.readLong();
+		long version = hasVersion(kind) ? in.readLong() : 0;
+		byte[] value = new byte[in.readInt()];
+		in.readFully(value);
+		return entry(key, kind, deadline, version, Bytes.wrap(value));
+	}
+
+	/**
+	 * @return the kind byte e is written with, also used by LsmKVStore's logs
+	 */
+	static byte kind(entry e) {
+		return (byte) (VERSIONED | (e.isTombstone() ? TOMBSTONE : 0) | (e.relative ? RELATIVE : 0));
+	}
+
+	/**
+	 * @return whether a version follows the deadline of entries of kind
+	 */
+	static boolean hasVersion(byte kind) {
+		return (kind & VERSIONED) != 0;
+	}
+
+	/**
+	 * @return the entry written with kind; version is ignored if kind has none
+	 */
+	static entry entry(String key, byte kind, long deadline, long version, Bytes value) {
+		boolean tombstone = (kind & TOMBSTONE) != 0;
+		if (!hasVersion(kind)) {
+			return tombstone ? new entry(key, null, deadline, 0, true) : new entry(key, value, deadline, ValueCompressor.versionOf(value), false);
+		}
+		return new entry(key, tombstone ? null : value, deadline, version, (kind & RELATIVE) != 0);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Writes a new table from entries added in strictly increasing key order.
+	 */
+	static class writer {
+		private final long id;
+		private final File file;
+		private final FileOutputStream fileStream;
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_BYTES * 2);
+		private final DataOutputStream block = new DataOutputStream(blockBytes);
+
+		private final List<String> blockKeys = new ArrayList<String>();
+		private final List<long[]> blockInfo = new ArrayList<long[]>();
+		private long[] hashes = new long[1024];
+		private int count;
+		private long offset;
+		private String blockFirstKey;
+		private String lastKey;
+
+		writer(long id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.fileStream = new FileOutputStream(file);
+			this.out = new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+		}
+
+		void add(entry e) throws IOException {
+			if (blockFirstKey == null) {
+				blockFirstKey = e.key;
+			}
+			writeString(block, e.key);
+			block.writeByte(kind(e));
+			block.writeLong(e.deadline);
+			block.writeLong(e.version);
+			byte[] value = (e.isTombstone() ? Bytes.EMPTY : e.value).array();
+			block.writeInt(value.length);
+			block.write(value);
+			if (count == hashes.length) {
+				hashes = Arrays.copyOf(hashes, count * 2);
+			}
+			hashes[count++] = BloomFilter.hash(e.key);
+			lastKey = e.key;
+			if (blockBytes.size() >= BLOCK_BYTES) {
+				flushBlock();
+			}
+		}
+
+		/**
+		 * @return bytes written so far, a little less than the final file size
+		 */
+		long size() {
+			return offset + blockBytes.size();
+		}
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		private void flushBlock() throws IOException {
+			if (blockBytes.size() == 0) {
+				return;
+			}
+			byte[] bytes = blockBytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length);
+			out.write(bytes);
+			blockKeys.add(blockFirstKey);
+			blockInfo.add(new long[] {offset, bytes.length, (int) crc.getValue()});
+			offset += bytes.length;
+			blockBytes.reset();
+			blockFirstKey = null;
+		}
+
+		/**
+		 * Writes the index, filter and footer, forces the file to disk and opens it.
+		 */
+		SSTable finish() throws IOException {
+			flushBlock();
+			long indexOffset = offset;
+			out.writeInt(blockKeys.size());
+			for (int i = 0; i < blockKeys.size(); i++) {
+				writeString(out, blockKeys.get(i));
+				out.writeLong(blockInfo.get(i)[0]);
+				out.writeInt((int) blockInfo.get(i)[1]);
+				out.writeInt((int) blockInfo.get(i)[2]);
+			}
+			BloomFilter.of(hashes, count, BLOOM_BITS_PER_KEY).writeTo(out);
+			if (lastKey != null) {
+				writeString(out, lastKey);
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(count);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileStream.getFD().sync();
+			out.close();
+			return open(id, file);
+		}
+
+		void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			file.delete();
+		}
+	}
+}
@@ -17,6 +17,7 @@ public class SampleSlave {
     static KVServer keyServer1;
     static SocketServer server1;
     static long slaveID1;
+    static CacheWarmer warmer1;
     
     
     static String logPath2;
@@ -31,8 +32,8 @@ public class SampleSlave {
     static int registrationPort = 9090;
 
     public static void main(String[] args) throws IOException, KVException {
-        if (args.length != 1) {
-            throw new IllegalArgumentException("Need master IP address");
+        if (args.length < 1 || args.length > 2) {
+            throw new IllegalArgumentException("Need master IP address, and optionally a hot key file");
         }
 
         Random rand = new Random();
@@ -49,6 +50,13 @@ public class SampleSlave {
         logPath1 = "/Users/ejmnorl/Desktop/log1/" + slaveID1 + "@" + server1.hostname;
         System.out.println("logPath1 = " + logPath1);
         log1 = new TPCLog(logPath1, keyServer1);
+        
+        // The log path changes with the random slave ID, so the hot keys are only kept if named
+        if (args.length == 2) {
+            warmer1 = new CacheWarmer(keyServer1, args[1]);
+            warmer1.prefetch(4);
+            warmer1.startPeriodicSave(60 * 1000);
+        }
        
         TPCMasterHandler handler = new TPCMasterHandler(slaveID1, keyServer1, log1);
         server1.addHandler(handler);
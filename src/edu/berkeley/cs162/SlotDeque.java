@@ -0,0 +1,78 @@
+package edu.berkeley.cs162;
+
+/**
+ * Doubly linked list of cache slots kept in int arrays, most recently used
+ * first. Several deques of one set share the same link arrays since a slot
+ * is on at most one of them at a time.
+ */
+class SlotDeque {
+    static final int NIL = -1;
+
+    private final int[] prev;
+    private final int[] next;
+    private int head = NIL;
+    private int tail = NIL;
+    private int size;
+
+    SlotDeque(int[] prev, int[] next) {
+        this.prev = prev;
+        this.next = next;
+    }
+
+    /**
+     * Creates a deque with its own link arrays.
+     */
+    SlotDeque(int capacity) {
+        this(new int[capacity], new int[capacity]);
+    }
+
+    void addFirst(int slot) {
+        prev[slot] = NIL;
+        next[slot] = head;
+        if (head != NIL) {
+            prev[head] = slot;
+        } else {
+            tail = slot;
+        }
+        head = slot;
+        size++;
+    }
+
+    void remove(int slot) {
+        int p = prev[slot];
+        int n = next[slot];
+        if (p != NIL) {
+            next[p] = n;
+        } else {
+            head = n;
+        }
+        if (n != NIL) {
+            prev[n] = p;
+        } else {
+            tail = p;
+        }
+        size--;
+    }
+
+    void moveToFront(int slot) {
+        if (head != slot) {
+            remove(slot);
+            addFirst(slot);
+        }
+    }
+
+    /**
+     * @return the least recently used slot other than keepSlot, or NIL
+     */
+    int last(int keepSlot) {
+        int slot = tail;
+        if (slot != NIL && slot == keepSlot) {
+            slot = prev[slot];
+        }
+        return slot;
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,77 @@
+package edu.berkeley.cs162;
+
+/**
+ * Segmented LRU. New entries enter a probation segment and are promoted to a
+ * protected segment (80% of the set) on their second access; the protected
+ * segment overflows back into probation. Victims come from probation first,
+ * so a scan of one-time keys only churns probation and leaves entries that
+ * were reused in the protected segment.
+ */
+class SlruPolicy implements EvictionPolicy {
+    private final SlotDeque probation;
+    private final SlotDeque protectedSeg;
+    private final boolean[] isProtected;
+    private final int protectedCapacity;
+
+    SlruPolicy(int capacity) {
+        int[] prev = new int[capacity];
+        int[] next = new int[capacity];
+        probation = new SlotDeque(prev, next);
+        protectedSeg = new SlotDeque(prev, next);
+        isProtected = new boolean[capacity];
+        protectedCapacity = Math.max(1, capacity * 4 / 5);
+    }
+
+    @Override
+    public void onInsert(int slot, int hash) {
+        isProtected[slot] = false;
+        probation.addFirst(slot);
+    }
+
+    @Override
+    public void onAccess(int slot) {
+        if (isProtected[slot]) {
+            protectedSeg.moveToFront(slot);
+            return;
+        }
+        probation.remove(slot);
+        isProtected[slot] = true;
+        protectedSeg.addFirst(slot);
+        if (protectedSeg.size() > protectedCapacity) {
+            int demoted = protectedSeg.last(slot);
+            protectedSeg.remove(demoted);
+            isProtected[demoted] = false;
+            probation.addFirst(demoted);
+        }
+    }
+
+    @Override
+    public void onMiss(int hash) {
+    }
+
+    @Override
+    public void onRemove(int slot) {
+        if (isProtected[slot]) {
+            protectedSeg.remove(slot);
+        } else {
+            probation.remove(slot);
+        }
+        isProtected[slot] = false;
+    }
+
+    @Override
+    public int victim(int keepSlot) {
+        int slot = probation.last(keepSlot);
+        return slot != SlotDeque.NIL ? slot : protectedSeg.last(keepSlot);
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return isProtected[slot];
+    }
+
+    @Override
+    public boolean recordsAccessRacily() {
+        return false;
+    }
+}
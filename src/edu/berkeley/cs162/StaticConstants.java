@@ -15,6 +15,16 @@ public class StaticConstants {
 	public static final String COMMIT = "commit";
 	public static final String ABORT_DECISION = "abort_decision";
 	public static final String ACK = "ack";
+	public static final String MGET_REQ = "mgetreq";
+	public static final String MPUT_REQ = "mputreq";
+	public static final String MDEL_REQ = "mdelreq";
+	public static final String VGET_REQ = "vgetreq";
+	
+	//Most keys in one mgetreq, mputreq or mdelreq
+	public static final int MAX_BATCH_SIZE = 1000;
+	
+	//Expected version of an unconditional put or del
+	public static final long ANY_VERSION = -1;
 
 	//ERRORS
 	public static final String SOCKET_ERROR =  "Socket error";
@@ -26,6 +36,7 @@ public class StaticConstants {
 	public static final String VAL_INVALID_ERROR = "Value  can not be null, empty or oversized";
 	
 	public static final String REQ_FORMAT_ERROR = "Request format is incorrect";
+	public static final String BATCH_INVALID_ERROR = "Batch can not be empty or hold more than " + MAX_BATCH_SIZE + " keys";
 	
 	public static final String ERROR_SOCKET_TIMEOUT = "Socket timeout";
 	public static final String ERROR_COULD_NOT_CONNECT = "Socket could not connect";
@@ -35,6 +46,10 @@ public class StaticConstants {
 	
 	public static final String  INVALID_RESPONSE= "The response  is invalid";
 	
+	public static final String VERSION_MISMATCH_ERROR = "Version of the key does not match";
+	
+	public static final String STORE_IO_ERROR = "Store could not access its files";
+	
 	//OTHER INFO
 	public static final String SUCCESS = "Success";
 	
@@ -87,6 +87,20 @@ public class TPCClientHandler implements NetworkHandler {
         		} else if (msgType.equals(DEL_REQ)) {
         			tpcMaster.handleTPCRequest(request, false);
         			response.setMessage(SUCCESS);
+        		} else if (msgType.equals(VGET_REQ)) {
+        			KVVersionedValue versioned = tpcMaster.handleVersionedGet(request);
+        			response.setKey(request.getKey());
+        			response.setValue(versioned.getValue());
+        			response.setVersion(versioned.getVersion());
+        		} else if (msgType.equals(MGET_REQ)) {
+        			response.setPairs(tpcMaster.handleMultiGet(request));
+        			response.setMessage(SUCCESS);
+        		} else if (msgType.equals(MPUT_REQ)) {
+        			tpcMaster.handleMultiTPCRequest(request, true);
+        			response.setMessage(SUCCESS);
+        		} else if (msgType.equals(MDEL_REQ)) {
+        			tpcMaster.handleMultiTPCRequest(request, false);
+        			response.setMessage(SUCCESS);
         		}
         		response.sendMessage(client);    		
         	} catch (KVException e) {
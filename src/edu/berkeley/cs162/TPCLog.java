@@ -1,12 +1,19 @@
 package edu.berkeley.cs162;
 
 import static edu.berkeley.cs162.StaticConstants.*;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class TPCLog {
 
@@ -38,6 +45,49 @@ public class TPCLog {
         flushToDisk();
     }
 
+    /**
+     * Applies a committed request to the server, then logs the decision with
+     * the version every key of the request was left at and the time it was
+     * applied, so that rebuildServer can replay it exactly: only where the
+     * server lost it, at the same versions and with the same deadlines.
+     * The versions are read back after a put and before a delete, while
+     * the master still holds the locks of the keys. Finally records in the
+     * server's store that the log is applied up to here.
+     *
+     * @param request phase 1 message the decision is about
+     * @param decision COMMIT from the master
+     * @throws KVException if the server fails; the decision is logged anyway,
+     *         without versions, to be replayed blindly
+     */
+    public void applyCommit(KVMessage request, KVMessage decision) throws KVException {
+        String type = request.getMsgType();
+        long at = System.currentTimeMillis();
+        Map<String, Long> versions = new LinkedHashMap<String, Long>();
+        try {
+            if (type.equals(PUT_REQ)) {
+                kvServer.put(request.getKey(), request.getValue(), request.getTtl());
+                versions.put(request.getKey(), kvServer.getVersion(request.getKey()));
+            } else if (type.equals(MPUT_REQ)) {
+                kvServer.mput(request.getPairs(), request.getTtl());
+                for (String key : request.getPairs().keySet()) {
+                    versions.put(key, kvServer.getVersion(key));
+                }
+            } else if (type.equals(DEL_REQ)) {
+                versions.put(request.getKey(), kvServer.getVersion(request.getKey()));
+                kvServer.del(request.getKey());
+            } else if (type.equals(MDEL_REQ)) {
+                for (String key : request.getKeys()) {
+                    versions.put(key, kvServer.getVersion(key));
+                }
+                kvServer.mdel(request.getKeys());
+            }
+            decision.setApplied(versions, at);
+        } finally {
+            appendAndFlush(decision);
+        }
+        kvServer.setAppliedPosition(entries.size());
+    }
+
     /**
      * Get last entry in the log.
      *
@@ -51,22 +101,27 @@ public class TPCLog {
     }
 
     /**
-     * Load log from persistent storage at logPath.
+     * Load log from persistent storage at logPath. A missing log is an empty
+     * one; a log that exists but cannot be read is an error, as starting
+     * empty would overwrite it on the next append.
+     *
+     * @throws KVException if the log exists but cannot be read
      */
     @SuppressWarnings("unchecked")
-    public void loadFromDisk() {
+    public void loadFromDisk() throws KVException {
         ObjectInputStream inputStream = null;
 
+        if (!new File(logPath).exists()) {
+            // if log did not exist, creating empty entries list
+            entries = new ArrayList<KVMessage>();
+            return;
+        }
         try {
             inputStream = new ObjectInputStream(new FileInputStream(logPath));
             entries = (ArrayList<KVMessage>) inputStream.readObject();
-        } catch (Exception e) {
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            throw new KVException(new KVMessage("resp", "Cannot read TPC log " + logPath + ": " + e));
         } finally {
-            // if log did not exist, creating empty entries list
-            if (entries == null) {
-                entries = new ArrayList<KVMessage>();
-            }
-
             try {
                 if (inputStream != null) {
                     inputStream.close();
@@ -82,11 +137,16 @@ public class TPCLog {
      */
     public void flushToDisk() {
         ObjectOutputStream outputStream = null;
+        File tmp = new File(logPath + ".tmp");
         try {
         	System.out.println("logpath0 : " + logPath);
-            outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
+            outputStream = new ObjectOutputStream(new FileOutputStream(tmp));
             System.out.println("logpath : " + logPath);
             outputStream.writeObject(entries);
+            outputStream.close();
+            outputStream = null;
+            // Replaced whole, so a crash while writing leaves the previous log readable
+            Files.move(tmp.toPath(), new File(logPath).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -104,6 +164,11 @@ public class TPCLog {
     /**
      * Load log and rebuild KVServer by iterating over log entries. You do not
      * need to restore the previous cache state (i.e. ignore GETS).
+     * Only the entries after the position the server's store has applied
+     * are read, unless the log is shorter than that, having been replaced.
+     * Commits logged by applyCommit are replayed at their versions, which
+     * leaves keys the server still holds as they are; older ones are
+     * applied again as new writes.
      *
      * @throws KVException if an error occurs in KVServer (though we expect none)
      */
@@ -111,16 +176,24 @@ public class TPCLog {
         // implement me
     	KVMessage msgFromPhase1 = null;
     	loadFromDisk();
-    	for (int i = 0; i < entries.size(); i++) {
+    	long applied = kvServer.getAppliedPosition();
+    	for (int i = applied <= entries.size() ? (int) applied : 0; i < entries.size(); i++) {
     		KVMessage cur = entries.get(i);
     		String type = cur.getMsgType();
-    		if (type.equals(PUT_REQ) || type.equals(DEL_REQ)) {
+    		if (type.equals(PUT_REQ) || type.equals(DEL_REQ) || type.equals(MPUT_REQ) || type.equals(MDEL_REQ)) {
     			msgFromPhase1 = cur;
     			continue;
     		} else if (type.equals(COMMIT) && msgFromPhase1 != null) {//If msgFromPhase1 == null, the previous msg might be GET_REQ
-    			boolean isPut = msgFromPhase1.getMsgType().equals(PUT_REQ);
-    			if (isPut) {
-    				kvServer.put(msgFromPhase1.getKey(), msgFromPhase1.getValue());
+    			String phase1Type = msgFromPhase1.getMsgType();
+    			if (cur.getAppliedVersions() != null) {
+    				replay(msgFromPhase1, cur);
+    			} else if (phase1Type.equals(MPUT_REQ)) {
+    				kvServer.mput(msgFromPhase1.getPairs(), msgFromPhase1.getTtl());
+    			} else if (phase1Type.equals(MDEL_REQ)) {
+    				kvServer.mdel(msgFromPhase1.getKeys());
+    			} else if (phase1Type.equals(PUT_REQ)) {
+    				// Logged without versions, so also without the time: the TTL restarts from the replay
+    				kvServer.put(msgFromPhase1.getKey(), msgFromPhase1.getValue(), msgFromPhase1.getTtl());
     			} else {
     				kvServer.del(msgFromPhase1.getKey());
     			}
@@ -131,4 +204,32 @@ public class TPCLog {
     	}
     }
 
+    /**
+     * Replays a request committed by applyCommit at the versions it logged.
+     */
+    private void replay(KVMessage request, KVMessage decision) throws KVException {
+        String type = request.getMsgType();
+        Map<String, Long> versions = decision.getAppliedVersions();
+        if (type.equals(PUT_REQ) || type.equals(MPUT_REQ)) {
+            Map<String, String> pairs = type.equals(PUT_REQ)
+                    ? Collections.singletonMap(request.getKey(), request.getValue()) : request.getPairs();
+            long deadline = request.getTtl() > 0 ? decision.getAppliedAt() + request.getTtl() : 0;
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                Long version = versions.get(pair.getKey());
+                if (version != null) {
+                    kvServer.replayPut(pair.getKey(), pair.getValue(), deadline, version);
+                }
+            }
+        } else {
+            Collection<String> keys = type.equals(DEL_REQ) ? Collections.singletonList(request.getKey()) : request.getKeys();
+            for (String key : keys) {
+                Long version = versions.get(key);
+                // Version 0: the key did not exist, there was nothing to delete
+                if (version != null && version != 0) {
+                    kvServer.replayDel(key, version);
+                }
+            }
+        }
+    }
+
 }
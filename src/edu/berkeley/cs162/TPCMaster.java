@@ -145,6 +145,7 @@ public class TPCMaster {
         // implement me    	
     	String key = msg.getKey();
     	String value = msg.getValue();
+    	long ttl = msg.getTtl();
     	WriteLock masterCacheLock = masterCache.getWriteLock(key);
     	
     	masterCacheLock.lock();
@@ -152,8 +153,14 @@ public class TPCMaster {
     	TPCSlaveInfo slave1 = findFirstReplica(key);
     	TPCSlaveInfo slave2 = findSuccessor(slave1);
     	
-    	SlaveVoteRunnable sv1 = new SlaveVoteRunnable(slave1, key, value, isPutReq);
-    	SlaveVoteRunnable sv2 = new SlaveVoteRunnable(slave2, key, value, isPutReq);
+    	SlaveVoteRunnable sv1, sv2;
+    	if (msg.getVersion() != ANY_VERSION) {//conditional, the slaves check the version in phase 1
+    		sv1 = new SlaveVoteRunnable(slave1, msg);
+    		sv2 = new SlaveVoteRunnable(slave2, msg);
+    	} else {
+    		sv1 = new SlaveVoteRunnable(slave1, key, value, ttl, isPutReq);
+    		sv2 = new SlaveVoteRunnable(slave2, key, value, ttl, isPutReq);
+    	}
     	
     	Thread s1Thread = new Thread(sv1);
     	Thread s2Thread = new Thread(sv2);
@@ -202,37 +209,158 @@ public class TPCMaster {
        	
        	if (isCommit) {
        		if (isPutReq) {
-       			masterCache.put(key,  value);
+       			masterCache.put(key,  value, ttl);
        		} else {
        			masterCache.del(key);
        		}
        	}  else {
        		masterCacheLock.unlock();
        		
+       		if (isVersionMismatch(sv1) || isVersionMismatch(sv2)) {
+       			throw new KVException(new KVMessage(RESP, VERSION_MISMATCH_ERROR));
+       		}
        		throw new KVException(new KVMessage(RESP, "Your request can not be has been declined by slaves, might due to the key does not exist or format error"));
        	}
    		masterCacheLock.unlock();   	
     }
     
+    private static boolean isVersionMismatch(SlaveVoteRunnable sv) {
+    	return sv.isAbort && VERSION_MISMATCH_ERROR.equals(sv.response.getMessage());
+    }
+    
+    /**
+     * Perform 2PC for an mputreq or mdelreq. Every slave holding a replica
+     * of any key of the batch gets a single vote request with all of its
+     * keys, and the batch is committed only if all of those slaves are READY.
+     *
+     * @param msg KVMessage of the mputreq or mdelreq
+     * @param isPutReq boolean to distinguish mput and mdel requests
+     * @throws KVException if the batch is declined or cannot be carried out
+     */
+    public void handleMultiTPCRequest(KVMessage msg, boolean isPutReq) throws KVException {
+    	Map<String, String> pairs = msg.getPairs();
+    	Collection<String> keys = isPutReq ? pairs.keySet() : msg.getKeys();
+    	long ttl = msg.getTtl();
+    	
+    	List<WriteLock> masterCacheLocks = masterCache.getWriteLocks(keys);
+    	for (WriteLock lock : masterCacheLocks) {
+    		lock.lock();
+    	}
+    	try {
+    		Map<TPCSlaveInfo, Set<String>> keysOfSlave = new LinkedHashMap<TPCSlaveInfo, Set<String>>();
+    		for (String key : keys) {
+    			TPCSlaveInfo slave1 = findFirstReplica(key);
+    			addKey(keysOfSlave, slave1, key);
+    			addKey(keysOfSlave, findSuccessor(slave1), key);
+    		}
+    		
+    		List<SlaveVoteRunnable> votes = new ArrayList<SlaveVoteRunnable>();
+    		List<Thread> threads = new ArrayList<Thread>();
+    		for (Map.Entry<TPCSlaveInfo, Set<String>> entry : keysOfSlave.entrySet()) {
+    			KVMessage request = new KVMessage(isPutReq ? MPUT_REQ : MDEL_REQ);
+    			if (isPutReq) {
+    				Map<String, String> slavePairs = new LinkedHashMap<String, String>();
+    				for (String key : entry.getValue()) {
+    					slavePairs.put(key, pairs.get(key));
+    				}
+    				request.setPairs(slavePairs);
+    				request.setTtl(ttl);
+    			} else {
+    				request.setKeys(new ArrayList<String>(entry.getValue()));
+    			}
+    			SlaveVoteRunnable sv = new SlaveVoteRunnable(entry.getKey(), request);
+    			votes.add(sv);
+    			threads.add(new Thread(sv));
+    		}
+    		runAll(threads, "Internal: TPCRequest Failed @ PHASE1: Interrupted exception");
+    		
+    		boolean isCommit = true;
+    		for (SlaveVoteRunnable sv : votes) {
+    			if (sv.voteFailed != null || sv.isAbort) {
+    				isCommit = false;
+    			}
+    		}
+    		
+    		threads.clear();
+    		for (TPCSlaveInfo slave : keysOfSlave.keySet()) {
+    			threads.add(new Thread(new SlaveDecisionRunnable(slave, isCommit)));
+    		}
+    		runAll(threads, "Internal: TPCRequest Failed @ PHASE2: Interrupted exception");
+    		
+    		if (!isCommit) {
+    			throw new KVException(new KVMessage(RESP, "Your batch has been declined by slaves, might due to a key or value format error"));
+    		}
+    		for (String key : keys) {
+    			if (isPutReq) {
+    				masterCache.put(key, pairs.get(key), ttl);
+    			} else {
+    				masterCache.del(key);
+    			}
+    		}
+    	} finally {
+    		for (int i = masterCacheLocks.size() - 1; i >= 0; i--) {
+    			masterCacheLocks.get(i).unlock();
+    		}
+    	}
+    }
+    
+    private static void addKey(Map<TPCSlaveInfo, Set<String>> keysOfSlave, TPCSlaveInfo slave, String key) {
+    	Set<String> keys = keysOfSlave.get(slave);
+    	if (keys == null) {
+    		keys = new LinkedHashSet<String>();
+    		keysOfSlave.put(slave, keys);
+    	}
+    	keys.add(key);
+    }
+    
+    /**
+     * Starts the threads and waits for all of them to finish.
+     */
+    private static void runAll(List<Thread> threads, String interruptedError) throws KVException {
+    	for (Thread thread : threads) {
+    		thread.start();
+    	}
+    	try {
+    		for (Thread thread : threads) {
+    			thread.join();
+    		}
+    	} catch (InterruptedException e) {
+    		throw new KVException(interruptedError);
+    	}
+    }
+    
 //+chen
     public class SlaveVoteRunnable implements Runnable {  	
     	TPCSlaveInfo slaveInfo;
     	String key, val;
+    	long ttl;
     	boolean isPut;   	
+    	KVMessage request = null;//mputreq, mdelreq or conditional putreq/delreq, sent as it is
     	KVMessage voteFailed = null;
     	KVMessage response = null;//Message type should be ABORT_VOTE or READY
     	boolean isAbort = false;
     	
-    	public SlaveVoteRunnable(TPCSlaveInfo slaveInfo, String key, String val, boolean isPut) {
+    	public SlaveVoteRunnable(TPCSlaveInfo slaveInfo, KVMessage request) {
+    		this.slaveInfo = slaveInfo;
+    		this.request = request;
+    	}
+    	
+    	public SlaveVoteRunnable(TPCSlaveInfo slaveInfo, String key, String val, long ttl, boolean isPut) {
     		this.slaveInfo = slaveInfo;
     		this.key = key;
     		this.val = val;
+    		this.ttl = ttl;
     		this.isPut = isPut;
     	}
     	public void run() {
     		try {
-    			if (isPut) {
-    				response = slaveInfo.TPCPutVote(key, val);//socket connnection to slave servers
+    			if (request != null) {
+    				response = slaveInfo.TPCVote(request);
+    				if (response.getMsgType().equals(ABORT_VOTE)) {
+    					isAbort = true;
+    				}
+    			} else if (isPut) {
+    				response = slaveInfo.TPCPutVote(key, val, ttl);//socket connnection to slave servers
     				if (response.getMsgType().equals(ABORT_VOTE)) {
     					isAbort = true;
     				}
@@ -265,6 +393,26 @@ public class TPCMaster {
     		}
     	}
     }
+    
+    public class SlaveGetRunnable implements Runnable {
+    	TPCSlaveInfo slaveInfo;
+    	Collection<String> keys;
+    	Map<String, String> values = null;
+    	KVMessage getFailed = null;
+    	
+    	public SlaveGetRunnable(TPCSlaveInfo slaveInfo, Collection<String> keys) {
+    		this.slaveInfo = slaveInfo;
+    		this.keys = keys;
+    	}
+    	public void run() {
+    		try {
+    			values = slaveInfo.mget(keys);
+    		} catch (KVException e) {
+    			System.out.println("Slave mget exception: " + e.getMsg().getMessage());
+    			getFailed = e.getMsg();
+    		}
+    	}
+    }
     //-chen
     
     
@@ -288,6 +436,11 @@ public class TPCMaster {
     	String value = null;
     	KVMessage errorMsg = null;
     	
+    	value = masterCache.getShared(key);
+    	if (value != null) {
+    		return value;
+    	}
+    	
     	TPCSlaveInfo slave1 = findFirstReplica(key);
 
     	WriteLock masterCacheLock = masterCache.getWriteLock(key);
@@ -318,6 +471,115 @@ public class TPCMaster {
     
     
 
+    /**
+     * Perform VGET in the manner of handleGet, except that the key is always
+     * read from the slaves: they keep the versions, the master cache only
+     * holds values.
+     *
+     * @param msg KVMessage containing key to get
+     * @return value of the key with its version
+     * @throws KVException if unable to get the key from either slave
+     */
+    public KVVersionedValue handleVersionedGet(KVMessage msg) throws KVException {
+    	String key = msg.getKey();
+    	WriteLock masterCacheLock = masterCache.getWriteLock(key);
+    	masterCacheLock.lock();
+    	try {
+    		TPCSlaveInfo slave1 = findFirstReplica(key);
+    		try {
+    			return slave1.getVersioned(key);
+    		} catch (KVException e) {
+    			return findSuccessor(slave1).getVersioned(key);
+    		}
+    	} finally {
+    		masterCacheLock.unlock();
+    	}
+    }
+    
+    /**
+     * Perform MGET in the manner of handleGet for all keys at once. Keys
+     * missing from the cache are grouped by primary replica, and the groups
+     * are fetched from their slaves in parallel, one request per slave. A
+     * group whose primary fails is fetched from the successor instead.
+     *
+     * @param msg KVMessage containing the keys to get
+     * @return the value of each key found, in the order of the keys
+     * @throws KVException if both replicas of some group failed
+     */
+    public Map<String, String> handleMultiGet(KVMessage msg) throws KVException {
+    	List<String> keys = msg.getKeys();
+    	Map<String, String> found = new HashMap<String, String>();
+    	List<String> misses = new ArrayList<String>();
+    	for (String key : keys) {
+    		String value = masterCache.getShared(key);
+    		if (value != null) {
+    			found.put(key, value);
+    		} else {
+    			misses.add(key);
+    		}
+    	}
+    	
+    	if (!misses.isEmpty()) {
+    		List<WriteLock> masterCacheLocks = masterCache.getWriteLocks(misses);
+    		for (WriteLock lock : masterCacheLocks) {
+    			lock.lock();
+    		}
+    		try {
+    			Map<TPCSlaveInfo, Set<String>> keysOfSlave = new LinkedHashMap<TPCSlaveInfo, Set<String>>();
+    			for (String key : misses) {
+    				String value = masterCache.get(key);
+    				if (value != null) {
+    					found.put(key, value);
+    				} else {
+    					addKey(keysOfSlave, findFirstReplica(key), key);
+    				}
+    			}
+    			
+    			Map<TPCSlaveInfo, Set<String>> retries = new LinkedHashMap<TPCSlaveInfo, Set<String>>();
+    			for (SlaveGetRunnable sg : getAll(keysOfSlave)) {
+    				if (sg.getFailed == null) {
+    					found.putAll(sg.values);
+    				} else {
+    					for (String key : sg.keys) {
+    						addKey(retries, findSuccessor(sg.slaveInfo), key);
+    					}
+    				}
+    			}
+    			for (SlaveGetRunnable sg : getAll(retries)) {
+    				if (sg.getFailed != null) {
+    					throw new KVException(sg.getFailed);
+    				}
+    				found.putAll(sg.values);
+    			}
+    		} finally {
+    			for (int i = masterCacheLocks.size() - 1; i >= 0; i--) {
+    				masterCacheLocks.get(i).unlock();
+    			}
+    		}
+    	}
+    	
+    	Map<String, String> values = new LinkedHashMap<String, String>();
+    	for (String key : keys) {
+    		String value = found.get(key);
+    		if (value != null) {
+    			values.put(key, value);
+    		}
+    	}
+    	return values;
+    }
+    
+    private List<SlaveGetRunnable> getAll(Map<TPCSlaveInfo, Set<String>> keysOfSlave) throws KVException {
+    	List<SlaveGetRunnable> gets = new ArrayList<SlaveGetRunnable>();
+    	List<Thread> threads = new ArrayList<Thread>();
+    	for (Map.Entry<TPCSlaveInfo, Set<String>> entry : keysOfSlave.entrySet()) {
+    		SlaveGetRunnable sg = new SlaveGetRunnable(entry.getKey(), entry.getValue());
+    		gets.add(sg);
+    		threads.add(new Thread(sg));
+    	}
+    	runAll(threads, "Internal: MGET Failed: Interrupted exception");
+    	return gets;
+    }
+
     private WriteLock slavesInfoLock = new ReentrantReadWriteLock().writeLock();
     //+chen
     public boolean registerFinished() {
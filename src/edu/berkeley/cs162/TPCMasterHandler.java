@@ -4,6 +4,7 @@ import static edu.berkeley.cs162.StaticConstants.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Map;
 /**
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
@@ -29,6 +30,17 @@ public class TPCMasterHandler implements NetworkHandler {
     	}
     }
     
+    /**
+     * Checks in phase 1 that a conditional putreq or delreq still applies.
+     * The master holds the key's lock until phase 2, so the version cannot
+     * change in between.
+     */
+    private void validateVersion(KVMessage msg) throws KVException {
+    	if (msg.getVersion() != ANY_VERSION && kvServer.getVersion(msg.getKey()) != msg.getVersion()) {
+    		throw new KVException(VERSION_MISMATCH_ERROR);
+    	}
+    }
+    
     private void validateValue(String value) throws KVException {
     	if (value == null || value.length() == 0) {
     		throw new KVException("Value is empty");
@@ -175,12 +187,34 @@ public class TPCMasterHandler implements NetworkHandler {
         			}
         			break;
         			
+        		case VGET_REQ:
+        			try {
+        				KVVersionedValue versioned = kvServer.getVersioned(masterMsg.getKey());
+        				response = new KVMessage(RESP);
+        				response.setKey(masterMsg.getKey());
+        				response.setValue(versioned.getValue());
+        				response.setVersion(versioned.getVersion());
+        			} catch (KVException e) {
+        				response = new KVMessage(RESP, e.getMsg().getMessage());
+        			}
+        			break;
+        			
+        		case MGET_REQ:
+        			try {
+        				response = new KVMessage(RESP, SUCCESS);
+        				response.setPairs(kvServer.mget(masterMsg.getKeys()));
+        			} catch (KVException e) {
+        				response = new KVMessage(RESP, e.getMsg().getMessage());
+        			}
+        			break;
+        			
         		case PUT_REQ:
         			key = masterMsg.getKey();
         			value = masterMsg.getValue();
         			try {
         				validateKey(key);
         				validateValue(value);
+        				validateVersion(masterMsg);
         				response = new KVMessage(READY);        				
         				phase1Msg = masterMsg;//!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!1      
         				
@@ -197,7 +231,11 @@ public class TPCMasterHandler implements NetworkHandler {
         			try {
         				validateKey(key);
         				//System.out.println("BEF kvServer.get()");
-        				kvServer.get(key);
+        				if (masterMsg.getVersion() == ANY_VERSION) {
+        					kvServer.get(key);
+        				} else {
+        					validateVersion(masterMsg);
+        				}
         				//System.out.println("AFTER kvServer.get()");
         				response = new KVMessage(READY);
         				
@@ -212,6 +250,34 @@ public class TPCMasterHandler implements NetworkHandler {
         			tpcLog.appendAndFlush(masterMsg);
         			break;
         			
+        		case MPUT_REQ:
+        			try {
+        				for (Map.Entry<String, String> pair : masterMsg.getPairs().entrySet()) {
+        					validateKey(pair.getKey());
+        					validateValue(pair.getValue());
+        				}
+        				response = new KVMessage(READY);
+        				phase1Msg = masterMsg;
+        			} catch (KVException e) {
+        				response = new KVMessage(ABORT_VOTE, e.getMsg().getMessage());
+        			}
+        			tpcLog.appendAndFlush(masterMsg);
+        			break;
+        			
+        		case MDEL_REQ:
+        			// Unlike delreq, keys that do not exist do not abort the batch
+        			try {
+        				for (String k : masterMsg.getKeys()) {
+        					validateKey(k);
+        				}
+        				response = new KVMessage(READY);
+        				phase1Msg = masterMsg;
+        			} catch (KVException e) {
+        				response = new KVMessage(ABORT_VOTE, e.getMsg().getMessage());
+        			}
+        			tpcLog.appendAndFlush(masterMsg);
+        			break;
+        			
         		//PHASE 2: decision message from master	
         		case ABORT_DECISION:
         			System.out.println("@MasterHandler: RECEIVED ABORT_DECISION");
@@ -219,47 +285,21 @@ public class TPCMasterHandler implements NetworkHandler {
         			phase1Msg = null;//Attention here?????????????? Correct or not????/
         			tpcLog.appendAndFlush(masterMsg);
         			break;
-        		case COMMIT:       			
-        			KVMessage requestMsg = tpcLog.getLastEntry(); 	
-        			System.out.println("ATTENTION!! : requestMsg: " + requestMsg.getMsgType());
-        			
+        		case COMMIT:
         			System.out.println("@MasterHandler: RECEIVED COMMIT");
-        			
-        			String msgType = null;
-        			if (phase1Msg == null && allDoneBeforeCorrupt()) {
-        				 response = new KVMessage(ACK);
-        			} else {				
-        				msgType = phase1Msg == null ?  tpcLog.getLastEntry().getMsgType() : phase1Msg.getMsgType();			
-        			    response = new KVMessage(ACK);//Attention here!!!! No matter put and del failed or succeed, slave will always send an ACK back;
-
-        			switch (msgType) {
-        			case PUT_REQ:        				
-        				key = phase1Msg.getKey();
-        				value = phase1Msg.getValue();
-        				try {
-        					kvServer.put(key, value);
-        				} catch (KVException e) {//Do nothing here................   				
-        				}
-        				if (phase1Msg != null) {
-        					tpcLog.appendAndFlush(masterMsg);
-        				}
-        				break;
-        			case DEL_REQ:
-        				key = phase1Msg.getKey();
-        				try {
-        					kvServer.del(key);
-        				} catch (KVException e) {
-        					e.printStackTrace();
+        			response = new KVMessage(ACK);//Attention here!!!! No matter put and del failed or succeed, slave will always send an ACK back;
+        			if (phase1Msg != null || !allDoneBeforeCorrupt()) {
+        				// After a restart the request is only in the log
+        				KVMessage requestMsg = phase1Msg != null ? phase1Msg : tpcLog.getLastEntry();
+        				String msgType = requestMsg.getMsgType();
+        				if (msgType.equals(PUT_REQ) || msgType.equals(DEL_REQ) || msgType.equals(MPUT_REQ) || msgType.equals(MDEL_REQ)) {
+        					try {
+        						tpcLog.applyCommit(requestMsg, masterMsg);
+        					} catch (KVException e) {
+        						e.printStackTrace();
+        					}
         				}
-        				if (phase1Msg != null) {
-        					tpcLog.appendAndFlush(masterMsg);
-        				}
-        				break;		
-        			default: 
-        				  //Have nothing to do 					
-        					break;			
-        			}     	
-        			phase1Msg = null;  
+        				phase1Msg = null;
         			}
 
         			break; //COMMIT END 			   			
@@ -280,7 +320,10 @@ public class TPCMasterHandler implements NetworkHandler {
     }
     
     private boolean allDoneBeforeCorrupt() {
-    	KVMessage requestMsg = tpcLog.getLastEntry(); 	
+    	KVMessage requestMsg = tpcLog.getLastEntry();
+    	if (requestMsg == null) {
+    		return true;
+    	}
 		String msgType =  requestMsg.getMsgType();
 		if (msgType.equals("COMMIT") || msgType.equals("ABORT_DECISION")) {
 				return true;
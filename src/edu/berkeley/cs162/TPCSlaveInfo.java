@@ -4,6 +4,10 @@ import static edu.berkeley.cs162.StaticConstants.*;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 import java.util.regex.*;
@@ -142,14 +146,27 @@ public class TPCSlaveInfo {
     public KVMessage TPCDeleteVote(String key) throws KVException {
 			KVMessage msg = new KVMessage(DEL_REQ);
 			msg.setKey(key);
+			return TPCVote(msg);
+    }
+    
+    /**
+     * Sends a phase 1 request to this slave.
+     *
+     * @param msg putreq, delreq, mputreq or mdelreq to prepare
+     * @return the vote, ABORT_VOTE if the slave could not be reached
+     * @throws KVException INVALID_RESPONSE if the slave answered anything but a vote
+     */
+    public KVMessage TPCVote(KVMessage msg) throws KVException {
 			KVMessage response =  null;
-	//		System.out.println("@SLAVEINFO: TPCDeleteVote: after executeKVMsg...SHOULD REVEICED AN RESPONSE:::" + response.toXML());
-			
+
 			try {
 				response = excecuteKVMsg(msg);//if socket error, throw out socket excetion
 			} catch (KVException e) {
 				response = new KVMessage(ABORT_VOTE, e.getMsg().getMessage());
 			}
+			if (response == null) {
+				response = new KVMessage(ABORT_VOTE, ERROR_COULD_NOT_CONNECT);
+			}
 			
 			if (response.getMsgType().equals(ABORT_VOTE) || response.getMsgType().equals(READY)) {
 				return response;
@@ -158,25 +175,17 @@ public class TPCSlaveInfo {
 			}
     }
     
-    public KVMessage TPCPutVote(String key, String value) throws KVException {    
+    public KVMessage TPCPutVote(String key, String value) throws KVException {
+    		return TPCPutVote(key, value, 0);
+    }
+    
+    public KVMessage TPCPutVote(String key, String value, long ttl) throws KVException {    
     		KVMessage msg = new KVMessage(PUT_REQ);
     		msg.setKey(key);
     		msg.setValue(value);
+    		msg.setTtl(ttl);
     		System.out.println("((((((((((((((((((((((((((((((((((((((((((((((((");
-   
-			KVMessage response =  null;
-
-			try {
-				response = excecuteKVMsg(msg);//if socket error, throw out socket excetion
-			} catch (KVException e) {
-				response = new KVMessage(ABORT_VOTE, e.getMsg().getMessage());
-			}
-		
-			if (response.getMsgType().equals(ABORT_VOTE) || response.getMsgType().equals(READY)) {
-				return response;
-			} else {//the response msg type was only suppose to be ABORT_VOTE or READY
-				throw new KVException(INVALID_RESPONSE);
-			}
+    		return TPCVote(msg);
     }
     /*
     public String get(String key) {
@@ -217,6 +226,46 @@ public class TPCSlaveInfo {
         	return resp.getValue();
     }
     
+    /**
+     * Gets key with its version from this slave.
+     *
+     * @throws KVException if the slave could not be reached or does not hold key
+     */
+    public KVVersionedValue getVersioned(String key) throws KVException {
+    		KVMessage msg = new KVMessage(VGET_REQ);
+    		msg.setKey(key);
+    		KVMessage resp = excecuteKVMsg(msg);
+    		if (resp == null) {
+    			throw new KVException(ERROR_COULD_NOT_CONNECT);
+    		}
+    		if (!resp.getMsgType().equals(RESP) || resp.getMessage() != null || resp.getValue() == null) {
+    			throw new KVException(resp);
+    		}
+    		if (!resp.getKey().equals(key) || resp.getVersion() < 1) {
+    			throw new KVException(INVALID_RESPONSE);
+    		}
+    		return new KVVersionedValue(resp.getValue(), resp.getVersion());
+    }
+    
+    /**
+     * Gets several keys from this slave over one connection.
+     *
+     * @return the pairs the slave holds; keys it does not hold are left out
+     * @throws KVException if the slave could not be reached or failed the request
+     */
+    public Map<String, String> mget(Collection<String> keys) throws KVException {
+    		KVMessage msg = new KVMessage(MGET_REQ);
+    		msg.setKeys(new ArrayList<String>(keys));
+    		KVMessage resp = excecuteKVMsg(msg);
+    		if (resp == null) {
+    			throw new KVException(ERROR_COULD_NOT_CONNECT);
+    		}
+    		if (!resp.getMsgType().equals(RESP) || !SUCCESS.equals(resp.getMessage())) {
+    			throw new KVException(resp);
+    		}
+    		return resp.getPairs() == null ? new LinkedHashMap<String, String>() : resp.getPairs();
+    }
+    
     public void TPCCommit() {
     	boolean finished = false;
     	while (!finished) {
@@ -0,0 +1,198 @@
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel that calls back once per scheduled item when its
+ * deadline has passed. Level 0 has 64 buckets of one tick each; every further
+ * level has 64 buckets each spanning a whole turn of the level below. An item
+ * is filed at the lowest level whose span covers its distance from now and is
+ * cascaded down a level each time the level below wraps around, so both
+ * scheduling and expiring are O(1) per item no matter how many are pending.
+ *
+ * Items cannot be cancelled; the callback is expected to check whether the
+ * deadline it is given is still current (e.g. the key was not rewritten).
+ * Callbacks run on the wheel's daemon thread, outside of any wheel lock.
+ *
+ * @param <T> type of the scheduled items
+ */
+public class TimingWheel<T> {
+
+    /**
+     * Receives items whose deadline has passed.
+     */
+    public interface Expirer<T> {
+        /**
+         * @param item the item that was scheduled
+         * @param deadline the deadline it was scheduled with, in epoch millis
+         */
+        public void expire(T item, long deadline);
+    }
+
+    private static final int BITS = 6;
+    private static final int BUCKETS = 1 << BITS;
+    private static final int MASK = BUCKETS - 1;
+    private static final int LEVELS = 6;
+
+    private static class Node<T> {
+        final T item;
+        final long deadline;
+        final long tick;
+        Node<T> next;
+
+        Node(T item, long deadline, long tick) {
+            this.item = item;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    private final Expirer<T> expirer;
+    private final Node<T>[][] wheel;
+    private long currentTick;
+    private int pending;
+    private Thread worker;
+
+    /**
+     * @param tickMillis granularity of the wheel; items expire at most one
+     *        tick after their deadline
+     * @param expirer callback for expired items
+     */
+    public TimingWheel(long tickMillis, Expirer<T> expirer) {
+        this.tickMillis = tickMillis;
+        this.expirer = expirer;
+        this.wheel = newWheel();
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T>[][] newWheel() {
+        return (Node<T>[][]) new Node<?>[LEVELS][BUCKETS];
+    }
+
+    /**
+     * Schedules item to be expired at deadline. Starts the wheel's thread on
+     * first use.
+     *
+     * @param item the item to pass to the Expirer
+     * @param deadline epoch millis at which item expires
+     */
+    public synchronized void schedule(T item, long deadline) {
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+        file(new Node<T>(item, deadline, tick));
+        pending++;
+        if (worker == null) {
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWheel();
+                }
+            }, "TimingWheel");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * @return number of items scheduled and not yet expired
+     */
+    public synchronized int size() {
+        return pending;
+    }
+
+    private void file(Node<T> node) {
+        long delta = node.tick - currentTick;
+        int level = 0;
+        int bucket;
+        if (delta < 0) {
+            bucket = (int) (currentTick & MASK);
+        } else {
+            while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+                level++;
+            }
+            bucket = (int) ((node.tick >>> (BITS * level)) & MASK);
+        }
+        node.next = wheel[level][bucket];
+        wheel[level][bucket] = node;
+    }
+
+    /**
+     * Moves the items of the current bucket of level down to lower levels.
+     * @return the bucket index that was cascaded
+     */
+    private int cascade(int level) {
+        int bucket = (int) ((currentTick >>> (BITS * level)) & MASK);
+        Node<T> node = wheel[level][bucket];
+        wheel[level][bucket] = null;
+        while (node != null) {
+            Node<T> next = node.next;
+            file(node);
+            node = next;
+        }
+        return bucket;
+    }
+
+    /**
+     * Processes one tick.
+     * @return the items whose deadline passed with it
+     */
+    private synchronized List<Node<T>> advance() {
+        int bucket = (int) (currentTick & MASK);
+        for (int level = 1; level < LEVELS && bucket == 0; level++) {
+            bucket = cascade(level);
+        }
+        bucket = (int) (currentTick & MASK);
+        Node<T> node = wheel[0][bucket];
+        wheel[0][bucket] = null;
+        currentTick++;
+
+        List<Node<T>> expired = new ArrayList<Node<T>>();
+        while (node != null) {
+            Node<T> next = node.next;
+            if (node.tick < currentTick) {
+                expired.add(node);
+                pending--;
+            } else {
+                // Filed from the top level while still more than a full turn away
+                file(node);
+            }
+            node = next;
+        }
+        return expired;
+    }
+
+    private void runWheel() {
+        while (true) {
+            long now = System.currentTimeMillis() / tickMillis;
+            List<Node<T>> expired = null;
+            while (currentTickSnapshot() <= now) {
+                List<Node<T>> batch = advance();
+                if (expired == null) {
+                    expired = batch;
+                } else {
+                    expired.addAll(batch);
+                }
+            }
+            if (expired != null) {
+                for (Node<T> node : expired) {
+                    try {
+                        expirer.expire(node.item, node.deadline);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized long currentTickSnapshot() {
+        return currentTick;
+    }
+}
@@ -0,0 +1,130 @@
+package edu.berkeley.cs162;
+
+/**
+ * W-TinyLFU. New entries enter a small LRU window (1% of the set, at least one
+ * slot); behind it is an SLRU main region. When the set is full, the window's
+ * LRU entry has to beat the main region's next victim on estimated access
+ * frequency to be admitted into main, otherwise it is evicted itself. Keys
+ * touched only once, such as those of a key scan, therefore never displace
+ * the frequently used entries in main.
+ */
+class TinyLfuPolicy implements EvictionPolicy {
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+
+    private final SlotDeque window;
+    private final SlotDeque probation;
+    private final SlotDeque protectedSeg;
+    private final byte[] region;
+    private final int[] hashes;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final FrequencySketch sketch;
+
+    TinyLfuPolicy(int capacity) {
+        int[] prev = new int[capacity];
+        int[] next = new int[capacity];
+        window = new SlotDeque(prev, next);
+        probation = new SlotDeque(prev, next);
+        protectedSeg = new SlotDeque(prev, next);
+        region = new byte[capacity];
+        hashes = new int[capacity];
+        windowCapacity = Math.max(1, capacity / 100);
+        protectedCapacity = Math.max(1, (capacity - windowCapacity) * 4 / 5);
+        sketch = new FrequencySketch(capacity);
+    }
+
+    @Override
+    public void onInsert(int slot, int hash) {
+        hashes[slot] = hash;
+        region[slot] = WINDOW;
+        window.addFirst(slot);
+        sketch.increment(hash);
+        if (window.size() > windowCapacity) {
+            // Only happens while the set is filling up: main has room, no duel needed
+            int overflow = window.last(slot);
+            window.remove(overflow);
+            region[overflow] = PROBATION;
+            probation.addFirst(overflow);
+        }
+    }
+
+    @Override
+    public void onAccess(int slot) {
+        sketch.increment(hashes[slot]);
+        switch (region[slot]) {
+        case WINDOW:
+            window.moveToFront(slot);
+            break;
+        case PROBATION:
+            probation.remove(slot);
+            region[slot] = PROTECTED;
+            protectedSeg.addFirst(slot);
+            if (protectedSeg.size() > protectedCapacity) {
+                int demoted = protectedSeg.last(slot);
+                protectedSeg.remove(demoted);
+                region[demoted] = PROBATION;
+                probation.addFirst(demoted);
+            }
+            break;
+        default:
+            protectedSeg.moveToFront(slot);
+        }
+    }
+
+    @Override
+    public void onMiss(int hash) {
+        sketch.increment(hash);
+    }
+
+    @Override
+    public void onRemove(int slot) {
+        switch (region[slot]) {
+        case WINDOW:
+            window.remove(slot);
+            break;
+        case PROBATION:
+            probation.remove(slot);
+            break;
+        default:
+            protectedSeg.remove(slot);
+        }
+    }
+
+    @Override
+    public int victim(int keepSlot) {
+        int candidate = window.last(keepSlot);
+        int mainVictim = probation.last(keepSlot);
+        if (mainVictim == SlotDeque.NIL) {
+            mainVictim = protectedSeg.last(keepSlot);
+        }
+        if (candidate == SlotDeque.NIL) {
+            return mainVictim;
+        }
+        if (mainVictim == SlotDeque.NIL) {
+            return candidate;
+        }
+        if (window.size() < windowCapacity) {
+            // The window has room to spare, so the main region gives way
+            return mainVictim;
+        }
+        if (sketch.frequency(hashes[candidate]) > sketch.frequency(hashes[mainVictim])) {
+            window.remove(candidate);
+            region[candidate] = PROBATION;
+            probation.addFirst(candidate);
+            return mainVictim;
+        }
+        return candidate;
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return region[slot] == PROTECTED;
+    }
+
+    @Override
+    public boolean recordsAccessRacily() {
+        return false;
+    }
+}
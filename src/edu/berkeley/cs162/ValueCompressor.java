@@ -0,0 +1,182 @@
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the values a KVStore stores. A value of at least threshold
+ * bytes is deflated and kept only if that saves MIN_SAVING of its size;
+ * the stored form is then the COMPRESSED marker byte followed by the
+ * compressed bytes. Other values are stored as they are, behind an ESCAPED
+ * marker byte if they start with any marker (only possible for text
+ * starting with U+0000 to U+0002).
+ *
+ * Values stored while KVStore kept versions inside them start with the
+ * version of their key, which decode skips and versionOf reads; engines
+ * now keep versions beside the value, but still hand such values back
+ * from older files. Values stored before versions were kept have no
+ * version header and count as version 1; none of them can start with
+ * VERSIONED, as XML cannot carry U+0002.
+ *
+ * <pre>
+ *   compressed: byte COMPRESSED, int length of the value, zlib stream of the value
+ *   versioned:  byte VERSIONED, version as an unsigned LEB128 varint, one of the forms above
+ * </pre>
+ */
+class ValueCompressor {
+	static final byte COMPRESSED = 0;
+	static final byte ESCAPED = 1;
+	static final byte VERSIONED = 2;
+	private static final int HEADER_BYTES = 5;
+	private static final double MIN_SAVING = 0.1;
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private volatile int threshold;
+	private final LongAdder compressed = new LongAdder();
+	private final LongAdder incompressible = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * @param threshold	length in bytes from which values are compressed, or 0 to store all values as they are
+	 */
+	ValueCompressor(int threshold) {
+		this.threshold = threshold;
+	}
+
+	void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the form of value to store
+	 */
+	Bytes encode(Bytes value) {
+		int limit = threshold;
+		if (limit > 0 && value.length() >= limit) {
+			// A value made from a String is encoded again by each array()
+			byte[] raw = value.array();
+			byte[] packed = deflate(raw);
+			if (packed.length <= raw.length * (1 - MIN_SAVING)) {
+				compressed.increment();
+				bytesIn.add(raw.length);
+				bytesOut.add(packed.length);
+				return Bytes.wrap(packed);
+			}
+			incompressible.increment();
+		}
+		if (!value.isEmpty() && value.byteAt(0) >= COMPRESSED && value.byteAt(0) <= VERSIONED) {
+			byte[] raw = value.array();
+			byte[] escaped = new byte[raw.length + 1];
+			escaped[0] = ESCAPED;
+			System.arraycopy(raw, 0, escaped, 1, raw.length);
+			return Bytes.wrap(escaped);
+		}
+		return value;
+	}
+
+	/**
+	 * For engines reading a value stored without a version beside it.
+	 * @return the version the value was stored as, which may not be null
+	 */
+	static long versionOf(Bytes stored) {
+		if (stored.isEmpty() || stored.byteAt(0) != VERSIONED) {
+			return 1;
+		}
+		byte[] packed = stored.array();
+		long version = 0;
+		for (int at = 1, shift = 0; ; at++, shift += 7) {
+			version |= (long) (packed[at] & 0x7F) << shift;
+			if (packed[at] >= 0) {
+				return version;
+			}
+		}
+	}
+
+	/**
+	 * @return the value stored as stored, which may be null
+	 */
+	static Bytes decode(Bytes stored) {
+		if (stored == null || stored.isEmpty() || (stored.byteAt(0) & 0xFF) > VERSIONED) {
+			// Stored as it is; looking no further keeps a value made from a String unencoded
+			return stored;
+		}
+		byte[] packed = stored.array();
+		int offset = 0;
+		if (packed[0] == VERSIONED) {
+			offset = 1;
+			while (packed[offset++] < 0) {
+			}
+			if (offset == packed.length) {
+				return Bytes.EMPTY;
+			}
+		}
+		if (packed[offset] == ESCAPED) {
+			return Bytes.copyOf(packed, offset + 1, packed.length - offset - 1);
+		}
+		if (packed[offset] != COMPRESSED) {
+			return offset == 0 ? stored : Bytes.copyOf(packed, offset, packed.length - offset);
+		}
+		int length = ((packed[offset + 1] & 0xFF) << 24) | ((packed[offset + 2] & 0xFF) << 16)
+				| ((packed[offset + 3] & 0xFF) << 8) | (packed[offset + 4] & 0xFF);
+		byte[] raw = new byte[length];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(packed, offset + HEADER_BYTES, packed.length - offset - HEADER_BYTES);
+		try {
+			int done = 0;
+			while (done < length) {
+				int n = inflater.inflate(raw, done, length - done);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IllegalStateException("Truncated compressed value");
+				}
+				done += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Corrupt compressed value: " + e.getMessage());
+		}
+		return Bytes.wrap(raw);
+	}
+
+	private static byte[] deflate(byte[] raw) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+		out.write(COMPRESSED);
+		out.write(raw.length >>> 24);
+		out.write(raw.length >>> 16);
+		out.write(raw.length >>> 8);
+		out.write(raw.length);
+		byte[] buf = new byte[Math.min(raw.length + 64, 64 * 1024)];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buf);
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	CompressionStats getStats() {
+		return new CompressionStats(threshold, compressed.sum(), incompressible.sum(), bytesIn.sum(), bytesOut.sum());
+	}
+}
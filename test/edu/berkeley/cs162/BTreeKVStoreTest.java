@@ -0,0 +1,189 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * BTreeKVStore keeps every committed write across a restart or a crash of
+ * the process, and opens from the newest header copy that is intact.
+ */
+public class BTreeKVStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private BTreeKVStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		file = new File(folder.getRoot(), "store.btree");
+		store = new BTreeKVStore(file.getPath());
+	}
+
+	@After
+	public void tearDown() {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	private void reopen(File from) throws KVException {
+		store.close();
+		store = new BTreeKVStore(from.getPath());
+	}
+
+	/**
+	 * Puts k0 to k299 twice and deletes every fifth one.
+	 */
+	private void fill() throws KVException {
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < 300; i++) {
+				store.put("k" + i, "v" + round + "-" + i);
+			}
+		}
+		for (int i = 0; i < 300; i += 5) {
+			store.del("k" + i);
+		}
+	}
+
+	private void assertFilled() throws KVException {
+		for (int i = 0; i < 300; i++) {
+			if (i % 5 == 0) {
+				assertAbsent("k" + i);
+				assertEquals(0, store.getVersion("k" + i));
+			} else {
+				assertEquals("v1-" + i, store.get("k" + i));
+				assertEquals(2, store.getVersion("k" + i));
+			}
+		}
+	}
+
+	@Test
+	public void restartKeepsPairsAndVersions() throws Exception {
+		fill();
+		reopen(file);
+		assertFilled();
+		store.put("k0", "back");
+		assertEquals(3, store.getVersion("k0"));
+	}
+
+	@Test
+	public void processCrashKeepsCommittedWrites() throws Exception {
+		fill();
+		// The file as the operating system holds it, without close() forcing anything
+		File crashed = new File(folder.getRoot(), "crashed.btree");
+		Files.copy(file.toPath(), crashed.toPath());
+		reopen(crashed);
+		assertFilled();
+	}
+
+	@Test
+	public void tornHeaderWriteIsIgnored() throws Exception {
+		fill();
+		store.close();
+		store = null;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(8);
+			long txn0 = raf.readLong();
+			raf.seek(BTreeKVStore.PAGE_SIZE + 8);
+			long txn1 = raf.readLong();
+			// A commit writes over the older copy; tear that write
+			raf.seek(txn0 < txn1 ? 0 : BTreeKVStore.PAGE_SIZE);
+			raf.writeInt(0);
+		} finally {
+			raf.close();
+		}
+		store = new BTreeKVStore(file.getPath());
+		assertFilled();
+		store.close();
+		store = null;
+
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(0);
+			raf.writeInt(0);
+			raf.seek(BTreeKVStore.PAGE_SIZE);
+			raf.writeInt(0);
+		} finally {
+			raf.close();
+		}
+		try {
+			store = new BTreeKVStore(file.getPath());
+			fail("opened a file with no valid header");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void largeKeysAndValuesSplitAndSurviveARestart() throws Exception {
+		Random random = new Random(162);
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 400; i++) {
+			keys.add(i + ":" + text(random, random.nextInt(1000)));
+		}
+		Collections.shuffle(keys, random);
+		for (String key : keys) {
+			store.put(key, value(key));
+		}
+		reopen(file);
+		for (String key : keys) {
+			assertEquals(value(key), store.get(key));
+		}
+	}
+
+	@Test
+	public void writesAfterCloseFail() throws Exception {
+		store.put("a", "1");
+		store.close();
+		try {
+			store.put("a", "2");
+			fail("wrote to a closed store");
+		} catch (KVException e) {
+			// Expected
+		}
+		store = new BTreeKVStore(file.getPath());
+		assertEquals("1", store.get("a"));
+	}
+
+	private static String value(String key) {
+		// From a few bytes to past a page, so some values overflow
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < key.length() % 7; i++) {
+			value.append(key);
+		}
+		return value.length() == 0 ? "empty" : value.toString();
+	}
+
+	private static String text(Random random, int length) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			text.append((char) ('a' + random.nextInt(26)));
+		}
+		return text.toString();
+	}
+
+	private void assertAbsent(String key) {
+		try {
+			store.get(key);
+			fail(key + " was deleted");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * A Bytes made from a String behaves as its UTF-8 encoding without ever
+ * holding that encoding beside the String.
+ */
+public class BytesTest {
+	private static final String[] STRINGS = { "", "a", "value", "été", "中文", "😀 ok", "\u0001x" };
+
+	@Test
+	public void madeFromAStringMatchesItsEncoding() {
+		for (String s : STRINGS) {
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			Bytes lazy = Bytes.of(s);
+			Bytes encoded = Bytes.copyOf(utf8);
+			assertEquals(utf8.length, lazy.length());
+			assertEquals(utf8.length == 0, lazy.isEmpty());
+			if (utf8.length > 0) {
+				assertEquals(utf8[0], lazy.byteAt(0));
+			}
+			assertArrayEquals(utf8, lazy.toByteArray());
+			assertEquals(encoded, lazy);
+			assertEquals(lazy, encoded);
+			assertEquals(encoded.hashCode(), lazy.hashCode());
+			assertEquals(0, lazy.compareTo(encoded));
+			assertEquals(s, encoded.toString());
+		}
+	}
+
+	@Test
+	public void stringIsHandedBackAndNeverKeptEncoded() {
+		String s = "a value kept as a String";
+		Bytes value = Bytes.of(s);
+		assertSame(s, value.toString());
+		byte[] first = value.array();
+		// Each use encodes again, so the value is not held twice meanwhile
+		assertNotSame(first, value.array());
+		value.hashCode();
+		assertSame(s, value.toString());
+	}
+
+	@Test
+	public void comparesAsUnsignedBytes() {
+		assertTrue(Bytes.of("a").compareTo(Bytes.of("b")) < 0);
+		assertTrue(Bytes.of("ab").compareTo(Bytes.of("a")) > 0);
+		assertTrue(Bytes.of("é").compareTo(Bytes.of("z")) > 0);
+	}
+}
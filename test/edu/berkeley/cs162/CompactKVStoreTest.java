@@ -0,0 +1,176 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * CompactKVStore finds every pair it holds however its tables have grown
+ * and shifted, keeps the version of removed keys, and never shows a
+ * reader a pair torn by a writer.
+ */
+public class CompactKVStoreTest {
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void pairsRoundTrip() throws Exception {
+		CompactKVStore store = new CompactKVStore();
+		store.put("plain", "value");
+		store.put("clé 键 😀", "été 中文 😀");
+		store.put("empty", "");
+		store.put("", "empty key");
+		assertEquals("value", store.get("plain"));
+		assertEquals("été 中文 😀", store.get("clé 键 😀"));
+		assertEquals("", store.get("empty"));
+		assertEquals("empty key", store.get(""));
+		assertEquals(4, store.size());
+	}
+
+	@Test
+	public void removedKeysKeepTheirVersion() throws Exception {
+		CompactKVStore store = new CompactKVStore();
+		store.put("k", "1");
+		store.put("k", "2");
+		store.del("k");
+		assertEquals(0, store.getVersion("k"));
+		assertEquals(0, store.size());
+		assertEquals(2, store.readStored("k").version);
+		store.put("k", "3");
+		assertEquals(3, store.getVersion("k"));
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	public void tooLongAKeyIsRefused() {
+		CompactKVStore store = new CompactKVStore();
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i <= 0xFFFF; i++) {
+			key.append('k');
+		}
+		try {
+			store.put(key.toString(), "v");
+			fail("a key of 64 KiB should be refused");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void randomOperationsMatchAMap() throws Exception {
+		// Enough keys for every stripe to grow several times, and removals
+		// at version 0 that empty slots and shift back their runs
+		CompactKVStore store = new CompactKVStore();
+		Map<String, KVStore.stored> expected = new HashMap<String, KVStore.stored>();
+		Random random = new Random(162);
+		for (int op = 0; op < 200000; op++) {
+			String key = "k" + random.nextInt(20000);
+			int choice = random.nextInt(10);
+			if (choice < 6) {
+				long version = random.nextInt(1000) + 1;
+				Bytes value = Bytes.of("v" + op);
+				store.writeValue(key, value, 0, version);
+				expected.put(key, new KVStore.stored(value, version));
+			} else if (choice < 8) {
+				long version = random.nextInt(1000) + 1;
+				store.removeValue(key, version);
+				expected.put(key, new KVStore.stored(null, version));
+			} else {
+				store.removeValue(key, 0);
+				expected.remove(key);
+			}
+			if (op % 1000 == 0) {
+				assertMatches(expected, store);
+			}
+		}
+		assertMatches(expected, store);
+		int live = 0;
+		for (KVStore.stored pair : expected.values()) {
+			if (!pair.isTombstone()) {
+				live++;
+			}
+		}
+		assertEquals(live, store.size());
+		List<String> keys = new ArrayList<String>(store.storedKeys());
+		assertEquals(live, keys.size());
+		for (String key : keys) {
+			assertTrue(key, !expected.get(key).isTombstone());
+		}
+
+		store.clearValues();
+		assertEquals(0, store.size());
+		assertNull(store.readStored("k1"));
+	}
+
+	@Test
+	public void readersNeverSeeATornPair() throws Exception {
+		final CompactKVStore store = new CompactKVStore();
+		for (int i = 0; i < 1000; i++) {
+			store.put("stable" + i, "value of stable" + i);
+		}
+		final AtomicBoolean done = new AtomicBoolean();
+		List<Future<Void>> threads = new ArrayList<Future<Void>>();
+		for (int t = 0; t < 2; t++) {
+			final int id = t;
+			threads.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws KVException {
+					// New keys make the tables grow under the readers
+					for (int i = 0; i < 50000; i++) {
+						store.put("w" + id + ":" + i, "value of w" + id + ":" + i);
+						if (i % 2 == 0) {
+							store.del("w" + id + ":" + (i / 2));
+						}
+					}
+					done.set(true);
+					return null;
+				}
+			}));
+		}
+		for (int t = 0; t < 4; t++) {
+			final int seed = t;
+			threads.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws KVException {
+					Random random = new Random(seed);
+					while (!done.get()) {
+						String key = "stable" + random.nextInt(1000);
+						assertEquals("value of " + key, store.get(key));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> thread : threads) {
+			thread.get(60, TimeUnit.SECONDS);
+		}
+	}
+
+	private static void assertMatches(Map<String, KVStore.stored> expected, CompactKVStore store) throws KVException {
+		for (Map.Entry<String, KVStore.stored> pair : expected.entrySet()) {
+			KVStore.stored stored = store.readStored(pair.getKey());
+			assertEquals(pair.getKey(), pair.getValue().version, stored.version);
+			assertEquals(pair.getKey(), pair.getValue().value, stored.value);
+		}
+	}
+}
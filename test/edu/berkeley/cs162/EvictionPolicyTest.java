@@ -0,0 +1,148 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Each eviction policy picks its victims as it documents, seen through a
+ * KVCache of one set so that every entry competes with every other.
+ */
+public class EvictionPolicyTest {
+	private static KVCache cache(int capacity, long maxBytes, EvictionPolicy.Kind policy) {
+		return new KVCache(1, capacity, maxBytes, policy);
+	}
+
+	@Test
+	public void lruEvictsTheLeastRecentlyUsed() {
+		KVCache cache = cache(3, 0, EvictionPolicy.Kind.LRU);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		cache.get("a");
+		cache.put("d", "4");
+		assertNull(cache.get("b"));
+		cache.get("c");
+		cache.put("e", "5");
+		assertNull(cache.get("a"));
+		assertEquals("3", cache.get("c"));
+		assertEquals("4", cache.get("d"));
+		assertEquals("5", cache.get("e"));
+	}
+
+	@Test
+	public void lruCountsAnOverwriteAsAUse() {
+		KVCache cache = cache(2, 0, EvictionPolicy.Kind.LRU);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("a", "1'");
+		cache.put("c", "3");
+		assertNull(cache.get("b"));
+		assertEquals("1'", cache.get("a"));
+	}
+
+	@Test
+	public void slruPromotesOnASecondAccessAndSurvivesAScan() {
+		// Four of the five slots are protected
+		KVCache cache = cache(5, 0, EvictionPolicy.Kind.SLRU);
+		for (String key : new String[] { "a", "b", "c", "d", "e" }) {
+			cache.put(key, key);
+		}
+		cache.get("a");
+		cache.get("b");
+		for (int i = 0; i < 20; i++) {
+			cache.put("scan" + i, "x");
+		}
+		assertEquals("a", cache.get("a"));
+		assertEquals("b", cache.get("b"));
+		assertNull(cache.get("c"));
+		assertEquals("x", cache.get("scan19"));
+	}
+
+	@Test
+	public void slruDemotesTheOldestProtectedEntryWhenFull() {
+		KVCache cache = cache(5, 0, EvictionPolicy.Kind.SLRU);
+		for (String key : new String[] { "a", "b", "c", "d", "e" }) {
+			cache.put(key, key);
+		}
+		for (String key : new String[] { "a", "b", "c", "d", "e" }) {
+			cache.get(key);
+		}
+		// e took the last protected slot from a, which went back to probation
+		cache.put("f", "f");
+		assertNull(cache.get("a"));
+		for (String key : new String[] { "b", "c", "d", "e", "f" }) {
+			assertEquals(key, cache.get(key));
+		}
+	}
+
+	@Test
+	public void tinyLfuDoesNotAdmitOneTimeKeys() {
+		KVCache cache = cache(100, 0, EvictionPolicy.Kind.TINYLFU);
+		fillWithHotKeys(cache);
+		for (int i = 0; i < 80; i++) {
+			cache.put("f" + i, "x");
+		}
+		for (int i = 0; i < 200; i++) {
+			cache.put("s" + i, "x");
+		}
+		assertHotKeysKept(cache);
+	}
+
+	@Test
+	public void tinyLfuAdmitsAKeyUsedMoreThanTheVictim() {
+		KVCache cache = cache(100, 0, EvictionPolicy.Kind.TINYLFU);
+		// The keys seen once go first, so they are the next victims of the main region
+		for (int i = 0; i < 80; i++) {
+			cache.put("f" + i, "x");
+		}
+		fillWithHotKeys(cache);
+		cache.put("x", "used");
+		for (int i = 0; i < 5; i++) {
+			cache.get("x");
+		}
+		// x leaves the window and beats a key of the main region seen once
+		cache.put("y", "once");
+		cache.put("z", "once");
+		assertEquals("used", cache.get("x"));
+		assertNull(cache.get("y"));
+		assertHotKeysKept(cache);
+	}
+
+	@Test
+	public void tinyLfuKeepsHotKeysUnderAByteBudget() {
+		long budget = 40 * KVCache.weigh("s000", "0123456789");
+		KVCache cache = cache(1000, budget, EvictionPolicy.Kind.TINYLFU);
+		fillWithHotKeys(cache);
+		for (int i = 0; i < 500; i++) {
+			cache.put(String.format("s%03d", i), "0123456789");
+			assertTrue(cache.getUsedBytes() <= budget);
+		}
+		assertHotKeysKept(cache);
+		assertTrue(cache.getStats().getEvictions() > 400);
+	}
+
+	private static void fillWithHotKeys(KVCache cache) {
+		for (int i = 0; i < 20; i++) {
+			cache.put(hotKey(i), "0123456789");
+		}
+		for (int round = 0; round < 8; round++) {
+			for (int i = 0; i < 20; i++) {
+				assertNotNull(cache.get(hotKey(i)));
+			}
+		}
+	}
+
+	private static void assertHotKeysKept(KVCache cache) {
+		for (int i = 0; i < 20; i++) {
+			assertEquals(hotKey(i), "0123456789", cache.get(hotKey(i)));
+		}
+	}
+
+	private static String hotKey(int i) {
+		return String.format("h%02d", i);
+	}
+}
@@ -0,0 +1,457 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+import org.junit.Test;
+
+/**
+ * KVCache sets evict by second-chance CLOCK and find their keys through
+ * an index that stays correct under any mix of puts and deletes, and
+ * lock-free readers only ever see a value of the key they asked for. A
+ * byte budget bounds the weight of all sets together. Every set counts
+ * what happened to it. Resizing moves entries over without losing any.
+ */
+public class KVCacheTest {
+	@Test
+	public void clockGivesReferencedEntriesASecondChance() {
+		KVCache cache = new KVCache(1, 3);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		assertEquals("1", cache.get("a"));
+		// The hand clears a's bit and takes b, the first entry not referenced
+		cache.put("d", "4");
+		assertNull(cache.get("b"));
+		assertEquals("1", cache.get("a"));
+		assertEquals("3", cache.get("c"));
+		assertEquals("4", cache.get("d"));
+		assertEquals(1, cache.getStats().getEvictions());
+	}
+
+	@Test
+	public void clockEvictsInInsertionOrderWhenNothingIsReferenced() {
+		KVCache cache = new KVCache(1, 3);
+		for (int i = 0; i < 6; i++) {
+			cache.put("k" + i, "v" + i);
+		}
+		for (int i = 0; i < 3; i++) {
+			assertNull(cache.get("k" + i));
+		}
+		for (int i = 3; i < 6; i++) {
+			assertEquals("v" + i, cache.get("k" + i));
+		}
+	}
+
+	@Test
+	public void clockTakesAReferencedEntryAfterAFullTurn() {
+		KVCache cache = new KVCache(1, 2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a");
+		cache.get("b");
+		cache.put("c", "3");
+		// Both bits were cleared, so the hand came back round to a
+		assertNull(cache.get("a"));
+		assertEquals("2", cache.get("b"));
+		assertEquals(2, cache.getStats().getReferenceClears());
+	}
+
+	@Test
+	public void deletedSlotIsReusedWithoutEviction() {
+		KVCache cache = new KVCache(1, 2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.del("a");
+		cache.put("c", "3");
+		assertEquals("2", cache.get("b"));
+		assertEquals("3", cache.get("c"));
+		assertEquals(0, cache.getStats().getEvictions());
+	}
+
+	@Test
+	public void indexMatchesAMapUnderRandomPutsAndDeletes() {
+		// Never full, so every difference from the map would be an index bug
+		KVCache cache = new KVCache(1, 64);
+		Map<String, String> expected = new HashMap<String, String>();
+		Random random = new Random(162);
+		for (int op = 0; op < 20000; op++) {
+			String key = "k" + random.nextInt(64);
+			if (random.nextInt(3) == 0) {
+				cache.del(key);
+				expected.remove(key);
+			} else {
+				String value = "v" + op;
+				cache.put(key, value);
+				expected.put(key, value);
+			}
+			String probe = "k" + random.nextInt(64);
+			assertEquals(probe, expected.get(probe), cache.get(probe));
+		}
+		assertEquals(expected.size(), cache.getStats().getSize());
+	}
+
+	@Test
+	public void sharedReadsSeeOnlyValuesOfTheirKey() throws Exception {
+		final KVCache cache = new KVCache(2, 4);
+		final AtomicBoolean stop = new AtomicBoolean();
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			List<Future<Integer>> threads = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < 2; t++) {
+				final int seed = t;
+				// Overwrites, deletes and evicts, so readers race every kind of change
+				threads.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						Random random = new Random(seed);
+						int writes = 0;
+						while (!stop.get()) {
+							String key = "k" + random.nextInt(32);
+							WriteLock lock = cache.getWriteLock(key);
+							lock.lock();
+							try {
+								if (random.nextInt(4) == 0) {
+									cache.del(key);
+								} else {
+									cache.put(key, key + ":" + writes);
+								}
+							} finally {
+								lock.unlock();
+							}
+							writes++;
+						}
+						return writes;
+					}
+				}));
+			}
+			for (int t = 0; t < 4; t++) {
+				final int seed = 100 + t;
+				threads.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						Random random = new Random(seed);
+						int hits = 0;
+						while (!stop.get()) {
+							String key = "k" + random.nextInt(32);
+							String value = cache.getShared(key);
+							if (value != null) {
+								assertTrue(key + " read " + value, value.startsWith(key + ":"));
+								hits++;
+							}
+						}
+						return hits;
+					}
+				}));
+			}
+			Thread.sleep(1000);
+			stop.set(true);
+			for (Future<Integer> thread : threads) {
+				assertTrue(thread.get(5, TimeUnit.SECONDS) > 0);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void sharedHitsCountAndReachTheLruOrder() {
+		KVCache cache = new KVCache(1, 3, 0, EvictionPolicy.Kind.LRU);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		assertEquals("1", cache.getShared("a"));
+		assertNull(cache.getShared("x"));
+		assertEquals(1, cache.getStats().getHits());
+		assertEquals(1, cache.getStats().getMisses());
+		// The buffered hit on a is replayed before the eviction, so b goes
+		cache.put("d", "4");
+		assertNull(cache.get("b"));
+		assertEquals("1", cache.get("a"));
+	}
+
+	@Test
+	public void usedBytesFollowPutsOverwritesAndDeletes() {
+		KVCache cache = new KVCache(2, 10, 10000);
+		cache.put("ab", "123");
+		assertEquals(KVCache.weigh("ab", "123"), cache.getUsedBytes());
+		cache.put("ab", "1234567");
+		cache.put("c", "d");
+		assertEquals(KVCache.weigh("ab", "1234567") + KVCache.weigh("c", "d"), cache.getUsedBytes());
+		cache.del("ab");
+		cache.del("c");
+		assertEquals(0, cache.getUsedBytes());
+	}
+
+	@Test
+	public void byteBudgetHoldsAcrossSets() {
+		KVCache cache = new KVCache(4, 100, 1000);
+		Random random = new Random(162);
+		for (int i = 0; i < 2000; i++) {
+			cache.put("k" + random.nextInt(300), value(random.nextInt(100)));
+			assertTrue(cache.getUsedBytes() <= 1000);
+		}
+		assertTrue(cache.getStats().getEvictions() > 0);
+	}
+
+	@Test
+	public void largeEntryEvictsSeveralSmallOnes() {
+		KVCache cache = new KVCache(1, 10, 200);
+		for (int i = 0; i < 8; i++) {
+			cache.put("k" + i, "0123456789");
+		}
+		// Each small entry weighs 24 bytes, the large one 2 * (3 + 80)
+		cache.put("big", value(80));
+		assertEquals(value(80), cache.get("big"));
+		assertTrue(cache.getUsedBytes() <= 200);
+		assertTrue(cache.getStats().getEvictions() >= 6);
+	}
+
+	@Test
+	public void entryOverTheWholeBudgetIsNotCached() {
+		KVCache cache = new KVCache(1, 10, 100);
+		cache.put("k", "small");
+		cache.put("other", "x");
+		cache.put("k", value(60));
+		// Dropping the stale value is all it can do
+		assertNull(cache.get("k"));
+		assertEquals("x", cache.get("other"));
+		assertEquals(KVCache.weigh("other", "x"), cache.getUsedBytes());
+	}
+
+	@Test
+	public void setsCountTheirHitsMissesInsertsAndEvictions() {
+		KVCache cache = new KVCache(3, 2);
+		// Three keys of one set, so that the third evicts
+		int set = setOf("k0", 3);
+		String[] keys = new String[3];
+		for (int i = 0, n = 0; n < 3; i++) {
+			if (setOf("k" + i, 3) == set) {
+				keys[n++] = "k" + i;
+			}
+		}
+		for (int i = 0; i < 3; i++) {
+			cache.put(keys[i], "v");
+		}
+		cache.get(keys[2]);
+		cache.getShared(keys[2]);
+		cache.get(keys[0]);
+		KVCacheStats stats = cache.getSetStats(set);
+		assertEquals(2, stats.getHits());
+		assertEquals(1, stats.getMisses());
+		assertEquals(3, stats.getInserts());
+		assertEquals(1, stats.getEvictions());
+		assertEquals(2, stats.getSize());
+		assertEquals(2, stats.getCapacity());
+		assertEquals(2.0 / 3, stats.getHitRatio(), 1e-9);
+
+		KVCacheStats total = cache.getStats();
+		assertEquals(2, total.getHits());
+		assertEquals(6, total.getCapacity());
+		for (int other = 0; other < 3; other++) {
+			if (other != set) {
+				assertEquals(0, cache.getSetStats(other).getInserts());
+			}
+		}
+	}
+
+	@Test
+	public void occupancyHistogramCountsSetsByEntries() {
+		KVCache cache = new KVCache(4, 3);
+		for (int i = 0; i < 100; i++) {
+			cache.put("k" + i, "v");
+		}
+		// Every set is full
+		int[] histogram = cache.getOccupancyHistogram();
+		assertEquals(4, histogram.length);
+		assertEquals(4, histogram[3]);
+
+		cache = new KVCache(4, 3);
+		cache.put("k0", "v");
+		int[] expected = { 3, 1, 0, 0 };
+		assertArrayEquals(expected, cache.getOccupancyHistogram());
+	}
+
+	@Test
+	public void waitsForAKeyLockAreCounted() throws Exception {
+		final KVCache cache = new KVCache(1, 2);
+		final WriteLock lock = cache.getWriteLock("k");
+		final CountDownLatch held = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread holder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				lock.lock();
+				try {
+					held.countDown();
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					lock.unlock();
+				}
+			}
+		});
+		holder.start();
+		assertTrue(held.await(5, TimeUnit.SECONDS));
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				lock.lock();
+				lock.unlock();
+			}
+		});
+		waiter.start();
+		Thread.sleep(100);
+		release.countDown();
+		holder.join(5000);
+		waiter.join(5000);
+		KVCacheStats stats = cache.getStats();
+		assertEquals(1, stats.getLockWaits());
+		assertTrue(stats.getLockWaitNanos() > 0);
+	}
+
+@Test
+	public void resizeKeepsEntriesAndTheirDeadlines() throws Exception {
+		KVCache cache = new KVCache(2, 50);
+		for (int i = 0; i < 60; i++) {
+			cache.put("k" + i, "v" + i);
+		}
+		cache.put("short", "lived", 200);
+		cache.resize(7);
+		assertTrue(cache.isResizing());
+		assertEquals(7, cache.getNumSets());
+		// Served from the old sets until moved
+		assertEquals("v5", cache.getShared("k5"));
+		cache.finishResize();
+		assertFalse(cache.isResizing());
+		for (int i = 0; i < 60; i++) {
+			assertEquals("v" + i, cache.get("k" + i));
+		}
+		assertEquals("lived", cache.get("short"));
+		Thread.sleep(300);
+		assertNull(cache.get("short"));
+
+		cache.resize(3);
+		cache.finishResize();
+		assertEquals(60, cache.getStats().getSize());
+	}
+
+	@Test
+	public void resizeCompletesThroughLaterOperations() {
+		KVCache cache = new KVCache(4, 10);
+		for (int i = 0; i < 20; i++) {
+			cache.put("k" + i, "v" + i);
+		}
+		cache.resize(8);
+		// Each operation moves one old set
+		for (int i = 0; i < 4; i++) {
+			assertTrue(cache.isResizing());
+			cache.get("k" + i);
+		}
+		assertFalse(cache.isResizing());
+		for (int i = 0; i < 20; i++) {
+			assertEquals("v" + i, cache.get("k" + i));
+		}
+	}
+
+	@Test
+	public void countersOfRetiredSetsAreKept() {
+		KVCache cache = new KVCache(2, 10);
+		cache.put("a", "1");
+		cache.get("a");
+		cache.get("missing");
+		cache.resize(3);
+		cache.finishResize();
+		KVCacheStats stats = cache.getStats();
+		assertEquals(1, stats.getHits());
+		assertEquals(1, stats.getMisses());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void resizeNeedsASet() {
+		new KVCache(2, 10).resize(0);
+	}
+
+	@Test
+	public void writesDuringResizesAreNotLost() throws Exception {
+		final KVCache cache = new KVCache(3, 1000);
+		final AtomicBoolean stop = new AtomicBoolean();
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			Future<Integer> resizer = pool.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					int resizes = 0;
+					while (!stop.get()) {
+						cache.resize(2 + resizes++ % 5);
+					}
+					return resizes;
+				}
+			});
+			List<Future<Integer>> writers = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < 4; t++) {
+				final String prefix = "t" + t + ":";
+				writers.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						for (int i = 0; i < 300; i++) {
+							String key = prefix + i;
+							WriteLock lock = cache.getWriteLock(key);
+							lock.lock();
+							try {
+								cache.put(key, key);
+							} finally {
+								lock.unlock();
+							}
+							assertEquals(key, cache.getShared(key));
+						}
+						return 300;
+					}
+				}));
+			}
+			for (Future<Integer> writer : writers) {
+				writer.get(30, TimeUnit.SECONDS);
+			}
+			stop.set(true);
+			assertTrue(resizer.get(5, TimeUnit.SECONDS) > 0);
+		} finally {
+			pool.shutdownNow();
+		}
+		cache.finishResize();
+		for (int t = 0; t < 4; t++) {
+			for (int i = 0; i < 300; i++) {
+				assertEquals("t" + t + ":" + i, cache.get("t" + t + ":" + i));
+			}
+		}
+	}
+
+		private static int setOf(String key, int numSets) {
+		return Math.abs(key.hashCode() % numSets);
+	}
+
+		private static String value(int length) {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			value.append((char) ('a' + i % 26));
+		}
+		return value.toString();
+	}
+}
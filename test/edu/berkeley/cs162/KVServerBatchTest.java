@@ -0,0 +1,92 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * An mput or mdel reaches the store whole, without the writes of another
+ * batch over the same keys in between.
+ */
+public class KVServerBatchTest {
+	private static final List<String> KEYS = Arrays.asList("a", "b", "c");
+
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * A store that records every write it is given, in order.
+	 */
+	private static class recordingStore extends KVStore {
+		final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		protected void writeValue(String key, Bytes value, long deadline, long version) throws KVException {
+			writes.add(value.toString());
+			Thread.yield();
+			super.writeValue(key, value, deadline, version);
+		}
+
+		@Override
+		protected void removeValue(String key, long version) throws KVException {
+			writes.add("deleted");
+			Thread.yield();
+			super.removeValue(key, version);
+		}
+	}
+
+	@Test
+	public void concurrentBatchesDoNotInterleave() throws Exception {
+		final recordingStore store = new recordingStore();
+		final KVServer server = new KVServer(store, new KVCache(4, 4));
+		List<Future<Void>> writers = new ArrayList<Future<Void>>();
+		for (int t = 0; t < 6; t++) {
+			final int id = t;
+			writers.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws KVException {
+					for (int i = 0; i < 200; i++) {
+						if (id % 3 == 0 && i % 2 == 1) {
+							server.mdel(KEYS);
+						} else {
+							Map<String, String> pairs = new LinkedHashMap<String, String>();
+							for (String key : KEYS) {
+								pairs.put(key, id + ":" + i);
+							}
+							server.mput(pairs, 0);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> writer : writers) {
+			writer.get(30, TimeUnit.SECONDS);
+		}
+
+		List<String> writes = store.writes;
+		assertEquals(0, writes.size() % KEYS.size());
+		for (int at = 0; at < writes.size(); at += KEYS.size()) {
+			for (int i = 1; i < KEYS.size(); i++) {
+				assertEquals("write " + (at + i) + " split a batch", writes.get(at), writes.get(at + i));
+			}
+		}
+	}
+}
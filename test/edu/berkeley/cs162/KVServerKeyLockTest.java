@@ -0,0 +1,134 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * KVServer serializes the operations on one key, and only those.
+ */
+public class KVServerKeyLockTest {
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * A store whose writes of "slow" wait for release, and which records how
+	 * many writes of "same" ever ran at once.
+	 */
+	private static class gatedStore extends KVStore {
+		final CountDownLatch slowEntered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+
+		@Override
+		protected void writeValue(String key, Bytes value, long deadline, long version) throws KVException {
+			enter(key);
+			try {
+				super.writeValue(key, value, deadline, version);
+			} finally {
+				exit(key);
+			}
+		}
+
+		@Override
+		protected void removeValue(String key, long version) throws KVException {
+			enter(key);
+			try {
+				super.removeValue(key, version);
+			} finally {
+				exit(key);
+			}
+		}
+
+		private void enter(String key) throws KVException {
+			if (key.equals("same")) {
+				int n = inFlight.incrementAndGet();
+				int max;
+				while (n > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, n)) {
+				}
+				Thread.yield();
+			} else if (key.equals("slow")) {
+				slowEntered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new KVException(new KVMessage("resp", "Interrupted"));
+				}
+			}
+		}
+
+		private void exit(String key) {
+			if (key.equals("same")) {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	@Test
+	public void writesToOtherKeysProceedWhileOneIsBlocked() throws Exception {
+		final gatedStore store = new gatedStore();
+		final KVServer server = new KVServer(store, new KVCache(4, 4));
+		Future<Boolean> slow = pool.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws KVException {
+				return server.put("slow", "1");
+			}
+		});
+		assertTrue(store.slowEntered.await(5, TimeUnit.SECONDS));
+
+		Future<String> fast = pool.submit(new Callable<String>() {
+			@Override
+			public String call() throws KVException {
+				server.put("fast", "2");
+				return server.get("fast");
+			}
+		});
+		assertEquals("2", fast.get(5, TimeUnit.SECONDS));
+
+		store.release.countDown();
+		slow.get(5, TimeUnit.SECONDS);
+		assertEquals("1", server.get("slow"));
+	}
+
+	@Test
+	public void writesToOneKeyDoNotOverlap() throws Exception {
+		final gatedStore store = new gatedStore();
+		store.release.countDown();
+		final KVServer server = new KVServer(store, new KVCache(4, 4));
+		List<Future<Void>> writers = new ArrayList<Future<Void>>();
+		for (int t = 0; t < 8; t++) {
+			final int id = t;
+			writers.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws KVException {
+					for (int i = 0; i < 500; i++) {
+						server.put("same", id + ":" + i);
+						server.del("same");
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> writer : writers) {
+			writer.get(30, TimeUnit.SECONDS);
+		}
+		assertEquals(1, store.maxInFlight.get());
+	}
+}
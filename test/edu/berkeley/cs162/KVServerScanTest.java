@@ -0,0 +1,113 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * KVServer pages through the store like KVStore.scan, and in write-back
+ * mode its pages include the writes not flushed yet, each key once.
+ */
+public class KVServerScanTest {
+	// Long enough for the flusher never to run during a test
+	private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+	@Test
+	public void pagesIncludeWritesNotFlushedYet() throws Exception {
+		KVStore store = new KVStore();
+		KVServer server = new KVServer(store, new KVCache(4, 64));
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		for (int i = 0; i < 40; i += 2) {
+			String key = String.format("k%02d", i);
+			server.put(key, "stored");
+			expected.put(key, "stored");
+		}
+		server.enableWriteBack(NEVER);
+		for (int i = 0; i < 40; i += 3) {
+			String key = String.format("k%02d", i);
+			if (i % 2 == 0) {
+				server.del(key);
+				expected.remove(key);
+			} else {
+				server.put(key, "pending");
+				expected.put(key, "pending");
+			}
+		}
+		assertEquals(expected, scanAll(server, null, null, 3));
+		assertEquals(expected.subMap("k10", "k20"), scanAll(server, "k10", "k20", 4));
+
+		server.flush();
+		assertEquals(expected, scanAll(server, null, null, 5));
+		server.disableWriteBack();
+	}
+
+	@Test
+	public void prefixPagesIncludeWritesNotFlushedYet() throws Exception {
+		KVServer server = new KVServer(new KVStore(), new KVCache(4, 64));
+		server.put("a:1", "stored");
+		server.put("a:3", "stored");
+		server.put("b:1", "stored");
+		server.enableWriteBack(NEVER);
+		server.put("a:2", "pending");
+		server.del("a:3");
+		server.put("a:4", "pending");
+		server.put("b:2", "pending");
+
+		TreeMap<String, String> pairs = new TreeMap<String, String>();
+		String cursor = null;
+		do {
+			KVScanPage page = server.prefixScan("a:", cursor, 1);
+			assertTrue(page.getPairs().size() <= 1);
+			addPage(pairs, page);
+			cursor = page.getCursor();
+		} while (cursor != null);
+		assertEquals(Arrays.asList("a:1", "a:2", "a:4"), new ArrayList<String>(pairs.keySet()));
+		server.disableWriteBack();
+	}
+
+	@Test
+	public void limitsAreChecked() throws Exception {
+		KVServer server = new KVServer(new KVStore(), new KVCache(4, 4));
+		for (int limit : new int[] { 0, -1, 1001 }) {
+			try {
+				server.scan(null, null, limit);
+				fail("a limit of " + limit + " should be refused");
+			} catch (KVException e) {
+				// Expected
+			}
+		}
+		try {
+			server.prefixScan(null, null, 10);
+			fail("a null prefix should be refused");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	private static TreeMap<String, String> scanAll(KVServer server, String startKey, String endKey, int limit) throws KVException {
+		TreeMap<String, String> pairs = new TreeMap<String, String>();
+		String cursor = startKey;
+		do {
+			KVScanPage page = server.scan(cursor, endKey, limit);
+			assertTrue(page.getPairs().size() <= limit);
+			addPage(pairs, page);
+			cursor = page.getCursor();
+		} while (cursor != null);
+		return pairs;
+	}
+
+	private static void addPage(TreeMap<String, String> pairs, KVScanPage page) {
+		for (Map.Entry<String, String> pair : page.getPairs().entrySet()) {
+			assertTrue(pair.getKey() + " out of order", pairs.isEmpty() || pair.getKey().compareTo(pairs.lastKey()) > 0);
+			pairs.put(pair.getKey(), pair.getValue());
+		}
+	}
+}
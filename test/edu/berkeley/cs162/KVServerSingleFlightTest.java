@@ -0,0 +1,113 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Concurrent gets that miss the cache on one key share a single store read.
+ */
+public class KVServerSingleFlightTest {
+	private static final int READERS = 16;
+
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * A store whose reads of "k" are counted and wait for release.
+	 */
+	private static class gatedStore extends KVStore {
+		final CountDownLatch readStarted = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger reads = new AtomicInteger();
+
+		@Override
+		protected stored readStored(String key) throws KVException {
+			if (key.equals("k")) {
+				reads.incrementAndGet();
+				readStarted.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new KVException(new KVMessage("resp", "Interrupted"));
+				}
+			}
+			return super.readStored(key);
+		}
+	}
+
+	@Test
+	public void concurrentMissesReadTheStoreOnce() throws Exception {
+		gatedStore store = new gatedStore();
+		store.put("k", "v");
+		final KVServer server = new KVServer(store, new KVCache(4, 4));
+		final CountDownLatch started = new CountDownLatch(READERS);
+		List<Future<String>> readers = new ArrayList<Future<String>>();
+		for (int i = 0; i < READERS; i++) {
+			readers.add(pool.submit(new Callable<String>() {
+				@Override
+				public String call() throws KVException {
+					started.countDown();
+					return server.get("k");
+				}
+			}));
+		}
+		assertTrue(store.readStarted.await(5, TimeUnit.SECONDS));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		// Give the late readers time to reach the load in progress
+		Thread.sleep(200);
+		store.release.countDown();
+		for (Future<String> reader : readers) {
+			assertEquals("v", reader.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, store.reads.get());
+	}
+
+	@Test
+	public void concurrentMissesOfAnAbsentKeyAllFail() throws Exception {
+		gatedStore store = new gatedStore();
+		final KVServer server = new KVServer(store, new KVCache(4, 4));
+		List<Future<String>> readers = new ArrayList<Future<String>>();
+		for (int i = 0; i < READERS; i++) {
+			readers.add(pool.submit(new Callable<String>() {
+				@Override
+				public String call() throws KVException {
+					return server.get("k");
+				}
+			}));
+		}
+		assertTrue(store.readStarted.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		store.release.countDown();
+		for (Future<String> reader : readers) {
+			try {
+				reader.get(5, TimeUnit.SECONDS);
+				fail("got a key that does not exist");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof KVException);
+			}
+		}
+		assertEquals(1, store.reads.get());
+
+		server.put("k", "v");
+		assertEquals("v", server.get("k"));
+	}
+}
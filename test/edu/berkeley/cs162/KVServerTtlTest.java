@@ -0,0 +1,51 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * A pair put with a TTL expires in the cache and the store together, even
+ * after the cache evicted it and read it back from the store.
+ */
+public class KVServerTtlTest {
+	@Test
+	public void pairReadBackAfterEvictionStillExpires() throws Exception {
+		KVStore store = new KVStore();
+		KVServer server = new KVServer(store, new KVCache(1, 1));
+		server.put("k", "v", 300);
+		server.put("other", "evicts k");
+		assertEquals("v", server.get("k"));
+		Thread.sleep(600);
+		assertAbsent(store, "k");
+		try {
+			server.get("k");
+			fail("the cache served a pair the store has expired");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void storeKeepsTheDeadlineOfAPair() throws Exception {
+		KVStore store = new KVStore();
+		long before = System.currentTimeMillis();
+		store.put("k", "v", 10000);
+		long deadline = store.getVersioned("k").getDeadline();
+		if (deadline < before + 10000 || deadline > System.currentTimeMillis() + 10000) {
+			fail("deadline " + deadline + " is not 10s after the put");
+		}
+		store.put("k", "v");
+		assertEquals(0, store.getVersioned("k").getDeadline());
+	}
+
+	private static void assertAbsent(KVStore store, String key) {
+		try {
+			store.get(key);
+			fail(key + " should have expired");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * In write-back mode changes are seen at once and reach the store on a
+ * flush, including those evicted from the cache in between, and leaving
+ * the mode loses none of them.
+ */
+public class KVServerWriteBackTest {
+	// Long enough for the flusher never to run during a test
+	private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void changesReachTheStoreOnFlush() throws Exception {
+		KVStore store = new KVStore();
+		KVServer server = new KVServer(store, new KVCache(4, 4));
+		server.enableWriteBack(NEVER);
+
+		server.put("a", "1");
+		assertEquals("1", server.get("a"));
+		assertAbsent(store, "a");
+		server.flush();
+		assertEquals("1", store.get("a"));
+
+		server.del("a");
+		assertAbsent(server, "a");
+		assertEquals("1", store.get("a"));
+		server.flush();
+		assertAbsent(store, "a");
+		server.disableWriteBack();
+	}
+
+	@Test
+	public void changesEvictedBeforeAFlushAreKept() throws Exception {
+		KVStore store = new KVStore();
+		KVServer server = new KVServer(store, new KVCache(1, 2));
+		server.enableWriteBack(NEVER);
+		for (int i = 0; i < 50; i++) {
+			server.put("k" + i, "v" + i);
+		}
+		for (int i = 0; i < 50; i++) {
+			assertEquals("v" + i, server.get("k" + i));
+		}
+		server.disableWriteBack();
+		for (int i = 0; i < 50; i++) {
+			assertEquals("v" + i, store.get("k" + i));
+		}
+	}
+
+	@Test
+	public void disablingLosesNoConcurrentWrite() throws Exception {
+		KVStore store = new KVStore();
+		final KVServer server = new KVServer(store, new KVCache(2, 4));
+		server.enableWriteBack(NEVER);
+		final AtomicBoolean stop = new AtomicBoolean();
+		List<Future<Integer>> writers = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < 8; t++) {
+			final String key = "k" + t;
+			writers.add(pool.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws KVException {
+					int i = 0;
+					while (!stop.get()) {
+						server.put(key, Integer.toString(++i));
+					}
+					return i;
+				}
+			}));
+		}
+		Thread.sleep(100);
+		server.disableWriteBack();
+		Thread.sleep(50);
+		stop.set(true);
+		for (int t = 0; t < writers.size(); t++) {
+			int last = writers.get(t).get(5, TimeUnit.SECONDS);
+			assertEquals(Integer.toString(last), store.get("k" + t));
+		}
+	}
+
+	private static void assertAbsent(KVStore store, String key) {
+		try {
+			store.get(key);
+			fail(key + " should not be in the store");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	private static void assertAbsent(KVServer server, String key) {
+		try {
+			server.get(key);
+			fail(key + " should not be found");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A binary snapshot restores every live pair with its deadline and version,
+ * however many blocks it spans, and a damaged one is refused before the
+ * store is touched.
+ */
+public class KVSnapshotTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void pairsKeepTheirDeadlineAndVersion() throws Exception {
+		KVStore source = new KVStore();
+		source.put("plain", "1");
+		source.put("plain", "2");
+		source.put("clé", "été 中文 😀");
+		source.put("ttl", "soon", 60000);
+		source.put("gone", "x");
+		source.del("gone");
+		File snapshot = snapshot(source);
+		assertFalse(new File(snapshot.getPath() + ".tmp").exists());
+
+		KVStore restored = new KVStore();
+		restored.put("stale", "x");
+		restored.restoreFromSnapshot(snapshot.getPath());
+		assertEquals("2", restored.get("plain"));
+		assertEquals(2, restored.getVersion("plain"));
+		assertEquals("été 中文 😀", restored.get("clé"));
+		assertEquals(source.getVersioned("ttl").getDeadline(), restored.getVersioned("ttl").getDeadline());
+		assertAbsent(restored, "gone");
+		assertAbsent(restored, "stale");
+	}
+
+	@Test
+	public void expiredPairsAreNotRestored() throws Exception {
+		KVStore source = new KVStore();
+		source.put("kept", "x");
+		source.put("short", "x", 100);
+		File snapshot = snapshot(source);
+		Thread.sleep(200);
+
+		KVStore restored = new KVStore();
+		restored.restoreFromSnapshot(snapshot.getPath());
+		assertEquals("x", restored.get("kept"));
+		assertAbsent(restored, "short");
+	}
+
+	@Test
+	public void manyBlocksAreDecodedInParallel() throws Exception {
+		KVStore source = new KVStore();
+		for (int i = 0; i < 20000; i++) {
+			source.put("k" + i, "value of k" + i);
+		}
+		File snapshot = snapshot(source);
+		assertTrue(snapshot.length() > 8 * KVSnapshot.BLOCK_BYTES);
+
+		KVSnapshot.pair[][] blocks = KVSnapshot.read(snapshot.toPath(), new ForkJoinPool(4));
+		int pairs = 0;
+		for (KVSnapshot.pair[] block : blocks) {
+			pairs += block.length;
+		}
+		assertEquals(20000, pairs);
+
+		KVStore restored = new KVStore();
+		restored.restoreFromSnapshot(snapshot.getPath());
+		for (int i = 0; i < 20000; i++) {
+			assertEquals("value of k" + i, restored.get("k" + i));
+		}
+		assertEquals(source.toXML(), restored.toXML());
+	}
+
+	@Test
+	public void compressedValuesRestoreToAnEngine() throws Exception {
+		KVStore source = new KVStore();
+		source.setCompressionThreshold(16);
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			value.append("repeated ");
+		}
+		source.put("big", value.toString());
+		source.put("small", "x");
+		File snapshot = snapshot(source);
+
+		LsmKVStore restored = new LsmKVStore(folder.newFolder("lsm").getPath(), 2048, false);
+		try {
+			restored.restoreFromSnapshot(snapshot.getPath());
+			assertEquals(value.toString(), restored.get("big"));
+			assertEquals("x", restored.get("small"));
+		} finally {
+			restored.close();
+		}
+	}
+
+	@Test
+	public void damagedBlockLeavesTheStoreUntouched() throws Exception {
+		KVStore source = new KVStore();
+		for (int i = 0; i < 20000; i++) {
+			source.put("k" + i, "value of k" + i);
+		}
+		File snapshot = snapshot(source);
+		// Flip a byte in the middle of some block
+		RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+		try {
+			long at = snapshot.length() / 2;
+			file.seek(at);
+			int b = file.read();
+			file.seek(at);
+			file.write(b ^ 0x40);
+		} finally {
+			file.close();
+		}
+
+		KVStore store = new KVStore();
+		store.put("kept", "yes");
+		assertRefused(store, snapshot);
+		assertEquals("yes", store.get("kept"));
+		assertAbsent(store, "k0");
+	}
+
+	@Test
+	public void truncatedSnapshotIsRefused() throws Exception {
+		KVStore source = new KVStore();
+		source.put("k", "v");
+		File snapshot = snapshot(source);
+		RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+		try {
+			file.setLength(snapshot.length() - 1);
+		} finally {
+			file.close();
+		}
+
+		KVStore store = new KVStore();
+		store.put("kept", "yes");
+		assertRefused(store, snapshot);
+		assertRefused(store, new File(folder.getRoot(), "absent.snap"));
+		assertEquals("yes", store.get("kept"));
+	}
+
+	private File snapshot(KVStore store) throws KVException {
+		File snapshot = new File(folder.getRoot(), "store.snap");
+		store.dumpToSnapshot(snapshot.getPath());
+		return snapshot;
+	}
+
+	private static void assertRefused(KVStore store, File snapshot) {
+		try {
+			store.restoreFromSnapshot(snapshot.getPath());
+			fail(snapshot + " should be refused");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	private static void assertAbsent(KVStore store, String key) {
+		try {
+			store.get(key);
+			fail(key + " should not be found");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * dumpToSnapshotAsync writes the store as it was when the call started,
+ * while writers carry on unhindered.
+ */
+public class KVStoreAsyncDumpTest {
+	private static final int PAIRS = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * A store whose dump stops half way until released.
+	 */
+	private static class pausingStore extends KVStore {
+		final CountDownLatch paused = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+
+		@Override
+		protected stored readStored(String key) throws KVException {
+			if (key.equals("k500") && Thread.currentThread().getName().equals("KVStore snapshot")) {
+				paused.countDown();
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return super.readStored(key);
+		}
+	}
+
+	@Test
+	public void snapshotHoldsThePairsOfItsStart() throws Exception {
+		final pausingStore store = new pausingStore();
+		for (int i = 0; i < PAIRS; i++) {
+			store.put("k" + i, "old" + i);
+		}
+		store.put("ttl", "old", 60000);
+		long deadline = store.getVersioned("ttl").getDeadline();
+		File snapshot = new File(folder.getRoot(), "store.snap");
+		Future<Void> dump = store.dumpToSnapshotAsync(snapshot.getPath());
+		assertTrue(store.paused.await(10, TimeUnit.SECONDS));
+
+		// Every key changes while the dump is stopped, and none of the writes waits for it
+		pool.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws KVException {
+				for (int i = 0; i < PAIRS; i++) {
+					if (i % 3 == 0) {
+						store.del("k" + i);
+					} else {
+						store.put("k" + i, "new" + i);
+					}
+					store.put("added" + i, "new");
+				}
+				store.put("ttl", "new");
+				return null;
+			}
+		}).get(30, TimeUnit.SECONDS);
+		store.released.countDown();
+		dump.get(30, TimeUnit.SECONDS);
+
+		KVStore restored = new KVStore();
+		restored.restoreFromSnapshot(snapshot.getPath());
+		for (int i = 0; i < PAIRS; i++) {
+			assertEquals("old" + i, restored.get("k" + i));
+			assertAbsent(restored, "added" + i);
+		}
+		assertEquals("old", restored.get("ttl"));
+		assertEquals(deadline, restored.getVersioned("ttl").getDeadline());
+		assertEquals("new1", store.get("k1"));
+		assertAbsent(store, "k0");
+	}
+
+	@Test
+	public void failureCompletesTheFuture() throws Exception {
+		KVStore store = new KVStore();
+		store.put("k", "v");
+		File missing = new File(folder.getRoot(), "missing/store.snap");
+		try {
+			store.dumpToSnapshotAsync(missing.getPath()).get(30, TimeUnit.SECONDS);
+			fail("the snapshot should fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof KVException);
+		}
+	}
+
+	private static void assertAbsent(KVStore store, String key) {
+		try {
+			store.get(key);
+			fail(key + " should not be found");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+}
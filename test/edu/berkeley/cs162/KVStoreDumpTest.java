@@ -0,0 +1,130 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * dumpToFile and restoreFromFile carry every pair through the XML format
+ * unchanged, and a file that does not parse leaves the store as it was.
+ */
+public class KVStoreDumpTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void pairsSurviveADumpAndRestore() throws Exception {
+		KVStore source = new KVStore();
+		String[][] pairs = {
+				{ "plain", "value" },
+				{ "<tag>", "</KVPair><Key>injected</Key>" },
+				{ "a & b", "\"quoted\" 'single' & <amp;" },
+				{ "clé 键", "été 中文 😀" },
+				{ "  spaced  ", "\n\ttabbed\n" },
+		};
+		for (String[] pair : pairs) {
+			source.put(pair[0], pair[1]);
+		}
+		for (int i = 0; i < 1000; i++) {
+			source.put("k" + i, "v" + i);
+		}
+		source.del("k500");
+		File dump = new File(folder.getRoot(), "dump.xml");
+		source.dumpToFile(dump.getPath());
+		assertFalse(new File(folder.getRoot(), "dump.xml.tmp").exists());
+
+		KVStore restored = new KVStore();
+		restored.put("stale", "x");
+		restored.restoreFromFile(dump.getPath());
+		for (String[] pair : pairs) {
+			assertEquals(pair[1], restored.get(pair[0]));
+		}
+		for (int i = 0; i < 1000; i++) {
+			if (i != 500) {
+				assertEquals("v" + i, restored.get("k" + i));
+			}
+		}
+		assertAbsent(restored, "k500");
+		assertAbsent(restored, "injected");
+		assertAbsent(restored, "stale");
+		assertEquals(source.toXML(), restored.toXML());
+	}
+
+	@Test
+	public void restoredPairsStartAtVersionOne() throws Exception {
+		KVStore source = new KVStore();
+		source.put("k", "1");
+		source.put("k", "2");
+		File dump = new File(folder.getRoot(), "dump.xml");
+		source.dumpToFile(dump.getPath());
+
+		KVStore restored = new KVStore();
+		int generation = restored.getGeneration();
+		restored.restoreFromFile(dump.getPath());
+		assertEquals("2", restored.get("k"));
+		assertEquals(1, restored.getVersion("k"));
+		assertTrue(restored.getGeneration() > generation);
+	}
+
+	@Test
+	public void damagedFileLeavesTheStoreUntouched() throws Exception {
+		KVStore source = new KVStore();
+		for (int i = 0; i < 10; i++) {
+			source.put("k" + i, "v" + i);
+		}
+		File dump = new File(folder.getRoot(), "dump.xml");
+		source.dumpToFile(dump.getPath());
+		String xml = new String(Files.readAllBytes(dump.toPath()), StandardCharsets.UTF_8);
+
+		KVStore store = new KVStore();
+		store.put("kept", "yes");
+		// Cut off half way, so the pairs before the cut parse
+		File truncated = write("truncated.xml", xml.substring(0, xml.length() / 2));
+		store.restoreFromFile(truncated.getPath());
+		File missingValue = write("missing.xml", "<?xml version=\"1.0\"?>\n<KVStore><KVPair><Key>k</Key></KVPair></KVStore>\n");
+		store.restoreFromFile(missingValue.getPath());
+		store.restoreFromFile(new File(folder.getRoot(), "absent.xml").getPath());
+		assertEquals("yes", store.get("kept"));
+		assertAbsent(store, "k0");
+		assertAbsent(store, "k");
+	}
+
+	@Test
+	public void externalEntitiesAreNotExpanded() throws Exception {
+		File secret = write("secret.txt", "secret");
+		File dump = write("entity.xml", "<?xml version=\"1.0\"?>\n"
+				+ "<!DOCTYPE KVStore [<!ENTITY leak SYSTEM \"" + secret.toURI() + "\">]>\n"
+				+ "<KVStore><KVPair><Key>k</Key><Value>&leak;</Value></KVPair></KVStore>\n");
+		KVStore store = new KVStore();
+		store.restoreFromFile(dump.getPath());
+		try {
+			assertFalse(store.get("k").contains("secret"));
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	private File write(String name, String content) throws Exception {
+		File file = new File(folder.getRoot(), name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static void assertAbsent(KVStore store, String key) {
+		try {
+			store.get(key);
+			fail(key + " should not be found");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * On every engine, paging through scan or prefixScan with the cursor of
+ * each page returns the live pairs of the range once each and in key
+ * order, even while other keys change.
+ */
+@RunWith(Parameterized.class)
+public class KVStoreScanTest {
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> engines() {
+		return Arrays.asList(new Object[][] { { "memory" }, { "compact" }, { "log" }, { "lsm" }, { "btree" } });
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final String engine;
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+	private File dir;
+	private KVStore store;
+
+	public KVStoreScanTest(String engine) {
+		this.engine = engine;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.newFolder(engine);
+		store = open();
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+		close(store);
+	}
+
+	private KVStore open() throws KVException, IOException {
+		if (engine.equals("memory")) {
+			return new KVStore();
+		} else if (engine.equals("compact")) {
+			return new CompactKVStore();
+		} else if (engine.equals("log")) {
+			return new LogStructuredKVStore(dir.getPath(), 4096, false);
+		} else if (engine.equals("lsm")) {
+			return new LsmKVStore(dir.getPath(), 2048, false);
+		}
+		return new BTreeKVStore(new File(dir, "store.btree").getPath());
+	}
+
+	private static void close(KVStore store) {
+		if (store instanceof LogStructuredKVStore) {
+			((LogStructuredKVStore) store).close();
+		} else if (store instanceof LsmKVStore) {
+			((LsmKVStore) store).close();
+		} else if (store instanceof BTreeKVStore) {
+			((BTreeKVStore) store).close();
+		}
+	}
+
+	@Test
+	public void pagesCoverTheStoreInOrder() throws Exception {
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < 300; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(162));
+		for (int i : order) {
+			String key = String.format("k%03d", i);
+			store.put(key, "v" + i);
+			expected.put(key, "v" + i);
+		}
+		for (int i = 0; i < 300; i += 7) {
+			String key = String.format("k%03d", i);
+			store.del(key);
+			expected.remove(key);
+		}
+		assertEquals(expected, scanAll(null, null, 7));
+		assertEquals(expected.subMap("k100", "k200"), scanAll("k100", "k200", 10));
+		assertEquals(expected.headMap("k050"), scanAll(null, "k050", 1000));
+
+		KVScanPage page = store.scan("k100", "k110", 100);
+		assertFalse(page.hasMore());
+		assertNull(page.getCursor());
+		assertTrue(store.scan("k200", "k100", 10).getPairs().isEmpty());
+	}
+
+	@Test
+	public void prefixScanStopsAtTheEndOfThePrefix() throws Exception {
+		String[] keys = { "use", "user", "user:", "user:1", "user:2", "user:2:x", "user;", "userz", "v" };
+		for (String key : keys) {
+			store.put(key, key);
+		}
+		TreeMap<String, String> pairs = new TreeMap<String, String>();
+		String cursor = null;
+		do {
+			KVScanPage page = store.prefixScan("user:", cursor, 2);
+			assertTrue(page.getPairs().size() <= 2);
+			addPage(pairs, page);
+			cursor = page.getCursor();
+		} while (cursor != null);
+		assertEquals(Arrays.asList("user:", "user:1", "user:2", "user:2:x"), new ArrayList<String>(pairs.keySet()));
+		assertEquals(9, scanAll(null, null, 4).size());
+	}
+
+	@Test
+	public void expiredPairsAreSkipped() throws Exception {
+		store.put("a", "1");
+		store.put("b", "2", 100);
+		store.put("c", "3");
+		Thread.sleep(200);
+		assertEquals(Arrays.asList("a", "c"), new ArrayList<String>(scanAll(null, null, 1).keySet()));
+	}
+
+	@Test
+	public void pagesSeeEveryUnchangedKeyOnceDuringWrites() throws Exception {
+		TreeMap<String, String> stable = new TreeMap<String, String>();
+		for (int i = 0; i < 200; i++) {
+			String key = String.format("k%03d", i);
+			store.put(key + "s", "stable");
+			stable.put(key + "s", "stable");
+		}
+		final AtomicBoolean done = new AtomicBoolean();
+		Future<Void> writer = pool.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws KVException {
+				Random random = new Random(1);
+				while (!done.get()) {
+					String key = String.format("k%03dv", random.nextInt(200));
+					if (random.nextBoolean()) {
+						store.put(key, "volatile");
+					} else {
+						store.del(key);
+					}
+				}
+				return null;
+			}
+		});
+		try {
+			for (int round = 0; round < 5; round++) {
+				TreeMap<String, String> seen = scanAll(null, null, 9);
+				for (Map.Entry<String, String> pair : seen.entrySet()) {
+					assertEquals(pair.getKey().endsWith("s") ? "stable" : "volatile", pair.getValue());
+				}
+				seen.keySet().retainAll(stable.keySet());
+				assertEquals(stable, seen);
+			}
+		} finally {
+			done.set(true);
+		}
+		writer.get(30, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void limitMustBePositive() throws Exception {
+		store.put("a", "1");
+		try {
+			store.scan(null, null, 0);
+			fail("a scan of 0 pairs should be refused");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Pages through a range, checking that keys only ever go up.
+	 */
+	private TreeMap<String, String> scanAll(String startKey, String endKey, int limit) throws KVException {
+		TreeMap<String, String> pairs = new TreeMap<String, String>();
+		String cursor = startKey;
+		do {
+			KVScanPage page = store.scan(cursor, endKey, limit);
+			assertTrue(page.getPairs().size() <= limit);
+			addPage(pairs, page);
+			if (page.getCursor() != null) {
+				assertTrue(pairs.isEmpty() || page.getCursor().compareTo(pairs.lastKey()) > 0);
+			}
+			cursor = page.getCursor();
+		} while (cursor != null);
+		return pairs;
+	}
+
+	private static void addPage(TreeMap<String, String> pairs, KVScanPage page) {
+		for (Map.Entry<String, String> pair : page.getPairs().entrySet()) {
+			assertTrue(pair.getKey() + " out of order", pairs.isEmpty() || pair.getKey().compareTo(pairs.lastKey()) > 0);
+			pairs.put(pair.getKey(), pair.getValue());
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Every engine keeps a version per key that only ever grows, across
+ * deletes, expiry and restarts, and compare-and-set checks it atomically.
+ */
+@RunWith(Parameterized.class)
+public class KVStoreVersionTest {
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> engines() {
+		return Arrays.asList(new Object[][] { { "memory" }, { "compact" }, { "log" }, { "lsm" }, { "btree" } });
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final String engine;
+	private File dir;
+	private KVStore store;
+
+	public KVStoreVersionTest(String engine) {
+		this.engine = engine;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.newFolder(engine);
+		store = open();
+	}
+
+	@After
+	public void tearDown() {
+		close(store);
+	}
+
+	private KVStore open() throws KVException, IOException {
+		if (engine.equals("memory")) {
+			return new KVStore();
+		} else if (engine.equals("compact")) {
+			return new CompactKVStore();
+		} else if (engine.equals("log")) {
+			return new LogStructuredKVStore(dir.getPath(), 4096, false);
+		} else if (engine.equals("lsm")) {
+			return new LsmKVStore(dir.getPath(), 2048, false);
+		}
+		return new BTreeKVStore(new File(dir, "store.btree").getPath());
+	}
+
+	private static void close(KVStore store) {
+		if (store instanceof LogStructuredKVStore) {
+			((LogStructuredKVStore) store).close();
+		} else if (store instanceof LsmKVStore) {
+			((LsmKVStore) store).close();
+		} else if (store instanceof BTreeKVStore) {
+			((BTreeKVStore) store).close();
+		}
+	}
+
+	@Test
+	public void compareAndSetChecksTheVersion() throws Exception {
+		store.put("a", "1");
+		assertEquals(1, store.getVersion("a"));
+		assertEquals(2, store.putIfVersion("a", "2", 0, 1));
+		assertMismatch(new Callable<Object>() {
+			@Override
+			public Object call() throws KVException {
+				return store.putIfVersion("a", "3", 0, 1);
+			}
+		});
+		assertEquals("2", store.get("a"));
+
+		assertEquals(1, store.putIfVersion("b", "1", 0, 0));
+		assertMismatch(new Callable<Object>() {
+			@Override
+			public Object call() throws KVException {
+				store.delIfVersion("b", 2);
+				return null;
+			}
+		});
+		store.delIfVersion("b", 1);
+		assertEquals(0, store.getVersion("b"));
+	}
+
+	@Test
+	public void versionsOutliveDeletesAndExpiry() throws Exception {
+		store.put("a", "1");
+		store.put("a", "2");
+		store.del("a");
+		assertEquals(0, store.getVersion("a"));
+		// A client that read version 2 before the delete must not win after a re-put
+		store.put("a", "3");
+		assertEquals(3, store.getVersion("a"));
+		assertMismatch(new Callable<Object>() {
+			@Override
+			public Object call() throws KVException {
+				return store.putIfVersion("a", "stale", 0, 2);
+			}
+		});
+
+		store.put("t", "1", 50);
+		Thread.sleep(150);
+		assertEquals(0, store.getVersion("t"));
+		store.put("t", "2");
+		assertEquals(2, store.getVersion("t"));
+	}
+
+	@Test
+	public void versionsSurviveARestart() throws Exception {
+		assumeTrue(!engine.equals("memory") && !engine.equals("compact"));
+		for (int i = 0; i < 200; i++) {
+			store.put("k" + (i % 20), "v" + i);
+		}
+		store.put("gone", "1");
+		store.put("gone", "2");
+		store.del("gone");
+		close(store);
+		store = open();
+		for (int i = 0; i < 20; i++) {
+			assertEquals(10, store.getVersion("k" + i));
+		}
+		assertEquals(0, store.getVersion("gone"));
+		store.put("gone", "3");
+		assertEquals(3, store.getVersion("gone"));
+	}
+
+	@Test
+	public void concurrentIncrementsAreNotLost() throws Exception {
+		store.put("n", "0");
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 4; t++) {
+				workers.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws KVException {
+						for (int done = 0; done < 100; ) {
+							KVVersionedValue current = store.getVersioned("n");
+							String next = Integer.toString(Integer.parseInt(current.getValue()) + 1);
+							try {
+								store.putIfVersion("n", next, 0, current.getVersion());
+								done++;
+							} catch (KVException e) {
+								if (!StaticConstants.VERSION_MISMATCH_ERROR.equals(e.getMsg().getMessage())) {
+									throw e;
+								}
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> worker : workers) {
+				worker.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals("400", store.get("n"));
+		assertEquals(401, store.getVersion("n"));
+	}
+
+	private static void assertMismatch(Callable<Object> write) throws Exception {
+		try {
+			write.call();
+			fail("a write at a stale version succeeded");
+		} catch (KVException e) {
+			assertEquals(StaticConstants.VERSION_MISMATCH_ERROR, e.getMsg().getMessage());
+		}
+	}
+}
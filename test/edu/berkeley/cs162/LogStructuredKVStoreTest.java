@@ -0,0 +1,200 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * LogStructuredKVStore rebuilds the same content from its segments after a
+ * restart, a torn final record or a merge.
+ */
+public class LogStructuredKVStoreTest {
+	private static final long SEGMENT_BYTES = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+	private LogStructuredKVStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.newFolder("log");
+		store = open();
+	}
+
+	@After
+	public void tearDown() {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	private LogStructuredKVStore open() throws KVException {
+		return new LogStructuredKVStore(dir.getPath(), SEGMENT_BYTES, false);
+	}
+
+	private void reopen() throws KVException {
+		store.close();
+		store = open();
+	}
+
+	/**
+	 * Puts k0 to k99 several times and deletes the odd ones, over several segments.
+	 */
+	private void fill() throws KVException {
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 100; i++) {
+				store.put("k" + i, "v" + round + "-" + i);
+			}
+		}
+		for (int i = 1; i < 100; i += 2) {
+			store.del("k" + i);
+		}
+	}
+
+	private void assertFilled() throws KVException {
+		for (int i = 0; i < 100; i++) {
+			if (i % 2 == 0) {
+				assertEquals("v2-" + i, store.get("k" + i));
+			} else {
+				assertAbsent("k" + i);
+			}
+		}
+	}
+
+	@Test
+	public void restartRestoresPutsAndDeletes() throws Exception {
+		fill();
+		assertTrue(segments().length > 1);
+		reopen();
+		assertFilled();
+	}
+
+	@Test
+	public void tornTailIsCutOff() throws Exception {
+		fill();
+		store.close();
+		File[] segments = segments();
+		File last = segments[segments.length - 1];
+		long size = last.length();
+		FileOutputStream out = new FileOutputStream(last, true);
+		try {
+			// The length and part of the body of a record the crash interrupted
+			out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 1, 0, 0 });
+		} finally {
+			out.close();
+		}
+		store = open();
+		assertFilled();
+		assertEquals(size, last.length());
+
+		store.put("after", "crash");
+		reopen();
+		assertEquals("crash", store.get("after"));
+		assertFilled();
+	}
+
+	@Test
+	public void corruptOlderSegmentFailsTheOpen() throws Exception {
+		fill();
+		store.close();
+		store = null;
+		RandomAccessFile first = new RandomAccessFile(segments()[0], "rw");
+		try {
+			first.seek(20);
+			int b = first.read();
+			first.seek(20);
+			first.write(~b);
+		} finally {
+			first.close();
+		}
+		try {
+			store = open();
+			fail("opened a log with a corrupt record before its end");
+		} catch (KVException e) {
+			// Expected, rather than silently losing the records after it
+		}
+	}
+
+	@Test
+	public void mergeKeepsDeletedKeysDeleted() throws Exception {
+		fill();
+		int before = segments().length;
+		store.merge();
+		assertTrue(segments().length < before);
+		assertFilled();
+		reopen();
+		assertFilled();
+		store.put("k1", "back");
+		assertEquals(4, store.getVersion("k1"));
+	}
+
+	@Test
+	public void appliedPositionSurvivesRestartAndMerge() throws Exception {
+		fill();
+		store.setAppliedPosition(42);
+		fill();
+		store.merge();
+		reopen();
+		assertEquals(42, store.getAppliedPosition());
+	}
+
+	@Test(timeout = 10000)
+	public void interruptedLookupGivesUp() throws Exception {
+		fill();
+		// Reading with the interrupt flag set closes the segment's channel
+		Thread.currentThread().interrupt();
+		try {
+			store.get("k0");
+		} catch (KVException e) {
+			// Expected, rather than retrying forever
+		} finally {
+			Thread.interrupted();
+		}
+		assertEquals("v2-0", store.get("k0"));
+	}
+
+	@Test
+	public void interruptedWriteLeavesTheLogWritable() throws Exception {
+		fill();
+		// Writing with the interrupt flag set would close the segment's channel
+		Thread.currentThread().interrupt();
+		try {
+			store.put("k0", "interrupted");
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+		store.put("k2", "after");
+		assertEquals("interrupted", store.get("k0"));
+		reopen();
+		assertEquals("interrupted", store.get("k0"));
+		assertEquals("after", store.get("k2"));
+	}
+
+	private void assertAbsent(String key) {
+		try {
+			store.get(key);
+			fail(key + " was deleted");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	private File[] segments() {
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+}
@@ -0,0 +1,208 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * LsmKVStore recovers what its write-ahead logs and tables hold after a
+ * restart, whether the memtables were flushed or not.
+ */
+public class LsmKVStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+	private long memtableBytes;
+	private LsmKVStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.newFolder("lsm");
+	}
+
+	@After
+	public void tearDown() {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	private void open(long memtableBytes) throws KVException {
+		this.memtableBytes = memtableBytes;
+		store = new LsmKVStore(dir.getPath(), memtableBytes, false);
+	}
+
+	private void reopen() throws KVException {
+		store.close();
+		open(memtableBytes);
+	}
+
+	/**
+	 * Puts k0 to k199 several times and deletes every third one.
+	 */
+	private void fill() throws KVException {
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 200; i++) {
+				store.put("k" + i, "v" + round + "-" + i);
+			}
+		}
+		for (int i = 0; i < 200; i += 3) {
+			store.del("k" + i);
+		}
+	}
+
+	private void assertFilled() throws KVException {
+		for (int i = 0; i < 200; i++) {
+			if (i % 3 == 0) {
+				assertAbsent("k" + i);
+				assertEquals(0, store.getVersion("k" + i));
+			} else {
+				assertEquals("v2-" + i, store.get("k" + i));
+				assertEquals(3, store.getVersion("k" + i));
+			}
+		}
+	}
+
+	@Test
+	public void unflushedWritesAreReplayedFromTheLog() throws Exception {
+		open(64L << 20);
+		fill();
+		assertTrue(files(".sst").isEmpty());
+		reopen();
+		assertFilled();
+		// Replaying must not count the relative versions of the log twice
+		reopen();
+		assertFilled();
+		store.put("k0", "back");
+		assertEquals(4, store.getVersion("k0"));
+	}
+
+	@Test
+	public void flushedAndCompactedTablesSurviveARestart() throws Exception {
+		open(2048);
+		fill();
+		assertFalse(files(".sst").isEmpty());
+		reopen();
+		assertFilled();
+		fill();
+		reopen();
+		for (int i = 1; i < 200; i += 3) {
+			assertEquals(6, store.getVersion("k" + i));
+		}
+	}
+
+	@Test
+	public void tornLogTailIsIgnored() throws Exception {
+		open(64L << 20);
+		fill();
+		store.close();
+		List<File> wals = files(".wal");
+		FileOutputStream out = new FileOutputStream(wals.get(wals.size() - 1), true);
+		try {
+			out.write(new byte[] { 0, 0, 0, 50, 9, 9, 9, 9, 6 });
+		} finally {
+			out.close();
+		}
+		open(64L << 20);
+		assertFilled();
+	}
+
+	@Test
+	public void tablesMissingFromTheManifestAreDeleted() throws Exception {
+		open(2048);
+		fill();
+		store.close();
+		// What a compaction interrupted before its manifest was written leaves behind
+		File leftover = new File(dir, String.format("%016d.sst", 999999));
+		FileOutputStream out = new FileOutputStream(leftover);
+		try {
+			out.write(new byte[100]);
+		} finally {
+			out.close();
+		}
+		open(2048);
+		assertFalse(leftover.exists());
+		assertFilled();
+	}
+
+	@Test
+	public void appliedPositionSurvivesFlushesAndRestarts() throws Exception {
+		open(2048);
+		store.setAppliedPosition(7);
+		fill();
+		reopen();
+		assertEquals(7, store.getAppliedPosition());
+		store.setAppliedPosition(8);
+		reopen();
+		assertEquals(8, store.getAppliedPosition());
+	}
+
+	@Test(timeout = 10000)
+	public void interruptedLookupGivesUp() throws Exception {
+		open(2048);
+		fill();
+		reopen();
+		// The pairs are in tables now; reading one with the interrupt flag set closes its channel
+		Thread.currentThread().interrupt();
+		try {
+			store.get("k1");
+		} catch (KVException e) {
+			// Expected, rather than retrying forever
+		} finally {
+			Thread.interrupted();
+		}
+		assertEquals("v2-1", store.get("k1"));
+	}
+
+	@Test
+	public void interruptedWriteLeavesTheLogWritable() throws Exception {
+		open(64L << 20);
+		fill();
+		// Writing with the interrupt flag set would close the write-ahead log
+		Thread.currentThread().interrupt();
+		try {
+			store.put("k1", "interrupted");
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+		store.put("k2", "after");
+		assertEquals("interrupted", store.get("k1"));
+		reopen();
+		assertEquals("interrupted", store.get("k1"));
+		assertEquals("after", store.get("k2"));
+	}
+
+	private void assertAbsent(String key) {
+		try {
+			store.get(key);
+			fail(key + " was deleted");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+
+	private List<File> files(String suffix) {
+		List<File> files = new ArrayList<File>();
+		for (File file : dir.listFiles()) {
+			if (file.getName().endsWith(suffix)) {
+				files.add(file);
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+}
@@ -0,0 +1,100 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * NegativeCache never reports a key absent unless it was added and not
+ * removed since, and spares KVServer the store lookups of repeated misses
+ * without hiding a key that appears.
+ */
+public class NegativeCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * A store that counts its reads.
+	 */
+	private static class countingStore extends KVStore {
+		final AtomicInteger reads = new AtomicInteger();
+
+		@Override
+		protected stored readStored(String key) throws KVException {
+			reads.incrementAndGet();
+			return super.readStored(key);
+		}
+	}
+
+	@Test
+	public void keysAreAbsentOnlyUntilRemoved() {
+		NegativeCache absent = new NegativeCache(8);
+		assertFalse(absent.contains("a"));
+		absent.add("a");
+		assertTrue(absent.contains("a"));
+		absent.remove("a");
+		assertFalse(absent.contains("a"));
+	}
+
+	@Test
+	public void collidingKeysOnlyForgetEachOther() {
+		// One slot, so every key collides
+		NegativeCache absent = new NegativeCache(1);
+		absent.add("a");
+		absent.add("b");
+		assertFalse(absent.contains("a"));
+		assertTrue(absent.contains("b"));
+		absent.remove("a");
+		assertTrue(absent.contains("b"));
+		absent.clear();
+		assertFalse(absent.contains("b"));
+	}
+
+	@Test
+	public void repeatedMissesReadTheStoreOnce() throws Exception {
+		countingStore store = new countingStore();
+		KVServer server = new KVServer(store, new KVCache(4, 4));
+		for (int i = 0; i < 5; i++) {
+			assertMissing(server, "k");
+		}
+		assertEquals(1, store.reads.get());
+
+		server.put("k", "v");
+		assertEquals("v", server.get("k"));
+		server.del("k");
+		int reads = store.reads.get();
+		assertMissing(server, "k");
+		assertEquals(reads, store.reads.get());
+	}
+
+	@Test
+	public void restoringTheStoreForgetsAbsentKeys() throws Exception {
+		KVStore source = new KVStore();
+		source.put("k", "restored");
+		File dump = new File(folder.getRoot(), "dump.xml");
+		source.dumpToFile(dump.getPath());
+
+		KVStore store = new KVStore();
+		KVServer server = new KVServer(store, new KVCache(4, 4));
+		assertMissing(server, "k");
+		store.restoreFromFile(dump.getPath());
+		assertEquals("restored", server.get("k"));
+	}
+
+	private static void assertMissing(KVServer server, String key) {
+		try {
+			server.get(key);
+			fail(key + " should not be found");
+		} catch (KVException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * OffHeapKVCache hands back exactly what was put in its slabs, however
+ * often they are compacted, and never holds more than they can take.
+ */
+public class OffHeapKVCacheTest {
+	@Test
+	public void nonAsciiKeysAndValuesRoundTrip() {
+		OffHeapKVCache cache = new OffHeapKVCache(2, 8, 4096);
+		String[] keys = { "plain", "clé", "键", "😀" };
+		for (String key : keys) {
+			cache.put(key, key + " → été 中文 😀");
+		}
+		for (String key : keys) {
+			assertEquals(key + " → été 中文 😀", cache.getShared(key));
+			assertEquals(key + " → été 中文 😀", cache.get(key));
+		}
+		assertEquals(4, cache.hotKeys(10).size());
+	}
+
+	@Test
+	public void compactionKeepsEveryLiveEntry() {
+		// 16 entries of at most 43 bytes always fit in the slab, but the
+		// space overwrites leave behind has to be reclaimed again and again
+		OffHeapKVCache cache = new OffHeapKVCache(1, 16, 1024);
+		Map<String, String> expected = new HashMap<String, String>();
+		Random random = new Random(162);
+		for (int op = 0; op < 20000; op++) {
+			String key = "k" + Integer.toString(random.nextInt(16), 16);
+			if (random.nextInt(5) == 0) {
+				cache.del(key);
+				expected.remove(key);
+			} else {
+				String value = text(random, random.nextInt(41));
+				cache.put(key, value);
+				expected.put(key, value);
+			}
+			String probe = "k" + Integer.toString(random.nextInt(16), 16);
+			assertEquals(probe, expected.get(probe), cache.get(probe));
+		}
+		assertEquals(0, cache.getStats().getEvictions());
+	}
+
+	@Test
+	public void slabFullEvictsAndStaysWithinIt() {
+		OffHeapKVCache cache = new OffHeapKVCache(1, 100, 500);
+		for (int i = 0; i < 100; i++) {
+			cache.put(String.format("k%02d", i), "0123456789");
+			assertTrue(cache.getUsedBytes() <= 500);
+		}
+		// Each entry takes 13 bytes, so 38 fit
+		assertEquals(62, cache.getStats().getEvictions());
+		assertEquals("0123456789", cache.get("k99"));
+		assertNull(cache.get("k00"));
+	}
+
+	@Test
+	public void entryLargerThanASlabIsNotCached() {
+		OffHeapKVCache cache = new OffHeapKVCache(2, 8, 200);
+		cache.put("k", "small");
+		cache.put("k", text(new Random(1), 150));
+		assertNull(cache.get("k"));
+		assertEquals(0, cache.getUsedBytes());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void byteBudgetIsRequired() {
+		new OffHeapKVCache(2, 8, 0);
+	}
+
+	@Test
+	public void resizeMovesEntriesToNewSlabs() {
+		OffHeapKVCache cache = new OffHeapKVCache(2, 32, 8192);
+		for (int i = 0; i < 40; i++) {
+			cache.put("k" + i, "v" + i);
+		}
+		cache.resize(5);
+		cache.finishResize();
+		for (int i = 0; i < 40; i++) {
+			assertEquals("v" + i, cache.get("k" + i));
+		}
+	}
+
+	private static String text(Random random, int length) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			text.append((char) ('a' + random.nextInt(26)));
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,123 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Whatever ValueCompressor stores, decode hands back the value that was
+ * put, and only values that shrink enough are kept compressed.
+ */
+public class ValueCompressorTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void repetitiveValuesAreStoredCompressed() {
+		ValueCompressor compressor = new ValueCompressor(64);
+		Bytes value = Bytes.of(repeat("compressible ", 100));
+		Bytes stored = compressor.encode(value);
+		assertEquals(ValueCompressor.COMPRESSED, stored.byteAt(0));
+		assertTrue(stored.length() < value.length() / 4);
+		assertEquals(value, ValueCompressor.decode(stored));
+
+		CompressionStats stats = compressor.getStats();
+		assertEquals(64, stats.getThreshold());
+		assertEquals(1, stats.getCompressedValues());
+		assertEquals(0, stats.getIncompressibleValues());
+		assertEquals(value.length(), stats.getBytesIn());
+		assertEquals(stored.length(), stats.getBytesOut());
+	}
+
+	@Test
+	public void shortAndIncompressibleValuesAreStoredAsTheyAre() {
+		ValueCompressor compressor = new ValueCompressor(64);
+		Bytes small = Bytes.of("short");
+		assertSame(small, compressor.encode(small));
+
+		Bytes noise = noise(new Random(162), 500);
+		assertSame(noise, compressor.encode(noise));
+		assertEquals(1, compressor.getStats().getIncompressibleValues());
+		assertEquals(0, compressor.getStats().getCompressedValues());
+
+		ValueCompressor off = new ValueCompressor(0);
+		Bytes value = Bytes.of(repeat("compressible ", 100));
+		assertSame(value, off.encode(value));
+	}
+
+	@Test
+	public void valuesStartingWithAMarkerAreEscaped() {
+		ValueCompressor compressor = new ValueCompressor(0);
+		for (String value : new String[] { "\u0000", "\u0000zero", "\u0001one", "\u0002two", "" }) {
+			Bytes stored = compressor.encode(Bytes.of(value));
+			assertEquals(value, ValueCompressor.decode(stored).toString());
+		}
+		assertEquals(ValueCompressor.ESCAPED, compressor.encode(Bytes.of("\u0000zero")).byteAt(0));
+	}
+
+	@Test
+	public void versionedValuesOfOlderFilesAreRead() {
+		// Version 300 as a varint, then an escaped value
+		byte[] stored = { ValueCompressor.VERSIONED, (byte) 0xAC, 0x02, ValueCompressor.ESCAPED, 0, 'v' };
+		assertEquals(300, ValueCompressor.versionOf(Bytes.copyOf(stored)));
+		assertEquals("\u0000v", ValueCompressor.decode(Bytes.copyOf(stored)).toString());
+		assertEquals(1, ValueCompressor.versionOf(Bytes.of("plain")));
+	}
+
+	@Test
+	public void storeCompressesFromItsThresholdOnly() throws Exception {
+		KVStore store = new KVStore();
+		String big = repeat("compressible ", 100);
+		store.put("before", big);
+		assertEquals(0, store.getCompressionStats().getCompressedValues());
+		store.setCompressionThreshold(64);
+		store.put("after", big);
+		store.put("small", "\u0001small");
+		assertEquals(1, store.getCompressionStats().getCompressedValues());
+		assertEquals(big, store.get("before"));
+		assertEquals(big, store.get("after"));
+		assertEquals("\u0001small", store.get("small"));
+		assertTrue(store.toXML().contains(big));
+	}
+
+	@Test
+	public void compressedValuesOutliveARestart() throws Exception {
+		String dir = folder.newFolder("log").getPath();
+		String big = repeat("compressible ", 100) + "é中😀";
+		LogStructuredKVStore store = new LogStructuredKVStore(dir, 4096, false);
+		store.setCompressionThreshold(64);
+		store.put("big", big);
+		store.put("zero", "\u0000");
+		store.close();
+
+		store = new LogStructuredKVStore(dir, 4096, false);
+		try {
+			assertEquals(big, store.get("big"));
+			assertEquals("\u0000", store.get("zero"));
+		} finally {
+			store.close();
+		}
+	}
+
+	private static String repeat(String s, int times) {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			out.append(s);
+		}
+		return out.toString();
+	}
+
+	private static Bytes noise(Random random, int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		// No marker first, so that the value needs no escape either
+		bytes[0] = 'n';
+		return Bytes.copyOf(bytes);
+	}
+}